@@ -0,0 +1,42 @@
+//
+// Copyright Alexander Schütz, 2022
+//
+// This file is part of LuajFSHook.
+//
+// LuajFSHook is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// LuajFSHook is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// A copy of the GNU Lesser General Public License should be provided
+// in the COPYING & COPYING.LESSER files in top level directory of LuajFSHook.
+// If not, see <https://www.gnu.org/licenses/>.
+//
+package io.github.alexanderschuetz97.luajfshook.api;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.NotDirectoryException;
+
+/**
+ * Optional interface for LuaPaths that can list their children lazily.
+ * Callers should not depend on this interface directly but use the static helper of the implementation
+ * that falls back to {@link LuaPath#list()} for LuaPaths that do not implement it.
+ */
+public interface DirectoryStreamLuaPath extends LuaPath {
+
+    /**
+     * Opens a stream that lazily iterates the children of this path. Unlike {@link #list()} the children are
+     * not collected in memory and each entry carries its attributes.
+     * The stream must be closed. Its iterator may only be obtained once. I/O errors during iteration are thrown
+     * as {@link java.nio.file.DirectoryIteratorException}.
+     *
+     * @throws NotDirectoryException if this path does not refer to a directory
+     */
+    DirectoryStream<LuaDirectoryEntry> newDirectoryStream() throws NotDirectoryException, IOException;
+}
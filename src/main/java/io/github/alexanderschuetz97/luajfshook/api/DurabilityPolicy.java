@@ -0,0 +1,50 @@
+//
+// Copyright Alexander Schütz, 2022
+//
+// This file is part of LuajFSHook.
+//
+// LuajFSHook is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// LuajFSHook is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// A copy of the GNU Lesser General Public License should be provided
+// in the COPYING & COPYING.LESSER files in top level directory of LuajFSHook.
+// If not, see <https://www.gnu.org/licenses/>.
+//
+package io.github.alexanderschuetz97.luajfshook.api;
+
+/**
+ * Determines when data written by lua to files opened via the io library is forced to the storage device (fsync).
+ * Lua's file:flush() and io.flush() always pass buffered data to the operating system regardless of the policy.
+ */
+public enum DurabilityPolicy {
+
+    /**
+     * Never sync. The operating system decides when data reaches the storage device.
+     * This is the behavior of c lua.
+     */
+    NONE,
+
+    /**
+     * Sync once when the file is closed.
+     */
+    SYNC_ON_CLOSE,
+
+    /**
+     * Sync every time lua flushes the file.
+     */
+    SYNC_ON_FLUSH,
+
+    /**
+     * Flushing a file marks it for syncing. A background task syncs all marked files at a fixed interval.
+     * Files with a pending sync are synced when they are closed.
+     * A failed background sync is reported as an error by the next flush or close of the file.
+     */
+    GROUP_COMMIT
+}
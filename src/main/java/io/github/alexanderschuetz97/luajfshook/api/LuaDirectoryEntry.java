@@ -0,0 +1,43 @@
+//
+// Copyright Alexander Schütz, 2022
+//
+// This file is part of LuajFSHook.
+//
+// LuajFSHook is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// LuajFSHook is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// A copy of the GNU Lesser General Public License should be provided
+// in the COPYING & COPYING.LESSER files in top level directory of LuajFSHook.
+// If not, see <https://www.gnu.org/licenses/>.
+//
+package io.github.alexanderschuetz97.luajfshook.api;
+
+import java.io.IOException;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Entry of a directory returned by {@link DirectoryStreamLuaPath#newDirectoryStream()}.
+ */
+public interface LuaDirectoryEntry {
+
+    /**
+     * returns the path of the entry. It is a child of the directory that is listed.
+     */
+    LuaPath path();
+
+    /**
+     * returns the attributes of the entry. Symlinks are followed unless the link is broken.
+     * The attributes are read at most once per entry. Depending on the fs they are already known when the entry is created
+     * or they are read the first time this method is called.
+     *
+     * @throws java.nio.file.NoSuchFileException if the entry was deleted before its attributes could be read.
+     */
+    BasicFileAttributes attributes() throws IOException;
+}
@@ -186,7 +186,29 @@ public interface LuaPath {
     }
 
     /**
-     * walks the file tree and calls the given visitor
+     * LuaFileVisitor that also receives the attributes that were read while walking the tree.
+     * When a visitor implements this interface the walk calls the methods of this interface instead of
+     * {@link LuaFileVisitor#preVisitDirectory(LuaPath)} and {@link LuaFileVisitor#visitFile(LuaPath)}.
+     * The attributes are the ones of the link itself if links are not followed.
+     */
+    interface LuaAttributeFileVisitor extends LuaFileVisitor {
+        /**
+         * called before a directory is entered.
+         */
+        FileVisitResult preVisitDirectory(LuaPath dir, BasicFileAttributes attributes) throws IOException;
+
+        /**
+         * called when a file or directory is visited.
+         * Note: directories are only visited when they are NOT entered because the maximum depth has been reached.
+         */
+        FileVisitResult visitFile(LuaPath file, BasicFileAttributes attributes) throws IOException;
+    }
+
+    /**
+     * walks the file tree depth first and calls the given visitor from the calling thread.
+     * preVisitDirectory is called before and postVisitDirectory after all entries of a directory are visited.
+     * The order of the entries within a directory is determined by the fs.
+     * Entries that cannot be read are skipped.
      */
     void walkFileTree(int depth, boolean followLinks, LuaFileVisitor visitor) throws IOException;
 
@@ -26,6 +26,9 @@ import java.nio.channels.FileChannel;
 /**
  * interface to provide {@link java.io.RandomAccessFile} like access to a file backed by virtual lua path.
  * The backing behind an instance may be a RandomAccessFile or something else.
+ *
+ * Implementations that buffer written data should also implement {@link java.io.Flushable}.
+ * Flushing only hands the data to the underlying file, it does not sync it to the storage device.
  */
 public interface LuaRandomAccessFile {
 
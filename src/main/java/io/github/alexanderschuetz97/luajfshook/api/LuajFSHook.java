@@ -19,12 +19,16 @@
 //
 package io.github.alexanderschuetz97.luajfshook.api;
 
+import io.github.alexanderschuetz97.luajfshook.impl.ChunkCache;
 import io.github.alexanderschuetz97.luajfshook.impl.DefaultLuaFileSystemHandler;
 import io.github.alexanderschuetz97.luajfshook.impl.FsAwareJseIoLib;
 import io.github.alexanderschuetz97.luajfshook.impl.FsAwareOs_execute;
 import io.github.alexanderschuetz97.luajfshook.impl.FsAwareOs_remove;
 import io.github.alexanderschuetz97.luajfshook.impl.FsAwareOs_rename;
 import io.github.alexanderschuetz97.luajfshook.impl.FsAwareOs_tmpname;
+import io.github.alexanderschuetz97.luajfshook.impl.GroupCommitSyncer;
+import io.github.alexanderschuetz97.luajfshook.impl.ProcessScheduler;
+import io.github.alexanderschuetz97.luajfshook.impl.ShellCommandEmulator;
 import org.luaj.vm2.Globals;
 import org.luaj.vm2.LuaError;
 import org.luaj.vm2.LuaValue;
@@ -32,6 +36,7 @@ import org.luaj.vm2.lib.PackageLib;
 import org.luaj.vm2.lib.jse.JseBaseLib;
 import org.luaj.vm2.lib.jse.JseOsLib;
 
+import java.lang.reflect.Method;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 
@@ -43,6 +48,9 @@ import java.util.concurrent.Executors;
  * reloading any of these libs or reloading the {@link org.luaj.vm2.lib.IoLib} will undo the LuajFSHook.
  * Load them before calling {@link #install(Globals)}.
  *
+ * LuajFSHook wraps {@link Globals#undumper} and {@link Globals#compiler} so cached chunks returned by a {@link ChunkCache} are not loaded again.
+ * Installing a different undumper or compiler after the LuajFSHook (for example via LoadState.install or LuaC.install) disables this.
+ *
  * processes created by os.execute & io.popen are started in the work directory as determined by the
  * {@link LuaFileSystemHandler#getWorkDirectory()} only if the work directory's
  * {@link LuaPath#toSystemPath()} does not return null. In addition to that processes are free to
@@ -54,6 +62,8 @@ public class LuajFSHook {
 
     private static Executor DEFAULT;
 
+    private static Executor VIRTUAL;
+
     /**
      * Gets (and creates if this is the first call) a new Executor service.
      */
@@ -65,15 +75,80 @@ public class LuajFSHook {
         return DEFAULT;
     }
 
+    /**
+     * Gets (and creates if this is the first call) an Executor that starts a new virtual thread for every task.
+     * Copying the output of many processes then does not require a platform thread per stream.
+     * If the jvm does not support virtual threads (before java 21) then {@link #getDefaultExecutor()} is returned.
+     */
+    public synchronized static Executor getVirtualThreadExecutor() {
+        if (VIRTUAL == null) {
+            try {
+                Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                VIRTUAL = (Executor) factory.invoke(null);
+            } catch (Exception e) {
+                //Not available or preview feature not enabled.
+                VIRTUAL = getDefaultExecutor();
+            }
+        }
+
+        return VIRTUAL;
+    }
+
     /**
      * Load the LuajFSHook into a lua {@link Globals} environment.
      *
-     * @param executor executor that is used by os.execute to copy bytes to stdout/stderr. null -> getDefaultExecutor()
+     * @param executor executor that is used by os.execute & io.popen to copy bytes to stdout/stderr. null -> getDefaultExecutor()
      * @param globals the globals. null -> {@link NullPointerException}
      * @param fileSystemHandler the fs handler to use. null -> {@link DefaultLuaFileSystemHandler}
+     * @param durabilityPolicy when files opened by the io library are synced to the storage device. null -> {@link DurabilityPolicy#NONE}
      * @return true if the installation was successful, false if another LuaFileSystemHandler is already installed.
      */
-    public static boolean install(Globals globals, LuaFileSystemHandler fileSystemHandler, Executor executor) {
+    public static boolean install(Globals globals, LuaFileSystemHandler fileSystemHandler, Executor executor, DurabilityPolicy durabilityPolicy) {
+        return install(globals, fileSystemHandler, executor, durabilityPolicy, null);
+    }
+
+    /**
+     * Load the LuajFSHook into a lua {@link Globals} environment.
+     *
+     * @param executor executor that is used by os.execute & io.popen to copy bytes to stdout/stderr. null -> getDefaultExecutor()
+     * @param globals the globals. null -> {@link NullPointerException}
+     * @param fileSystemHandler the fs handler to use. null -> {@link DefaultLuaFileSystemHandler}
+     * @param durabilityPolicy when files opened by the io library are synced to the storage device. null -> {@link DurabilityPolicy#NONE}
+     * @param processScheduler limits the processes started by os.execute & io.popen. Share it between globals for a common limit. null -> no limit
+     * @return true if the installation was successful, false if another LuaFileSystemHandler is already installed.
+     */
+    public static boolean install(Globals globals, LuaFileSystemHandler fileSystemHandler, Executor executor, DurabilityPolicy durabilityPolicy, ProcessScheduler processScheduler) {
+        return install(globals, fileSystemHandler, executor, durabilityPolicy, processScheduler, null);
+    }
+
+    /**
+     * Load the LuajFSHook into a lua {@link Globals} environment.
+     *
+     * @param executor executor that is used by os.execute & io.popen to copy bytes to stdout/stderr. null -> getDefaultExecutor()
+     * @param globals the globals. null -> {@link NullPointerException}
+     * @param fileSystemHandler the fs handler to use. null -> {@link DefaultLuaFileSystemHandler}
+     * @param durabilityPolicy when files opened by the io library are synced to the storage device. null -> {@link DurabilityPolicy#NONE}
+     * @param processScheduler limits the processes started by os.execute & io.popen. Share it between globals for a common limit. null -> no limit
+     * @param shellEmulator executes simple commands passed to os.execute & io.popen on the fileSystemHandler instead of starting a process. null -> always start a process
+     * @return true if the installation was successful, false if another LuaFileSystemHandler is already installed.
+     */
+    public static boolean install(Globals globals, LuaFileSystemHandler fileSystemHandler, Executor executor, DurabilityPolicy durabilityPolicy, ProcessScheduler processScheduler, ShellCommandEmulator shellEmulator) {
+        return install(globals, fileSystemHandler, executor, durabilityPolicy, null, processScheduler, shellEmulator);
+    }
+
+    /**
+     * Load the LuajFSHook into a lua {@link Globals} environment.
+     *
+     * @param executor executor that is used by os.execute & io.popen to copy bytes to stdout/stderr. null -> getDefaultExecutor()
+     * @param globals the globals. null -> {@link NullPointerException}
+     * @param fileSystemHandler the fs handler to use. null -> {@link DefaultLuaFileSystemHandler}
+     * @param durabilityPolicy when files opened by the io library are synced to the storage device. null -> {@link DurabilityPolicy#NONE}
+     * @param groupCommitSyncer syncer that is used when the durabilityPolicy is {@link DurabilityPolicy#GROUP_COMMIT}. null -> {@link GroupCommitSyncer#getDefault()}
+     * @param processScheduler limits the processes started by os.execute & io.popen. Share it between globals for a common limit. null -> no limit
+     * @param shellEmulator executes simple commands passed to os.execute & io.popen on the fileSystemHandler instead of starting a process. null -> always start a process
+     * @return true if the installation was successful, false if another LuaFileSystemHandler is already installed.
+     */
+    public static boolean install(Globals globals, LuaFileSystemHandler fileSystemHandler, Executor executor, DurabilityPolicy durabilityPolicy, GroupCommitSyncer groupCommitSyncer, ProcessScheduler processScheduler, ShellCommandEmulator shellEmulator) {
         if (globals.finder instanceof LuaFileSystemHandler) {
             return false;
         }
@@ -86,6 +161,14 @@ public class LuajFSHook {
             executor = getDefaultExecutor();
         }
 
+        if (durabilityPolicy == null) {
+            durabilityPolicy = DurabilityPolicy.NONE;
+        }
+
+        if (groupCommitSyncer == null) {
+            groupCommitSyncer = GroupCommitSyncer.getDefault();
+        }
+
         if (globals.baselib == null) {
             globals.load(new JseBaseLib());
         }
@@ -102,16 +185,32 @@ public class LuajFSHook {
         }
 
         globals.finder = fileSystemHandler;
+        globals.undumper = new ChunkCache.Undumper(globals.undumper);
+        if (globals.compiler != null) {
+            globals.compiler = new ChunkCache.Compiler(globals.compiler);
+        }
 
-        globals.load(new FsAwareJseIoLib());
+        globals.load(new FsAwareJseIoLib(durabilityPolicy, groupCommitSyncer, executor, processScheduler, shellEmulator));
         os.set("remove", new FsAwareOs_remove(fileSystemHandler));
         os.set("rename", new FsAwareOs_rename(fileSystemHandler));
         os.set("tmpname", new FsAwareOs_tmpname(fileSystemHandler));
-        os.set("execute", new FsAwareOs_execute(globals, fileSystemHandler, executor));
+        os.set("execute", new FsAwareOs_execute(globals, fileSystemHandler, executor, processScheduler, shellEmulator));
 
         return true;
     }
 
+    /**
+     * Load the LuajFSHook into a lua {@link Globals} environment.
+     *
+     * @param executor executor that is used by os.execute & io.popen to copy bytes to stdout/stderr. null -> getDefaultExecutor()
+     * @param globals the globals. null -> {@link NullPointerException}
+     * @param fileSystemHandler the fs handler to use. null -> {@link DefaultLuaFileSystemHandler}
+     * @return true if the installation was successful, false if another LuaFileSystemHandler is already installed.
+     */
+    public static boolean install(Globals globals, LuaFileSystemHandler fileSystemHandler, Executor executor) {
+        return install(globals, fileSystemHandler, executor, DurabilityPolicy.NONE);
+    }
+
     /**
      * Load the LuajFSHook into a lua {@link Globals} environment.
      *
@@ -127,7 +226,7 @@ public class LuajFSHook {
      * Load the LuajFSHook into a lua {@link Globals} environment.
      *
      * @param globals the globals. null -> {@link NullPointerException}
-     * @param executor executor that is used by os.execute to copy bytes to stdout/stderr. null -> getDefaultExecutor()
+     * @param executor executor that is used by os.execute & io.popen to copy bytes to stdout/stderr. null -> getDefaultExecutor()
      * @return true if the installation was successful, false if another LuaFileSystemHandler is already installed.
      */
     public static boolean install(Globals globals, Executor executor) {
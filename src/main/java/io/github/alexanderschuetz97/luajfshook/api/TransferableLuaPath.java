@@ -0,0 +1,47 @@
+//
+// Copyright Alexander Schütz, 2022
+//
+// This file is part of LuajFSHook.
+//
+// LuajFSHook is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// LuajFSHook is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// A copy of the GNU Lesser General Public License should be provided
+// in the COPYING & COPYING.LESSER files in top level directory of LuajFSHook.
+// If not, see <https://www.gnu.org/licenses/>.
+//
+package io.github.alexanderschuetz97.luajfshook.api;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Optional interface for LuaPaths that can copy file content faster than reading and writing it through
+ * {@link LuaPath#open(String)}. Callers should not depend on this interface directly but use the static helpers
+ * of the implementation that fall back to a generic copy for LuaPaths that do not implement it.
+ */
+public interface TransferableLuaPath extends LuaPath {
+
+    /**
+     * copies the content of the file referred to by this path to the target path.
+     * The target path is created if it does not exists. If it exists it is truncated.
+     *
+     * @return the amount of bytes copied
+     */
+    long transferTo(LuaPath target) throws IOException;
+
+    /**
+     * replaces the content of the file referred to by this path with the remaining content of the input stream.
+     * The file is created if it does not exist. The input stream is not closed.
+     *
+     * @return the amount of bytes copied
+     */
+    long copyFrom(InputStream inputStream) throws IOException;
+}
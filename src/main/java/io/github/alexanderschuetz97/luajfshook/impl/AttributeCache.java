@@ -0,0 +1,186 @@
+//
+// Copyright Alexander Schütz, 2022
+//
+// This file is part of LuajFSHook.
+//
+// LuajFSHook is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// LuajFSHook is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// A copy of the GNU Lesser General Public License should be provided
+// in the COPYING & COPYING.LESSER files in top level directory of LuajFSHook.
+// If not, see <https://www.gnu.org/licenses/>.
+//
+package io.github.alexanderschuetz97.luajfshook.impl;
+
+import io.github.alexanderschuetz97.luajfshook.api.LuaPath;
+
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches the {@link BasicFileAttributes} of paths for a limited time.
+ * Used by {@link DefaultLuaFileSystemHandler} so that exists(), isDir(), isFile(), size() and attributes()
+ * of the same path are answered by a single stat call.
+ *
+ * Paths that do not exist are cached as well. Entries are removed when they expire or when the handler
+ * that uses this cache modifies the path, its parent or a directory that contains it. Changes made by anything else are only seen once the entry expires.
+ */
+public class AttributeCache {
+
+    public static final long DEFAULT_TTL_MILLIS = 1000;
+
+    public static final int DEFAULT_MAX_ENTRIES = 16384;
+
+    private final long ttlNanos;
+
+    private final int maxEntries;
+
+    private final ConcurrentHashMap<LuaPath, Entry> entries = new ConcurrentHashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    public AttributeCache() {
+        this(DEFAULT_TTL_MILLIS, TimeUnit.MILLISECONDS, DEFAULT_MAX_ENTRIES);
+    }
+
+    public AttributeCache(long ttl, TimeUnit unit, int maxEntries) {
+        if (ttl < 0) {
+            throw new IllegalArgumentException("ttl must not be negative");
+        }
+
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("maxEntries must be positive");
+        }
+
+        this.ttlNanos = unit.toNanos(ttl);
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * returns the cached entry for the path or null if there is no entry or it has expired.
+     */
+    public Entry get(LuaPath path) {
+        Entry entry = entries.get(path);
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+
+        if (System.nanoTime() - entry.expires >= 0) {
+            entries.remove(path, entry);
+            misses.incrementAndGet();
+            return null;
+        }
+
+        hits.incrementAndGet();
+        return entry;
+    }
+
+    /**
+     * Caches the attributes of the path. null attributes mean that the path does not exist.
+     */
+    public Entry put(LuaPath path, BasicFileAttributes attributes) {
+        long now = System.nanoTime();
+        if (entries.size() >= maxEntries) {
+            purge(now);
+        }
+
+        Entry entry = new Entry(attributes, now + ttlNanos);
+        entries.put(path, entry);
+        return entry;
+    }
+
+    public void invalidate(LuaPath path) {
+        entries.remove(path);
+    }
+
+    /**
+     * Removes the directory and every path inside of it.
+     */
+    public void invalidateTree(LuaPath dir) {
+        Iterator<LuaPath> iterator = entries.keySet().iterator();
+        while (iterator.hasNext()) {
+            if (isInside(iterator.next(), dir)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    public void invalidateAll() {
+        entries.clear();
+    }
+
+    /**
+     * returns the number of lookups that were answered from this cache.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * returns the number of lookups that had to go to the file system.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * returns the current number of entries including expired entries that have not been removed yet.
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    private static boolean isInside(LuaPath path, LuaPath dir) {
+        for (LuaPath current = path; current != null; current = current.parent()) {
+            if (current.equals(dir)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private void purge(long now) {
+        Iterator<Map.Entry<LuaPath, Entry>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            if (now - iterator.next().getValue().expires >= 0) {
+                iterator.remove();
+            }
+        }
+
+        if (entries.size() >= maxEntries) {
+            entries.clear();
+        }
+    }
+
+    public static class Entry {
+        private final BasicFileAttributes attributes;
+        private final long expires;
+
+        private Entry(BasicFileAttributes attributes, long expires) {
+            this.attributes = attributes;
+            this.expires = expires;
+        }
+
+        /**
+         * returns the attributes or null if the path did not exist.
+         */
+        public BasicFileAttributes getAttributes() {
+            return attributes;
+        }
+    }
+}
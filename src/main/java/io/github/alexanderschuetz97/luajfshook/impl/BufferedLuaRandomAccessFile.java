@@ -0,0 +1,360 @@
+//
+// Copyright Alexander Schütz, 2022
+//
+// This file is part of LuajFSHook.
+//
+// LuajFSHook is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// LuajFSHook is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// A copy of the GNU Lesser General Public License should be provided
+// in the COPYING & COPYING.LESSER files in top level directory of LuajFSHook.
+// If not, see <https://www.gnu.org/licenses/>.
+//
+package io.github.alexanderschuetz97.luajfshook.impl;
+
+import io.github.alexanderschuetz97.luajfshook.api.LuaPath;
+import io.github.alexanderschuetz97.luajfshook.api.LuaRandomAccessFile;
+
+import java.io.FileDescriptor;
+import java.io.Flushable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.Objects;
+
+/**
+ * LuaRandomAccessFile that puts a single read-ahead/write-behind buffer in front of another LuaRandomAccessFile.
+ * Single byte reads and writes that hit the buffer do not touch the delegate at all.
+ *
+ * The buffer always mirrors a contiguous region of the file. Written bytes are kept in the buffer until
+ * the region is left, {@link #flush()} or {@link #close()} is called or the size of the file is changed.
+ *
+ * This class is not thread safe.
+ */
+public class BufferedLuaRandomAccessFile implements LuaRandomAccessFile, Flushable {
+
+    public static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    /**
+     * Writes any data that is buffered by the given file to its underlying file.
+     * Only files that implement {@link Flushable} buffer data, for all other files this is a noop.
+     * This does not guarantee that the data has reached the storage device.
+     */
+    public static void flush(LuaRandomAccessFile file) throws IOException {
+        if (file instanceof Flushable) {
+            ((Flushable) file).flush();
+        }
+    }
+
+    protected final LuaRandomAccessFile delegate;
+
+    protected final byte[] buffer;
+
+    /**
+     * file offset of buffer[0]
+     */
+    protected long bufferStart;
+
+    /**
+     * amount of valid bytes in the buffer.
+     */
+    protected int bufferLength;
+
+    /**
+     * range of bytes in the buffer that have been written but not yet passed to the delegate. dirtyStart == dirtyEnd means clean.
+     */
+    protected int dirtyStart;
+    protected int dirtyEnd;
+
+    /**
+     * position as seen by the user of this file.
+     */
+    protected long position;
+
+    /**
+     * last known position of the delegate, -1 if unknown.
+     */
+    protected long delegatePosition;
+
+    public BufferedLuaRandomAccessFile(LuaRandomAccessFile delegate) throws IOException {
+        this(delegate, DEFAULT_BUFFER_SIZE);
+    }
+
+    public BufferedLuaRandomAccessFile(LuaRandomAccessFile delegate, int bufferSize) throws IOException {
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("bufferSize must be positive");
+        }
+        this.delegate = Objects.requireNonNull(delegate);
+        this.buffer = new byte[bufferSize];
+        this.position = delegate.getPosition();
+        this.delegatePosition = position;
+        this.bufferStart = position;
+    }
+
+    /**
+     * Returns the LuaRandomAccessFile that this buffer writes to.
+     */
+    public LuaRandomAccessFile getDelegate() {
+        return delegate;
+    }
+
+    /**
+     * Writes the buffer to the delegate and moves the delegate to the position of this file.
+     * The delegate can then be used instead of this file, this file must not be used afterwards.
+     */
+    public LuaRandomAccessFile detach() throws IOException {
+        flush();
+        discardBuffer();
+        seekDelegate(position);
+        return delegate;
+    }
+
+    @Override
+    public FileDescriptor getFileDescriptor() throws IOException {
+        flush();
+        return delegate.getFileDescriptor();
+    }
+
+    @Override
+    public FileChannel getFileChannel() {
+        //The channel shares its position with the delegate.
+        try {
+            flush();
+            discardBuffer();
+            seekDelegate(position);
+        } catch (IOException e) {
+            throw new IllegalStateException("failed to flush buffer", e);
+        }
+
+        return delegate.getFileChannel();
+    }
+
+    @Override
+    public LuaPath getPath() {
+        return delegate.getPath();
+    }
+
+    @Override
+    public void setPosition(long position) throws IOException {
+        if (position < 0) {
+            throw new IOException("Negative seek offset");
+        }
+        this.position = position;
+    }
+
+    @Override
+    public long getPosition() throws IOException {
+        return position;
+    }
+
+    @Override
+    public long size() throws IOException {
+        long size = delegate.size();
+        if (isDirty()) {
+            return Math.max(size, bufferStart + dirtyEnd);
+        }
+        return size;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!isBuffered(position) && !fill()) {
+            return -1;
+        }
+
+        return buffer[(int) (position++ - bufferStart)] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] buf, int off, int len) throws IOException {
+        int total = 0;
+        while (len > 0) {
+            if (!isBuffered(position)) {
+                if (len >= buffer.length) {
+                    //Large reads bypass the buffer.
+                    flush();
+                    discardBuffer();
+                    int read = delegateRead(position, buf, off, len);
+                    if (read > 0) {
+                        position += read;
+                        total += read;
+                    }
+                    break;
+                }
+
+                if (!fill()) {
+                    break;
+                }
+            }
+
+            int index = (int) (position - bufferStart);
+            int count = Math.min(len, bufferLength - index);
+            System.arraycopy(buffer, index, buf, off, count);
+            position += count;
+            off += count;
+            len -= count;
+            total += count;
+        }
+
+        if (total == 0 && len > 0) {
+            return -1;
+        }
+
+        return total;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (!isWritable(position)) {
+            flush();
+            bufferStart = position;
+            bufferLength = 0;
+        }
+
+        int index = (int) (position - bufferStart);
+        buffer[index] = (byte) b;
+        markDirty(index, index+1);
+        position++;
+    }
+
+    @Override
+    public void write(byte[] buf, int off, int len) throws IOException {
+        while (len > 0) {
+            if (!isWritable(position)) {
+                flush();
+                if (len >= buffer.length) {
+                    //Large writes bypass the buffer.
+                    discardBuffer();
+                    delegateWrite(position, buf, off, len);
+                    position += len;
+                    return;
+                }
+
+                bufferStart = position;
+                bufferLength = 0;
+            }
+
+            int index = (int) (position - bufferStart);
+            int count = Math.min(len, buffer.length - index);
+            System.arraycopy(buf, off, buffer, index, count);
+            markDirty(index, index+count);
+            position += count;
+            off += count;
+            len -= count;
+        }
+    }
+
+    @Override
+    public void setSize(long i) throws IOException {
+        flush();
+        discardBuffer();
+        delegate.setSize(i);
+        delegatePosition = -1;
+        //Same as RandomAccessFile.setLength
+        if (position > i) {
+            position = i;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (!isDirty()) {
+            return;
+        }
+
+        //The range stays dirty if the write fails so a retry writes it again.
+        delegateWrite(bufferStart + dirtyStart, buffer, dirtyStart, dirtyEnd - dirtyStart);
+        dirtyStart = 0;
+        dirtyEnd = 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            delegate.close();
+        }
+    }
+
+    protected boolean isDirty() {
+        return dirtyEnd > dirtyStart;
+    }
+
+    /**
+     * returns true if the byte at the given file offset is contained in the buffer.
+     */
+    protected boolean isBuffered(long pos) {
+        return pos >= bufferStart && pos < bufferStart + bufferLength;
+    }
+
+    /**
+     * returns true if a byte at the given file offset can be written into the buffer without leaving a gap.
+     */
+    protected boolean isWritable(long pos) {
+        return pos >= bufferStart && pos <= bufferStart + bufferLength && pos < bufferStart + buffer.length;
+    }
+
+    protected void markDirty(int start, int end) {
+        if (isDirty()) {
+            dirtyStart = Math.min(dirtyStart, start);
+            dirtyEnd = Math.max(dirtyEnd, end);
+        } else {
+            dirtyStart = start;
+            dirtyEnd = end;
+        }
+
+        if (end > bufferLength) {
+            bufferLength = end;
+        }
+    }
+
+    protected void discardBuffer() {
+        bufferStart = position;
+        bufferLength = 0;
+    }
+
+    /**
+     * Fills the buffer starting at the current position. returns false on EOF.
+     */
+    protected boolean fill() throws IOException {
+        flush();
+        bufferStart = position;
+        bufferLength = 0;
+        int read = delegateRead(position, buffer, 0, buffer.length);
+        if (read <= 0) {
+            return false;
+        }
+
+        bufferLength = read;
+        return true;
+    }
+
+    protected int delegateRead(long pos, byte[] buf, int off, int len) throws IOException {
+        seekDelegate(pos);
+        int read = delegate.read(buf, off, len);
+        delegatePosition = read > 0 ? pos + read : -1;
+        return read;
+    }
+
+    protected void delegateWrite(long pos, byte[] buf, int off, int len) throws IOException {
+        seekDelegate(pos);
+        delegatePosition = -1;
+        delegate.write(buf, off, len);
+        delegatePosition = pos + len;
+    }
+
+    protected void seekDelegate(long pos) throws IOException {
+        if (delegatePosition != pos) {
+            delegatePosition = -1;
+            delegate.setPosition(pos);
+            delegatePosition = pos;
+        }
+    }
+}
@@ -0,0 +1,332 @@
+//
+// Copyright Alexander Schütz, 2022
+//
+// This file is part of LuajFSHook.
+//
+// LuajFSHook is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// LuajFSHook is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// A copy of the GNU Lesser General Public License should be provided
+// in the COPYING & COPYING.LESSER files in top level directory of LuajFSHook.
+// If not, see <https://www.gnu.org/licenses/>.
+//
+package io.github.alexanderschuetz97.luajfshook.impl;
+
+import io.github.alexanderschuetz97.luajfshook.api.LuaPath;
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.Prototype;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of lua source files and the {@link Prototype} compiled from them.
+ * Entries are keyed by the canonical {@link LuaPath} and are only valid while the last modified time and size of the file do not change.
+ * The least recently used entries are evicted once the total size of the cached source files exceeds the configured amount of bytes.
+ *
+ * File systems with a coarse timestamp granularity may not change the last modified time when a file is rewritten
+ * with the same size shortly after it was cached. Because of this the content of an entry is compared to the file on every hit
+ * until the last modified time of the file is more than {@link #RACY_MILLIS} older than the time it was read.
+ * Changes that preserve both the last modified time and the size of an older file (for example touch -r) are not detected,
+ * call {@link #invalidate(LuaPath)} after making such a change.
+ *
+ * The cache returns the source as a {@link CachedChunkInputStream}. When such a stream is passed to {@link Globals#load(InputStream, String, String, org.luaj.vm2.LuaValue)}
+ * the {@link Undumper} (binary chunks) or the {@link Compiler} (source chunks) that {@link io.github.alexanderschuetz97.luajfshook.api.LuajFSHook} installs
+ * returns the cached Prototype instead of loading the chunk again. The load mode is honored since luaj only calls the undumper for mode 'b'
+ * and the compiler for mode 't'.
+ * Since a Prototype does not reference the Globals it was compiled for, one instance of this class may be shared by
+ * any number of handlers, threads and Globals.
+ *
+ * Note: the chunk name of a cached Prototype is the chunk name that was used when it was first compiled.
+ */
+public class ChunkCache {
+
+    public static final long DEFAULT_MAX_BYTES = 64L * 1024L * 1024L;
+
+    /**
+     * Entries of files that were modified less than this amount of milliseconds before they were read are verified by content.
+     */
+    public static final long RACY_MILLIS = 2000;
+
+    private final long maxBytes;
+
+    private final LinkedHashMap<LuaPath, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long bytes;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    public ChunkCache() {
+        this(DEFAULT_MAX_BYTES);
+    }
+
+    public ChunkCache(long maxBytes) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("maxBytes must not be negative");
+        }
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Opens the file referred to by path.
+     * Returns an InputStream of the cached source if the file did not change since it was cached,
+     * otherwise the file is read and cached. Files that are larger than the cache are not cached.
+     *
+     * @throws IOException if the file does not exist or cannot be read.
+     */
+    public InputStream open(LuaPath path) throws IOException {
+        LuaPath canon = path.canon();
+        BasicFileAttributes attributes = canon.attributes();
+        if (attributes.isDirectory()) {
+            throw new IOException("cant open directory for reading");
+        }
+
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        long size = attributes.size();
+
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(canon);
+        }
+
+        byte[] source = null;
+        long readTime = 0;
+        if (entry != null && entry.lastModified == lastModified && entry.source.length == size) {
+            if (!entry.racy) {
+                hits.incrementAndGet();
+                return new CachedChunkInputStream(entry);
+            }
+
+            readTime = System.currentTimeMillis();
+            source = read(canon, size);
+            if (Arrays.equals(source, entry.source)) {
+                entry.racy = readTime - lastModified <= RACY_MILLIS;
+                hits.incrementAndGet();
+                return new CachedChunkInputStream(entry);
+            }
+        }
+
+        misses.incrementAndGet();
+        if (size > maxBytes) {
+            return canon.openInput();
+        }
+
+        if (source == null) {
+            readTime = System.currentTimeMillis();
+            source = read(canon, size);
+        }
+
+        entry = new Entry(canon, lastModified, source, readTime - lastModified <= RACY_MILLIS);
+        if (source.length == size) {
+            //If the size differs the file was modified while we read it, dont cache that.
+            put(entry);
+        }
+
+        return new CachedChunkInputStream(entry);
+    }
+
+    /**
+     * Removes the entry of the path from the cache.
+     */
+    public void invalidate(LuaPath path) {
+        LuaPath canon;
+        try {
+            canon = path.canon();
+        } catch (IOException e) {
+            canon = path.absolutePath();
+        }
+
+        synchronized (entries) {
+            Entry entry = entries.remove(canon);
+            if (entry != null) {
+                bytes -= entry.source.length;
+            }
+        }
+    }
+
+    /**
+     * Removes all entries.
+     */
+    public void invalidateAll() {
+        synchronized (entries) {
+            entries.clear();
+            bytes = 0;
+        }
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * returns the total size of all cached source files.
+     */
+    public long getBytes() {
+        synchronized (entries) {
+            return bytes;
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    private static byte[] read(LuaPath path, long size) throws IOException {
+        try (InputStream inputStream = path.openInput()) {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream((int) Math.min(size, Integer.MAX_VALUE - 8));
+            FileTransfer.copy(inputStream, baos);
+            return baos.toByteArray();
+        }
+    }
+
+    private void put(Entry entry) {
+        synchronized (entries) {
+            Entry old = entries.put(entry.path, entry);
+            if (old != null) {
+                bytes -= old.source.length;
+            }
+
+            bytes += entry.source.length;
+            Iterator<Map.Entry<LuaPath, Entry>> iterator = entries.entrySet().iterator();
+            while (bytes > maxBytes && iterator.hasNext()) {
+                Entry eldest = iterator.next().getValue();
+                iterator.remove();
+                bytes -= eldest.source.length;
+            }
+        }
+    }
+
+    protected static class Entry {
+        protected final LuaPath path;
+        protected final long lastModified;
+        protected final byte[] source;
+        protected volatile Prototype prototype;
+        protected volatile boolean racy;
+
+        protected Entry(LuaPath path, long lastModified, byte[] source, boolean racy) {
+            this.path = path;
+            this.lastModified = lastModified;
+            this.source = source;
+            this.racy = racy;
+        }
+    }
+
+    /**
+     * InputStream of the cached source of a file. Reading it yields the source as it was when it was cached.
+     */
+    public static class CachedChunkInputStream extends ByteArrayInputStream {
+
+        protected final Entry entry;
+
+        protected CachedChunkInputStream(Entry entry) {
+            super(entry.source);
+            this.entry = entry;
+        }
+
+        /**
+         * returns the cached Prototype or null if the source has not been compiled yet.
+         */
+        public Prototype getPrototype() {
+            return entry.prototype;
+        }
+
+        /**
+         * Stores the Prototype that was compiled from this source.
+         */
+        public void setPrototype(Prototype prototype) {
+            entry.prototype = prototype;
+        }
+
+        /**
+         * returns true if the source is a precompiled (binary) lua chunk.
+         */
+        public boolean isBinary() {
+            return buf.length > 0 && buf[0] == 0x1B;
+        }
+    }
+
+    /**
+     * Undumper that returns the cached Prototype of a binary {@link CachedChunkInputStream} and undumps and caches it on the first load.
+     * Source chunks and all other input streams are passed to the delegate.
+     */
+    public static class Undumper implements Globals.Undumper {
+
+        protected final Globals.Undumper delegate;
+
+        public Undumper(Globals.Undumper delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public Prototype undump(InputStream stream, String chunkname) throws IOException {
+            if (!(stream instanceof CachedChunkInputStream) || !((CachedChunkInputStream) stream).isBinary()) {
+                return delegate == null ? null : delegate.undump(stream, chunkname);
+            }
+
+            CachedChunkInputStream cached = (CachedChunkInputStream) stream;
+            Prototype prototype = cached.getPrototype();
+            if (prototype != null) {
+                return prototype;
+            }
+
+            prototype = delegate == null ? null : delegate.undump(stream, chunkname);
+            if (prototype != null) {
+                cached.setPrototype(prototype);
+            }
+
+            return prototype;
+        }
+    }
+
+    /**
+     * Compiler that returns the cached Prototype of a source {@link CachedChunkInputStream} and compiles and caches it on the first load.
+     * Binary chunks and all other input streams are passed to the delegate.
+     */
+    public static class Compiler implements Globals.Compiler {
+
+        protected final Globals.Compiler delegate;
+
+        public Compiler(Globals.Compiler delegate) {
+            this.delegate = Objects.requireNonNull(delegate);
+        }
+
+        @Override
+        public Prototype compile(InputStream stream, String chunkname) throws IOException {
+            if (!(stream instanceof CachedChunkInputStream) || ((CachedChunkInputStream) stream).isBinary()) {
+                return delegate.compile(stream, chunkname);
+            }
+
+            CachedChunkInputStream cached = (CachedChunkInputStream) stream;
+            Prototype prototype = cached.getPrototype();
+            if (prototype != null) {
+                return prototype;
+            }
+
+            prototype = delegate.compile(stream, chunkname);
+            cached.setPrototype(prototype);
+            return prototype;
+        }
+    }
+}
@@ -0,0 +1,251 @@
+//
+// Copyright Alexander Schütz, 2022
+//
+// This file is part of LuajFSHook.
+//
+// LuajFSHook is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// LuajFSHook is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// A copy of the GNU Lesser General Public License should be provided
+// in the COPYING & COPYING.LESSER files in top level directory of LuajFSHook.
+// If not, see <https://www.gnu.org/licenses/>.
+//
+package io.github.alexanderschuetz97.luajfshook.impl;
+
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LuaThread;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Varargs;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Objects;
+import java.util.WeakHashMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs lua functions as coroutines and resumes them when the file operations they issued have completed.
+ * <p>
+ * While a coroutine spawned by this scheduler waits for a read, write, flush or close of a file opened
+ * by {@link FsAwareJseIoLib} it yields and the scheduler resumes other coroutines whose operations are done.
+ * The blocking operations themselves are executed on the io executor.
+ * Coroutines that were not spawned by a scheduler (including the main lua thread) perform all operations synchronously.
+ */
+public class CoroutineIoScheduler {
+
+    /**
+     * Value yielded by a coroutine that waits for a pending operation.
+     */
+    private static final LuaValue PENDING = LuaValue.userdataOf(new Object());
+
+    private static final Map<LuaThread, Task> TASKS = Collections.synchronizedMap(new WeakHashMap<LuaThread, Task>());
+
+    private static ExecutorService DEFAULT_EXECUTOR;
+
+    /**
+     * Gets (and creates if this is the first call) the shared executor that performs the blocking io operations.
+     */
+    public synchronized static ExecutorService getDefaultIoExecutor() {
+        if (DEFAULT_EXECUTOR == null) {
+            final AtomicInteger counter = new AtomicInteger();
+            DEFAULT_EXECUTOR = Executors.newCachedThreadPool(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "luajfshook-io-" + counter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+
+        return DEFAULT_EXECUTOR;
+    }
+
+    /**
+     * Returns the scheduler that spawned the currently running coroutine of the globals or null if there is none.
+     */
+    public static CoroutineIoScheduler current(Globals globals) {
+        LuaThread running = globals.running;
+        if (running == null) {
+            return null;
+        }
+
+        Task task = TASKS.get(running);
+        return task == null ? null : task.scheduler();
+    }
+
+    private final Executor ioExecutor;
+
+    private final BlockingQueue<Task> ready = new LinkedBlockingQueue<>();
+
+    private int active;
+
+    public CoroutineIoScheduler() {
+        this(getDefaultIoExecutor());
+    }
+
+    public CoroutineIoScheduler(Executor ioExecutor) {
+        this.ioExecutor = Objects.requireNonNull(ioExecutor);
+    }
+
+    public Executor getIoExecutor() {
+        return ioExecutor;
+    }
+
+    /**
+     * Creates a new coroutine that calls the function with the given arguments once {@link #run()} is called.
+     */
+    public Task spawn(Globals globals, LuaValue function, Varargs args) {
+        Task task = new Task(new LuaThread(globals, function.checkfunction()), args);
+        TASKS.put(task.thread, task);
+        synchronized (this) {
+            active++;
+        }
+        ready.add(task);
+        return task;
+    }
+
+    /**
+     * Resumes coroutines until all spawned coroutines have finished.
+     * Must be called by exactly one thread at a time.
+     */
+    public void run() throws InterruptedException {
+        while (true) {
+            synchronized (this) {
+                if (active == 0) {
+                    return;
+                }
+            }
+
+            Task task = ready.take();
+            Varargs args = task.args;
+            task.args = LuaValue.NONE;
+
+            Varargs result = task.thread.resume(args);
+            if (!result.arg1().toboolean()) {
+                task.error = result.arg(2);
+                finish(task);
+                continue;
+            }
+
+            if ("dead".equals(task.thread.getStatus())) {
+                task.result = result.subargs(2);
+                finish(task);
+                continue;
+            }
+
+            if (result.arg(2) != PENDING) {
+                //Plain coroutine.yield(), the coroutine is resumed after all others that are ready.
+                ready.add(task);
+            }
+        }
+    }
+
+    private void finish(Task task) {
+        task.done = true;
+        TASKS.remove(task.thread);
+        synchronized (this) {
+            active--;
+        }
+    }
+
+    /**
+     * Executes the operation on the io executor and yields the current coroutine until it has completed.
+     * Must only be called from a coroutine spawned by this scheduler.
+     */
+    public <T> T await(Globals globals, Callable<T> operation) throws IOException {
+        final Task task = TASKS.get(globals.running);
+        if (task == null || task.scheduler() != this) {
+            throw new IllegalStateException("current coroutine was not spawned by this scheduler");
+        }
+
+        FutureTask<T> future = new FutureTask<T>(operation) {
+            @Override
+            protected void done() {
+                ready.add(task);
+            }
+        };
+
+        ioExecutor.execute(future);
+        globals.yield(PENDING);
+
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * A coroutine spawned by the scheduler.
+     */
+    public class Task {
+
+        private final LuaThread thread;
+        private Varargs args;
+        private volatile boolean done;
+        private volatile Varargs result;
+        private volatile LuaValue error;
+
+        private Task(LuaThread thread, Varargs args) {
+            this.thread = thread;
+            this.args = args;
+        }
+
+        private CoroutineIoScheduler scheduler() {
+            return CoroutineIoScheduler.this;
+        }
+
+        public LuaThread getThread() {
+            return thread;
+        }
+
+        public boolean isDone() {
+            return done;
+        }
+
+        /**
+         * The values returned by the function or null if it has not finished or failed.
+         */
+        public Varargs getResult() {
+            return result;
+        }
+
+        /**
+         * The error raised by the function or null if it has not finished or did not fail.
+         */
+        public LuaValue getError() {
+            return error;
+        }
+    }
+}
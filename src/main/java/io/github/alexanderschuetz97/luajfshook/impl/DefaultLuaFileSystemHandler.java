@@ -20,9 +20,12 @@
 package io.github.alexanderschuetz97.luajfshook.impl;
 
 
+import io.github.alexanderschuetz97.luajfshook.api.DirectoryStreamLuaPath;
+import io.github.alexanderschuetz97.luajfshook.api.LuaDirectoryEntry;
 import io.github.alexanderschuetz97.luajfshook.api.LuaFileSystemHandler;
 import io.github.alexanderschuetz97.luajfshook.api.LuaPath;
 import io.github.alexanderschuetz97.luajfshook.api.LuaRandomAccessFile;
+import io.github.alexanderschuetz97.luajfshook.api.TransferableLuaPath;
 
 import java.io.File;
 import java.io.FileInputStream;
@@ -32,12 +35,16 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystems;
 import java.nio.file.FileVisitOption;
 import java.nio.file.FileVisitResult;
 import java.nio.file.FileVisitor;
 import java.nio.file.Files;
 import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.NotDirectoryException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -45,8 +52,9 @@ import java.nio.file.StandardCopyOption;
 import java.nio.file.attribute.BasicFileAttributeView;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
 import java.util.EnumSet;
-import java.util.LinkedList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Objects;
 import java.util.Set;
@@ -62,6 +70,18 @@ public class DefaultLuaFileSystemHandler implements LuaFileSystemHandler {
 
     private static final Set<FileVisitOption> DONT_FOLLOW_LINKS = EnumSet.noneOf(FileVisitOption.class);
 
+    public static final long DEFAULT_MAPPED_READ_THRESHOLD = 32L * 1024L * 1024L;
+
+    private volatile long mappedReadThreshold = MappedBuffers.isSupported() ? DEFAULT_MAPPED_READ_THRESHOLD : Long.MAX_VALUE;
+
+    private volatile ChunkCache chunkCache;
+
+    private volatile NegativeLookupCache negativeLookupCache;
+
+    private volatile AttributeCache attributeCache;
+
+    private volatile ResolvedPathCache resolvedPathCache = new ResolvedPathCache();
+
     public DefaultLuaFileSystemHandler() {
         File wd = new File(".").getAbsoluteFile();
 
@@ -71,22 +91,34 @@ public class DefaultLuaFileSystemHandler implements LuaFileSystemHandler {
             //DC
         }
 
-        workDirectory = new DefaultLuaPath(wd.toPath());
+        workDirectory = new DefaultLuaPath(this, wd.toPath());
     }
 
     @Override
     public LuaPath resolvePath(String filename) {
-        return workDirectory.child(filename);
+        DefaultLuaPath wd = workDirectory;
+        ResolvedPathCache cache = resolvedPathCache;
+        if (cache == null) {
+            return wd.child(filename);
+        }
+
+        LuaPath resolved = cache.get(wd, filename);
+        if (resolved == null) {
+            resolved = wd.child(filename);
+            cache.put(wd, filename, resolved);
+        }
+
+        return resolved;
     }
 
     @Override
     public LuaPath relativePath(String path) {
-        return new DefaultLuaPath(Paths.get(Objects.requireNonNull(path)));
+        return new DefaultLuaPath(this, Paths.get(Objects.requireNonNull(path)));
     }
 
     @Override
     public LuaPath resolveSysPath(Path path) {
-        return new DefaultLuaPath(Objects.requireNonNull(path));
+        return new DefaultLuaPath(this, Objects.requireNonNull(path));
     }
 
     @Override
@@ -96,7 +128,7 @@ public class DefaultLuaFileSystemHandler implements LuaFileSystemHandler {
 
     @Override
     public LuaPath tmpFile(String prefix, String suffix) throws IOException {
-        return new DefaultLuaPath(Files.createTempFile(prefix == null ? ".luaj" : prefix,suffix == null ? "bin" : suffix ));
+        return new DefaultLuaPath(this, Files.createTempFile(prefix == null ? ".luaj" : prefix,suffix == null ? "bin" : suffix ));
     }
 
     @Override
@@ -114,7 +146,7 @@ public class DefaultLuaFileSystemHandler implements LuaFileSystemHandler {
             return tmpDir;
         }
 
-        return new DefaultLuaPath(Paths.get(prop));
+        return new DefaultLuaPath(this, Paths.get(prop));
     }
 
     @Override
@@ -127,31 +159,354 @@ public class DefaultLuaFileSystemHandler implements LuaFileSystemHandler {
             throw new NotDirectoryException(file.toString());
         }
 
-        file = file.canon();
+        //Paths resolved against the work directory use the caches of its handler, so it must be this handler.
+        this.workDirectory = new DefaultLuaPath(this, ((DefaultLuaPath) file.canon()).delegate);
+        ResolvedPathCache cache = resolvedPathCache;
+        if (cache != null) {
+            cache.invalidateAll();
+        }
+    }
 
+    /**
+     * Files that are opened read only ("r") and are at least this large are memory mapped
+     * instead of being read via a RandomAccessFile. Long.MAX_VALUE disables memory mapping.
+     * Files are never mapped if {@link MappedBuffers#isSupported()} is false because the mapping could not be released on close.
+     * In that case this defaults to Long.MAX_VALUE.
+     */
+    public long getMappedReadThreshold() {
+        return mappedReadThreshold;
+    }
 
-        this.workDirectory = (DefaultLuaPath) file;
+    /**
+     * see {@link #getMappedReadThreshold()}
+     */
+    public void setMappedReadThreshold(long mappedReadThreshold) {
+        if (mappedReadThreshold < 0) {
+            throw new IllegalArgumentException("mappedReadThreshold must not be negative");
+        }
+        this.mappedReadThreshold = mappedReadThreshold;
+    }
+
+    /**
+     * returns the cache that is used by {@link #findResource(String)} or null if no cache is used.
+     */
+    public ChunkCache getChunkCache() {
+        return chunkCache;
+    }
+
+    /**
+     * Sets the cache that is used by {@link #findResource(String)} to avoid reading and compiling the same lua files again.
+     * The same cache may be set on multiple handlers. null disables caching.
+     */
+    public void setChunkCache(ChunkCache chunkCache) {
+        this.chunkCache = chunkCache;
+    }
+
+    /**
+     * returns the cache of missing paths that is used by {@link #findResource(String)} or null if no cache is used.
+     */
+    public NegativeLookupCache getNegativeLookupCache() {
+        return negativeLookupCache;
+    }
+
+    /**
+     * Sets the cache of missing paths that is used by {@link #findResource(String)}. null disables the cache.
+     * Paths that are created through this handler are removed from the cache automatically.
+     */
+    public void setNegativeLookupCache(NegativeLookupCache negativeLookupCache) {
+        this.negativeLookupCache = negativeLookupCache;
+    }
+
+    /**
+     * returns the cache of file attributes used by the paths of this handler or null if no cache is used.
+     */
+    public AttributeCache getAttributeCache() {
+        return attributeCache;
+    }
+
+    /**
+     * Sets the cache of file attributes used by the paths of this handler. null disables the cache.
+     * Paths that are modified through this handler are removed from the cache automatically.
+     * The cache should not be shared with other handlers.
+     */
+    public void setAttributeCache(AttributeCache attributeCache) {
+        this.attributeCache = attributeCache;
+    }
+
+    /**
+     * returns the cache used by {@link #resolvePath(String)} or null if no cache is used.
+     */
+    public ResolvedPathCache getResolvedPathCache() {
+        return resolvedPathCache;
+    }
+
+    /**
+     * Sets the cache used by {@link #resolvePath(String)}. null disables the cache. A cache is used by default.
+     * The cache must not be shared with other handlers.
+     */
+    public void setResolvedPathCache(ResolvedPathCache resolvedPathCache) {
+        this.resolvedPathCache = resolvedPathCache;
+    }
+
+    /**
+     * Called after a path of this handler was created or modified. Removes the path from all caches of this handler.
+     */
+    protected void invalidateCaches(LuaPath path) {
+        NegativeLookupCache negative = negativeLookupCache;
+        AttributeCache attributes = attributeCache;
+        if (negative == null && attributes == null) {
+            return;
+        }
+
+        LuaPath key = cacheKey(path);
+        if (negative != null) {
+            negative.invalidate(key);
+        }
+
+        if (attributes != null) {
+            attributes.invalidate(key);
+            LuaPath parent = key.parent();
+            if (parent != null) {
+                attributes.invalidate(parent);
+            }
+        }
+    }
+
+    /**
+     * Called after a directory of this handler was created, moved or deleted. Removes the path and every path inside of it from all caches of this handler.
+     */
+    protected void invalidateCachesRecursive(LuaPath path) {
+        NegativeLookupCache negative = negativeLookupCache;
+        if (negative != null) {
+            negative.invalidateTree(cacheKey(path));
+        }
+
+        AttributeCache attributes = attributeCache;
+        if (attributes != null) {
+            attributes.invalidateTree(cacheKey(path));
+        }
+
+        invalidateCaches(path);
+    }
+
+    /**
+     * returns true if a cache that {@link #invalidateCachesRecursive(LuaPath)} has to invalidate is enabled.
+     */
+    protected boolean hasTreeCaches() {
+        return negativeLookupCache != null || attributeCache != null;
+    }
+
+    /**
+     * Returns the key that is used for the path in the caches of this handler.
+     */
+    protected LuaPath cacheKey(LuaPath path) {
+        if (path instanceof DefaultLuaPath) {
+            return new DefaultLuaPath(this, ((DefaultLuaPath) path).absoluteDelegate().normalize());
+        }
+
+        return path.absolutePath();
     }
 
     @Override
     public InputStream findResource(String filename) {
         LuaPath luaPath = resolvePath(filename);
 
+        NegativeLookupCache negative = negativeLookupCache;
+        LuaPath key = null;
+        if (negative != null) {
+            key = cacheKey(luaPath);
+            if (negative.isMissing(key)) {
+                return null;
+            }
+        }
+
+        if (!luaPath.isFile()) {
+            if (negative != null) {
+                negative.markMissing(key);
+            }
+            return null;
+        }
+
         try {
+            ChunkCache cache = chunkCache;
+            if (cache != null) {
+                return cache.open(luaPath);
+            }
+
             return luaPath.openInput();
         } catch (IOException e) {
             return null;
         }
     }
 
-    protected static class DefaultLuaPath implements LuaPath {
+    protected static class DefaultLuaDirectoryEntry implements LuaDirectoryEntry {
+
+        protected final DefaultLuaPath path;
+
+        protected BasicFileAttributes attributes;
+
+        public DefaultLuaDirectoryEntry(DefaultLuaPath path) {
+            this.path = path;
+        }
+
+        @Override
+        public LuaPath path() {
+            return path;
+        }
+
+        @Override
+        public BasicFileAttributes attributes() throws IOException {
+            if (attributes != null) {
+                return attributes;
+            }
+
+            AttributeCache cache = path.attributeCache();
+            if (cache != null) {
+                attributes = path.cachedAttributes(cache);
+            } else {
+                try {
+                    attributes = Files.readAttributes(path.delegate, BasicFileAttributes.class);
+                } catch (NoSuchFileException e) {
+                    attributes = null;
+                }
+            }
+
+            if (attributes == null) {
+                //Broken symlink
+                attributes = path.linkAttributes();
+            }
+
+            return attributes;
+        }
+
+        @Override
+        public String toString() {
+            return path.toString();
+        }
+    }
+
+    protected static class DefaultLuaPath implements TransferableLuaPath, DirectoryStreamLuaPath {
+
+        /**
+         * handler whose caches and settings are used by this path. null if the path does not belong to a handler.
+         */
+        protected final DefaultLuaFileSystemHandler handler;
 
         protected final Path delegate;
 
+        /**
+         * absolute form of the delegate, computed when first needed.
+         */
+        private volatile Path absoluteDelegate;
+
+        private volatile String absoluteString;
+
         public DefaultLuaPath(Path delegate) {
+            this(null, delegate);
+        }
+
+        public DefaultLuaPath(DefaultLuaFileSystemHandler handler, Path delegate) {
+            this.handler = handler;
             this.delegate = delegate;
         }
 
+        /**
+         * returns the attribute cache of the handler or null if no cache is used.
+         */
+        protected AttributeCache attributeCache() {
+            return handler == null ? null : handler.getAttributeCache();
+        }
+
+        /**
+         * returns the delegate as absolute path.
+         */
+        protected Path absoluteDelegate() {
+            Path absolute = absoluteDelegate;
+            if (absolute == null) {
+                absolute = delegate.toAbsolutePath();
+                absoluteDelegate = absolute;
+            }
+            return absolute;
+        }
+
+        /**
+         * returns the string of the absolute path that is passed to java.io.
+         */
+        protected String absoluteString() {
+            String absolute = absoluteString;
+            if (absolute == null) {
+                absolute = absoluteDelegate().toString();
+                absoluteString = absolute;
+            }
+            return absolute;
+        }
+
+        /**
+         * returns true if the path belongs to the default file system and can be checked with java.io.File without exceptions.
+         */
+        protected boolean isDefaultFileSystem() {
+            return delegate.getFileSystem() == FileSystems.getDefault();
+        }
+
+        /**
+         * returns the attributes from the attribute cache or reads and caches them. returns null if the path does not exist.
+         */
+        protected BasicFileAttributes cachedAttributes(AttributeCache cache) throws IOException {
+            LuaPath key = handler.cacheKey(this);
+            AttributeCache.Entry entry = cache.get(key);
+            if (entry != null) {
+                return entry.getAttributes();
+            }
+
+            BasicFileAttributes attributes;
+            try {
+                attributes = Files.readAttributes(delegate, BasicFileAttributes.class);
+            } catch (NoSuchFileException e) {
+                attributes = null;
+            }
+
+            cache.put(key, attributes);
+            return attributes;
+        }
+
+        /**
+         * same as {@link #cachedAttributes(AttributeCache)} but returns null on any error.
+         */
+        protected BasicFileAttributes cachedAttributesOrNull(AttributeCache cache) {
+            try {
+                return cachedAttributes(cache);
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        /**
+         * Must be called after the file referred to by this path was created or modified.
+         */
+        protected void modified() {
+            if (handler != null) {
+                handler.invalidateCaches(this);
+            }
+        }
+
+        /**
+         * Must be called after this path modified or created the file referred to by another path.
+         */
+        protected void targetModified(LuaPath target) {
+            if (target instanceof DefaultLuaPath) {
+                ((DefaultLuaPath) target).modified();
+            }
+        }
+
+        /**
+         * Must be called after the directory referred to by this path was created or moved.
+         */
+        protected void treeModified() {
+            if (handler != null) {
+                handler.invalidateCachesRecursive(this);
+            }
+        }
+
         @Override
         public String name() {
             Path fn = delegate.getFileName();
@@ -171,27 +526,27 @@ public class DefaultLuaFileSystemHandler implements LuaFileSystemHandler {
             if (isAbsolute()) {
                 return this;
             }
-            return new DefaultLuaPath(delegate.toAbsolutePath());
+            return new DefaultLuaPath(handler, absoluteDelegate());
         }
 
         @Override
         public LuaPath realPath() throws IOException {
-            return new DefaultLuaPath(delegate.toRealPath());
+            return new DefaultLuaPath(handler, delegate.toRealPath());
         }
 
         @Override
         public LuaPath canon() throws IOException {
-            return new DefaultLuaPath(delegate.toRealPath(LinkOption.NOFOLLOW_LINKS));
+            return new DefaultLuaPath(handler, delegate.toRealPath(LinkOption.NOFOLLOW_LINKS));
         }
 
         @Override
         public LuaPath child(String name) {
-            return new DefaultLuaPath(delegate.resolve(name));
+            return new DefaultLuaPath(handler, delegate.resolve(name));
         }
 
         @Override
         public LuaPath relative(LuaPath other) {
-            return new DefaultLuaPath(delegate.relativize(other.toSystemPath()));
+            return new DefaultLuaPath(handler, delegate.relativize(other.toSystemPath()));
         }
 
         @Override
@@ -202,6 +557,7 @@ public class DefaultLuaFileSystemHandler implements LuaFileSystemHandler {
             }
 
             Files.createLink(delegate, syspath);
+            modified();
         }
 
         @Override
@@ -212,6 +568,7 @@ public class DefaultLuaFileSystemHandler implements LuaFileSystemHandler {
             }
 
             Files.createSymbolicLink(delegate, syspath);
+            modified();
         }
 
         @Override
@@ -225,11 +582,20 @@ public class DefaultLuaFileSystemHandler implements LuaFileSystemHandler {
                 throw new IllegalArgumentException("no syspath");
             }
 
-            return new DefaultLuaPath(delegate.resolve(syspath));
+            return new DefaultLuaPath(handler, delegate.resolve(syspath));
         }
 
         @Override
         public BasicFileAttributes attributes() throws FileNotFoundException, IOException {
+            AttributeCache cache = attributeCache();
+            if (cache != null) {
+                BasicFileAttributes attributes = cachedAttributes(cache);
+                if (attributes == null) {
+                    throw new NoSuchFileException(delegate.toString());
+                }
+                return attributes;
+            }
+
             return Files.readAttributes(delegate, BasicFileAttributes.class);
         }
 
@@ -241,6 +607,7 @@ public class DefaultLuaFileSystemHandler implements LuaFileSystemHandler {
         @Override
         public void setFileTimes(FileTime lastModifiedTime, FileTime lastAccessTime, FileTime createTime) throws IOException {
             Files.getFileAttributeView(delegate, BasicFileAttributeView.class).setTimes(lastModifiedTime, lastAccessTime, createTime);
+            modified();
         }
 
         @Override
@@ -254,7 +621,7 @@ public class DefaultLuaFileSystemHandler implements LuaFileSystemHandler {
             if (parent == null) {
                 return null;
             }
-            return new DefaultLuaPath(parent);
+            return new DefaultLuaPath(handler, parent);
         }
 
         @Override
@@ -274,20 +641,32 @@ public class DefaultLuaFileSystemHandler implements LuaFileSystemHandler {
                         throw new IOException(e2);
                     }
                 }
+                targetModified(target);
                 return;
             }
 
-            byte[] buf = new byte[512];
-            try (OutputStream outputStream = target.openOutput(false)) {
-                try(InputStream inputStream = this.openInput()) {
-                    int i = 0;
-                    while(i != -1) {
-                        i = inputStream.read(buf);
-                        if (i > 0) {
-                            outputStream.write(buf, 0, i);
-                        }
-                    }
+            transferTo(target);
+        }
+
+        @Override
+        public long transferTo(LuaPath target) throws IOException {
+            Path syspath = target.toSystemPath();
+            if (syspath != null) {
+                copyFile(target);
+                return Files.size(syspath);
+            }
+
+            return FileTransfer.transfer(this, target);
+        }
+
+        @Override
+        public long copyFrom(InputStream inputStream) throws IOException {
+            try (OutputStream outputStream = openOutput(false)) {
+                if (inputStream instanceof FileInputStream && outputStream instanceof FileOutputStream) {
+                    return FileTransfer.transfer(((FileInputStream) inputStream).getChannel(), ((FileOutputStream) outputStream).getChannel());
                 }
+
+                return FileTransfer.copy(inputStream, outputStream);
             }
         }
 
@@ -300,31 +679,16 @@ public class DefaultLuaFileSystemHandler implements LuaFileSystemHandler {
             Path syspath = target.toSystemPath();
             if (syspath != null) {
                 try {
-                    Files.move(delegate, syspath, StandardCopyOption.COPY_ATTRIBUTES, StandardCopyOption.REPLACE_EXISTING);
+                    Files.move(delegate, syspath, StandardCopyOption.REPLACE_EXISTING);
                 } catch (UnsupportedOperationException e) {
-                    try {
-                        Files.move(delegate, syspath, StandardCopyOption.REPLACE_EXISTING);
-                    } catch (UnsupportedOperationException e2) {
-                        throw new IOException(e2);
-                    }
-
+                    throw new IOException(e);
                 }
+                modified();
+                targetModified(target);
                 return;
             }
 
-            byte[] buf = new byte[512];
-            try (OutputStream outputStream = target.openOutput(false)) {
-                try(InputStream inputStream = this.openInput()) {
-                    int i = 0;
-                    while(i != -1) {
-                        i = inputStream.read(buf);
-                        if (i > 0) {
-                            outputStream.write(buf, 0, i);
-                        }
-                    }
-                }
-            }
-
+            transferTo(target);
             delete();
         }
 
@@ -335,21 +699,51 @@ public class DefaultLuaFileSystemHandler implements LuaFileSystemHandler {
                 throw new IOException("no syspath in target");
             }
 
-            Files.move(delegate, syspath, StandardCopyOption.COPY_ATTRIBUTES, StandardCopyOption.REPLACE_EXISTING);
+            Files.move(delegate, syspath, StandardCopyOption.REPLACE_EXISTING);
+            treeModified();
+            if (tar instanceof DefaultLuaPath) {
+                ((DefaultLuaPath) tar).treeModified();
+            }
         }
 
         @Override
         public boolean exists() {
+            AttributeCache cache = attributeCache();
+            if (cache != null) {
+                return cachedAttributesOrNull(cache) != null;
+            }
+
+            if (isDefaultFileSystem()) {
+                return delegate.toFile().exists();
+            }
             return Files.exists(delegate);
         }
 
         @Override
         public boolean isDir() {
+            AttributeCache cache = attributeCache();
+            if (cache != null) {
+                BasicFileAttributes attributes = cachedAttributesOrNull(cache);
+                return attributes != null && attributes.isDirectory();
+            }
+
+            if (isDefaultFileSystem()) {
+                return delegate.toFile().isDirectory();
+            }
             return Files.isDirectory(delegate);
         }
 
         @Override
         public boolean isFile() {
+            AttributeCache cache = attributeCache();
+            if (cache != null) {
+                BasicFileAttributes attributes = cachedAttributesOrNull(cache);
+                return attributes != null && attributes.isRegularFile();
+            }
+
+            if (isDefaultFileSystem()) {
+                return delegate.toFile().isFile();
+            }
             return Files.isRegularFile(delegate);
         }
 
@@ -360,53 +754,76 @@ public class DefaultLuaFileSystemHandler implements LuaFileSystemHandler {
 
         @Override
         public List<LuaPath> list() throws NotDirectoryException, IOException {
-            if (!isDir()) {
-                throw new NotDirectoryException(delegate.toString());
+            final List<LuaPath> children = new ArrayList<>();
+            try (DirectoryStream<Path> stream = openDirectory()) {
+                for (Path child : stream) {
+                    children.add(new DefaultLuaPath(handler, child));
+                }
+            } catch (DirectoryIteratorException e) {
+                throw e.getCause();
             }
 
-            final List<LuaPath> children = new LinkedList<>();
-            Files.walkFileTree(delegate, FOLLOW_LINKS,1, new FileVisitor<Path>() {
-                @Override
-                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
-                    if (Files.isSameFile(delegate, dir)) {
-                        return FileVisitResult.CONTINUE;
-                    }
+            return children;
+        }
 
-                    children.add(new DefaultLuaPath(dir));
-                    return FileVisitResult.CONTINUE;
-                }
+        protected DirectoryStream<Path> openDirectory() throws NotDirectoryException, IOException {
+            try {
+                return Files.newDirectoryStream(delegate);
+            } catch (NoSuchFileException e) {
+                throw new NotDirectoryException(delegate.toString());
+            }
+        }
 
+        @Override
+        public DirectoryStream<LuaDirectoryEntry> newDirectoryStream() throws NotDirectoryException, IOException {
+            final DirectoryStream<Path> stream = openDirectory();
+            return new DirectoryStream<LuaDirectoryEntry>() {
                 @Override
-                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-                    children.add(new DefaultLuaPath(file));
-                    return FileVisitResult.CONTINUE;
-                }
+                public Iterator<LuaDirectoryEntry> iterator() {
+                    final Iterator<Path> iterator = stream.iterator();
+                    return new Iterator<LuaDirectoryEntry>() {
+                        @Override
+                        public boolean hasNext() {
+                            return iterator.hasNext();
+                        }
 
-                @Override
-                public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
-                    return FileVisitResult.CONTINUE;
+                        @Override
+                        public LuaDirectoryEntry next() {
+                            return new DefaultLuaDirectoryEntry(new DefaultLuaPath(handler, iterator.next()));
+                        }
+
+                        @Override
+                        public void remove() {
+                            throw new UnsupportedOperationException();
+                        }
+                    };
                 }
 
                 @Override
-                public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
-                    return FileVisitResult.CONTINUE;
+                public void close() throws IOException {
+                    stream.close();
                 }
-            });
-
-            return children;
+            };
         }
 
         @Override
         public void walkFileTree(int depth, boolean followLinks, final LuaFileVisitor visitor) throws IOException {
+            final LuaAttributeFileVisitor attributeVisitor = visitor instanceof LuaAttributeFileVisitor ? (LuaAttributeFileVisitor) visitor : null;
             Files.walkFileTree(delegate, followLinks ? FOLLOW_LINKS : DONT_FOLLOW_LINKS , depth, new FileVisitor<Path>() {
                 @Override
                 public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
-                    return visitor.preVisitDirectory(new DefaultLuaPath(dir));
+                    if (attributeVisitor != null) {
+                        return attributeVisitor.preVisitDirectory(new DefaultLuaPath(handler, dir), attrs);
+                    }
+                    return visitor.preVisitDirectory(new DefaultLuaPath(handler, dir));
                 }
 
                 @Override
                 public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-                    return visitor.visitFile(new DefaultLuaPath(file));
+                    if (attributeVisitor != null) {
+                        return attributeVisitor.visitFile(new DefaultLuaPath(handler, file), attrs);
+                    }
+                    return visitor.visitFile(new DefaultLuaPath(handler, file));
                 }
 
                 @Override
@@ -416,7 +833,7 @@ public class DefaultLuaFileSystemHandler implements LuaFileSystemHandler {
 
                 @Override
                 public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
-                    return visitor.postVisitDirectory(new DefaultLuaPath(dir));
+                    return visitor.postVisitDirectory(new DefaultLuaPath(handler, dir));
                 }
             });
         }
@@ -424,26 +841,81 @@ public class DefaultLuaFileSystemHandler implements LuaFileSystemHandler {
         @Override
         public void createNewFile() throws FileAlreadyExistsException, IOException, NotDirectoryException {
             Files.createFile(delegate);
+            modified();
         }
 
         @Override
         public void mkdir() throws FileAlreadyExistsException, IOException, NotDirectoryException {
             Files.createDirectory(delegate);
+            modified();
         }
 
         @Override
         public void mkdirs() throws FileAlreadyExistsException, IOException, NotDirectoryException {
             Files.createDirectories(delegate);
+            if (handler != null) {
+                //Any of the parents may have been created as well.
+                for (LuaPath parent = absolutePath().parent(); parent != null; parent = parent.parent()) {
+                    handler.invalidateCaches(parent);
+                }
+            }
+            treeModified();
         }
 
         @Override
         public Path toSystemPath() {
-            return delegate.toAbsolutePath();
+            return absoluteDelegate();
         }
 
         @Override
         public LuaRandomAccessFile open(String mode) throws IOException {
-            return new DefaultLuaRandomAccessFile(new RandomAccessFile(delegate.toAbsolutePath().toString(), mode), this);
+            RandomAccessFile raf = new RandomAccessFile(absoluteString(), mode);
+            if (!"r".equals(mode)) {
+                modified();
+            }
+
+            try {
+                long threshold = handler == null ? DEFAULT_MAPPED_READ_THRESHOLD : handler.getMappedReadThreshold();
+                if ("r".equals(mode) && raf.length() >= threshold && MappedBuffers.isSupported()) {
+                    return new MappedLuaRandomAccessFile(raf, this);
+                }
+
+                if ("r".equals(mode)) {
+                    return new BufferedLuaRandomAccessFile(new DefaultLuaRandomAccessFile(raf, this));
+                }
+
+                return new BufferedLuaRandomAccessFile(new DefaultLuaRandomAccessFile(raf, this) {
+                    @Override
+                    public void write(int b) throws IOException {
+                        super.write(b);
+                        modified();
+                    }
+
+                    @Override
+                    public void write(byte[] buf, int off, int len) throws IOException {
+                        super.write(buf, off, len);
+                        modified();
+                    }
+
+                    @Override
+                    public void setSize(long i) throws IOException {
+                        super.setSize(i);
+                        modified();
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        try {
+                            super.close();
+                        } finally {
+                            modified();
+                        }
+                    }
+                });
+            } catch (IOException | RuntimeException e) {
+                raf.close();
+                throw e;
+            }
         }
 
         @Override
@@ -452,7 +924,7 @@ public class DefaultLuaFileSystemHandler implements LuaFileSystemHandler {
                 throw new IOException("cant open directory for reading");
             }
 
-            return new FileInputStream(delegate.toAbsolutePath().toString());
+            return new FileInputStream(absoluteString());
         }
 
         @Override
@@ -464,23 +936,43 @@ public class DefaultLuaFileSystemHandler implements LuaFileSystemHandler {
                 }
 
                 createNewFile();
-            }
-
-            if (isDir()) {
+            } else if (isDir()) {
                 throw new IOException("cant open directory for writing");
             }
 
-            return new FileOutputStream(delegate.toAbsolutePath().toString(), append);
+            FileOutputStream outputStream = new FileOutputStream(absoluteString(), append) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        modified();
+                    }
+                }
+            };
+            modified();
+            return outputStream;
         }
 
         @Override
         public long size() throws IOException {
+            if (attributeCache() != null) {
+                return attributes().size();
+            }
+
             return Files.size(delegate);
         }
 
         @Override
         public void delete() throws IOException {
+            //Only stat before deleting if there is a cache that has to drop the contents of a directory.
+            boolean dir = handler != null && handler.hasTreeCaches() && isDir();
             Files.delete(delegate);
+            if (dir) {
+                treeModified();
+            } else {
+                modified();
+            }
         }
 
         @Override
@@ -23,11 +23,12 @@ import io.github.alexanderschuetz97.luajfshook.api.LuaPath;
 import io.github.alexanderschuetz97.luajfshook.api.LuaRandomAccessFile;
 
 import java.io.FileDescriptor;
+import java.io.Flushable;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.channels.FileChannel;
 
-public class DefaultLuaRandomAccessFile implements LuaRandomAccessFile {
+public class DefaultLuaRandomAccessFile implements LuaRandomAccessFile, Flushable {
 
     protected final RandomAccessFile delegate;
     protected final LuaPath creator;
@@ -93,6 +94,11 @@ public class DefaultLuaRandomAccessFile implements LuaRandomAccessFile {
         delegate.setLength(i);
     }
 
+    @Override
+    public void flush() throws IOException {
+        //RandomAccessFile does not buffer.
+    }
+
     @Override
     public void close() throws IOException {
         delegate.close();
@@ -0,0 +1,195 @@
+//
+// Copyright Alexander Schütz, 2022
+//
+// This file is part of LuajFSHook.
+//
+// LuajFSHook is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// LuajFSHook is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// A copy of the GNU Lesser General Public License should be provided
+// in the COPYING & COPYING.LESSER files in top level directory of LuajFSHook.
+// If not, see <https://www.gnu.org/licenses/>.
+//
+package io.github.alexanderschuetz97.luajfshook.impl;
+
+import java.io.Closeable;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of direct ByteBuffers of a fixed size with a budget for the total amount of direct memory it allocates.
+ * Released chunks are kept for reuse up to a limit, all other chunks are freed immediately using {@link MappedBuffers}.
+ * This class is thread safe and may be shared by multiple handlers to give them a common budget.
+ */
+public class DirectChunkPool implements Closeable {
+
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+
+    public static final long DEFAULT_BUDGET = 256L * 1024L * 1024L;
+
+    public static final int DEFAULT_MAX_POOLED = 256;
+
+    private static final byte[] ZERO = new byte[4096];
+
+    private final int chunkSize;
+
+    private final long budget;
+
+    private final int maxPooled;
+
+    private final ConcurrentLinkedQueue<ByteBuffer> pooled = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger pooledCount = new AtomicInteger();
+
+    private final AtomicLong allocated = new AtomicLong();
+
+    private volatile boolean closed;
+
+    public DirectChunkPool() {
+        this(DEFAULT_CHUNK_SIZE, DEFAULT_BUDGET, DEFAULT_MAX_POOLED);
+    }
+
+    public DirectChunkPool(long budget) {
+        this(DEFAULT_CHUNK_SIZE, budget, DEFAULT_MAX_POOLED);
+    }
+
+    /**
+     * @param chunkSize size of every chunk in bytes
+     * @param budget maximum amount of direct memory allocated by this pool including pooled chunks
+     * @param maxPooled maximum amount of released chunks that are kept for reuse
+     */
+    public DirectChunkPool(int chunkSize, long budget, int maxPooled) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize must be positive");
+        }
+        if (budget < 0) {
+            throw new IllegalArgumentException("budget must not be negative");
+        }
+        if (maxPooled < 0) {
+            throw new IllegalArgumentException("maxPooled must not be negative");
+        }
+
+        this.chunkSize = chunkSize;
+        this.budget = budget;
+        this.maxPooled = maxPooled;
+    }
+
+    /**
+     * returns a zeroed chunk or null if the budget does not allow another chunk.
+     */
+    public ByteBuffer acquire() {
+        if (closed) {
+            return null;
+        }
+
+        ByteBuffer chunk = pooled.poll();
+        if (chunk != null) {
+            pooledCount.decrementAndGet();
+            zero(chunk);
+            return chunk;
+        }
+
+        while (true) {
+            long current = allocated.get();
+            if (current + chunkSize > budget) {
+                return null;
+            }
+
+            if (allocated.compareAndSet(current, current + chunkSize)) {
+                break;
+            }
+        }
+
+        try {
+            return ByteBuffer.allocateDirect(chunkSize);
+        } catch (OutOfMemoryError e) {
+            allocated.addAndGet(-chunkSize);
+            return null;
+        }
+    }
+
+    /**
+     * returns a chunk that was acquired from this pool. The chunk must not be used afterwards.
+     */
+    public void release(ByteBuffer chunk) {
+        if (chunk == null) {
+            return;
+        }
+
+        if (!closed) {
+            if (pooledCount.incrementAndGet() <= maxPooled) {
+                pooled.offer(chunk);
+                if (closed) {
+                    //closed concurrently
+                    drain();
+                }
+                return;
+            }
+            pooledCount.decrementAndGet();
+        }
+
+        free(chunk);
+    }
+
+    private void drain() {
+        ByteBuffer chunk;
+        while ((chunk = pooled.poll()) != null) {
+            pooledCount.decrementAndGet();
+            free(chunk);
+        }
+    }
+
+    private void free(ByteBuffer chunk) {
+        MappedBuffers.release(chunk);
+        allocated.addAndGet(-chunkSize);
+    }
+
+    private static void zero(ByteBuffer chunk) {
+        ((Buffer) chunk).clear();
+        while (chunk.hasRemaining()) {
+            chunk.put(ZERO, 0, Math.min(ZERO.length, chunk.remaining()));
+        }
+        ((Buffer) chunk).clear();
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
+    /**
+     * returns the amount of direct memory allocated by this pool including the pooled chunks.
+     */
+    public long getAllocatedBytes() {
+        return allocated.get();
+    }
+
+    /**
+     * returns the amount of direct memory held by chunks that are pooled for reuse.
+     */
+    public long getPooledBytes() {
+        return (long) Math.max(0, pooledCount.get()) * chunkSize;
+    }
+
+    /**
+     * frees all pooled chunks. Chunks released afterwards are freed immediately and acquire returns null.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        drain();
+    }
+}
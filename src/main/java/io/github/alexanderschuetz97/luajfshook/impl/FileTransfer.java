@@ -0,0 +1,230 @@
+//
+// Copyright Alexander Schütz, 2022
+//
+// This file is part of LuajFSHook.
+//
+// LuajFSHook is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// LuajFSHook is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// A copy of the GNU Lesser General Public License should be provided
+// in the COPYING & COPYING.LESSER files in top level directory of LuajFSHook.
+// If not, see <https://www.gnu.org/licenses/>.
+//
+package io.github.alexanderschuetz97.luajfshook.impl;
+
+import io.github.alexanderschuetz97.luajfshook.api.LuaPath;
+import io.github.alexanderschuetz97.luajfshook.api.LuaRandomAccessFile;
+import io.github.alexanderschuetz97.luajfshook.api.TransferableLuaPath;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Copies file content between LuaPaths. {@link #transferTo(LuaPath, LuaPath)} and {@link #copyFrom(InputStream, LuaPath)}
+ * use the methods of {@link TransferableLuaPath} if the path implements it, otherwise the generic implementations of
+ * this class are used which work with any LuaPath.
+ *
+ * If both files expose a {@link FileChannel} then the data is copied with {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}
+ * which lets the operating system copy the data without passing it through the JVM.
+ * Otherwise a pooled 64 KiB buffer is used.
+ */
+public final class FileTransfer {
+
+    public static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final int MAX_POOLED_BUFFERS = 16;
+
+    private static final Queue<byte[]> BUFFERS = new ConcurrentLinkedQueue<>();
+
+    private FileTransfer() {
+        //Util
+    }
+
+    /**
+     * Copies the content of source to target. The target is created if it does not exist or truncated if it does.
+     * Uses {@link TransferableLuaPath#transferTo(LuaPath)} if source implements it and {@link #transfer(LuaPath, LuaPath)} otherwise.
+     * @return the amount of bytes copied
+     */
+    public static long transferTo(LuaPath source, LuaPath target) throws IOException {
+        if (source instanceof TransferableLuaPath) {
+            return ((TransferableLuaPath) source).transferTo(target);
+        }
+
+        return transfer(source, target);
+    }
+
+    /**
+     * Replaces the content of target with the remaining content of the input stream. The stream is not closed.
+     * Uses {@link TransferableLuaPath#copyFrom(InputStream)} if target implements it and {@link #copy(InputStream, LuaPath)} otherwise.
+     * @return the amount of bytes copied
+     */
+    public static long copyFrom(InputStream inputStream, LuaPath target) throws IOException {
+        if (target instanceof TransferableLuaPath) {
+            return ((TransferableLuaPath) target).copyFrom(inputStream);
+        }
+
+        return copy(inputStream, target);
+    }
+
+    /**
+     * Generic copy of the content of source to target that works with any LuaPath.
+     * The target is created if it does not exist or truncated if it does.
+     * Missing parent directories of target are created.
+     * Like Files.copy nothing is written if source and target are the same file.
+     * @return the amount of bytes copied
+     */
+    public static long transfer(LuaPath source, LuaPath target) throws IOException {
+        if (source.isDir()) {
+            throw new IOException("cannot copy directory");
+        }
+
+        if (isSameFile(source, target)) {
+            return source.size();
+        }
+
+        if (!target.exists()) {
+            LuaPath parent = target.parent();
+            if (parent != null && !parent.isDir()) {
+                parent.mkdirs();
+            }
+        }
+
+        LuaRandomAccessFile in = source.open("r");
+        try {
+            LuaRandomAccessFile out = target.open("rw");
+            try {
+                out.setSize(0);
+                BufferedLuaRandomAccessFile.flush(out);
+                FileChannel inChannel = in.getFileChannel();
+                FileChannel outChannel = inChannel == null ? null : out.getFileChannel();
+                if (inChannel != null && outChannel != null) {
+                    return transfer(inChannel, outChannel);
+                }
+
+                return copy(in, out);
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static boolean isSameFile(LuaPath source, LuaPath target) throws IOException {
+        if (source.absolutePath().equals(target.absolutePath())) {
+            return true;
+        }
+
+        if (!target.exists()) {
+            return false;
+        }
+
+        Object fileKey = source.attributes().fileKey();
+        return fileKey != null && fileKey.equals(target.attributes().fileKey());
+    }
+
+    /**
+     * Generic replacement of the content of target with the remaining content of the input stream that works with any LuaPath.
+     * The stream is not closed.
+     * @return the amount of bytes copied
+     */
+    public static long copy(InputStream inputStream, LuaPath target) throws IOException {
+        try (OutputStream outputStream = target.openOutput(false)) {
+            return copy(inputStream, outputStream);
+        }
+    }
+
+    /**
+     * Copies everything from the current position of the in channel to the current position of the out channel.
+     */
+    public static long transfer(FileChannel in, FileChannel out) throws IOException {
+        long position = in.position();
+        long size = in.size();
+        long outPosition = out.position();
+        long total = 0;
+        while (position < size) {
+            long count = in.transferTo(position, size - position, out);
+            if (count <= 0) {
+                //File was truncated concurrently.
+                break;
+            }
+            position += count;
+            total += count;
+        }
+
+        in.position(position);
+        out.position(outPosition + total);
+        return total;
+    }
+
+    /**
+     * Copies everything from the current position of in to the current position of out.
+     */
+    public static long copy(LuaRandomAccessFile in, LuaRandomAccessFile out) throws IOException {
+        byte[] buf = acquireBuffer();
+        try {
+            long total = 0;
+            int i;
+            while ((i = in.read(buf, 0, buf.length)) != -1) {
+                out.write(buf, 0, i);
+                total += i;
+            }
+
+            return total;
+        } finally {
+            releaseBuffer(buf);
+        }
+    }
+
+    /**
+     * Copies the remaining content of the input stream to the output stream. Neither stream is closed.
+     */
+    public static long copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buf = acquireBuffer();
+        try {
+            long total = 0;
+            int i;
+            while ((i = in.read(buf)) != -1) {
+                out.write(buf, 0, i);
+                total += i;
+            }
+
+            return total;
+        } finally {
+            releaseBuffer(buf);
+        }
+    }
+
+    /**
+     * Takes a buffer of {@link #BUFFER_SIZE} bytes from the pool or allocates a new one if the pool is empty.
+     * The buffer should be returned with {@link #releaseBuffer(byte[])} once it is no longer used.
+     */
+    public static byte[] acquireBuffer() {
+        byte[] buf = BUFFERS.poll();
+        if (buf == null) {
+            buf = new byte[BUFFER_SIZE];
+        }
+
+        return buf;
+    }
+
+    /**
+     * Returns a buffer obtained by {@link #acquireBuffer()} to the pool.
+     */
+    public static void releaseBuffer(byte[] buf) {
+        if (buf.length == BUFFER_SIZE && BUFFERS.size() < MAX_POOLED_BUFFERS) {
+            BUFFERS.offer(buf);
+        }
+    }
+}
@@ -0,0 +1,229 @@
+//
+// Copyright Alexander Schütz, 2022
+//
+// This file is part of LuajFSHook.
+//
+// LuajFSHook is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// LuajFSHook is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// A copy of the GNU Lesser General Public License should be provided
+// in the COPYING & COPYING.LESSER files in top level directory of LuajFSHook.
+// If not, see <https://www.gnu.org/licenses/>.
+//
+package io.github.alexanderschuetz97.luajfshook.impl;
+
+import io.github.alexanderschuetz97.luajfshook.api.DirectoryStreamLuaPath;
+import io.github.alexanderschuetz97.luajfshook.api.LuaDirectoryEntry;
+import io.github.alexanderschuetz97.luajfshook.api.LuaPath;
+import io.github.alexanderschuetz97.luajfshook.api.LuaPath.LuaAttributeFileVisitor;
+import io.github.alexanderschuetz97.luajfshook.api.LuaPath.LuaFileVisitor;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+
+/**
+ * Generic implementation of {@link LuaPath#walkFileTree(int, boolean, LuaFileVisitor)} that works with any LuaPath.
+ * Behaves like {@link java.nio.file.Files#walkFileTree} with a visitFileFailed that continues.
+ */
+public final class FileTreeWalker {
+
+    private FileTreeWalker() {
+        //Util
+    }
+
+    /**
+     * Opens a stream that lazily iterates the children of the directory.
+     * Uses {@link DirectoryStreamLuaPath#newDirectoryStream()} if the path implements it. Otherwise the children are
+     * listed with {@link LuaPath#list()} and the attributes of each entry are read when they are first needed.
+     *
+     * @throws NotDirectoryException if the path does not refer to a directory
+     */
+    public static DirectoryStream<LuaDirectoryEntry> newDirectoryStream(LuaPath dir) throws NotDirectoryException, IOException {
+        if (dir instanceof DirectoryStreamLuaPath) {
+            return ((DirectoryStreamLuaPath) dir).newDirectoryStream();
+        }
+
+        final Iterator<LuaPath> children = dir.list().iterator();
+        return new DirectoryStream<LuaDirectoryEntry>() {
+
+            private boolean iterated;
+
+            @Override
+            public Iterator<LuaDirectoryEntry> iterator() {
+                if (iterated) {
+                    throw new IllegalStateException("iterator already obtained");
+                }
+                iterated = true;
+
+                return new Iterator<LuaDirectoryEntry>() {
+                    @Override
+                    public boolean hasNext() {
+                        return children.hasNext();
+                    }
+
+                    @Override
+                    public LuaDirectoryEntry next() {
+                        if (!children.hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        return new ListedDirectoryEntry(children.next());
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+
+            @Override
+            public void close() {
+                //NOOP
+            }
+        };
+    }
+
+    /**
+     * See {@link LuaPath#walkFileTree(int, boolean, LuaFileVisitor)} for the guarantees of the walk.
+     */
+    public static void walk(LuaPath start, int depth, boolean followLinks, LuaFileVisitor visitor) throws IOException {
+        if (depth < 0) {
+            throw new IllegalArgumentException("depth must not be negative");
+        }
+
+        Objects.requireNonNull(visitor);
+        BasicFileAttributes attributes;
+        try {
+            attributes = followLinks ? start.attributes() : start.linkAttributes();
+        } catch (IOException e) {
+            return;
+        }
+
+        walk(start, attributes, depth, followLinks, visitor, new ArrayList<Object>());
+    }
+
+    private static FileVisitResult walk(LuaPath path, BasicFileAttributes attributes, int depth, boolean followLinks, LuaFileVisitor visitor, List<Object> ancestors) throws IOException {
+        LuaAttributeFileVisitor attributeVisitor = visitor instanceof LuaAttributeFileVisitor ? (LuaAttributeFileVisitor) visitor : null;
+        if (!attributes.isDirectory() || depth == 0) {
+            return result(attributeVisitor != null ? attributeVisitor.visitFile(path, attributes) : visitor.visitFile(path));
+        }
+
+        Object fileKey = attributes.fileKey();
+        if (followLinks && fileKey != null && ancestors.contains(fileKey)) {
+            //Cycle
+            return FileVisitResult.CONTINUE;
+        }
+
+        FileVisitResult result = result(attributeVisitor != null ? attributeVisitor.preVisitDirectory(path, attributes) : visitor.preVisitDirectory(path));
+        if (result != FileVisitResult.CONTINUE) {
+            return result == FileVisitResult.SKIP_SUBTREE ? FileVisitResult.CONTINUE : result;
+        }
+
+        DirectoryStream<LuaDirectoryEntry> stream;
+        try {
+            stream = newDirectoryStream(path);
+        } catch (IOException e) {
+            return result(visitor.postVisitDirectory(path));
+        }
+
+        if (fileKey != null) {
+            ancestors.add(fileKey);
+        }
+
+        try {
+            for (LuaDirectoryEntry entry : stream) {
+                BasicFileAttributes entryAttributes;
+                try {
+                    entryAttributes = followLinks ? entry.attributes() : entry.path().linkAttributes();
+                } catch (IOException e) {
+                    continue;
+                }
+
+                result = walk(entry.path(), entryAttributes, depth-1, followLinks, visitor, ancestors);
+                if (result == FileVisitResult.TERMINATE) {
+                    return result;
+                }
+
+                if (result == FileVisitResult.SKIP_SIBLINGS) {
+                    break;
+                }
+            }
+        } catch (DirectoryIteratorException e) {
+            //DC
+        } finally {
+            if (fileKey != null) {
+                ancestors.remove(ancestors.size()-1);
+            }
+
+            try {
+                stream.close();
+            } catch (IOException e) {
+                //DC
+            }
+        }
+
+        return result(visitor.postVisitDirectory(path));
+    }
+
+    private static FileVisitResult result(FileVisitResult result) {
+        return result == null ? FileVisitResult.CONTINUE : result;
+    }
+
+    /**
+     * Entry of a directory that was listed with {@link LuaPath#list()}.
+     */
+    private static class ListedDirectoryEntry implements LuaDirectoryEntry {
+
+        private final LuaPath path;
+
+        private BasicFileAttributes attributes;
+
+        private ListedDirectoryEntry(LuaPath path) {
+            this.path = path;
+        }
+
+        @Override
+        public LuaPath path() {
+            return path;
+        }
+
+        @Override
+        public BasicFileAttributes attributes() throws IOException {
+            if (attributes != null) {
+                return attributes;
+            }
+
+            try {
+                attributes = path.attributes();
+            } catch (NoSuchFileException | FileNotFoundException e) {
+                //Broken symlink
+                attributes = path.linkAttributes();
+            }
+
+            return attributes;
+        }
+
+        @Override
+        public String toString() {
+            return path.toString();
+        }
+    }
+}
@@ -19,9 +19,11 @@
 //
 package io.github.alexanderschuetz97.luajfshook.impl;
 
+import io.github.alexanderschuetz97.luajfshook.api.DurabilityPolicy;
 import io.github.alexanderschuetz97.luajfshook.api.LuaFileSystemHandler;
 import io.github.alexanderschuetz97.luajfshook.api.LuaPath;
 import io.github.alexanderschuetz97.luajfshook.api.LuaRandomAccessFile;
+import io.github.alexanderschuetz97.luajfshook.api.LuajFSHook;
 import org.luaj.vm2.Globals;
 import org.luaj.vm2.LuaError;
 import org.luaj.vm2.LuaString;
@@ -29,20 +31,39 @@ import org.luaj.vm2.LuaValue;
 import org.luaj.vm2.Varargs;
 import org.luaj.vm2.lib.jse.JseIoLib;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.EOFException;
 import java.io.FileDescriptor;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
 
 /**
  * Provides a implementation of JseIoLib that should behave exactly the same as the standard JseIoLib however it uses a {@link LuaFileSystemHandler}
  * to determine paths to files.
+ * <p>
+ * Reads, writes, flushes and closes of files are performed without blocking the lua state when the calling coroutine
+ * was spawned by a {@link CoroutineIoScheduler}. Otherwise they are performed synchronously.
  */
 public class FsAwareJseIoLib extends JseIoLib {
 
+    protected final DurabilityPolicy durabilityPolicy;
 
+    protected final GroupCommitSyncer groupCommitSyncer;
+
+    protected final Executor executor;
+
+    protected final ProcessScheduler processScheduler;
+
+    protected final ShellCommandEmulator shellEmulator;
 
     protected LuaFileSystemHandler handler;
 
@@ -55,6 +76,69 @@ public class FsAwareJseIoLib extends JseIoLib {
     protected static final LuaValue STDOUT      = valueOf("stdout");
     protected static final LuaValue STDERR      = valueOf("stderr");
 
+    /**
+     * Size of the buffers of files opened by io.popen.
+     */
+    public static final int PROGRAM_BUFFER_SIZE = 8192;
+
+    /**
+     * Amount of bytes that a line read takes from a file at once. Smaller than the default buffer
+     * of {@link BufferedLuaRandomAccessFile} so that reads are served from that buffer.
+     */
+    protected static final int LINE_CHUNK_SIZE = 256;
+
+    protected static final LuaValue FORMAT_LINE = valueOf("*l");
+
+    public FsAwareJseIoLib() {
+        this(DurabilityPolicy.NONE);
+    }
+
+    public FsAwareJseIoLib(DurabilityPolicy durabilityPolicy) {
+        this(durabilityPolicy, GroupCommitSyncer.getDefault());
+    }
+
+    /**
+     * @param durabilityPolicy determines when files are synced to the storage device.
+     * @param groupCommitSyncer syncer that is used when the durabilityPolicy is {@link DurabilityPolicy#GROUP_COMMIT}
+     */
+    public FsAwareJseIoLib(DurabilityPolicy durabilityPolicy, GroupCommitSyncer groupCommitSyncer) {
+        this(durabilityPolicy, groupCommitSyncer, LuajFSHook.getDefaultExecutor());
+    }
+
+    /**
+     * @param durabilityPolicy determines when files are synced to the storage device.
+     * @param groupCommitSyncer syncer that is used when the durabilityPolicy is {@link DurabilityPolicy#GROUP_COMMIT}
+     * @param executor executor that is used by io.popen to copy the output of the process that is not read by lua to stdout/stderr.
+     */
+    public FsAwareJseIoLib(DurabilityPolicy durabilityPolicy, GroupCommitSyncer groupCommitSyncer, Executor executor) {
+        this(durabilityPolicy, groupCommitSyncer, executor, null);
+    }
+
+    /**
+     * @param durabilityPolicy determines when files are synced to the storage device.
+     * @param groupCommitSyncer syncer that is used when the durabilityPolicy is {@link DurabilityPolicy#GROUP_COMMIT}
+     * @param executor executor that is used by io.popen to copy the output of the process that is not read by lua to stdout/stderr.
+     * @param processScheduler limits the amount of processes started by io.popen that run at the same time. null -> no limit
+     */
+    public FsAwareJseIoLib(DurabilityPolicy durabilityPolicy, GroupCommitSyncer groupCommitSyncer, Executor executor, ProcessScheduler processScheduler) {
+        this(durabilityPolicy, groupCommitSyncer, executor, processScheduler, null);
+    }
+
+    /**
+     * @param durabilityPolicy determines when files are synced to the storage device.
+     * @param groupCommitSyncer syncer that is used when the durabilityPolicy is {@link DurabilityPolicy#GROUP_COMMIT}
+     * @param executor executor that is used by io.popen to copy the output of the process that is not read by lua to stdout/stderr.
+     * @param processScheduler limits the amount of processes started by io.popen that run at the same time. null -> no limit
+     * @param shellEmulator executes simple commands passed to io.popen without starting a process. null -> always start a process
+     */
+    public FsAwareJseIoLib(DurabilityPolicy durabilityPolicy, GroupCommitSyncer groupCommitSyncer, Executor executor, ProcessScheduler processScheduler, ShellCommandEmulator shellEmulator) {
+        this.durabilityPolicy = Objects.requireNonNull(durabilityPolicy);
+        this.groupCommitSyncer = Objects.requireNonNull(groupCommitSyncer);
+        this.executor = Objects.requireNonNull(executor);
+        this.processScheduler = processScheduler;
+        this.shellEmulator = shellEmulator;
+    }
+
     @Override
     public LuaValue call(LuaValue modname, LuaValue env) {
         Globals globals = env.checkglobals();
@@ -84,9 +168,158 @@ public class FsAwareJseIoLib extends JseIoLib {
                         v.equals(STDERR)? stderr: NIL;
     }
 
+    @Override
+    public Varargs _io_read(Varargs args) throws IOException {
+        File f = (File) _io_input(NIL);
+        if (f.isclosed()) {
+            error("attempt to use a closed file");
+        }
+        return read(f, args);
+    }
+
+    @Override
+    public Varargs _file_read(LuaValue file, Varargs args) throws IOException {
+        return read(checkFile(file), args);
+    }
+
+    @Override
+    public Varargs _lines_iter(LuaValue file) throws IOException {
+        return readLine(checkFile(file));
+    }
+
+    protected static File checkFile(LuaValue value) {
+        if (!(value instanceof File)) {
+            argerror(1, "file");
+        }
+
+        File f = (File) value;
+        if (f.isclosed()) {
+            error("attempt to use a closed file");
+        }
+        return f;
+    }
+
+    /**
+     * Same as IoLib.ioread but "*a" and "*l" read blocks of bytes instead of single bytes.
+     * Without formats a line is read like in lua.
+     */
+    protected Varargs read(File f, Varargs args) throws IOException {
+        if (args.narg() == 0) {
+            args = FORMAT_LINE;
+        }
+
+        int n = args.narg();
+        LuaValue[] values = new LuaValue[n];
+        int i = 0;
+        while (i < n) {
+            LuaValue format = args.arg(i + 1);
+            LuaValue value;
+            switch (format.type()) {
+                case TNUMBER:
+                    value = freadbytes(f, format.toint());
+                    break;
+                case TSTRING:
+                    LuaString fmt = format.checkstring();
+                    if (fmt.m_length != 2 || fmt.m_bytes[fmt.m_offset] != '*') {
+                        return argerror(i + 1, "(invalid format)");
+                    }
+                    switch (fmt.m_bytes[fmt.m_offset + 1]) {
+                        case 'n':
+                            value = freadnumber(f);
+                            break;
+                        case 'l':
+                            value = readLine(f);
+                            break;
+                        case 'a':
+                            value = readAll(f);
+                            break;
+                        default:
+                            return argerror(i + 1, "(invalid format)");
+                    }
+                    break;
+                default:
+                    return argerror(i + 1, "(invalid format)");
+            }
+
+            values[i++] = value;
+            if (value.isnil()) {
+                break;
+            }
+        }
+
+        return varargsOf(values, 0, i);
+    }
+
+    /**
+     * Reads the rest of the file with as few reads as possible.
+     * If the size of the rest is known the LuaString is read into an array of exactly that size.
+     */
+    protected LuaValue readAll(File f) throws IOException {
+        int remaining = f.remaining();
+        byte[] bytes = new byte[remaining >= 0 ? remaining : PROGRAM_BUFFER_SIZE];
+        int total = 0;
+        while (true) {
+            if (total == bytes.length) {
+                if (remaining >= 0) {
+                    break;
+                }
+                bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            }
+
+            int read = f.read(bytes, total, bytes.length - total);
+            if (read <= 0) {
+                break;
+            }
+            total += read;
+        }
+
+        return LuaString.valueUsing(bytes, 0, total);
+    }
+
+    /**
+     * Reads a line without the line break, nil on eof. Like IoLib '\r' is removed from the line.
+     */
+    protected LuaValue readLine(File f) throws IOException {
+        if (f instanceof RandomAccessFileFile) {
+            return ((RandomAccessFileFile) f).readLine();
+        }
+
+        if (f instanceof InputStreamFile) {
+            return ((InputStreamFile) f).readLine();
+        }
+
+        return freadline(f);
+    }
+
+    protected static LuaValue line(byte[] bytes, int off, int len) {
+        int cr = 0;
+        for (int i = off; i < off + len; i++) {
+            if (bytes[i] == '\r') {
+                cr++;
+            }
+        }
+
+        if (cr == 0) {
+            return LuaString.valueOf(bytes, off, len);
+        }
+
+        byte[] result = new byte[len - cr];
+        int j = 0;
+        for (int i = off; i < off + len; i++) {
+            if (bytes[i] != '\r') {
+                result[j++] = bytes[i];
+            }
+        }
+        return LuaString.valueUsing(result);
+    }
+
     protected File openFile(String filename, boolean readMode, boolean appendMode, boolean updateMode, boolean binaryMode ) throws IOException {
         LuaPath path = handler.resolvePath(filename);
-        LuaRandomAccessFile f = path.open(readMode? "r": "rw");
+        if (readMode && updateMode && !path.isFile()) {
+            throw new FileNotFoundException(filename + " (No such file or directory)");
+        }
+
+        LuaRandomAccessFile f = path.open(readMode && !updateMode ? "r": "rw");
         if (!appendMode && !readMode) {
             f.setSize(0);
         } else if (appendMode) {
@@ -97,17 +330,69 @@ public class FsAwareJseIoLib extends JseIoLib {
     }
 
     protected File openProgram(String prog, String mode) throws IOException {
-
+        if (shellEmulator != null) {
+            boolean write = "w".equals(mode);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            if (shellEmulator.execute(handler, prog, write ? orDiscard(globals.STDOUT) : out, globals.STDERR) != null) {
+                return write ? new OutputStreamFile(DISCARD) : new InputStreamFile(new ByteArrayInputStream(out.toByteArray()));
+            }
+        }
 
         Path sysPath = handler.getWorkDirectory().toSystemPath();
         java.io.File wd = sysPath != null ? sysPath.toFile() : new java.io.File(".");
 
-        //This is pretty bad ngl... I would like to improve this to make
-        //it not be like this but can not due to api...
-        final Process p = Runtime.getRuntime().exec(prog, null, wd);
-        return "w".equals(mode)?
-                new OutputStreamFile( p.getOutputStream() ):
-                new InputStreamFile( p.getInputStream() );
+        ProcessBuilder builder = new ProcessBuilder(FsAwareOs_execute.tokenize(prog)).directory(wd);
+        final Process p;
+        if (processScheduler == null) {
+            p = builder.start();
+        } else {
+            final ProcessScheduler.ScheduledProcess scheduled;
+            try {
+                scheduled = processScheduler.start(globals, builder);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while waiting for a process slot");
+            }
+            p = scheduled.getProcess();
+
+            //Lua may never close the file, the slot is released once the process exits.
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        scheduled.waitFor();
+                    } catch (InterruptedException e) {
+                        scheduled.releaseOnExit();
+                    }
+                }
+            });
+        }
+
+        //Output that lua does not read is copied in the background so the process can not block on a full pipe.
+        executor.execute(new FsAwareOs_execute.RedirectIORunnable(p.getErrorStream(), orDiscard(globals.STDERR)));
+        if ("w".equals(mode)) {
+            executor.execute(new FsAwareOs_execute.RedirectIORunnable(p.getInputStream(), orDiscard(globals.STDOUT)));
+            return new OutputStreamFile(p.getOutputStream());
+        }
+
+        p.getOutputStream().close();
+        return new InputStreamFile(p.getInputStream());
+    }
+
+    private static final OutputStream DISCARD = new OutputStream() {
+        @Override
+        public void write(int b) {
+            //DC
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            //DC
+        }
+    };
+
+    private static OutputStream orDiscard(OutputStream out) {
+        return out != null ? out : DISCARD;
     }
 
     protected File tmpFile() throws IOException {
@@ -115,11 +400,16 @@ public class FsAwareJseIoLib extends JseIoLib {
         return new RandomAccessFileFile(path.open("rw"));
     }
 
+    /**
+     * Write end of io.popen. Data is buffered according to setvbuf, by default the buffer is only flushed when it is full.
+     */
     protected class OutputStreamFile extends File {
 
         private final OutputStream outputStream;
         private boolean closed = false;
-        private boolean flushAfterWrite = false;
+        private byte[] buffer = new byte[PROGRAM_BUFFER_SIZE];
+        private int count;
+        private boolean lineBuffered = false;
 
         public OutputStreamFile(OutputStream outputStream) {
             this.outputStream = outputStream;
@@ -127,27 +417,55 @@ public class FsAwareJseIoLib extends JseIoLib {
 
         @Override
         public void write(LuaString string) throws IOException {
-            outputStream.write( string.m_bytes, string.m_offset, string.m_length );
-            if (flushAfterWrite) {
+            if (buffer == null) {
+                outputStream.write(string.m_bytes, string.m_offset, string.m_length);
+                outputStream.flush();
+                return;
+            }
+
+            if (string.m_length > buffer.length - count) {
+                flushBuffer();
+            }
+
+            if (string.m_length >= buffer.length) {
+                outputStream.write(string.m_bytes, string.m_offset, string.m_length);
+            } else {
+                System.arraycopy(string.m_bytes, string.m_offset, buffer, count, string.m_length);
+                count += string.m_length;
+            }
+
+            if (lineBuffered && string.indexOf((byte) '\n', 0) >= 0) {
                 flush();
             }
         }
 
+        private void flushBuffer() throws IOException {
+            if (count > 0) {
+                outputStream.write(buffer, 0, count);
+                count = 0;
+            }
+        }
+
         @Override
         public void flush() throws IOException {
+            flushBuffer();
             outputStream.flush();
         }
 
         @Override
         public boolean isstdfile() {
-            return true;
+            //Otherwise lua can not close the file.
+            return false;
         }
 
         @Override
         public void close() throws IOException {
             closed = true;
-            outputStream.close();
-
+            try {
+                flushBuffer();
+            } finally {
+                outputStream.close();
+            }
         }
 
         @Override
@@ -162,7 +480,14 @@ public class FsAwareJseIoLib extends JseIoLib {
 
         @Override
         public void setvbuf(String mode, int size) {
-            flushAfterWrite = "no".equals(mode);
+            try {
+                flush();
+            } catch (IOException e) {
+                throw new LuaError(e);
+            }
+
+            lineBuffered = "line".equals(mode);
+            buffer = "no".equals(mode) ? null : new byte[Math.max(size, 1)];
         }
 
         @Override
@@ -186,9 +511,15 @@ public class FsAwareJseIoLib extends JseIoLib {
         }
     }
 
+    /**
+     * Read end of io.popen. Reads from the process are buffered so peek does not depend on mark/reset of the stream.
+     */
     protected class InputStreamFile extends File {
 
         private final InputStream inputStream;
+        private final byte[] buffer = new byte[PROGRAM_BUFFER_SIZE];
+        private int position;
+        private int limit;
         private boolean closed = false;
 
         public InputStreamFile(InputStream inputStream) {
@@ -207,7 +538,8 @@ public class FsAwareJseIoLib extends JseIoLib {
 
         @Override
         public boolean isstdfile() {
-            return true;
+            //Otherwise lua can not close the file.
+            return false;
         }
 
         @Override
@@ -237,29 +569,104 @@ public class FsAwareJseIoLib extends JseIoLib {
             return -1;
         }
 
+        /**
+         * Refills the buffer if it is empty.
+         * @return false on eof
+         */
+        private boolean fill() throws IOException {
+            if (position < limit) {
+                return true;
+            }
+
+            int i = inputStream.read(buffer, 0, buffer.length);
+            if (i <= 0) {
+                return false;
+            }
+
+            position = 0;
+            limit = i;
+            return true;
+        }
+
         @Override
         public int peek() throws IOException, EOFException {
-            inputStream.mark(1);
-            int c = inputStream.read();
-            inputStream.reset();
-            return c;
+            return fill() ? buffer[position] & 0xff : -1;
+        }
+
+        protected LuaValue readLine() throws IOException {
+            ByteArrayOutputStream spill = null;
+            while (fill()) {
+                for (int i = position; i < limit; i++) {
+                    if (buffer[i] != '\n') {
+                        continue;
+                    }
+
+                    int start = position;
+                    position = i + 1;
+                    if (spill == null) {
+                        return line(buffer, start, i - start);
+                    }
+                    spill.write(buffer, start, i - start);
+                    return line(spill.toByteArray(), 0, spill.size());
+                }
+
+                if (spill == null) {
+                    spill = new ByteArrayOutputStream();
+                }
+                spill.write(buffer, position, limit - position);
+                position = limit;
+            }
+
+            return spill == null ? NIL : line(spill.toByteArray(), 0, spill.size());
         }
 
         @Override
         public int read() throws IOException, EOFException {
-            return inputStream.read();
+            return fill() ? buffer[position++] & 0xff : -1;
         }
 
+        /**
+         * Blocks until length bytes have been read or the process closed its output.
+         */
         @Override
         public int read(byte[] bytes, int offset, int length) throws IOException {
-            return inputStream.read(bytes, offset, length);
+            int total = 0;
+            while (total < length) {
+                int i;
+                if (position == limit && length - total >= buffer.length) {
+                    i = inputStream.read(bytes, offset + total, length - total);
+                    if (i <= 0) {
+                        break;
+                    }
+                } else {
+                    if (!fill()) {
+                        break;
+                    }
+                    i = Math.min(limit - position, length - total);
+                    System.arraycopy(buffer, position, bytes, offset + total, i);
+                    position += i;
+                }
+                total += i;
+            }
+
+            return total == 0 && length > 0 ? -1 : total;
         }
     }
 
+    /**
+     * File opened by io.open. Writes are buffered according to setvbuf, the default is "full" buffering.
+     * Files of handlers that already buffer (like the {@link DefaultLuaFileSystemHandler}) keep their buffer,
+     * other files are only buffered once setvbuf is called.
+     *
+     * Operations on the file are serialized with the monitor of this object. Operations that are awaited on a
+     * {@link CoroutineIoScheduler} acquire it on the io executor, the monitor is never held while a coroutine yields.
+     */
     protected class RandomAccessFileFile extends File {
 
-        private final LuaRandomAccessFile file;
+        private LuaRandomAccessFile file;
         private boolean closed = false;
+        private boolean lineBuffered = false;
+        private byte[] lineChunk;
 
         public RandomAccessFileFile(LuaRandomAccessFile file) throws IOException {
             this.file = file;
@@ -308,13 +715,74 @@ public class FsAwareJseIoLib extends JseIoLib {
             return typerror(c.getName());
         }
 
+        /**
+         * Returns the scheduler that should perform blocking operations on this file or null if they are performed synchronously.
+         */
+        protected CoroutineIoScheduler scheduler() {
+            return globals == null ? null : CoroutineIoScheduler.current(globals);
+        }
+
         @Override
-        public void write(LuaString string) throws IOException {
+        public void write(final LuaString string) throws IOException {
+            CoroutineIoScheduler scheduler = scheduler();
+            if (scheduler == null) {
+                writeString(string);
+                return;
+            }
+
+            scheduler.await(globals, new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    writeString(string);
+                    return null;
+                }
+            });
+        }
+
+        protected synchronized void writeString(LuaString string) throws IOException {
             file.write(string.m_bytes, string.m_offset, string.m_length);
+
+            //Like fflush this only empties the buffer, it does not sync regardless of the durability policy.
+            if (lineBuffered && string.indexOf((byte) '\n', 0) >= 0) {
+                BufferedLuaRandomAccessFile.flush(file);
+            }
         }
 
         @Override
         public void flush() throws IOException {
+            CoroutineIoScheduler scheduler = scheduler();
+            if (scheduler == null) {
+                flushAndSync();
+                return;
+            }
+
+            scheduler.await(globals, new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    flushAndSync();
+                    return null;
+                }
+            });
+        }
+
+        protected synchronized void flushAndSync() throws IOException {
+            BufferedLuaRandomAccessFile.flush(file);
+            switch (durabilityPolicy) {
+                case SYNC_ON_FLUSH:
+                    sync();
+                    break;
+                case GROUP_COMMIT:
+                    FileDescriptor fd = file.getFileDescriptor();
+                    if (fd != null) {
+                        groupCommitSyncer.requestSync(fd);
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        protected void sync() throws IOException {
             FileDescriptor fd = file.getFileDescriptor();
             if (fd != null) {
                 fd.sync();
@@ -329,7 +797,40 @@ public class FsAwareJseIoLib extends JseIoLib {
         @Override
         public void close() throws IOException {
             closed = true;
-            file.close();
+            CoroutineIoScheduler scheduler = scheduler();
+            if (scheduler == null) {
+                flushAndClose();
+                return;
+            }
+
+            scheduler.await(globals, new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    flushAndClose();
+                    return null;
+                }
+            });
+        }
+
+        protected synchronized void flushAndClose() throws IOException {
+            try {
+                BufferedLuaRandomAccessFile.flush(file);
+                switch (durabilityPolicy) {
+                    case SYNC_ON_CLOSE:
+                        sync();
+                        break;
+                    case GROUP_COMMIT:
+                        FileDescriptor fd = file.getFileDescriptor();
+                        if (fd != null) {
+                            groupCommitSyncer.beforeClose(fd);
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            } finally {
+                file.close();
+            }
         }
 
         @Override
@@ -338,7 +839,7 @@ public class FsAwareJseIoLib extends JseIoLib {
         }
 
         @Override
-        public int seek(String option, int bytecount) throws IOException {
+        public synchronized int seek(String option, int bytecount) throws IOException {
             switch (option) {
                 case ("set"):
                     file.setPosition(bytecount);
@@ -355,17 +856,105 @@ public class FsAwareJseIoLib extends JseIoLib {
         }
 
         @Override
-        public void setvbuf(String mode, int size) {
-
+        public synchronized void setvbuf(String mode, int size) {
+            try {
+                LuaRandomAccessFile unbuffered = file instanceof BufferedLuaRandomAccessFile ? ((BufferedLuaRandomAccessFile) file).detach() : file;
+                lineBuffered = "line".equals(mode);
+                file = "no".equals(mode) ? unbuffered : new BufferedLuaRandomAccessFile(unbuffered, size > 0 ? size : BufferedLuaRandomAccessFile.DEFAULT_BUFFER_SIZE);
+            } catch (IOException e) {
+                throw new LuaError(e);
+            }
         }
 
         @Override
-        public int remaining() throws IOException {
+        public synchronized int remaining() throws IOException {
             return (int) (file.size()-file.getPosition());
         }
 
+        /**
+         * Reads a line without the line break, nil on eof.
+         */
+        protected LuaValue readLine() throws IOException {
+            CoroutineIoScheduler scheduler = scheduler();
+            if (scheduler == null) {
+                return readFileLine();
+            }
+
+            return scheduler.await(globals, new Callable<LuaValue>() {
+                @Override
+                public LuaValue call() throws Exception {
+                    return readFileLine();
+                }
+            });
+        }
+
+        /**
+         * If the file is buffered then chunks are read and the position is moved back to the byte after the line break,
+         * this is only a change of the position inside of the buffer. Unbuffered files are read byte by byte as moving back would hit the file.
+         */
+        protected synchronized LuaValue readFileLine() throws IOException {
+            if (lineChunk == null) {
+                lineChunk = new byte[LINE_CHUNK_SIZE];
+            }
+
+            if (!(file instanceof BufferedLuaRandomAccessFile)) {
+                ByteArrayOutputStream spill = null;
+                int length = 0;
+                while (true) {
+                    int c = file.read();
+                    if (c < 0 && length == 0 && spill == null) {
+                        return NIL;
+                    }
+
+                    if (c < 0 || c == '\n') {
+                        if (spill == null) {
+                            return line(lineChunk, 0, length);
+                        }
+                        spill.write(lineChunk, 0, length);
+                        return line(spill.toByteArray(), 0, spill.size());
+                    }
+
+                    if (length == lineChunk.length) {
+                        if (spill == null) {
+                            spill = new ByteArrayOutputStream();
+                        }
+                        spill.write(lineChunk, 0, length);
+                        length = 0;
+                    }
+                    lineChunk[length++] = (byte) c;
+                }
+            }
+
+            ByteArrayOutputStream spill = null;
+            while (true) {
+                long start = file.getPosition();
+                int read = file.read(lineChunk, 0, lineChunk.length);
+                if (read <= 0) {
+                    return spill == null ? NIL : line(spill.toByteArray(), 0, spill.size());
+                }
+
+                for (int i = 0; i < read; i++) {
+                    if (lineChunk[i] != '\n') {
+                        continue;
+                    }
+
+                    file.setPosition(start + i + 1);
+                    if (spill == null) {
+                        return line(lineChunk, 0, i);
+                    }
+                    spill.write(lineChunk, 0, i);
+                    return line(spill.toByteArray(), 0, spill.size());
+                }
+
+                if (spill == null) {
+                    spill = new ByteArrayOutputStream();
+                }
+                spill.write(lineChunk, 0, read);
+            }
+        }
+
         @Override
-        public int peek() throws IOException, EOFException {
+        public synchronized int peek() throws IOException, EOFException {
             long fp = file.getPosition();
             int c = file.read();
             file.setPosition(fp);
@@ -373,12 +962,26 @@ public class FsAwareJseIoLib extends JseIoLib {
         }
 
         @Override
-        public int read() throws IOException, EOFException {
+        public synchronized int read() throws IOException, EOFException {
             return file.read();
         }
 
         @Override
-        public int read(byte[] bytes, int offset, int length) throws IOException {
+        public int read(final byte[] bytes, final int offset, final int length) throws IOException {
+            CoroutineIoScheduler scheduler = scheduler();
+            if (scheduler == null) {
+                return readBytes(bytes, offset, length);
+            }
+
+            return scheduler.await(globals, new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    return readBytes(bytes, offset, length);
+                }
+            });
+        }
+
+        protected synchronized int readBytes(byte[] bytes, int offset, int length) throws IOException {
             return file.read(bytes, offset, length);
         }
     }
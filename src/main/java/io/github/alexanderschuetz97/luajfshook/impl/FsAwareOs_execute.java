@@ -28,8 +28,11 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.PrintStream;
 import java.nio.file.Path;
 import java.util.Objects;
+import java.util.StringTokenizer;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executor;
 
 import static org.luaj.vm2.lib.jse.JseOsLib.EXEC_ERROR;
@@ -41,32 +44,40 @@ public class FsAwareOs_execute extends VarArgFunction {
     protected final LuaFileSystemHandler handler;
     protected final Globals globals;
     protected final Executor executor;
+    protected final ProcessScheduler processScheduler;
+    protected final ShellCommandEmulator shellEmulator;
 
     public FsAwareOs_execute(Globals globals, LuaFileSystemHandler handler, Executor executor) {
+        this(globals, handler, executor, null);
+    }
+
+    /**
+     * @param processScheduler limits the amount of processes that run at the same time. null -> no limit
+     */
+    public FsAwareOs_execute(Globals globals, LuaFileSystemHandler handler, Executor executor, ProcessScheduler processScheduler) {
+        this(globals, handler, executor, processScheduler, null);
+    }
+
+    /**
+     * @param processScheduler limits the amount of processes that run at the same time. null -> no limit
+     * @param shellEmulator executes simple commands without starting a process. null -> always start a process
+     */
+    public FsAwareOs_execute(Globals globals, LuaFileSystemHandler handler, Executor executor, ProcessScheduler processScheduler, ShellCommandEmulator shellEmulator) {
         this.handler = Objects.requireNonNull(handler);
         this.globals = Objects.requireNonNull(globals);
         this.executor = Objects.requireNonNull(executor);
+        this.processScheduler = processScheduler;
+        this.shellEmulator = shellEmulator;
     }
 
     @Override
     public Varargs invoke(Varargs args) {
         String command = args.optjstring(1, null);
-        Path syspath = handler.getWorkDirectory().toSystemPath();
-        File f = syspath == null ? new File(".") : syspath.toFile();
 
         int exitValue;
         try {
-            Process process = Runtime.getRuntime().exec(command, null, f);
-
-            if (globals.STDERR != null) {
-                executor.execute(new RedirectIORunnable( process.getErrorStream(), globals.STDERR));
-            }
-
-            if (globals.STDOUT != null) {
-                executor.execute(new RedirectIORunnable(process.getInputStream(), globals.STDOUT));
-            }
-
-            exitValue = process.waitFor();
+            Integer emulated = shellEmulator == null ? null : shellEmulator.execute(handler, command, globals.STDOUT, globals.STDERR);
+            exitValue = emulated != null ? emulated : spawn(command);
         } catch (IOException ioe) {
             exitValue = EXEC_IOEXCEPTION;
         } catch (InterruptedException e) {
@@ -79,9 +90,119 @@ public class FsAwareOs_execute extends VarArgFunction {
         return varargsOf(NIL, valueOf("signal"), valueOf(exitValue));
     }
 
+    /**
+     * Starts the command as a process in the work directory and waits until it has exited and its output was copied.
+     */
+    protected int spawn(String command) throws IOException, InterruptedException {
+        Path syspath = handler.getWorkDirectory().toSystemPath();
+        File f = syspath == null ? new File(".") : syspath.toFile();
+
+        PrintStream err = globals.STDERR;
+        PrintStream out = globals.STDOUT;
+        ProcessBuilder builder = new ProcessBuilder(tokenize(command)).directory(f);
+        ProcessBuilder.Redirect errorRedirect = redirectFor(err, true);
+        if (errorRedirect != null) {
+            builder.redirectError(errorRedirect);
+        }
+
+        ProcessBuilder.Redirect outputRedirect = redirectFor(out, false);
+        if (outputRedirect != null) {
+            builder.redirectOutput(outputRedirect);
+        }
+
+        ProcessScheduler.ScheduledProcess scheduled = null;
+        Process process;
+        if (processScheduler == null) {
+            process = builder.start();
+        } else {
+            scheduled = processScheduler.start(globals, builder);
+            process = scheduled.getProcess();
+        }
+
+        RedirectIORunnable stderr = null;
+        if (err != null && errorRedirect == null) {
+            stderr = new RedirectIORunnable( process.getErrorStream(), err);
+            executor.execute(stderr);
+        }
+
+        RedirectIORunnable stdout = null;
+        if (out != null && outputRedirect == null) {
+            stdout = new RedirectIORunnable(process.getInputStream(), out);
+            executor.execute(stdout);
+        }
+
+        boolean exited = false;
+        try {
+            int exitValue;
+            try {
+                exitValue = process.waitFor();
+            } catch (InterruptedException e) {
+                //The process must not keep running untracked once nobody waits for it.
+                process.destroy();
+                throw e;
+            }
+            exited = true;
+
+            //The process may exit before everything it wrote has been copied.
+            if (stderr != null) {
+                stderr.await();
+            }
+
+            if (stdout != null) {
+                stdout.await();
+            }
+
+            return exitValue;
+        } finally {
+            if (scheduled != null) {
+                if (exited) {
+                    scheduled.release();
+                } else {
+                    scheduled.releaseOnExit();
+                }
+            }
+
+            if (errorRedirect != null) {
+                ((RedirectablePrintStream) err).afterRedirect();
+            }
+
+            if (outputRedirect != null) {
+                ((RedirectablePrintStream) out).afterRedirect();
+            }
+        }
+    }
+
+    /**
+     * Returns the redirect that lets the process write directly into the stream or null if the output has to be copied.
+     */
+    protected ProcessBuilder.Redirect redirectFor(PrintStream stream, boolean errorStream) {
+        if (stream instanceof RedirectablePrintStream) {
+            return ((RedirectablePrintStream) stream).redirectFor(errorStream);
+        }
+
+        return null;
+    }
+
+    /**
+     * Splits the command the same way {@link Runtime#exec(String)} does.
+     */
+    protected static String[] tokenize(String command) {
+        StringTokenizer st = new StringTokenizer(command);
+        String[] cmdarray = new String[st.countTokens()];
+        for (int i = 0; st.hasMoreTokens(); i++) {
+            cmdarray[i] = st.nextToken();
+        }
+        return cmdarray;
+    }
+
+    /**
+     * Copies everything from src to out using a buffer from the {@link FileTransfer} pool.
+     * Only src is closed once it is exhausted.
+     */
     protected static class RedirectIORunnable implements Runnable {
         private final InputStream src;
         private final OutputStream out;
+        private final CountDownLatch done = new CountDownLatch(1);
 
         public RedirectIORunnable(InputStream src, OutputStream out) {
             this.src = src;
@@ -90,15 +211,9 @@ public class FsAwareOs_execute extends VarArgFunction {
 
         @Override
         public void run() {
-            byte[] bytes = new byte[1024];
-            int i = 0;
             try {
-                while(i != -1) {
-                    i = src.read(bytes);
-                    if (i > 0) {
-                        out.write(bytes, 0, i);
-                    }
-                }
+                FileTransfer.copy(src, out);
+                out.flush();
             } catch (IOException e) {
                 //DC
             } finally {
@@ -107,8 +222,15 @@ public class FsAwareOs_execute extends VarArgFunction {
                 } catch (IOException ex) {
                     //DC.
                 }
+                done.countDown();
             }
         }
 
+        /**
+         * Blocks until src has been exhausted and everything was written to out.
+         */
+        public void await() throws InterruptedException {
+            done.await();
+        }
     }
 }
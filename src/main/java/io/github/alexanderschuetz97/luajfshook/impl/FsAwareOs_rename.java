@@ -56,9 +56,7 @@ public class FsAwareOs_rename extends VarArgFunction {
             //not quite the error message I expected, but it is what JseOsLib does
             return FAILED_TO_DELETE;
         }
-        ;
 
-
-        return super.invoke(args);
+        return TRUE;
     }
 }
@@ -0,0 +1,188 @@
+//
+// Copyright Alexander Schütz, 2022
+//
+// This file is part of LuajFSHook.
+//
+// LuajFSHook is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// LuajFSHook is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// A copy of the GNU Lesser General Public License should be provided
+// in the COPYING & COPYING.LESSER files in top level directory of LuajFSHook.
+// If not, see <https://www.gnu.org/licenses/>.
+//
+package io.github.alexanderschuetz97.luajfshook.impl;
+
+import io.github.alexanderschuetz97.luajfshook.api.DurabilityPolicy;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Background task that batches the syncs of all files that use {@link DurabilityPolicy#GROUP_COMMIT}.
+ * The background thread is started when the first sync is requested.
+ *
+ * If a background sync fails then the failure is thrown by the next requestSync or beforeClose call for the same file descriptor.
+ */
+public class GroupCommitSyncer {
+
+    public static final long DEFAULT_INTERVAL_MILLIS = 100;
+
+    private static GroupCommitSyncer DEFAULT;
+
+    /**
+     * Gets (and creates if this is the first call) the syncer with the default interval.
+     */
+    public synchronized static GroupCommitSyncer getDefault() {
+        if (DEFAULT == null) {
+            DEFAULT = new GroupCommitSyncer(DEFAULT_INTERVAL_MILLIS);
+        }
+
+        return DEFAULT;
+    }
+
+    private final long intervalMillis;
+
+    private final Set<FileDescriptor> pending = Collections.newSetFromMap(new ConcurrentHashMap<FileDescriptor, Boolean>());
+
+    private final ConcurrentHashMap<FileDescriptor, IOException> failures = new ConcurrentHashMap<>();
+
+    private volatile ScheduledExecutorService executor;
+
+    public GroupCommitSyncer(long intervalMillis) {
+        if (intervalMillis <= 0) {
+            throw new IllegalArgumentException("intervalMillis must be positive");
+        }
+        this.intervalMillis = intervalMillis;
+    }
+
+    public long getIntervalMillis() {
+        return intervalMillis;
+    }
+
+    /**
+     * Marks the file descriptor to be synced on the next run of the background task.
+     * Throws if a previous background sync of the file descriptor failed.
+     */
+    public void requestSync(FileDescriptor fd) throws IOException {
+        IOException failure = failures.remove(fd);
+        if (failure != null) {
+            throw new IOException("background sync failed", failure);
+        }
+
+        pending.add(fd);
+        if (executor == null) {
+            ensureStarted();
+        }
+    }
+
+    /**
+     * Must be called before the file descriptor is closed.
+     * If a sync is still pending for the file descriptor then it is performed by the calling thread.
+     * Throws if that sync or a previous background sync of the file descriptor failed.
+     */
+    public void beforeClose(FileDescriptor fd) throws IOException {
+        synchronized (fd) {
+            IOException failure = failures.remove(fd);
+            if (pending.remove(fd)) {
+                try {
+                    sync(fd);
+                } catch (IOException e) {
+                    if (failure == null) {
+                        throw e;
+                    }
+
+                    failure.addSuppressed(e);
+                }
+            }
+
+            if (failure != null) {
+                throw new IOException("background sync failed", failure);
+            }
+        }
+    }
+
+    /**
+     * Syncs all file descriptors that are currently pending.
+     */
+    public void syncPending() {
+        for (FileDescriptor fd : new ArrayList<>(pending)) {
+            synchronized (fd) {
+                if (!pending.remove(fd) || !fd.valid()) {
+                    continue;
+                }
+
+                try {
+                    sync(fd);
+                } catch (IOException e) {
+                    failures.put(fd, e);
+                }
+            }
+        }
+
+        //Failures of file descriptors that were closed without calling beforeClose can never be reported.
+        Iterator<FileDescriptor> iterator = failures.keySet().iterator();
+        while (iterator.hasNext()) {
+            if (!iterator.next().valid()) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Performs the actual sync of the file descriptor.
+     */
+    protected void sync(FileDescriptor fd) throws IOException {
+        fd.sync();
+    }
+
+    /**
+     * Stops the background thread after syncing everything that is pending. It is restarted when a sync is requested.
+     */
+    public synchronized void shutdown() {
+        if (executor == null) {
+            return;
+        }
+
+        executor.shutdown();
+        executor = null;
+        syncPending();
+    }
+
+    private synchronized void ensureStarted() {
+        if (executor != null) {
+            return;
+        }
+
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "luajfshook-group-commit");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                syncPending();
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+}
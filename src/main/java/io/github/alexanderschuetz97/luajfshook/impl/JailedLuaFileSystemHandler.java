@@ -0,0 +1,564 @@
+//
+// Copyright Alexander Schütz, 2022
+//
+// This file is part of LuajFSHook.
+//
+// LuajFSHook is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// LuajFSHook is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// A copy of the GNU Lesser General Public License should be provided
+// in the COPYING & COPYING.LESSER files in top level directory of LuajFSHook.
+// If not, see <https://www.gnu.org/licenses/>.
+//
+package io.github.alexanderschuetz97.luajfshook.impl;
+
+import io.github.alexanderschuetz97.luajfshook.api.LuaDirectoryEntry;
+import io.github.alexanderschuetz97.luajfshook.api.LuaFileSystemHandler;
+import io.github.alexanderschuetz97.luajfshook.api.LuaPath;
+import io.github.alexanderschuetz97.luajfshook.api.LuaRandomAccessFile;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * LuaFileSystemHandler that confines all paths to a directory of the default file system. The directory is the root ("/") of the handler.
+ *
+ * The root is canonicalized once when the handler is created. Paths are normalized lexically, ".." can never leave the root
+ * and never reaches the operating system. Symbolic links are only resolved if a path actually crosses one,
+ * access is denied with an {@link AccessDeniedException} if the target is outside of the root or the link is broken.
+ * Paths that were checked and contain no link are remembered: once a directory is known to be safe, opening a file in it
+ * does not cost any system call besides the open itself. Paths that cross a link are checked on every access. Files and directories created through this handler are known to be safe without any check.
+ *
+ * Scripts can not create symbolic links. The tree below the root must not be changed by other means to contain
+ * links that lead outside of the root while the handler is used.
+ *
+ * All operations on files are performed by the {@link DefaultLuaFileSystemHandler} passed to the constructor, so its caches apply.
+ */
+public class JailedLuaFileSystemHandler implements LuaFileSystemHandler {
+
+    public static final String TMP_DIR = "/tmp";
+
+    public static final int DEFAULT_MAX_CACHED_PATHS = 65536;
+
+    protected final DefaultLuaFileSystemHandler delegate;
+
+    protected final Path root;
+
+    private final int maxCachedPaths;
+
+    /**
+     * absolute paths of this handler that are known to stay inside of the root, including all their parents.
+     */
+    private final ConcurrentHashMap<String, Boolean> safePaths = new ConcurrentHashMap<>();
+
+    private volatile JailedLuaPath workDirectory;
+
+    public JailedLuaFileSystemHandler(Path root) throws IOException {
+        this(root, new DefaultLuaFileSystemHandler());
+    }
+
+    public JailedLuaFileSystemHandler(Path root, DefaultLuaFileSystemHandler delegate) throws IOException {
+        this(root, delegate, DEFAULT_MAX_CACHED_PATHS);
+    }
+
+    /**
+     * @param root directory that becomes the root of the handler
+     * @param delegate handler that performs all operations on files
+     * @param maxCachedPaths maximum number of paths that are remembered as safe
+     */
+    public JailedLuaFileSystemHandler(Path root, DefaultLuaFileSystemHandler delegate, int maxCachedPaths) throws IOException {
+        if (maxCachedPaths <= 0) {
+            throw new IllegalArgumentException("maxCachedPaths must be positive");
+        }
+
+        this.root = root.toRealPath();
+        if (!Files.isDirectory(this.root)) {
+            throw new NotDirectoryException(root.toString());
+        }
+
+        this.delegate = Objects.requireNonNull(delegate);
+        this.maxCachedPaths = maxCachedPaths;
+        this.workDirectory = new JailedLuaPath(String.valueOf(VirtualLuaPath.SEPARATOR));
+    }
+
+    /**
+     * returns the canonical system path of the root.
+     */
+    public Path getRoot() {
+        return root;
+    }
+
+    @Override
+    public LuaPath resolvePath(String path) throws InvalidPathException {
+        return workDirectory.child(path);
+    }
+
+    @Override
+    public LuaPath relativePath(String path) throws InvalidPathException {
+        return new JailedLuaPath(path);
+    }
+
+    /**
+     * returns null for system paths outside of the root.
+     */
+    @Override
+    public LuaPath resolveSysPath(Path path) {
+        Path absolute = path.toAbsolutePath().normalize();
+        if (!absolute.startsWith(root)) {
+            return null;
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (Path element : root.relativize(absolute)) {
+            sb.append(VirtualLuaPath.SEPARATOR).append(element.toString());
+        }
+
+        return new JailedLuaPath(sb.length() == 0 ? String.valueOf(VirtualLuaPath.SEPARATOR) : sb.toString());
+    }
+
+    @Override
+    public LuaPath getWorkDirectory() {
+        return workDirectory;
+    }
+
+    @Override
+    public LuaPath tmpFile(String prefix, String suffix) throws IOException {
+        JailedLuaPath dir = tmpDir();
+        dir.mkdirs();
+        Path file = Files.createTempFile(dir.systemPath(true), prefix == null ? ".luaj" : prefix, suffix == null ? "bin" : suffix);
+        JailedLuaPath result = dir.child(file.getFileName().toString());
+        markSafe(result.path);
+        return result;
+    }
+
+    @Override
+    public JailedLuaPath tmpDir() throws IOException {
+        return new JailedLuaPath(TMP_DIR);
+    }
+
+    @Override
+    public void setWorkDirectory(LuaPath path) throws NotDirectoryException, IOException {
+        JailedLuaPath dir = new JailedLuaPath(Objects.requireNonNull(path).path()).absolutePath();
+        if (!dir.isDir()) {
+            throw new NotDirectoryException(dir.toString());
+        }
+
+        workDirectory = dir;
+    }
+
+    /**
+     * Delegates to the findResource of the delegate with the checked system path.
+     */
+    @Override
+    public InputStream findResource(String filename) {
+        try {
+            return delegate.findResource(((JailedLuaPath) resolvePath(filename)).systemPath(true).toString());
+        } catch (IOException | InvalidPathException e) {
+            return null;
+        }
+    }
+
+    private void markSafe(String path) {
+        if (safePaths.size() >= maxCachedPaths) {
+            safePaths.clear();
+        }
+        safePaths.put(path, Boolean.TRUE);
+    }
+
+    /**
+     * forgets the path and everything below it. Must be called after it was deleted or replaced.
+     */
+    protected void invalidate(String path) {
+        safePaths.remove(path);
+        String prefix = path + VirtualLuaPath.SEPARATOR;
+        Iterator<String> iterator = safePaths.keySet().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().startsWith(prefix)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private static Path prefix(Path root, String[] segments, int count) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                sb.append(VirtualLuaPath.SEPARATOR);
+            }
+            sb.append(segments[i]);
+        }
+        return root.resolve(sb.toString());
+    }
+
+    /**
+     * Checks a path that crosses the symbolic link at segments[link] by resolving the longest existing prefix of the first count segments.
+     * Broken links are denied because creating a file through them could create it anywhere.
+     */
+    private void checkLink(String virtual, String[] segments, int link, int count) throws IOException {
+        for (int j = count; j > link; j--) {
+            Path prefix = prefix(root, segments, j);
+            Path real;
+            try {
+                real = prefix.toRealPath();
+            } catch (NoSuchFileException e) {
+                continue;
+            }
+
+            if (!real.startsWith(root)) {
+                throw new AccessDeniedException(virtual, null, "path leaves the root of the file system");
+            }
+
+            if (j < count && Files.isSymbolicLink(prefix.resolve(segments[j]))) {
+                throw new AccessDeniedException(virtual, null, "broken symbolic link");
+            }
+            return;
+        }
+
+        throw new AccessDeniedException(virtual, null, "broken symbolic link");
+    }
+
+    //----------------------------------------------------------------------------------------------------------------
+
+    protected class JailedLuaPath extends VirtualLuaPath {
+
+        public JailedLuaPath(String path) {
+            super(path);
+            if (File.separatorChar != SEPARATOR && path.indexOf(File.separatorChar) != -1) {
+                throw new InvalidPathException(path, "invalid character " + File.separatorChar);
+            }
+        }
+
+        @Override
+        protected JailedLuaPath newPath(String path) {
+            return new JailedLuaPath(path);
+        }
+
+        @Override
+        protected JailedLuaPath workDirectory() {
+            return workDirectory;
+        }
+
+        @Override
+        protected Object fileSystem() {
+            return JailedLuaFileSystemHandler.this;
+        }
+
+        @Override
+        public JailedLuaPath absolutePath() {
+            return (JailedLuaPath) super.absolutePath();
+        }
+
+        @Override
+        public JailedLuaPath child(String name) throws InvalidPathException {
+            return (JailedLuaPath) super.child(name);
+        }
+
+        @Override
+        public JailedLuaPath parent() {
+            return (JailedLuaPath) super.parent();
+        }
+
+        private boolean isOwnPath(LuaPath other) {
+            return other instanceof JailedLuaPath && ((JailedLuaPath) other).fileSystem() == fileSystem();
+        }
+
+        /**
+         * returns the system path of this path. All parents are checked, this path itself only if followLinks is true.
+         * Operations that do not follow a symbolic link at the end of the path (create, delete, move) pass false.
+         *
+         * @throws AccessDeniedException if the path crosses a symbolic link that leads outside of the root.
+         */
+        protected Path systemPath(boolean followLinks) throws IOException {
+            JailedLuaPath absolute = absolutePath();
+            String[] segments = absolute.segments();
+            Path sys = segments.length == 0 ? root : root.resolve(absolute.path.substring(1));
+            int count = followLinks ? segments.length : segments.length - 1;
+            if (count <= 0 || safePaths.containsKey(followLinks ? absolute.path : absolute.parent().path)) {
+                return sys;
+            }
+
+            Path current = root;
+            StringBuilder virtual = new StringBuilder();
+            for (int i = 0; i < count; i++) {
+                current = current.resolve(segments[i]);
+                virtual.append(SEPARATOR).append(segments[i]);
+                String element = virtual.toString();
+                if (safePaths.containsKey(element)) {
+                    continue;
+                }
+
+                BasicFileAttributes attributes;
+                try {
+                    attributes = Files.readAttributes(current, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                } catch (NoSuchFileException e) {
+                    //Nothing below exists, creating it can not follow a link
+                    return sys;
+                }
+
+                if (attributes.isSymbolicLink()) {
+                    //Paths that cross a link are never remembered, the link is followed on every access.
+                    checkLink(absolute.path, segments, i, count);
+                    return sys;
+                }
+
+                markSafe(element);
+            }
+
+            return sys;
+        }
+
+        /**
+         * returns the path of the delegate after checking it with {@link #systemPath(boolean)}.
+         */
+        protected LuaPath delegatePath(boolean followLinks) throws IOException {
+            return delegate.resolveSysPath(systemPath(followLinks));
+        }
+
+        @Override
+        public BasicFileAttributes attributes() throws IOException {
+            return delegatePath(true).attributes();
+        }
+
+        @Override
+        public BasicFileAttributes linkAttributes() throws IOException {
+            return delegatePath(false).linkAttributes();
+        }
+
+        @Override
+        public boolean isĹink() {
+            try {
+                return delegatePath(false).isĹink();
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        @Override
+        public void setFileTimes(FileTime lastModifiedTime, FileTime lastAccessTime, FileTime createTime) throws IOException {
+            delegatePath(true).setFileTimes(lastModifiedTime, lastAccessTime, createTime);
+        }
+
+        @Override
+        public boolean exists() {
+            try {
+                return delegatePath(true).exists();
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        @Override
+        public boolean isDir() {
+            try {
+                return delegatePath(true).isDir();
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        @Override
+        public boolean isFile() {
+            try {
+                return delegatePath(true).isFile();
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        @Override
+        public DirectoryStream<LuaDirectoryEntry> newDirectoryStream() throws NotDirectoryException, IOException {
+            final DirectoryStream<LuaDirectoryEntry> stream = FileTreeWalker.newDirectoryStream(delegatePath(true));
+            return new DirectoryStream<LuaDirectoryEntry>() {
+                @Override
+                public Iterator<LuaDirectoryEntry> iterator() {
+                    final Iterator<LuaDirectoryEntry> iterator = stream.iterator();
+                    return new Iterator<LuaDirectoryEntry>() {
+                        @Override
+                        public boolean hasNext() {
+                            return iterator.hasNext();
+                        }
+
+                        @Override
+                        public LuaDirectoryEntry next() {
+                            final JailedLuaPath childPath = child(iterator.next().path().name());
+                            return new LuaDirectoryEntry() {
+                                @Override
+                                public LuaPath path() {
+                                    return childPath;
+                                }
+
+                                @Override
+                                public BasicFileAttributes attributes() throws IOException {
+                                    return childPath.attributes();
+                                }
+
+                                @Override
+                                public String toString() {
+                                    return childPath.toString();
+                                }
+                            };
+                        }
+
+                        @Override
+                        public void remove() {
+                            throw new UnsupportedOperationException();
+                        }
+                    };
+                }
+
+                @Override
+                public void close() throws IOException {
+                    stream.close();
+                }
+            };
+        }
+
+        @Override
+        public void createNewFile() throws FileAlreadyExistsException, IOException, NotDirectoryException {
+            delegatePath(false).createNewFile();
+            markSafe(absolutePath().path);
+        }
+
+        @Override
+        public void mkdir() throws FileAlreadyExistsException, IOException, NotDirectoryException {
+            delegatePath(false).mkdir();
+            markSafe(absolutePath().path);
+        }
+
+        @Override
+        public void mkdirs() throws FileAlreadyExistsException, IOException, NotDirectoryException {
+            delegatePath(false).mkdirs();
+        }
+
+        @Override
+        public void link(LuaPath to) throws IOException {
+            if (!isOwnPath(to)) {
+                throw new IOException("cannot link to a file of another file system");
+            }
+
+            delegatePath(false).link(((JailedLuaPath) to).delegatePath(true));
+        }
+
+        @Override
+        public void symlink(LuaPath to) throws IOException {
+            throw new AccessDeniedException(path, null, "symbolic links can not be created");
+        }
+
+        @Override
+        public void delete() throws IOException {
+            delegatePath(false).delete();
+            invalidate(absolutePath().path);
+        }
+
+        @Override
+        public void move(LuaPath tar) throws IOException {
+            if (!isOwnPath(tar)) {
+                if (isDir()) {
+                    throw new IOException("cannot move directory to another file system");
+                }
+                super.moveFile(tar);
+                return;
+            }
+
+            JailedLuaPath target = ((JailedLuaPath) tar).absolutePath();
+            delegatePath(false).move(target.delegatePath(false));
+            invalidate(absolutePath().path);
+            invalidate(target.path);
+        }
+
+        @Override
+        public void moveFile(LuaPath target) throws IOException {
+            if (isDir()) {
+                throw new IOException("cannot move directory");
+            }
+
+            if (isOwnPath(target)) {
+                move(target);
+                return;
+            }
+
+            super.moveFile(target);
+        }
+
+        @Override
+        public void copyFile(LuaPath target) throws IOException {
+            if (!isOwnPath(target)) {
+                super.copyFile(target);
+                return;
+            }
+
+            JailedLuaPath jailedTarget = ((JailedLuaPath) target).absolutePath();
+            delegatePath(true).copyFile(jailedTarget.delegatePath(false));
+            invalidate(jailedTarget.path);
+        }
+
+        @Override
+        public LuaRandomAccessFile open(String mode) throws IOException {
+            try {
+                return delegatePath(true).open(mode);
+            } catch (AccessDeniedException e) {
+                throw new FileNotFoundException(path + " (Permission denied)");
+            }
+        }
+
+        @Override
+        public InputStream openInput() throws FileNotFoundException, IOException {
+            return delegatePath(true).openInput();
+        }
+
+        @Override
+        public OutputStream openOutput(boolean append) throws IOException {
+            return delegatePath(true).openOutput(append);
+        }
+
+        @Override
+        public long size() throws IOException {
+            return delegatePath(true).size();
+        }
+
+        /**
+         * returns null if the path leaves the root.
+         */
+        @Override
+        public Path toSystemPath() {
+            try {
+                return systemPath(true);
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public void deleteOnExit() {
+            try {
+                delegatePath(false).deleteOnExit();
+            } catch (IOException e) {
+                //DC
+            }
+        }
+    }
+}
@@ -0,0 +1,98 @@
+//
+// Copyright Alexander Schütz, 2022
+//
+// This file is part of LuajFSHook.
+//
+// LuajFSHook is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// LuajFSHook is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// A copy of the GNU Lesser General Public License should be provided
+// in the COPYING & COPYING.LESSER files in top level directory of LuajFSHook.
+// If not, see <https://www.gnu.org/licenses/>.
+//
+package io.github.alexanderschuetz97.luajfshook.impl;
+
+import io.github.alexanderschuetz97.luajfshook.api.LuaRandomAccessFile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Objects;
+
+/**
+ * InputStream that reads a LuaRandomAccessFile from its current position.
+ * Closing the stream closes the file.
+ */
+public class LuaRandomAccessFileInputStream extends InputStream {
+
+    protected final LuaRandomAccessFile file;
+
+    private long mark;
+
+    public LuaRandomAccessFileInputStream(LuaRandomAccessFile file) {
+        this.file = Objects.requireNonNull(file);
+    }
+
+    @Override
+    public int read() throws IOException {
+        return file.read();
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        return file.read(b, off, len);
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        if (n <= 0) {
+            return 0;
+        }
+
+        long position = file.getPosition();
+        long skipped = Math.min(n, Math.max(0, file.size() - position));
+        file.setPosition(position + skipped);
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(0, file.size() - file.getPosition()));
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public synchronized void mark(int readlimit) {
+        try {
+            mark = file.getPosition();
+        } catch (IOException e) {
+            mark = -1;
+        }
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        if (mark < 0) {
+            throw new IOException("mark failed");
+        }
+        file.setPosition(mark);
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+}
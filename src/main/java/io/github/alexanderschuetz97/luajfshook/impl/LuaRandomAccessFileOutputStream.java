@@ -0,0 +1,59 @@
+//
+// Copyright Alexander Schütz, 2022
+//
+// This file is part of LuajFSHook.
+//
+// LuajFSHook is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// LuajFSHook is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// A copy of the GNU Lesser General Public License should be provided
+// in the COPYING & COPYING.LESSER files in top level directory of LuajFSHook.
+// If not, see <https://www.gnu.org/licenses/>.
+//
+package io.github.alexanderschuetz97.luajfshook.impl;
+
+import io.github.alexanderschuetz97.luajfshook.api.LuaRandomAccessFile;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Objects;
+
+/**
+ * OutputStream that writes to a LuaRandomAccessFile at its current position.
+ * Closing the stream closes the file.
+ */
+public class LuaRandomAccessFileOutputStream extends OutputStream {
+
+    protected final LuaRandomAccessFile file;
+
+    public LuaRandomAccessFileOutputStream(LuaRandomAccessFile file) {
+        this.file = Objects.requireNonNull(file);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        file.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        file.write(b, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        BufferedLuaRandomAccessFile.flush(file);
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+}
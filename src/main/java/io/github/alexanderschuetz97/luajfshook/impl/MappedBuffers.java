@@ -0,0 +1,120 @@
+//
+// Copyright Alexander Schütz, 2022
+//
+// This file is part of LuajFSHook.
+//
+// LuajFSHook is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// LuajFSHook is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// A copy of the GNU Lesser General Public License should be provided
+// in the COPYING & COPYING.LESSER files in top level directory of LuajFSHook.
+// If not, see <https://www.gnu.org/licenses/>.
+//
+package io.github.alexanderschuetz97.luajfshook.impl;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Utility to release the memory of direct and mapped ByteBuffers without waiting for the garbage collector.
+ * Uses sun.misc.Unsafe.invokeCleaner on java 9+ and the buffers cleaner on java 7 and 8.
+ * If neither is available the buffer is left to the garbage collector, see {@link #isSupported()}.
+ * Failed releases are counted, see {@link #getFailedReleases()}.
+ */
+public final class MappedBuffers {
+
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+
+    private static final boolean SUPPORTED;
+
+    private static final AtomicLong FAILED_RELEASES = new AtomicLong();
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            unsafe = theUnsafe.get(null);
+        } catch (Exception e) {
+            invokeCleaner = null;
+            unsafe = null;
+        }
+
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+        SUPPORTED = clean(ByteBuffer.allocateDirect(1));
+    }
+
+    private MappedBuffers() {
+        //Util
+    }
+
+    /**
+     * returns true if buffers can be released on this jvm.
+     * If this returns false then every buffer is left to the garbage collector, which for mapped buffers
+     * means that the file stays mapped (and on windows locked) until the buffer is collected.
+     */
+    public static boolean isSupported() {
+        return SUPPORTED;
+    }
+
+    /**
+     * returns the amount of direct buffers that could not be released and were left to the garbage collector.
+     */
+    public static long getFailedReleases() {
+        return FAILED_RELEASES.get();
+    }
+
+    /**
+     * Releases the memory of the direct buffer. The buffer must not be accessed after this call.
+     * Heap buffers are ignored.
+     * @return true if the memory was released, false if it is left to the garbage collector.
+     */
+    public static boolean release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect()) {
+            return false;
+        }
+
+        if (clean(buffer)) {
+            return true;
+        }
+
+        FAILED_RELEASES.incrementAndGet();
+        return false;
+    }
+
+    private static boolean clean(ByteBuffer buffer) {
+        try {
+            if (INVOKE_CLEANER != null) {
+                INVOKE_CLEANER.invoke(UNSAFE, buffer);
+                return true;
+            }
+
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner == null) {
+                return false;
+            }
+            Method clean = cleaner.getClass().getMethod("clean");
+            clean.setAccessible(true);
+            clean.invoke(cleaner);
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,199 @@
+//
+// Copyright Alexander Schütz, 2022
+//
+// This file is part of LuajFSHook.
+//
+// LuajFSHook is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// LuajFSHook is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// A copy of the GNU Lesser General Public License should be provided
+// in the COPYING & COPYING.LESSER files in top level directory of LuajFSHook.
+// If not, see <https://www.gnu.org/licenses/>.
+//
+package io.github.alexanderschuetz97.luajfshook.impl;
+
+import io.github.alexanderschuetz97.luajfshook.api.LuaPath;
+import io.github.alexanderschuetz97.luajfshook.api.LuaRandomAccessFile;
+
+import java.io.FileDescriptor;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Objects;
+
+/**
+ * Read only LuaRandomAccessFile that maps the file into memory in windows of a fixed size.
+ * Reads and seeks inside a window do not cause any syscalls.
+ * The size of the file is determined when it is opened and only refreshed when a read reaches the end of the file.
+ * The current window is unmapped when the window is moved or the file is closed.
+ *
+ * This class is not thread safe.
+ */
+public class MappedLuaRandomAccessFile implements LuaRandomAccessFile, Flushable {
+
+    public static final int DEFAULT_WINDOW_SIZE = 64 * 1024 * 1024;
+
+    protected final RandomAccessFile file;
+    protected final FileChannel channel;
+    protected final LuaPath creator;
+    protected final int windowSize;
+
+    protected MappedByteBuffer window;
+    protected long windowStart;
+    protected long size;
+    protected long position;
+
+    public MappedLuaRandomAccessFile(RandomAccessFile file, LuaPath creator) throws IOException {
+        this(file, creator, DEFAULT_WINDOW_SIZE);
+    }
+
+    public MappedLuaRandomAccessFile(RandomAccessFile file, LuaPath creator, int windowSize) throws IOException {
+        if (windowSize <= 0) {
+            throw new IllegalArgumentException("windowSize must be positive");
+        }
+
+        this.file = Objects.requireNonNull(file);
+        this.channel = file.getChannel();
+        this.creator = creator;
+        this.windowSize = windowSize;
+        this.position = channel.position();
+        this.size = channel.size();
+    }
+
+    @Override
+    public FileDescriptor getFileDescriptor() throws IOException {
+        return file.getFD();
+    }
+
+    @Override
+    public FileChannel getFileChannel() {
+        try {
+            channel.position(position);
+        } catch (IOException e) {
+            throw new IllegalStateException("failed to set channel position", e);
+        }
+        return channel;
+    }
+
+    @Override
+    public LuaPath getPath() {
+        return creator;
+    }
+
+    @Override
+    public void setPosition(long position) throws IOException {
+        if (position < 0) {
+            throw new IOException("Negative seek offset");
+        }
+        this.position = position;
+    }
+
+    @Override
+    public long getPosition() throws IOException {
+        return position;
+    }
+
+    @Override
+    public long size() throws IOException {
+        return size;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!mapWindow()) {
+            return -1;
+        }
+
+        return window.get((int) (position++ - windowStart)) & 0xff;
+    }
+
+    @Override
+    public int read(byte[] buf, int off, int len) throws IOException {
+        int total = 0;
+        while (len > 0 && mapWindow()) {
+            int index = (int) (position - windowStart);
+            int count = Math.min(len, window.limit() - index);
+            ((Buffer) window).position(index);
+            window.get(buf, off, count);
+            position += count;
+            off += count;
+            len -= count;
+            total += count;
+        }
+
+        if (total == 0 && len > 0) {
+            return -1;
+        }
+
+        return total;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        throw new IOException("file is opened read only");
+    }
+
+    @Override
+    public void write(byte[] buf, int off, int len) throws IOException {
+        throw new IOException("file is opened read only");
+    }
+
+    @Override
+    public void setSize(long i) throws IOException {
+        throw new IOException("file is opened read only");
+    }
+
+    @Override
+    public void flush() throws IOException {
+        //Read only
+    }
+
+    @Override
+    public void close() throws IOException {
+        unmapWindow();
+        file.close();
+    }
+
+    /**
+     * Ensures that the byte at the current position is mapped. returns false on EOF.
+     */
+    protected boolean mapWindow() throws IOException {
+        if (window != null && position >= windowStart && position < windowStart + window.limit()) {
+            return true;
+        }
+
+        if (position >= size) {
+            size = channel.size();
+            if (position >= size) {
+                return false;
+            }
+        }
+
+        unmapWindow();
+        long start = position - (position % windowSize);
+        long length = Math.min(windowSize, size - start);
+        window = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+        windowStart = start;
+        return true;
+    }
+
+    protected void unmapWindow() {
+        if (window == null) {
+            return;
+        }
+
+        MappedByteBuffer old = window;
+        window = null;
+        MappedBuffers.release(old);
+    }
+}
@@ -0,0 +1,1273 @@
+//
+// Copyright Alexander Schütz, 2022
+//
+// This file is part of LuajFSHook.
+//
+// LuajFSHook is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// LuajFSHook is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// A copy of the GNU Lesser General Public License should be provided
+// in the COPYING & COPYING.LESSER files in top level directory of LuajFSHook.
+// If not, see <https://www.gnu.org/licenses/>.
+//
+package io.github.alexanderschuetz97.luajfshook.impl;
+
+import io.github.alexanderschuetz97.luajfshook.api.LuaDirectoryEntry;
+import io.github.alexanderschuetz97.luajfshook.api.LuaFileSystemHandler;
+import io.github.alexanderschuetz97.luajfshook.api.LuaPath;
+import io.github.alexanderschuetz97.luajfshook.api.LuaRandomAccessFile;
+
+import java.io.FileDescriptor;
+import java.io.FileNotFoundException;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.InvalidPathException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * LuaFileSystemHandler that keeps the entire file system in memory. Nothing is ever written to disk.
+ *
+ * The file system is a tree of nodes. Directories store their children in a ConcurrentHashMap so lookups never block.
+ * Changes to the structure of the tree (create, delete, move, link) are serialized by a single lock.
+ * The content of a file is stored in fixed size chunks so a file can grow without copying its data and is guarded by
+ * a read write lock of the file. Handles of the same file may be used by different threads (and different Globals) at the same time.
+ *
+ * Subclasses may change how the content of files is stored by overriding {@link #newFileContent()}.
+ * Every change obtains the nodes it modifies through {@link #writableRoot()}, {@link #writableChild(DirectoryNode, String, DirectoryNode)}
+ * and {@link #writableFile(DirectoryNode, String, FileNode)} so subclasses can copy nodes that are shared before they are changed.
+ *
+ * The root of the file system is "/", the initial work directory is "/" and temporary files are created in "/tmp".
+ * Symbolic links are not supported, hard links are.
+ */
+public class MemoryLuaFileSystemHandler implements LuaFileSystemHandler {
+
+    public static final int DEFAULT_CHUNK_SIZE = 8192;
+
+    public static final String TMP_DIR = "/tmp";
+
+    /**
+     * guards all changes to the structure of the tree.
+     */
+    protected final Object structureLock = new Object();
+
+    protected volatile DirectoryNode root = newDirectoryNode();
+
+    protected final int chunkSize;
+
+    private final AtomicLong tmpCounter = new AtomicLong();
+
+    private volatile MemoryLuaPath workDirectory;
+
+    public MemoryLuaFileSystemHandler() {
+        this(DEFAULT_CHUNK_SIZE);
+    }
+
+    public MemoryLuaFileSystemHandler(int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize must be positive");
+        }
+
+        this.chunkSize = chunkSize;
+        this.workDirectory = new MemoryLuaPath(String.valueOf(VirtualLuaPath.SEPARATOR));
+        try {
+            new MemoryLuaPath(TMP_DIR).mkdir();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Creates the storage for the content of a new file.
+     */
+    protected FileContent newFileContent() {
+        return new HeapFileContent(chunkSize);
+    }
+
+    protected DirectoryNode newDirectoryNode() {
+        return new DirectoryNode();
+    }
+
+    protected FileNode newFileNode() {
+        return new FileNode(newFileContent());
+    }
+
+    protected MemoryLuaRandomAccessFile newRandomAccessFile(MemoryLuaPath path, FileNode node, boolean writable) {
+        return new MemoryLuaRandomAccessFile(path, node, writable);
+    }
+
+    /**
+     * returns the root directory before it is changed. Called with the structure lock held.
+     */
+    protected DirectoryNode writableRoot() {
+        return root;
+    }
+
+    /**
+     * returns the child directory of the writable parent before it is changed. Called with the structure lock held.
+     */
+    protected DirectoryNode writableChild(DirectoryNode parent, String name, DirectoryNode child) {
+        return child;
+    }
+
+    /**
+     * returns the file of the writable parent before it or its content is changed. Called with the structure lock held.
+     */
+    protected FileNode writableFile(DirectoryNode parent, String name, FileNode file) {
+        return file;
+    }
+
+    protected boolean supportsHardLinks() {
+        return true;
+    }
+
+    /**
+     * called after a file or directory was moved. Called with the structure lock held.
+     */
+    protected void moved(MemoryLuaPath source, MemoryLuaPath target) {
+        //NOOP
+    }
+
+    @Override
+    public LuaPath resolvePath(String path) throws InvalidPathException {
+        return workDirectory.child(path);
+    }
+
+    @Override
+    public LuaPath relativePath(String path) throws InvalidPathException {
+        return new MemoryLuaPath(path);
+    }
+
+    /**
+     * System paths are always outside of this fs. Returns null.
+     */
+    @Override
+    public LuaPath resolveSysPath(Path path) {
+        Objects.requireNonNull(path);
+        return null;
+    }
+
+    @Override
+    public LuaPath getWorkDirectory() {
+        return workDirectory;
+    }
+
+    @Override
+    public LuaPath tmpFile(String prefix, String suffix) throws IOException {
+        MemoryLuaPath dir = tmpDir();
+        dir.mkdirs();
+
+        while (true) {
+            MemoryLuaPath file = dir.child((prefix == null ? ".luaj" : prefix) + tmpCounter.incrementAndGet() + (suffix == null ? "bin" : suffix));
+            try {
+                file.createNewFile();
+                return file;
+            } catch (FileAlreadyExistsException e) {
+                //Try next name
+            }
+        }
+    }
+
+    @Override
+    public MemoryLuaPath tmpDir() throws IOException {
+        return new MemoryLuaPath(TMP_DIR);
+    }
+
+    @Override
+    public void setWorkDirectory(LuaPath path) throws NotDirectoryException, IOException {
+        MemoryLuaPath file = toMemoryPath(Objects.requireNonNull(path)).absolutePath();
+        if (!file.isDir()) {
+            throw new NotDirectoryException(file.toString());
+        }
+
+        workDirectory = file;
+    }
+
+    @Override
+    public InputStream findResource(String filename) {
+        try {
+            return resolvePath(filename).openInput();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * returns the total amount of bytes stored in the files of this fs.
+     */
+    public long getUsedBytes() {
+        long total = 0;
+        for (FileNode node : collectFiles(root, new IdentityHashMap<FileNode, Boolean>()).keySet()) {
+            total += node.size();
+        }
+        return total;
+    }
+
+    /**
+     * collects all distinct files below the directory.
+     */
+    protected Map<FileNode, Boolean> collectFiles(DirectoryNode dir, Map<FileNode, Boolean> files) {
+        for (Node node : dir.children.values()) {
+            if (node instanceof DirectoryNode) {
+                collectFiles((DirectoryNode) node, files);
+            } else {
+                files.put((FileNode) node, Boolean.TRUE);
+            }
+        }
+        return files;
+    }
+
+    /**
+     * converts a path of another handler to a path of this handler by its path string.
+     */
+    protected MemoryLuaPath toMemoryPath(LuaPath path) {
+        if (path instanceof MemoryLuaPath && ((MemoryLuaPath) path).fileSystem() == this) {
+            return (MemoryLuaPath) path;
+        }
+
+        return new MemoryLuaPath(path.path());
+    }
+
+    /**
+     * returns true if the path is a path of this handler.
+     */
+    protected boolean isOwnPath(LuaPath path) {
+        return path instanceof MemoryLuaPath && ((MemoryLuaPath) path).fileSystem() == this;
+    }
+
+    /**
+     * returns the node of the absolute path or null if there is none.
+     */
+    protected Node lookup(MemoryLuaPath path) {
+        Node node = root;
+        for (String segment : path.absolutePath().segments()) {
+            if (!(node instanceof DirectoryNode)) {
+                return null;
+            }
+
+            node = ((DirectoryNode) node).children.get(segment);
+            if (node == null) {
+                return null;
+            }
+        }
+
+        return node;
+    }
+
+    /**
+     * returns the directory node that contains the path or null if there is none. Returns null for the root.
+     */
+    protected DirectoryNode lookupParent(MemoryLuaPath path) {
+        MemoryLuaPath parent = path.absolutePath().parent();
+        if (parent == null) {
+            return null;
+        }
+
+        Node node = lookup(parent);
+        return node instanceof DirectoryNode ? (DirectoryNode) node : null;
+    }
+
+    /**
+     * returns the directory of the absolute path so that it can be changed. Called with the structure lock held.
+     */
+    protected DirectoryNode writableDirectory(MemoryLuaPath dir) throws NotDirectoryException {
+        DirectoryNode current = writableRoot();
+        for (String segment : dir.absolutePath().segments()) {
+            Node child = current.children.get(segment);
+            if (!(child instanceof DirectoryNode)) {
+                throw new NotDirectoryException(dir.path);
+            }
+
+            current = writableChild(current, segment, (DirectoryNode) child);
+        }
+
+        return current;
+    }
+
+    /**
+     * returns the node of the absolute path so that it can be changed. Called with the structure lock held.
+     */
+    protected Node writableNode(MemoryLuaPath path) throws IOException {
+        MemoryLuaPath parentPath = path.absolutePath().parent();
+        if (parentPath == null) {
+            return writableRoot();
+        }
+
+        DirectoryNode parent;
+        try {
+            parent = writableDirectory(parentPath);
+        } catch (NotDirectoryException e) {
+            throw new NoSuchFileException(path.path);
+        }
+
+        String name = path.name();
+        Node node = parent.children.get(name);
+        if (node instanceof DirectoryNode) {
+            return writableChild(parent, name, (DirectoryNode) node);
+        }
+
+        if (node instanceof FileNode) {
+            return writableFile(parent, name, (FileNode) node);
+        }
+
+        throw new NoSuchFileException(path.path);
+    }
+
+    /**
+     * Storage of the content of a file. All calls are guarded by the lock of the file,
+     * implementations do not need to be thread safe.
+     */
+    protected interface FileContent {
+
+        long size();
+
+        /**
+         * reads up to len bytes at the position. Returns -1 if the position is at or beyond the end of the content.
+         */
+        int read(long position, byte[] buf, int off, int len) throws IOException;
+
+        /**
+         * reads the byte at the position. Returns -1 if the position is at or beyond the end of the content.
+         */
+        int read(long position) throws IOException;
+
+        /**
+         * writes len bytes at the position. The content grows if needed, gaps read as 0.
+         */
+        void write(long position, byte[] buf, int off, int len) throws IOException;
+
+        /**
+         * writes the byte at the position. The content grows if needed, gaps read as 0.
+         */
+        void write(long position, int b) throws IOException;
+
+        /**
+         * sets the size of the content. Growing fills with 0.
+         */
+        void setSize(long size) throws IOException;
+
+        /**
+         * called when the file was deleted and is no longer opened. The content is not used afterwards.
+         */
+        void release();
+    }
+
+    /**
+     * FileContent that stores the data in byte arrays of a fixed size. Growing only copies the references to the chunks.
+     * Chunks are only allocated when written, holes of sparse files do not use memory.
+     */
+    protected static class HeapFileContent implements FileContent {
+
+        private static final byte[][] NO_CHUNKS = new byte[0][];
+
+        protected final int chunkSize;
+
+        protected byte[][] chunks = NO_CHUNKS;
+
+        protected long size;
+
+        public HeapFileContent(int chunkSize) {
+            this.chunkSize = chunkSize;
+        }
+
+        @Override
+        public long size() {
+            return size;
+        }
+
+        @Override
+        public int read(long position, byte[] buf, int off, int len) {
+            if (position >= size) {
+                return -1;
+            }
+
+            int total = (int) Math.min(len, size - position);
+            int done = 0;
+            while (done < total) {
+                int index = (int) (position / chunkSize);
+                int chunkOffset = (int) (position % chunkSize);
+                int count = Math.min(total - done, chunkSize - chunkOffset);
+                byte[] chunk = index < chunks.length ? chunks[index] : null;
+                if (chunk == null) {
+                    Arrays.fill(buf, off + done, off + done + count, (byte) 0);
+                } else {
+                    System.arraycopy(chunk, chunkOffset, buf, off + done, count);
+                }
+                done += count;
+                position += count;
+            }
+
+            return total;
+        }
+
+        @Override
+        public int read(long position) {
+            if (position >= size) {
+                return -1;
+            }
+
+            int index = (int) (position / chunkSize);
+            byte[] chunk = index < chunks.length ? chunks[index] : null;
+            return chunk == null ? 0 : chunk[(int) (position % chunkSize)] & 0xff;
+        }
+
+        @Override
+        public void write(long position, byte[] buf, int off, int len) throws IOException {
+            long end = position + len;
+            ensureChunks(end);
+            int done = 0;
+            while (done < len) {
+                int index = (int) (position / chunkSize);
+                int chunkOffset = (int) (position % chunkSize);
+                int count = Math.min(len - done, chunkSize - chunkOffset);
+                System.arraycopy(buf, off + done, writableChunk(index), chunkOffset, count);
+                done += count;
+                position += count;
+            }
+
+            if (end > size) {
+                size = end;
+            }
+        }
+
+        @Override
+        public void write(long position, int b) throws IOException {
+            ensureChunks(position + 1);
+            writableChunk((int) (position / chunkSize))[(int) (position % chunkSize)] = (byte) b;
+            if (position + 1 > size) {
+                size = position + 1;
+            }
+        }
+
+        @Override
+        public void setSize(long newSize) throws IOException {
+            if (newSize < size) {
+                int keep = chunkCount(newSize);
+                for (int i = keep; i < chunks.length; i++) {
+                    chunks[i] = null;
+                }
+
+                int tail = (int) (newSize % chunkSize);
+                if (tail != 0 && chunks[keep-1] != null) {
+                    //Growing again must read 0 and not the old data
+                    Arrays.fill(writableChunk(keep-1), tail, chunkSize, (byte) 0);
+                }
+            } else {
+                ensureChunks(newSize);
+            }
+
+            size = newSize;
+        }
+
+        /**
+         * returns the chunk at the index so that it can be written. Allocates it if it does not exist yet.
+         */
+        protected byte[] writableChunk(int index) {
+            byte[] chunk = chunks[index];
+            if (chunk == null) {
+                chunk = new byte[chunkSize];
+                chunks[index] = chunk;
+            }
+            return chunk;
+        }
+
+        private int chunkCount(long bytes) {
+            long count = (bytes + chunkSize - 1) / chunkSize;
+            if (count > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("file too large");
+            }
+            return (int) count;
+        }
+
+        private void ensureChunks(long bytes) throws IOException {
+            int required;
+            try {
+                required = chunkCount(bytes);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("file too large");
+            }
+
+            if (required > chunks.length) {
+                chunks = Arrays.copyOf(chunks, Math.max(required, (int) Math.min(Integer.MAX_VALUE, chunks.length * 2L)));
+            }
+        }
+
+        @Override
+        public void release() {
+            chunks = NO_CHUNKS;
+            size = 0;
+        }
+    }
+
+    protected abstract static class Node {
+        protected volatile long creationTime;
+        protected volatile long lastModifiedTime;
+        protected volatile long lastAccessTime;
+
+        protected Node() {
+            long now = System.currentTimeMillis();
+            creationTime = now;
+            lastModifiedTime = now;
+            lastAccessTime = now;
+        }
+
+        protected void touch() {
+            long now = System.currentTimeMillis();
+            lastModifiedTime = now;
+            lastAccessTime = now;
+        }
+
+        protected abstract boolean isDirectory();
+
+        protected abstract long size();
+
+        protected BasicFileAttributes attributes() {
+            return new MemoryFileAttributes(this, isDirectory(), size(), creationTime, lastModifiedTime, lastAccessTime);
+        }
+    }
+
+    protected static class DirectoryNode extends Node {
+        protected final ConcurrentHashMap<String, Node> children = new ConcurrentHashMap<>();
+
+        @Override
+        protected boolean isDirectory() {
+            return true;
+        }
+
+        @Override
+        protected long size() {
+            return 0;
+        }
+    }
+
+    protected static class FileNode extends Node {
+        protected final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+        protected final FileContent content;
+
+        /**
+         * number of directory entries of this file, guarded by this.
+         */
+        protected int links;
+
+        /**
+         * number of open handles of this file, guarded by this.
+         */
+        protected int handles;
+
+        protected FileNode(FileContent content) {
+            this.content = content;
+        }
+
+        @Override
+        protected boolean isDirectory() {
+            return false;
+        }
+
+        @Override
+        protected long size() {
+            lock.readLock().lock();
+            try {
+                return content.size();
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        protected synchronized void link() {
+            links++;
+        }
+
+        protected void unlink() {
+            boolean release;
+            synchronized (this) {
+                links--;
+                release = links <= 0 && handles <= 0;
+            }
+
+            if (release) {
+                release();
+            }
+        }
+
+        protected synchronized void openHandle() {
+            handles++;
+        }
+
+        protected void closeHandle() {
+            boolean release;
+            synchronized (this) {
+                handles--;
+                release = links <= 0 && handles <= 0;
+            }
+
+            if (release) {
+                release();
+            }
+        }
+
+        /**
+         * releases the content regardless of links and handles.
+         */
+        protected void release() {
+            lock.writeLock().lock();
+            try {
+                content.release();
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    protected static class MemoryFileAttributes implements BasicFileAttributes {
+        private final Object fileKey;
+        private final boolean directory;
+        private final long size;
+        private final long creationTime;
+        private final long lastModifiedTime;
+        private final long lastAccessTime;
+
+        protected MemoryFileAttributes(Object fileKey, boolean directory, long size, long creationTime, long lastModifiedTime, long lastAccessTime) {
+            this.fileKey = fileKey;
+            this.directory = directory;
+            this.size = size;
+            this.creationTime = creationTime;
+            this.lastModifiedTime = lastModifiedTime;
+            this.lastAccessTime = lastAccessTime;
+        }
+
+        @Override
+        public FileTime lastModifiedTime() {
+            return FileTime.fromMillis(lastModifiedTime);
+        }
+
+        @Override
+        public FileTime lastAccessTime() {
+            return FileTime.fromMillis(lastAccessTime);
+        }
+
+        @Override
+        public FileTime creationTime() {
+            return FileTime.fromMillis(creationTime);
+        }
+
+        @Override
+        public boolean isRegularFile() {
+            return !directory;
+        }
+
+        @Override
+        public boolean isDirectory() {
+            return directory;
+        }
+
+        @Override
+        public boolean isSymbolicLink() {
+            return false;
+        }
+
+        @Override
+        public boolean isOther() {
+            return false;
+        }
+
+        @Override
+        public long size() {
+            return size;
+        }
+
+        @Override
+        public Object fileKey() {
+            return fileKey;
+        }
+    }
+
+    protected static class MemoryDirectoryEntry implements LuaDirectoryEntry {
+        protected final LuaPath path;
+        protected final BasicFileAttributes attributes;
+
+        protected MemoryDirectoryEntry(LuaPath path, BasicFileAttributes attributes) {
+            this.path = path;
+            this.attributes = attributes;
+        }
+
+        @Override
+        public LuaPath path() {
+            return path;
+        }
+
+        @Override
+        public BasicFileAttributes attributes() {
+            return attributes;
+        }
+
+        @Override
+        public String toString() {
+            return path.toString();
+        }
+    }
+
+    protected class MemoryLuaPath extends VirtualLuaPath {
+
+        public MemoryLuaPath(String path) {
+            super(path);
+        }
+
+        @Override
+        protected MemoryLuaPath newPath(String path) {
+            return new MemoryLuaPath(path);
+        }
+
+        @Override
+        protected MemoryLuaPath workDirectory() {
+            return workDirectory;
+        }
+
+        @Override
+        protected Object fileSystem() {
+            return MemoryLuaFileSystemHandler.this;
+        }
+
+        @Override
+        public MemoryLuaPath absolutePath() {
+            return (MemoryLuaPath) super.absolutePath();
+        }
+
+        @Override
+        public MemoryLuaPath child(String name) throws InvalidPathException {
+            return (MemoryLuaPath) super.child(name);
+        }
+
+        @Override
+        public MemoryLuaPath parent() {
+            return (MemoryLuaPath) super.parent();
+        }
+
+        protected Node node() {
+            return lookup(this);
+        }
+
+        protected Node existingNode() throws NoSuchFileException {
+            Node node = node();
+            if (node == null) {
+                throw new NoSuchFileException(path);
+            }
+            return node;
+        }
+
+        /**
+         * returns the directory that should contain this path so that it can be changed. Called with the structure lock held.
+         */
+        protected DirectoryNode parentNode() throws NotDirectoryException {
+            MemoryLuaPath parentPath = absolutePath().parent();
+            if (parentPath == null) {
+                throw new NotDirectoryException(path);
+            }
+            return writableDirectory(parentPath);
+        }
+
+        @Override
+        public BasicFileAttributes attributes() throws IOException {
+            return existingNode().attributes();
+        }
+
+        @Override
+        public void setFileTimes(FileTime lastModifiedTime, FileTime lastAccessTime, FileTime createTime) throws IOException {
+            synchronized (structureLock) {
+                Node node = writableNode(this);
+                if (lastModifiedTime != null) {
+                    node.lastModifiedTime = lastModifiedTime.toMillis();
+                }
+                if (lastAccessTime != null) {
+                    node.lastAccessTime = lastAccessTime.toMillis();
+                }
+                if (createTime != null) {
+                    node.creationTime = createTime.toMillis();
+                }
+            }
+        }
+
+        @Override
+        public boolean exists() {
+            return node() != null;
+        }
+
+        @Override
+        public boolean isDir() {
+            return node() instanceof DirectoryNode;
+        }
+
+        @Override
+        public boolean isFile() {
+            return node() instanceof FileNode;
+        }
+
+        @Override
+        public DirectoryStream<LuaDirectoryEntry> newDirectoryStream() throws NotDirectoryException, IOException {
+            Node node = node();
+            if (!(node instanceof DirectoryNode)) {
+                throw new NotDirectoryException(path);
+            }
+
+            final Iterator<Map.Entry<String, Node>> children = ((DirectoryNode) node).children.entrySet().iterator();
+            return new DirectoryStream<LuaDirectoryEntry>() {
+
+                private boolean iterated;
+
+                @Override
+                public Iterator<LuaDirectoryEntry> iterator() {
+                    if (iterated) {
+                        throw new IllegalStateException("iterator already obtained");
+                    }
+                    iterated = true;
+
+                    return new Iterator<LuaDirectoryEntry>() {
+                        @Override
+                        public boolean hasNext() {
+                            return children.hasNext();
+                        }
+
+                        @Override
+                        public LuaDirectoryEntry next() {
+                            if (!children.hasNext()) {
+                                throw new NoSuchElementException();
+                            }
+                            Map.Entry<String, Node> entry = children.next();
+                            return new MemoryDirectoryEntry(child(entry.getKey()), entry.getValue().attributes());
+                        }
+
+                        @Override
+                        public void remove() {
+                            throw new UnsupportedOperationException();
+                        }
+                    };
+                }
+
+                @Override
+                public void close() {
+                    //NOOP
+                }
+            };
+        }
+
+        @Override
+        public void createNewFile() throws FileAlreadyExistsException, IOException, NotDirectoryException {
+            create(newFileNode());
+        }
+
+        @Override
+        public void mkdir() throws FileAlreadyExistsException, IOException, NotDirectoryException {
+            create(newDirectoryNode());
+        }
+
+        private void create(Node node) throws IOException {
+            synchronized (structureLock) {
+                DirectoryNode parent = parentNode();
+                if (parent.children.containsKey(name())) {
+                    throw new FileAlreadyExistsException(path);
+                }
+
+                if (node instanceof FileNode) {
+                    ((FileNode) node).link();
+                }
+                parent.children.put(name(), node);
+                parent.touch();
+            }
+        }
+
+        @Override
+        public void mkdirs() throws FileAlreadyExistsException, IOException, NotDirectoryException {
+            synchronized (structureLock) {
+                DirectoryNode current = writableRoot();
+                String[] segments = absolutePath().segments();
+                for (int i = 0; i < segments.length; i++) {
+                    Node child = current.children.get(segments[i]);
+                    if (child == null) {
+                        child = newDirectoryNode();
+                        current.children.put(segments[i], child);
+                        current.touch();
+                    } else if (!(child instanceof DirectoryNode)) {
+                        if (i == segments.length-1) {
+                            throw new FileAlreadyExistsException(path);
+                        }
+                        throw new NotDirectoryException(path);
+                    }
+
+                    current = writableChild(current, segments[i], (DirectoryNode) child);
+                }
+            }
+        }
+
+        @Override
+        public void link(LuaPath to) throws IOException {
+            if (!isOwnPath(to)) {
+                throw new IOException("cannot link to a file of another file system");
+            }
+
+            if (!supportsHardLinks()) {
+                throw new IOException("hard links are not supported");
+            }
+
+            synchronized (structureLock) {
+                Node target = ((MemoryLuaPath) to).existingNode();
+                if (!(target instanceof FileNode)) {
+                    throw new IOException("cannot link to a directory");
+                }
+
+                DirectoryNode parent = parentNode();
+                if (parent.children.containsKey(name())) {
+                    throw new FileAlreadyExistsException(path);
+                }
+
+                ((FileNode) target).link();
+                parent.children.put(name(), target);
+                parent.touch();
+            }
+        }
+
+        @Override
+        public void delete() throws IOException {
+            Node node;
+            synchronized (structureLock) {
+                node = existingNode();
+                if (absolutePath().isRoot()) {
+                    throw new IOException("cannot delete the root directory");
+                }
+                DirectoryNode parent = parentNode();
+
+                if (node instanceof DirectoryNode && !((DirectoryNode) node).children.isEmpty()) {
+                    throw new DirectoryNotEmptyException(path);
+                }
+
+                parent.children.remove(name());
+                parent.touch();
+            }
+
+            if (node instanceof FileNode) {
+                ((FileNode) node).unlink();
+            }
+        }
+
+        @Override
+        public void move(LuaPath tar) throws IOException {
+            if (!isOwnPath(tar)) {
+                if (isDir()) {
+                    throw new IOException("cannot move directory to another file system");
+                }
+                super.moveFile(tar);
+                return;
+            }
+
+            MemoryLuaPath target = ((MemoryLuaPath) tar).absolutePath();
+            MemoryLuaPath source = absolutePath();
+            if (source.equals(target)) {
+                existingNode();
+                return;
+            }
+
+            Node replaced;
+            synchronized (structureLock) {
+                Node node = existingNode();
+                if (source.isRoot()) {
+                    throw new IOException("cannot move the root directory");
+                }
+
+                if (node instanceof DirectoryNode && target.path.startsWith(source.path + SEPARATOR)) {
+                    throw new IOException("cannot move a directory into itself");
+                }
+
+                DirectoryNode targetParent = target.parentNode();
+                replaced = targetParent.children.get(target.name());
+                if (replaced instanceof DirectoryNode && !((DirectoryNode) replaced).children.isEmpty()) {
+                    throw new DirectoryNotEmptyException(target.path);
+                }
+
+                DirectoryNode sourceParent = source.parentNode();
+                targetParent.children.put(target.name(), node);
+                sourceParent.children.remove(source.name());
+                targetParent.touch();
+                sourceParent.touch();
+                moved(source, target);
+            }
+
+            if (replaced instanceof FileNode) {
+                ((FileNode) replaced).unlink();
+            }
+        }
+
+        @Override
+        public void moveFile(LuaPath target) throws IOException {
+            if (isDir()) {
+                throw new IOException("cannot move directory");
+            }
+
+            if (isOwnPath(target)) {
+                move(target);
+                return;
+            }
+
+            super.moveFile(target);
+        }
+
+        @Override
+        public LuaRandomAccessFile open(String mode) throws IOException {
+            boolean writable = !"r".equals(mode);
+            Node node = node();
+            if (node == null && writable) {
+                try {
+                    createNewFile();
+                } catch (FileAlreadyExistsException e) {
+                    //Created concurrently
+                } catch (NotDirectoryException e) {
+                    throw new FileNotFoundException(path + " (No such file or directory)");
+                }
+                node = node();
+            }
+
+            if (node == null) {
+                throw new FileNotFoundException(path + " (No such file or directory)");
+            }
+
+            if (!(node instanceof FileNode)) {
+                throw new FileNotFoundException(path + " (Is a directory)");
+            }
+
+            return newRandomAccessFile(absolutePath(), (FileNode) node, writable);
+        }
+
+        @Override
+        public InputStream openInput() throws FileNotFoundException, IOException {
+            return new LuaRandomAccessFileInputStream(open("r"));
+        }
+
+        @Override
+        public OutputStream openOutput(boolean append) throws IOException {
+            if (!exists()) {
+                MemoryLuaPath parent = absolutePath().parent();
+                if (parent != null) {
+                    parent.mkdirs();
+                }
+            }
+
+            if (isDir()) {
+                throw new IOException("cannot open directory for writing");
+            }
+
+            LuaRandomAccessFile file = open("rw");
+            if (append) {
+                file.setPosition(file.size());
+            } else {
+                file.setSize(0);
+            }
+
+            return new LuaRandomAccessFileOutputStream(file);
+        }
+
+        @Override
+        public long size() throws IOException {
+            return existingNode().size();
+        }
+    }
+
+    protected class MemoryLuaRandomAccessFile implements LuaRandomAccessFile, Flushable {
+
+        /**
+         * updated if the file is moved or its node is copied by a subclass.
+         */
+        protected volatile MemoryLuaPath path;
+        protected volatile FileNode node;
+        protected final boolean writable;
+
+        private long position;
+        private volatile boolean closed;
+
+        protected MemoryLuaRandomAccessFile(MemoryLuaPath path, FileNode node, boolean writable) {
+            this.path = path;
+            this.node = node;
+            this.writable = writable;
+            node.openHandle();
+        }
+
+        private void ensureOpen() throws IOException {
+            if (closed) {
+                throw new IOException("Stream Closed");
+            }
+        }
+
+        private void ensureWritable() throws IOException {
+            ensureOpen();
+            if (!writable) {
+                throw new IOException("file is opened read only");
+            }
+        }
+
+        @Override
+        public FileDescriptor getFileDescriptor() {
+            return null;
+        }
+
+        @Override
+        public FileChannel getFileChannel() {
+            return null;
+        }
+
+        @Override
+        public LuaPath getPath() {
+            return path;
+        }
+
+        @Override
+        public synchronized void setPosition(long position) throws IOException {
+            ensureOpen();
+            if (position < 0) {
+                throw new IOException("Negative seek offset");
+            }
+            this.position = position;
+        }
+
+        @Override
+        public synchronized long getPosition() throws IOException {
+            ensureOpen();
+            return position;
+        }
+
+        @Override
+        public long size() throws IOException {
+            ensureOpen();
+            return node.size();
+        }
+
+        @Override
+        public synchronized int read() throws IOException {
+            ensureOpen();
+            int b;
+            node.lock.readLock().lock();
+            try {
+                b = node.content.read(position);
+            } finally {
+                node.lock.readLock().unlock();
+            }
+
+            if (b >= 0) {
+                position++;
+                node.lastAccessTime = System.currentTimeMillis();
+            }
+            return b;
+        }
+
+        @Override
+        public synchronized int read(byte[] buf, int off, int len) throws IOException {
+            ensureOpen();
+            if (len == 0) {
+                return 0;
+            }
+
+            int read;
+            node.lock.readLock().lock();
+            try {
+                read = node.content.read(position, buf, off, len);
+            } finally {
+                node.lock.readLock().unlock();
+            }
+
+            if (read > 0) {
+                position += read;
+                node.lastAccessTime = System.currentTimeMillis();
+            }
+            return read;
+        }
+
+        @Override
+        public synchronized void write(int b) throws IOException {
+            ensureWritable();
+            node.lock.writeLock().lock();
+            try {
+                node.content.write(position, b);
+            } finally {
+                node.lock.writeLock().unlock();
+            }
+
+            position++;
+            node.touch();
+        }
+
+        @Override
+        public synchronized void write(byte[] buf, int off, int len) throws IOException {
+            ensureWritable();
+            if (off < 0 || len < 0 || off + len > buf.length) {
+                throw new IndexOutOfBoundsException();
+            }
+
+            node.lock.writeLock().lock();
+            try {
+                node.content.write(position, buf, off, len);
+            } finally {
+                node.lock.writeLock().unlock();
+            }
+
+            position += len;
+            node.touch();
+        }
+
+        @Override
+        public synchronized void setSize(long size) throws IOException {
+            ensureWritable();
+            if (size < 0) {
+                throw new IOException("Negative size");
+            }
+
+            node.lock.writeLock().lock();
+            try {
+                node.content.setSize(size);
+            } finally {
+                node.lock.writeLock().unlock();
+            }
+
+            if (position > size) {
+                position = size;
+            }
+            node.touch();
+        }
+
+        @Override
+        public void flush() {
+            //Data is written to memory directly.
+        }
+
+        @Override
+        public synchronized void close() {
+            if (closed) {
+                return;
+            }
+
+            closed = true;
+            node.closeHandle();
+        }
+    }
+}
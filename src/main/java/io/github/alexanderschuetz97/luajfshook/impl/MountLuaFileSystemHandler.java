@@ -0,0 +1,824 @@
+//
+// Copyright Alexander Schütz, 2022
+//
+// This file is part of LuajFSHook.
+//
+// LuajFSHook is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// LuajFSHook is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// A copy of the GNU Lesser General Public License should be provided
+// in the COPYING & COPYING.LESSER files in top level directory of LuajFSHook.
+// If not, see <https://www.gnu.org/licenses/>.
+//
+package io.github.alexanderschuetz97.luajfshook.impl;
+
+import io.github.alexanderschuetz97.luajfshook.api.LuaDirectoryEntry;
+import io.github.alexanderschuetz97.luajfshook.api.LuaFileSystemHandler;
+import io.github.alexanderschuetz97.luajfshook.api.LuaPath;
+import io.github.alexanderschuetz97.luajfshook.api.LuaRandomAccessFile;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.InvalidPathException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LuaFileSystemHandler that composes multiple handlers under path prefixes, like the mount table of an operating system.
+ * For example /scripts can be served by a {@link ZipLuaFileSystemHandler}, /tmp by a {@link MemoryLuaFileSystemHandler}
+ * and /data by a {@link DefaultLuaFileSystemHandler} inside of a single Globals.
+ *
+ * Every path is dispatched to the mount with the longest prefix that matches it. The mounts are stored in a trie of
+ * path elements so resolving a path costs one hash lookup per element of the path regardless of the number of mounts.
+ * Paths remember their resolution until the mount table changes.
+ *
+ * Directories above mount points that are not covered by another mount exist as empty read only directories.
+ * Listing a directory also lists the mount points directly below it.
+ * Copying and moving files between mounts of different handlers streams the content, moving directories between
+ * different handlers is not supported.
+ */
+public class MountLuaFileSystemHandler implements LuaFileSystemHandler {
+
+    public static final String DEFAULT_TMP_DIR = "/tmp";
+
+    private final TrieNode root = new TrieNode();
+
+    /**
+     * incremented whenever the mount table changes, invalidates the resolution cached in the paths.
+     */
+    private volatile int version;
+
+    private final AtomicLong tmpCounter = new AtomicLong();
+
+    private final long creationTime = System.currentTimeMillis();
+
+    private volatile MountLuaPath workDirectory;
+
+    private volatile String tmpDir = DEFAULT_TMP_DIR;
+
+    public MountLuaFileSystemHandler() {
+        workDirectory = new MountLuaPath(String.valueOf(VirtualLuaPath.SEPARATOR));
+    }
+
+    /**
+     * Mounts the root directory ("/") of the handler at the prefix.
+     */
+    public void mount(String prefix, LuaFileSystemHandler handler) {
+        mount(prefix, handler, handler.resolvePath(String.valueOf(VirtualLuaPath.SEPARATOR)));
+    }
+
+    /**
+     * Mounts a directory of the handler at the prefix. A mount that already exists at the prefix is replaced.
+     * @param prefix absolute path in this fs
+     * @param handler the handler the directory belongs to
+     * @param directory directory of the handler that becomes visible at the prefix
+     */
+    public synchronized void mount(String prefix, LuaFileSystemHandler handler, LuaPath directory) {
+        Objects.requireNonNull(handler);
+        Objects.requireNonNull(directory);
+        MountLuaPath mountPoint = toAbsolutePrefix(prefix);
+
+        TrieNode node = root;
+        for (String segment : mountPoint.segments()) {
+            TrieNode child = node.children.get(segment);
+            if (child == null) {
+                child = new TrieNode();
+                node.children.put(segment, child);
+            }
+            node = child;
+        }
+
+        node.mount = new Mount(mountPoint.path, handler, directory.absolutePath());
+        version++;
+    }
+
+    /**
+     * Removes the mount at the prefix. Returns false if there was none.
+     */
+    public synchronized boolean unmount(String prefix) {
+        String[] segments = toAbsolutePrefix(prefix).segments();
+        List<TrieNode> nodes = new ArrayList<>();
+        TrieNode node = root;
+        nodes.add(node);
+        for (String segment : segments) {
+            node = node.children.get(segment);
+            if (node == null) {
+                return false;
+            }
+            nodes.add(node);
+        }
+
+        if (node.mount == null) {
+            return false;
+        }
+
+        node.mount = null;
+        for (int i = segments.length; i > 0; i--) {
+            TrieNode current = nodes.get(i);
+            if (current.mount != null || !current.children.isEmpty()) {
+                break;
+            }
+            nodes.get(i-1).children.remove(segments[i-1]);
+        }
+
+        version++;
+        return true;
+    }
+
+    /**
+     * returns the mount points and the directories mounted on them.
+     */
+    public Map<String, LuaPath> getMounts() {
+        Map<String, LuaPath> result = new LinkedHashMap<>();
+        collectMounts(root, result);
+        return Collections.unmodifiableMap(result);
+    }
+
+    private void collectMounts(TrieNode node, Map<String, LuaPath> result) {
+        Mount mount = node.mount;
+        if (mount != null) {
+            result.put(mount.prefix, mount.directory);
+        }
+
+        for (TrieNode child : node.children.values()) {
+            collectMounts(child, result);
+        }
+    }
+
+    private MountLuaPath toAbsolutePrefix(String prefix) {
+        MountLuaPath path = new MountLuaPath(Objects.requireNonNull(prefix));
+        if (!path.isAbsolute()) {
+            throw new IllegalArgumentException("mount prefix must be absolute");
+        }
+        return path;
+    }
+
+    /**
+     * sets the directory of this fs that contains temporary files. Default is {@link #DEFAULT_TMP_DIR}.
+     */
+    public void setTmpDir(String tmpDir) {
+        this.tmpDir = toAbsolutePrefix(tmpDir).path;
+    }
+
+    @Override
+    public LuaPath resolvePath(String path) throws InvalidPathException {
+        return workDirectory.child(path);
+    }
+
+    @Override
+    public LuaPath relativePath(String path) throws InvalidPathException {
+        return new MountLuaPath(path);
+    }
+
+    /**
+     * returns the path of the mount whose directory contains the system path or null if no mounted directory contains it.
+     */
+    @Override
+    public LuaPath resolveSysPath(Path path) {
+        Path absolute = path.toAbsolutePath().normalize();
+        MountLuaPath best = null;
+        int bestLength = -1;
+        for (Map.Entry<String, LuaPath> entry : getMounts().entrySet()) {
+            Path dir = entry.getValue().toSystemPath();
+            if (dir == null) {
+                continue;
+            }
+
+            dir = dir.toAbsolutePath().normalize();
+            if (absolute.startsWith(dir) && dir.getNameCount() > bestLength) {
+                bestLength = dir.getNameCount();
+                MountLuaPath mountPoint = new MountLuaPath(entry.getKey());
+                Path relative = dir.relativize(absolute);
+                StringBuilder sb = new StringBuilder();
+                for (Path element : relative) {
+                    if (sb.length() > 0) {
+                        sb.append(VirtualLuaPath.SEPARATOR);
+                    }
+                    sb.append(element.toString());
+                }
+                best = sb.length() == 0 ? mountPoint : mountPoint.child(sb.toString());
+            }
+        }
+
+        return best;
+    }
+
+    @Override
+    public LuaPath getWorkDirectory() {
+        return workDirectory;
+    }
+
+    @Override
+    public LuaPath tmpFile(String prefix, String suffix) throws IOException {
+        MountLuaPath dir = tmpDir();
+        dir.mkdirs();
+
+        while (true) {
+            MountLuaPath file = dir.child((prefix == null ? ".luaj" : prefix) + tmpCounter.incrementAndGet() + (suffix == null ? "bin" : suffix));
+            try {
+                file.createNewFile();
+                return file;
+            } catch (FileAlreadyExistsException e) {
+                //Try next name
+            }
+        }
+    }
+
+    @Override
+    public MountLuaPath tmpDir() throws IOException {
+        return new MountLuaPath(tmpDir);
+    }
+
+    @Override
+    public void setWorkDirectory(LuaPath path) throws NotDirectoryException, IOException {
+        MountLuaPath dir = new MountLuaPath(Objects.requireNonNull(path).path()).absolutePath();
+        if (!dir.isDir()) {
+            throw new NotDirectoryException(dir.toString());
+        }
+
+        workDirectory = dir;
+    }
+
+    @Override
+    public InputStream findResource(String filename) {
+        MountLuaPath path = (MountLuaPath) resolvePath(filename);
+        Resolution resolution = path.resolution();
+        if (resolution.mount == null) {
+            return null;
+        }
+
+        return resolution.mount.handler.findResource(resolution.delegate.path());
+    }
+
+    protected static class Mount {
+        protected final String prefix;
+        protected final LuaFileSystemHandler handler;
+        protected final LuaPath directory;
+
+        protected Mount(String prefix, LuaFileSystemHandler handler, LuaPath directory) {
+            this.prefix = prefix;
+            this.handler = handler;
+            this.directory = directory;
+        }
+    }
+
+    protected static class TrieNode {
+        protected final Map<String, TrieNode> children = new ConcurrentHashMap<>();
+        protected volatile Mount mount;
+    }
+
+    /**
+     * result of resolving a path against the mount table.
+     */
+    protected static class Resolution {
+        protected final int version;
+
+        /**
+         * mount with the longest prefix of the path or null if no mount covers the path.
+         */
+        protected final Mount mount;
+
+        /**
+         * path of the handler of the mount or null if no mount covers the path.
+         */
+        protected final LuaPath delegate;
+
+        /**
+         * trie node of exactly this path or null if there is none. If not null the path is a directory
+         * that exists regardless of the mounted handler.
+         */
+        protected final TrieNode node;
+
+        protected Resolution(int version, Mount mount, LuaPath delegate, TrieNode node) {
+            this.version = version;
+            this.mount = mount;
+            this.delegate = delegate;
+            this.node = node;
+        }
+
+        protected boolean isMountPoint() {
+            return node != null && node.mount != null;
+        }
+    }
+
+    protected Resolution resolve(MountLuaPath path) {
+        int currentVersion = version;
+        String[] segments = path.absolutePath().segments();
+        TrieNode node = root;
+        Mount mount = node.mount;
+        int mountDepth = 0;
+        int depth = 0;
+        while (depth < segments.length) {
+            TrieNode child = node.children.get(segments[depth]);
+            if (child == null) {
+                break;
+            }
+
+            node = child;
+            depth++;
+            if (node.mount != null) {
+                mount = node.mount;
+                mountDepth = depth;
+            }
+        }
+
+        TrieNode exact = depth == segments.length ? node : null;
+        if (mount == null) {
+            return new Resolution(currentVersion, null, null, exact);
+        }
+
+        if (mountDepth == segments.length) {
+            return new Resolution(currentVersion, mount, mount.directory, exact);
+        }
+
+        StringBuilder relative = new StringBuilder();
+        for (int i = mountDepth; i < segments.length; i++) {
+            if (i > mountDepth) {
+                relative.append(VirtualLuaPath.SEPARATOR);
+            }
+            relative.append(segments[i]);
+        }
+
+        return new Resolution(currentVersion, mount, mount.directory.child(relative.toString()), exact);
+    }
+
+    protected class MountDirectoryAttributes implements BasicFileAttributes {
+
+        private final Object fileKey;
+
+        protected MountDirectoryAttributes(Object fileKey) {
+            this.fileKey = fileKey;
+        }
+
+        @Override
+        public FileTime lastModifiedTime() {
+            return FileTime.fromMillis(creationTime);
+        }
+
+        @Override
+        public FileTime lastAccessTime() {
+            return FileTime.fromMillis(creationTime);
+        }
+
+        @Override
+        public FileTime creationTime() {
+            return FileTime.fromMillis(creationTime);
+        }
+
+        @Override
+        public boolean isRegularFile() {
+            return false;
+        }
+
+        @Override
+        public boolean isDirectory() {
+            return true;
+        }
+
+        @Override
+        public boolean isSymbolicLink() {
+            return false;
+        }
+
+        @Override
+        public boolean isOther() {
+            return false;
+        }
+
+        @Override
+        public long size() {
+            return 0;
+        }
+
+        @Override
+        public Object fileKey() {
+            return fileKey;
+        }
+    }
+
+    protected static class MountDirectoryEntry implements LuaDirectoryEntry {
+        protected final LuaPath path;
+        protected final LuaDirectoryEntry delegate;
+
+        protected MountDirectoryEntry(LuaPath path, LuaDirectoryEntry delegate) {
+            this.path = path;
+            this.delegate = delegate;
+        }
+
+        @Override
+        public LuaPath path() {
+            return path;
+        }
+
+        @Override
+        public BasicFileAttributes attributes() throws IOException {
+            return delegate == null ? path.attributes() : delegate.attributes();
+        }
+
+        @Override
+        public String toString() {
+            return path.toString();
+        }
+    }
+
+    protected class MountLuaPath extends VirtualLuaPath {
+
+        private volatile Resolution resolution;
+
+        public MountLuaPath(String path) {
+            super(path);
+        }
+
+        @Override
+        protected MountLuaPath newPath(String path) {
+            return new MountLuaPath(path);
+        }
+
+        @Override
+        protected MountLuaPath workDirectory() {
+            return workDirectory;
+        }
+
+        @Override
+        protected Object fileSystem() {
+            return MountLuaFileSystemHandler.this;
+        }
+
+        @Override
+        public MountLuaPath absolutePath() {
+            return (MountLuaPath) super.absolutePath();
+        }
+
+        @Override
+        public MountLuaPath child(String name) throws InvalidPathException {
+            return (MountLuaPath) super.child(name);
+        }
+
+        protected Resolution resolution() {
+            Resolution current = resolution;
+            if (current == null || current.version != version) {
+                current = resolve(this);
+                resolution = current;
+            }
+            return current;
+        }
+
+        /**
+         * returns the path of the mounted handler or throws if this path is not covered by a mount.
+         */
+        protected LuaPath delegate() throws IOException {
+            Resolution current = resolution();
+            if (current.mount == null) {
+                if (current.node != null) {
+                    throw readOnly();
+                }
+                throw new NoSuchFileException(path);
+            }
+            return current.delegate;
+        }
+
+        /**
+         * like {@link #delegate()} but also rejects changing the mount point itself or directories above mount points.
+         */
+        protected LuaPath modifiableDelegate() throws IOException {
+            Resolution current = resolution();
+            if (current.node != null) {
+                throw readOnly();
+            }
+            return delegate();
+        }
+
+        protected AccessDeniedException readOnly() {
+            return new AccessDeniedException(path, null, "mount point");
+        }
+
+        /**
+         * returns the delegate of the target if it is mounted from the same handler as this path or null otherwise.
+         */
+        protected LuaPath sameHandlerDelegate(LuaPath target) throws IOException {
+            if (!(target instanceof MountLuaPath) || ((MountLuaPath) target).fileSystem() != MountLuaFileSystemHandler.this) {
+                return null;
+            }
+
+            Resolution source = resolution();
+            Resolution other = ((MountLuaPath) target).resolution();
+            if (source.mount == null || other.mount == null || source.mount.handler != other.mount.handler) {
+                return null;
+            }
+
+            return ((MountLuaPath) target).modifiableDelegate();
+        }
+
+        @Override
+        public BasicFileAttributes attributes() throws IOException {
+            Resolution current = resolution();
+            if (current.mount != null) {
+                try {
+                    return current.delegate.attributes();
+                } catch (IOException e) {
+                    if (current.node == null) {
+                        throw e;
+                    }
+                }
+            }
+
+            if (current.node != null) {
+                return new MountDirectoryAttributes(current.node);
+            }
+
+            throw new NoSuchFileException(path);
+        }
+
+        @Override
+        public BasicFileAttributes linkAttributes() throws IOException {
+            Resolution current = resolution();
+            if (current.mount != null && current.node == null) {
+                return current.delegate.linkAttributes();
+            }
+            return attributes();
+        }
+
+        @Override
+        public boolean isĹink() {
+            Resolution current = resolution();
+            return current.mount != null && current.node == null && current.delegate.isĹink();
+        }
+
+        @Override
+        public void setFileTimes(FileTime lastModifiedTime, FileTime lastAccessTime, FileTime createTime) throws IOException {
+            delegate().setFileTimes(lastModifiedTime, lastAccessTime, createTime);
+        }
+
+        @Override
+        public boolean exists() {
+            Resolution current = resolution();
+            return current.node != null || (current.mount != null && current.delegate.exists());
+        }
+
+        @Override
+        public boolean isDir() {
+            Resolution current = resolution();
+            return current.node != null || (current.mount != null && current.delegate.isDir());
+        }
+
+        @Override
+        public boolean isFile() {
+            Resolution current = resolution();
+            return current.node == null && current.mount != null && current.delegate.isFile();
+        }
+
+        @Override
+        public DirectoryStream<LuaDirectoryEntry> newDirectoryStream() throws NotDirectoryException, IOException {
+            Resolution current = resolution();
+            final TrieNode node = current.node;
+            DirectoryStream<LuaDirectoryEntry> delegateStream = null;
+            if (current.mount != null) {
+                try {
+                    delegateStream = FileTreeWalker.newDirectoryStream(current.delegate);
+                } catch (IOException e) {
+                    if (node == null) {
+                        throw e;
+                    }
+                }
+            } else if (node == null) {
+                throw new NotDirectoryException(path);
+            }
+
+            final DirectoryStream<LuaDirectoryEntry> stream = delegateStream;
+            final List<String> mountPoints = node == null ? Collections.<String>emptyList() : new ArrayList<>(node.children.keySet());
+
+            return new DirectoryStream<LuaDirectoryEntry>() {
+
+                private boolean iterated;
+
+                @Override
+                public Iterator<LuaDirectoryEntry> iterator() {
+                    if (iterated) {
+                        throw new IllegalStateException("iterator already obtained");
+                    }
+                    iterated = true;
+
+                    final Iterator<LuaDirectoryEntry> delegateIterator = stream == null ? Collections.<LuaDirectoryEntry>emptyIterator() : stream.iterator();
+                    final Set<String> listed = mountPoints.isEmpty() ? null : new HashSet<String>();
+
+                    return new Iterator<LuaDirectoryEntry>() {
+                        private int mountIndex;
+                        private LuaDirectoryEntry next;
+
+                        @Override
+                        public boolean hasNext() {
+                            if (next != null) {
+                                return true;
+                            }
+
+                            if (delegateIterator.hasNext()) {
+                                LuaDirectoryEntry entry = delegateIterator.next();
+                                String name = entry.path().name();
+                                if (listed != null) {
+                                    listed.add(name);
+                                }
+                                next = new MountDirectoryEntry(child(name), entry);
+                                return true;
+                            }
+
+                            while (mountIndex < mountPoints.size()) {
+                                String name = mountPoints.get(mountIndex++);
+                                if (!listed.contains(name)) {
+                                    next = new MountDirectoryEntry(child(name), null);
+                                    return true;
+                                }
+                            }
+
+                            return false;
+                        }
+
+                        @Override
+                        public LuaDirectoryEntry next() {
+                            if (!hasNext()) {
+                                throw new NoSuchElementException();
+                            }
+                            LuaDirectoryEntry result = next;
+                            next = null;
+                            return result;
+                        }
+
+                        @Override
+                        public void remove() {
+                            throw new UnsupportedOperationException();
+                        }
+                    };
+                }
+
+                @Override
+                public void close() throws IOException {
+                    if (stream != null) {
+                        stream.close();
+                    }
+                }
+            };
+        }
+
+        @Override
+        public void createNewFile() throws FileAlreadyExistsException, IOException, NotDirectoryException {
+            if (resolution().node != null) {
+                throw new FileAlreadyExistsException(path);
+            }
+            delegate().createNewFile();
+        }
+
+        @Override
+        public void mkdir() throws FileAlreadyExistsException, IOException, NotDirectoryException {
+            if (resolution().node != null) {
+                throw new FileAlreadyExistsException(path);
+            }
+            delegate().mkdir();
+        }
+
+        @Override
+        public void mkdirs() throws FileAlreadyExistsException, IOException, NotDirectoryException {
+            if (resolution().node != null) {
+                return;
+            }
+            delegate().mkdirs();
+        }
+
+        @Override
+        public void link(LuaPath to) throws IOException {
+            LuaPath target = sameHandlerDelegate(to);
+            if (target == null) {
+                throw new IOException("cannot link across mounts of different handlers");
+            }
+            modifiableDelegate().link(target);
+        }
+
+        @Override
+        public void symlink(LuaPath to) throws IOException {
+            LuaPath target = sameHandlerDelegate(to);
+            if (target == null) {
+                throw new IOException("cannot link across mounts of different handlers");
+            }
+            modifiableDelegate().symlink(target);
+        }
+
+        @Override
+        public void delete() throws IOException {
+            modifiableDelegate().delete();
+        }
+
+        @Override
+        public void copyFile(LuaPath target) throws IOException {
+            LuaPath sameHandler = sameHandlerDelegate(target);
+            if (sameHandler != null) {
+                delegate().copyFile(sameHandler);
+                return;
+            }
+
+            super.copyFile(target);
+        }
+
+        @Override
+        public void moveFile(LuaPath target) throws IOException {
+            LuaPath sameHandler = sameHandlerDelegate(target);
+            if (sameHandler != null) {
+                modifiableDelegate().moveFile(sameHandler);
+                return;
+            }
+
+            modifiableDelegate();
+            super.moveFile(target);
+        }
+
+        @Override
+        public void move(LuaPath tar) throws IOException {
+            LuaPath sameHandler = sameHandlerDelegate(tar);
+            if (sameHandler != null) {
+                modifiableDelegate().move(sameHandler);
+                return;
+            }
+
+            if (isDir()) {
+                throw new IOException("cannot move directory across mounts of different handlers");
+            }
+
+            moveFile(tar);
+        }
+
+        @Override
+        public LuaRandomAccessFile open(String mode) throws IOException {
+            Resolution current = resolution();
+            if (current.node != null) {
+                throw new FileNotFoundException(path + " (Is a directory)");
+            }
+            if (current.mount == null) {
+                throw new FileNotFoundException(path + " (No such file or directory)");
+            }
+            return current.delegate.open(mode);
+        }
+
+        @Override
+        public InputStream openInput() throws FileNotFoundException, IOException {
+            Resolution current = resolution();
+            if (current.node != null) {
+                throw new IOException("cannot open directory for reading");
+            }
+            if (current.mount == null) {
+                throw new FileNotFoundException(path + " (No such file or directory)");
+            }
+            return current.delegate.openInput();
+        }
+
+        @Override
+        public OutputStream openOutput(boolean append) throws IOException {
+            return modifiableDelegate().openOutput(append);
+        }
+
+        @Override
+        public long size() throws IOException {
+            if (resolution().node != null) {
+                return 0;
+            }
+            return delegate().size();
+        }
+
+        @Override
+        public Path toSystemPath() {
+            Resolution current = resolution();
+            return current.mount == null ? null : current.delegate.toSystemPath();
+        }
+
+        @Override
+        public void deleteOnExit() {
+            Resolution current = resolution();
+            if (current.mount != null && current.node == null) {
+                current.delegate.deleteOnExit();
+            }
+        }
+    }
+}
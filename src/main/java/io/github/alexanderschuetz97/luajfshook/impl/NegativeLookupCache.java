@@ -0,0 +1,172 @@
+//
+// Copyright Alexander Schütz, 2022
+//
+// This file is part of LuajFSHook.
+//
+// LuajFSHook is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// LuajFSHook is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// A copy of the GNU Lesser General Public License should be provided
+// in the COPYING & COPYING.LESSER files in top level directory of LuajFSHook.
+// If not, see <https://www.gnu.org/licenses/>.
+//
+package io.github.alexanderschuetz97.luajfshook.impl;
+
+import io.github.alexanderschuetz97.luajfshook.api.LuaPath;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers paths that did not exist for a limited time.
+ * Used by {@link DefaultLuaFileSystemHandler#findResource(String)} so that require does not probe the file system
+ * for every package.path template every time a module is required.
+ *
+ * Entries are removed when they expire, when the handler that uses this cache creates the path
+ * (or moves or creates a directory that contains it) or when they are explicitly invalidated. Files created by anything else are only seen once the entry expires.
+ */
+public class NegativeLookupCache {
+
+    public static final long DEFAULT_TTL_MILLIS = 5000;
+
+    public static final int DEFAULT_MAX_ENTRIES = 4096;
+
+    private final long ttlNanos;
+
+    private final int maxEntries;
+
+    private final ConcurrentHashMap<LuaPath, Long> missing = new ConcurrentHashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    public NegativeLookupCache() {
+        this(DEFAULT_TTL_MILLIS, TimeUnit.MILLISECONDS, DEFAULT_MAX_ENTRIES);
+    }
+
+    public NegativeLookupCache(long ttl, TimeUnit unit, int maxEntries) {
+        if (ttl < 0) {
+            throw new IllegalArgumentException("ttl must not be negative");
+        }
+
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("maxEntries must be positive");
+        }
+
+        this.ttlNanos = unit.toNanos(ttl);
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * returns true if the path is known to not exist.
+     */
+    public boolean isMissing(LuaPath path) {
+        Long expires = missing.get(path);
+        if (expires == null) {
+            misses.incrementAndGet();
+            return false;
+        }
+
+        if (System.nanoTime() - expires >= 0) {
+            missing.remove(path, expires);
+            misses.incrementAndGet();
+            return false;
+        }
+
+        hits.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Remembers that the path does not exist.
+     */
+    public void markMissing(LuaPath path) {
+        long now = System.nanoTime();
+        if (missing.size() >= maxEntries) {
+            purge(now);
+        }
+
+        missing.put(path, now + ttlNanos);
+    }
+
+    /**
+     * Forgets that the path did not exist.
+     */
+    public void invalidate(LuaPath path) {
+        missing.remove(path);
+    }
+
+    /**
+     * Forgets that the path or any path inside of it did not exist.
+     * Used when a directory is created or moved. Every entry is checked so this is slower than {@link #invalidate(LuaPath)}.
+     */
+    public void invalidateTree(LuaPath dir) {
+        Iterator<LuaPath> iterator = missing.keySet().iterator();
+        while (iterator.hasNext()) {
+            if (isInside(iterator.next(), dir)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private static boolean isInside(LuaPath path, LuaPath dir) {
+        for (LuaPath current = path; current != null; current = current.parent()) {
+            if (current.equals(dir)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Forgets all paths.
+    public void invalidateAll() {
+        missing.clear();
+    }
+
+    /**
+     * returns the number of lookups that were answered from this cache.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * returns the number of lookups that had to go to the file system.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * returns the current number of entries including expired entries that have not been removed yet.
+     */
+    public int size() {
+        return missing.size();
+    }
+
+    private void purge(long now) {
+        Iterator<Map.Entry<LuaPath, Long>> iterator = missing.entrySet().iterator();
+        while (iterator.hasNext()) {
+            if (now - iterator.next().getValue() >= 0) {
+                iterator.remove();
+            }
+        }
+
+        if (missing.size() >= maxEntries) {
+            missing.clear();
+        }
+    }
+}
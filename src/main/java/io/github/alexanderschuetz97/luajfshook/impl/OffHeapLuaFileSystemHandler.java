@@ -0,0 +1,409 @@
+//
+// Copyright Alexander Schütz, 2022
+//
+// This file is part of LuajFSHook.
+//
+// LuajFSHook is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// LuajFSHook is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// A copy of the GNU Lesser General Public License should be provided
+// in the COPYING & COPYING.LESSER files in top level directory of LuajFSHook.
+// If not, see <https://www.gnu.org/licenses/>.
+//
+package io.github.alexanderschuetz97.luajfshook.impl;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Objects;
+
+/**
+ * In-memory LuaFileSystemHandler that stores the content of files outside of the java heap
+ * in direct ByteBuffer chunks of a {@link DirectChunkPool}. Large amounts of file data therefore do not add to GC pauses.
+ *
+ * The pool limits the total amount of direct memory. When a file needs a chunk and the budget is exhausted
+ * the content of that file is moved to a file in the backing directory and all further access of that file goes to disk.
+ * If there is no backing directory writing fails with an IOException instead.
+ *
+ * The chunks of a file are returned to the pool as soon as the file is deleted and no longer opened,
+ * chunks the pool does not keep are freed immediately. {@link #close()} frees all memory of this handler.
+ */
+public class OffHeapLuaFileSystemHandler extends MemoryLuaFileSystemHandler implements Closeable {
+
+    protected final DirectChunkPool pool;
+
+    protected final Path backingDirectory;
+
+    private final boolean ownsPool;
+
+    /**
+     * Creates a handler with a new pool of {@link DirectChunkPool#DEFAULT_BUDGET} and no backing directory.
+     */
+    public OffHeapLuaFileSystemHandler() {
+        this(new DirectChunkPool(), null, true);
+    }
+
+    /**
+     * Creates a handler with a new pool of the given budget.
+     * @param backingDirectory directory for the content of files that do not fit into the budget or null to fail instead.
+     */
+    public OffHeapLuaFileSystemHandler(long budget, Path backingDirectory) {
+        this(new DirectChunkPool(budget), backingDirectory, true);
+    }
+
+    /**
+     * Creates a handler that uses the given pool. The pool may be shared with other handlers and is not closed by {@link #close()}.
+     * @param backingDirectory directory for the content of files that do not fit into the budget or null to fail instead.
+     */
+    public OffHeapLuaFileSystemHandler(DirectChunkPool pool, Path backingDirectory) {
+        this(pool, backingDirectory, false);
+    }
+
+    private OffHeapLuaFileSystemHandler(DirectChunkPool pool, Path backingDirectory, boolean ownsPool) {
+        super(Objects.requireNonNull(pool).getChunkSize());
+        this.pool = pool;
+        this.backingDirectory = backingDirectory;
+        this.ownsPool = ownsPool;
+    }
+
+    @Override
+    protected FileContent newFileContent() {
+        return new OffHeapFileContent();
+    }
+
+    public DirectChunkPool getPool() {
+        return pool;
+    }
+
+    public Path getBackingDirectory() {
+        return backingDirectory;
+    }
+
+    /**
+     * Deletes all files and frees their memory and spill files. Handles that are still open fail afterwards.
+     * Closes the pool if it was created by this handler.
+     */
+    @Override
+    public void close() {
+        synchronized (structureLock) {
+            for (FileNode node : collectFiles(root, new IdentityHashMap<FileNode, Boolean>()).keySet()) {
+                node.release();
+            }
+            root.children.clear();
+        }
+
+        if (ownsPool) {
+            pool.close();
+        }
+    }
+
+    /**
+     * Content stored in chunks of the pool. Moves to a spill file in the backing directory
+     * when the pool has no chunk left.
+     */
+    protected class OffHeapFileContent implements FileContent {
+
+        private final int chunkSize = pool.getChunkSize();
+
+        protected ByteBuffer[] chunks = new ByteBuffer[0];
+
+        protected long size;
+
+        protected Path spillFile;
+
+        protected FileChannel spill;
+
+        protected boolean released;
+
+        private void ensureNotReleased() throws IOException {
+            if (released) {
+                throw new IOException("file was released");
+            }
+        }
+
+        /**
+         * returns true if the content was moved to the backing directory.
+         */
+        public boolean isSpilled() {
+            return spill != null;
+        }
+
+        @Override
+        public long size() {
+            return size;
+        }
+
+        @Override
+        public int read(long position, byte[] buf, int off, int len) throws IOException {
+            ensureNotReleased();
+            if (position >= size) {
+                return -1;
+            }
+
+            int total = (int) Math.min(len, size - position);
+            if (spill != null) {
+                readSpill(position, buf, off, total);
+                return total;
+            }
+
+            int done = 0;
+            while (done < total) {
+                int index = (int) (position / chunkSize);
+                int chunkOffset = (int) (position % chunkSize);
+                int count = Math.min(total - done, chunkSize - chunkOffset);
+                ByteBuffer chunk = index < chunks.length ? chunks[index] : null;
+                if (chunk == null) {
+                    Arrays.fill(buf, off + done, off + done + count, (byte) 0);
+                } else {
+                    //Readers share the lock of the file so the position of the chunk itself must not be touched.
+                    ByteBuffer view = chunk.duplicate();
+                    ((Buffer) view).position(chunkOffset);
+                    view.get(buf, off + done, count);
+                }
+                done += count;
+                position += count;
+            }
+
+            return total;
+        }
+
+        @Override
+        public int read(long position) throws IOException {
+            ensureNotReleased();
+            if (position >= size) {
+                return -1;
+            }
+
+            if (spill != null) {
+                byte[] b = new byte[1];
+                readSpill(position, b, 0, 1);
+                return b[0] & 0xff;
+            }
+
+            int index = (int) (position / chunkSize);
+            ByteBuffer chunk = index < chunks.length ? chunks[index] : null;
+            return chunk == null ? 0 : chunk.get((int) (position % chunkSize)) & 0xff;
+        }
+
+        private void readSpill(long position, byte[] buf, int off, int len) throws IOException {
+            ByteBuffer target = ByteBuffer.wrap(buf, off, len);
+            while (target.hasRemaining()) {
+                int read = spill.read(target, position);
+                if (read < 0) {
+                    //Grown by setSize, the rest reads as 0
+                    Arrays.fill(buf, target.position(), off + len, (byte) 0);
+                    return;
+                }
+                position += read;
+            }
+        }
+
+        @Override
+        public void write(long position, byte[] buf, int off, int len) throws IOException {
+            ensureNotReleased();
+            long end = position + len;
+            if (spill == null) {
+                ensureChunks(end);
+                int done = 0;
+                while (done < len) {
+                    int index = (int) (position / chunkSize);
+                    int chunkOffset = (int) (position % chunkSize);
+                    int count = Math.min(len - done, chunkSize - chunkOffset);
+                    ByteBuffer chunk = chunks[index];
+                    if (chunk == null) {
+                        chunk = pool.acquire();
+                        if (chunk == null) {
+                            if (position > size) {
+                                size = position;
+                            }
+                            spill();
+                            off += done;
+                            len -= done;
+                            break;
+                        }
+                        chunks[index] = chunk;
+                    }
+
+                    ByteBuffer view = chunk.duplicate();
+                    ((Buffer) view).position(chunkOffset);
+                    view.put(buf, off + done, count);
+                    done += count;
+                    position += count;
+                }
+            }
+
+            if (spill != null) {
+                ByteBuffer source = ByteBuffer.wrap(buf, off, len);
+                while (source.hasRemaining()) {
+                    position += spill.write(source, position);
+                }
+            }
+
+            if (end > size) {
+                size = end;
+            }
+        }
+
+        @Override
+        public void write(long position, int b) throws IOException {
+            ensureNotReleased();
+            if (spill == null) {
+                ensureChunks(position + 1);
+                ByteBuffer chunk = chunks[(int) (position / chunkSize)];
+                if (chunk != null) {
+                    chunk.put((int) (position % chunkSize), (byte) b);
+                    if (position + 1 > size) {
+                        size = position + 1;
+                    }
+                    return;
+                }
+            }
+
+            //The chunk has to be acquired from the pool or the content is spilled.
+            write(position, new byte[]{(byte) b}, 0, 1);
+        }
+
+        /**
+         * moves the content to a file in the backing directory and returns all chunks to the pool.
+         */
+        protected void spill() throws IOException {
+            if (backingDirectory == null) {
+                throw new IOException("memory budget of " + pool.getBudget() + " bytes exceeded");
+            }
+
+            Files.createDirectories(backingDirectory);
+            Path file = Files.createTempFile(backingDirectory, ".luaj", ".spill");
+            FileChannel channel;
+            try {
+                channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            } catch (IOException e) {
+                Files.deleteIfExists(file);
+                throw e;
+            }
+
+            try {
+                for (int i = 0; i < chunks.length; i++) {
+                    ByteBuffer chunk = chunks[i];
+                    if (chunk == null) {
+                        continue;
+                    }
+
+                    long chunkStart = (long) i * chunkSize;
+                    ByteBuffer view = chunk.duplicate();
+                    ((Buffer) view).clear();
+                    ((Buffer) view).limit((int) Math.min(chunkSize, Math.max(0, size - chunkStart)));
+                    long position = chunkStart;
+                    while (view.hasRemaining()) {
+                        position += channel.write(view, position);
+                    }
+                }
+            } catch (IOException e) {
+                closeSpill(channel, file);
+                throw e;
+            }
+
+            spill = channel;
+            spillFile = file;
+            releaseChunks();
+        }
+
+        @Override
+        public void setSize(long newSize) throws IOException {
+            ensureNotReleased();
+            if (spill != null) {
+                if (newSize < spill.size()) {
+                    spill.truncate(newSize);
+                }
+                size = newSize;
+                return;
+            }
+
+            if (newSize < size) {
+                int keep = chunkCount(newSize);
+                for (int i = keep; i < chunks.length; i++) {
+                    pool.release(chunks[i]);
+                    chunks[i] = null;
+                }
+
+                int tail = (int) (newSize % chunkSize);
+                if (tail != 0 && chunks[keep-1] != null) {
+                    //Growing again must read 0 and not the old data
+                    ByteBuffer view = chunks[keep-1].duplicate();
+                    ((Buffer) view).position(tail);
+                    view.put(new byte[chunkSize - tail]);
+                }
+            } else {
+                ensureChunks(newSize);
+            }
+
+            size = newSize;
+        }
+
+        private int chunkCount(long bytes) throws IOException {
+            long count = (bytes + chunkSize - 1) / chunkSize;
+            if (count > Integer.MAX_VALUE) {
+                throw new IOException("file too large");
+            }
+            return (int) count;
+        }
+
+        private void ensureChunks(long bytes) throws IOException {
+            int required = chunkCount(bytes);
+            if (required > chunks.length) {
+                chunks = Arrays.copyOf(chunks, Math.max(required, (int) Math.min(Integer.MAX_VALUE, chunks.length * 2L)));
+            }
+        }
+
+        private void releaseChunks() {
+            for (int i = 0; i < chunks.length; i++) {
+                pool.release(chunks[i]);
+                chunks[i] = null;
+            }
+            chunks = new ByteBuffer[0];
+        }
+
+        private void closeSpill(FileChannel channel, Path file) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                //DC
+            }
+
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                //DC
+            }
+        }
+
+        @Override
+        public void release() {
+            if (released) {
+                return;
+            }
+
+            released = true;
+            releaseChunks();
+            if (spill != null) {
+                closeSpill(spill, spillFile);
+                spill = null;
+                spillFile = null;
+            }
+            size = 0;
+        }
+    }
+}
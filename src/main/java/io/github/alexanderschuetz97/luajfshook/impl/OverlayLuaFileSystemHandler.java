@@ -0,0 +1,1151 @@
+//
+// Copyright Alexander Schütz, 2022
+//
+// This file is part of LuajFSHook.
+//
+// LuajFSHook is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// LuajFSHook is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// A copy of the GNU Lesser General Public License should be provided
+// in the COPYING & COPYING.LESSER files in top level directory of LuajFSHook.
+// If not, see <https://www.gnu.org/licenses/>.
+//
+package io.github.alexanderschuetz97.luajfshook.impl;
+
+import io.github.alexanderschuetz97.luajfshook.api.LuaDirectoryEntry;
+import io.github.alexanderschuetz97.luajfshook.api.LuaFileSystemHandler;
+import io.github.alexanderschuetz97.luajfshook.api.LuaPath;
+import io.github.alexanderschuetz97.luajfshook.api.LuaRandomAccessFile;
+
+import java.io.FileDescriptor;
+import java.io.FileNotFoundException;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.InvalidPathException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Copy on write overlay of two handlers. The lower handler is only ever read, all changes go to the upper handler.
+ * Many overlays can share the same lower handler, for example one overlay per tenant on top of a common base tree.
+ * Creating an overlay does not touch either layer.
+ *
+ * A file of the lower layer is copied to the upper layer when it is first modified. Opening it for writing alone
+ * does not copy it and truncating it (io.open with "w") never copies its content.
+ * Deleting a file or directory of the lower layer creates a whiteout marker file named {@link #WHITEOUT_PREFIX} + name
+ * in the upper layer. A directory that is recreated after it was deleted contains an {@link #OPAQUE_MARKER} that hides
+ * the directory of the lower layer. The markers are never visible through the overlay and names starting with
+ * {@link #WHITEOUT_PREFIX} can not be created. Because the markers are files, an upper layer on disk can be reused by a later overlay.
+ *
+ * Lookups are answered from a cache of merged directories. A directory is listed in both layers once when it is
+ * first accessed, changes made through the overlay update the cache directly. The layers must not be modified
+ * by other means while the overlay is used. The cache is dropped when it exceeds the configured number of directories.
+ *
+ * Directories that exist in the lower layer can not be moved. Symbolic and hard links are not supported.
+ */
+public class OverlayLuaFileSystemHandler implements LuaFileSystemHandler {
+
+    public static final String WHITEOUT_PREFIX = ".wh.";
+
+    public static final String OPAQUE_MARKER = ".wh..wh..opq";
+
+    public static final String TMP_DIR = "/tmp";
+
+    public static final int DEFAULT_MAX_CACHED_DIRECTORIES = 16384;
+
+    protected static final int NONE = 0;
+    protected static final int FILE = 1;
+    protected static final int DIR = 2;
+
+    protected final LuaFileSystemHandler lower;
+
+    protected final LuaPath lowerRoot;
+
+    protected final LuaFileSystemHandler upper;
+
+    protected final LuaPath upperRoot;
+
+    /**
+     * serializes all changes of the upper layer.
+     */
+    protected final Object writeLock = new Object();
+
+    private final int maxCachedDirectories;
+
+    private final AtomicInteger cachedDirectories = new AtomicInteger();
+
+    /**
+     * incremented under the write lock before the upper layer is changed.
+     * Directories loaded while it changed are not put into the cache.
+     */
+    private volatile int modCount;
+
+    private volatile Entry rootEntry;
+
+    private final AtomicLong tmpCounter = new AtomicLong();
+
+    private volatile OverlayLuaPath workDirectory;
+
+    /**
+     * Overlays the root directories ("/") of both handlers.
+     */
+    public OverlayLuaFileSystemHandler(LuaFileSystemHandler lower, LuaFileSystemHandler upper) {
+        this(lower, lower.resolvePath(String.valueOf(VirtualLuaPath.SEPARATOR)), upper, upper.resolvePath(String.valueOf(VirtualLuaPath.SEPARATOR)));
+    }
+
+    public OverlayLuaFileSystemHandler(LuaFileSystemHandler lower, LuaPath lowerRoot, LuaFileSystemHandler upper, LuaPath upperRoot) {
+        this(lower, lowerRoot, upper, upperRoot, DEFAULT_MAX_CACHED_DIRECTORIES);
+    }
+
+    /**
+     * @param lower read only layer
+     * @param lowerRoot directory of the lower handler that becomes the root of the overlay
+     * @param upper writable layer
+     * @param upperRoot directory of the upper handler that becomes the root of the overlay. Created when the first change is made.
+     * @param maxCachedDirectories maximum number of merged directories that are cached
+     */
+    public OverlayLuaFileSystemHandler(LuaFileSystemHandler lower, LuaPath lowerRoot, LuaFileSystemHandler upper, LuaPath upperRoot, int maxCachedDirectories) {
+        if (maxCachedDirectories <= 0) {
+            throw new IllegalArgumentException("maxCachedDirectories must be positive");
+        }
+
+        this.lower = Objects.requireNonNull(lower);
+        this.lowerRoot = lowerRoot.absolutePath();
+        this.upper = Objects.requireNonNull(upper);
+        this.upperRoot = upperRoot.absolutePath();
+        this.maxCachedDirectories = maxCachedDirectories;
+        this.workDirectory = new OverlayLuaPath(String.valueOf(VirtualLuaPath.SEPARATOR));
+    }
+
+    public LuaFileSystemHandler getLower() {
+        return lower;
+    }
+
+    public LuaFileSystemHandler getUpper() {
+        return upper;
+    }
+
+    /**
+     * drops all cached directories.
+     */
+    public void invalidateCache() {
+        rootEntry = null;
+        cachedDirectories.set(0);
+    }
+
+    @Override
+    public LuaPath resolvePath(String path) throws InvalidPathException {
+        return workDirectory.child(path);
+    }
+
+    @Override
+    public LuaPath relativePath(String path) throws InvalidPathException {
+        return new OverlayLuaPath(path);
+    }
+
+    /**
+     * returns the path of the overlay if the system path is inside the root of the upper or lower layer, otherwise null.
+     */
+    @Override
+    public LuaPath resolveSysPath(Path path) {
+        Path absolute = path.toAbsolutePath().normalize();
+        for (LuaPath root : new LuaPath[]{upperRoot, lowerRoot}) {
+            Path rootPath = root.toSystemPath();
+            if (rootPath == null) {
+                continue;
+            }
+
+            rootPath = rootPath.toAbsolutePath().normalize();
+            if (absolute.startsWith(rootPath)) {
+                OverlayLuaPath result = new OverlayLuaPath(String.valueOf(VirtualLuaPath.SEPARATOR));
+                for (Path element : rootPath.relativize(absolute)) {
+                    if (!element.toString().isEmpty()) {
+                        result = result.child(element.toString());
+                    }
+                }
+                return result;
+            }
+        }
+
+        return null;
+    }
+
+    @Override
+    public LuaPath getWorkDirectory() {
+        return workDirectory;
+    }
+
+    @Override
+    public LuaPath tmpFile(String prefix, String suffix) throws IOException {
+        OverlayLuaPath dir = tmpDir();
+        dir.mkdirs();
+
+        while (true) {
+            OverlayLuaPath file = dir.child((prefix == null ? ".luaj" : prefix) + tmpCounter.incrementAndGet() + (suffix == null ? "bin" : suffix));
+            try {
+                file.createNewFile();
+                return file;
+            } catch (FileAlreadyExistsException e) {
+                //Try next name
+            }
+        }
+    }
+
+    @Override
+    public OverlayLuaPath tmpDir() throws IOException {
+        return new OverlayLuaPath(TMP_DIR);
+    }
+
+    @Override
+    public void setWorkDirectory(LuaPath path) throws NotDirectoryException, IOException {
+        OverlayLuaPath dir = new OverlayLuaPath(Objects.requireNonNull(path).path()).absolutePath();
+        if (!dir.isDir()) {
+            throw new NotDirectoryException(dir.toString());
+        }
+
+        workDirectory = dir;
+    }
+
+    /**
+     * Delegates to the findResource of the layer that contains the file.
+     * A chunk cache of a lower handler shared by multiple overlays therefore serves all of them.
+     */
+    @Override
+    public InputStream findResource(String filename) {
+        OverlayLuaPath path = (OverlayLuaPath) resolvePath(filename);
+        Entry entry;
+        try {
+            entry = path.entry();
+        } catch (IOException e) {
+            return null;
+        }
+
+        if (entry == null || entry.isDirectory()) {
+            return null;
+        }
+
+        if (entry.upperType != NONE) {
+            return upper.findResource(path.upperPath().path());
+        }
+
+        return lower.findResource(path.lowerPath().path());
+    }
+
+    //----------------------------------------------------------------------------------------------------------------
+    // Merged directory cache
+
+    /**
+     * A name in a merged directory. Immutable except for the cached directory.
+     */
+    protected static final class Entry {
+        protected final int upperType;
+        protected final int lowerType;
+        private MergedDir dir;
+
+        protected Entry(int upperType, int lowerType) {
+            this.upperType = upperType;
+            this.lowerType = lowerType;
+        }
+
+        protected boolean isDirectory() {
+            return upperType != NONE ? upperType == DIR : lowerType == DIR;
+        }
+
+        /**
+         * true if the lower layer contributes to this name.
+         */
+        protected boolean lowerVisible() {
+            return lowerType != NONE && (upperType == NONE || (upperType == DIR && lowerType == DIR));
+        }
+    }
+
+    protected static final class MergedDir {
+        protected final LuaPath upper;
+        protected final LuaPath lower;
+        protected final ConcurrentHashMap<String, Entry> entries;
+
+        protected MergedDir(LuaPath upper, LuaPath lower, ConcurrentHashMap<String, Entry> entries) {
+            this.upper = upper;
+            this.lower = lower;
+            this.entries = entries;
+        }
+    }
+
+    private Entry rootEntry() {
+        Entry entry = rootEntry;
+        if (entry == null) {
+            entry = new Entry(upperRoot.isDir() ? DIR : NONE, lowerRoot.isDir() ? DIR : NONE);
+            rootEntry = entry;
+        }
+        return entry;
+    }
+
+    /**
+     * returns the merged directory of the entry. Loads it if it is not cached.
+     */
+    protected MergedDir directory(Entry entry, LuaPath upperPath, LuaPath lowerPath) throws IOException {
+        synchronized (entry) {
+            if (entry.dir != null) {
+                return entry.dir;
+            }
+        }
+
+        int expectedModCount = modCount;
+        MergedDir dir = load(entry, upperPath, lowerPath);
+        synchronized (entry) {
+            if (entry.dir != null) {
+                return entry.dir;
+            }
+
+            if (modCount != expectedModCount) {
+                //The layers changed while loading, the result may be stale.
+                return dir;
+            }
+
+            entry.dir = dir;
+        }
+
+        if (cachedDirectories.incrementAndGet() > maxCachedDirectories) {
+            invalidateCache();
+        }
+
+        return dir;
+    }
+
+    private MergedDir load(Entry entry, LuaPath upperPath, LuaPath lowerPath) throws IOException {
+        Map<String, Integer> upperTypes = new HashMap<>();
+        Set<String> whiteouts = new HashSet<>();
+        boolean opaque = false;
+
+        if (entry.upperType == DIR) {
+            try (DirectoryStream<LuaDirectoryEntry> stream = FileTreeWalker.newDirectoryStream(upperPath)) {
+                for (LuaDirectoryEntry child : stream) {
+                    String name = child.path().name();
+                    if (OPAQUE_MARKER.equals(name)) {
+                        opaque = true;
+                    } else if (name.startsWith(WHITEOUT_PREFIX)) {
+                        whiteouts.add(name.substring(WHITEOUT_PREFIX.length()));
+                    } else {
+                        upperTypes.put(name, type(child));
+                    }
+                }
+            } catch (DirectoryIteratorException e) {
+                throw e.getCause();
+            }
+        }
+
+        Map<String, Integer> lowerTypes = new HashMap<>();
+        if (entry.lowerVisible() && !opaque) {
+            try (DirectoryStream<LuaDirectoryEntry> stream = FileTreeWalker.newDirectoryStream(lowerPath)) {
+                for (LuaDirectoryEntry child : stream) {
+                    String name = child.path().name();
+                    if (!whiteouts.contains(name)) {
+                        lowerTypes.put(name, type(child));
+                    }
+                }
+            } catch (DirectoryIteratorException e) {
+                throw e.getCause();
+            }
+        }
+
+        ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>((upperTypes.size() + lowerTypes.size()) * 4 / 3 + 1);
+        for (Map.Entry<String, Integer> child : upperTypes.entrySet()) {
+            Integer lowerType = lowerTypes.remove(child.getKey());
+            entries.put(child.getKey(), new Entry(child.getValue(), lowerType == null ? NONE : lowerType));
+        }
+
+        for (Map.Entry<String, Integer> child : lowerTypes.entrySet()) {
+            entries.put(child.getKey(), new Entry(NONE, child.getValue()));
+        }
+
+        return new MergedDir(upperPath, lowerPath, entries);
+    }
+
+    private static int type(LuaDirectoryEntry entry) {
+        try {
+            return entry.attributes().isDirectory() ? DIR : FILE;
+        } catch (IOException e) {
+            return FILE;
+        }
+    }
+
+    /**
+     * returns the entry of the path or null if the path does not exist in the overlay.
+     */
+    protected Entry lookup(OverlayLuaPath path) throws IOException {
+        String[] segments = path.absolutePath().segments();
+        Entry entry = rootEntry();
+        if (entry.upperType == NONE && entry.lowerType == NONE) {
+            return null;
+        }
+
+        LuaPath upperPath = upperRoot;
+        LuaPath lowerPath = lowerRoot;
+        for (String segment : segments) {
+            if (!entry.isDirectory()) {
+                return null;
+            }
+
+            MergedDir dir = directory(entry, upperPath, lowerPath);
+            entry = dir.entries.get(segment);
+            if (entry == null) {
+                return null;
+            }
+
+            upperPath = dir.upper.child(segment);
+            lowerPath = dir.lower.child(segment);
+        }
+
+        return entry;
+    }
+
+    /**
+     * returns the merged directory that contains the path or throws if the parent is not a directory of the overlay.
+     */
+    protected MergedDir parentDirectory(OverlayLuaPath path) throws IOException {
+        OverlayLuaPath parent = path.absolutePath().parent();
+        if (parent == null) {
+            throw new IOException("the root directory has no parent");
+        }
+
+        Entry entry = lookup(parent);
+        if (entry == null || !entry.isDirectory()) {
+            throw new NotDirectoryException(parent.path);
+        }
+
+        return directory(entry, parent.upperPath(), parent.lowerPath());
+    }
+
+    //----------------------------------------------------------------------------------------------------------------
+    // Changes of the upper layer, all called with the write lock held
+
+    private void modifying() {
+        modCount++;
+    }
+
+    /**
+     * makes sure the directory exists in the upper layer. Creates it and all its parents in the upper layer if needed.
+     */
+    protected void ensureUpperDirectory(OverlayLuaPath dir) throws IOException {
+        Entry root = rootEntry();
+        if (root.upperType != DIR) {
+            modifying();
+            upperRoot.mkdirs();
+            Entry created = new Entry(DIR, root.lowerType);
+            rootEntry = created;
+            root = created;
+        }
+
+        String[] segments = dir.absolutePath().segments();
+        Entry entry = root;
+        LuaPath upperPath = upperRoot;
+        LuaPath lowerPath = lowerRoot;
+        for (String segment : segments) {
+            MergedDir merged = directory(entry, upperPath, lowerPath);
+            entry = merged.entries.get(segment);
+            upperPath = merged.upper.child(segment);
+            lowerPath = merged.lower.child(segment);
+            if (entry == null || !entry.isDirectory()) {
+                throw new NotDirectoryException(dir.path);
+            }
+
+            if (entry.upperType == DIR) {
+                continue;
+            }
+
+            modifying();
+            upperPath.mkdir();
+            Entry created = new Entry(DIR, entry.lowerType);
+            merged.entries.put(segment, created);
+            entry = created;
+        }
+    }
+
+    private void removeWhiteout(MergedDir dir, String name) throws IOException {
+        LuaPath marker = dir.upper.child(WHITEOUT_PREFIX + name);
+        if (marker.exists()) {
+            marker.delete();
+        }
+    }
+
+    private void createWhiteout(MergedDir dir, String name) throws IOException {
+        try {
+            dir.upper.child(WHITEOUT_PREFIX + name).createNewFile();
+        } catch (FileAlreadyExistsException e) {
+            //DC
+        }
+    }
+
+    /**
+     * copies a file of the lower layer to the upper layer. If truncate is true only an empty file is created.
+     */
+    protected void copyUp(OverlayLuaPath path, boolean truncate) throws IOException {
+        synchronized (writeLock) {
+            Entry entry = path.entry();
+            if (entry == null) {
+                throw new NoSuchFileException(path.path);
+            }
+
+            if (entry.upperType != NONE) {
+                return;
+            }
+
+            OverlayLuaPath parent = path.absolutePath().parent();
+            ensureUpperDirectory(parent);
+            MergedDir dir = parentDirectory(path);
+            modifying();
+            LuaPath target = dir.upper.child(path.name());
+            if (truncate) {
+                target.createNewFile();
+            } else {
+                FileTransfer.transfer(dir.lower.child(path.name()), target);
+            }
+            dir.entries.put(path.name(), new Entry(FILE, entry.lowerType));
+        }
+    }
+
+    //----------------------------------------------------------------------------------------------------------------
+    // Path
+
+    protected class OverlayLuaPath extends VirtualLuaPath {
+
+        public OverlayLuaPath(String path) {
+            super(path);
+            if (name().startsWith(WHITEOUT_PREFIX)) {
+                throw new InvalidPathException(path, "names starting with " + WHITEOUT_PREFIX + " are reserved");
+            }
+        }
+
+        @Override
+        protected OverlayLuaPath newPath(String path) {
+            return new OverlayLuaPath(path);
+        }
+
+        @Override
+        protected OverlayLuaPath workDirectory() {
+            return workDirectory;
+        }
+
+        @Override
+        protected Object fileSystem() {
+            return OverlayLuaFileSystemHandler.this;
+        }
+
+        @Override
+        public OverlayLuaPath absolutePath() {
+            return (OverlayLuaPath) super.absolutePath();
+        }
+
+        @Override
+        public OverlayLuaPath child(String name) throws InvalidPathException {
+            return (OverlayLuaPath) super.child(name);
+        }
+
+        @Override
+        public OverlayLuaPath parent() {
+            return (OverlayLuaPath) super.parent();
+        }
+
+        private String relativePath() {
+            String absolute = absolutePath().path;
+            return absolute.substring(1);
+        }
+
+        protected LuaPath upperPath() {
+            String relative = relativePath();
+            return relative.isEmpty() ? upperRoot : upperRoot.child(relative);
+        }
+
+        protected LuaPath lowerPath() {
+            String relative = relativePath();
+            return relative.isEmpty() ? lowerRoot : lowerRoot.child(relative);
+        }
+
+        protected Entry entry() throws IOException {
+            return lookup(this);
+        }
+
+        private Entry entryOrNull() {
+            try {
+                return entry();
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        protected Entry existingEntry() throws IOException {
+            Entry entry = entry();
+            if (entry == null) {
+                throw new NoSuchFileException(path);
+            }
+            return entry;
+        }
+
+        /**
+         * returns the path of the layer that provides the content of this path.
+         */
+        protected LuaPath layerPath(Entry entry) {
+            return entry.upperType != NONE ? upperPath() : lowerPath();
+        }
+
+        @Override
+        public BasicFileAttributes attributes() throws IOException {
+            return layerPath(existingEntry()).attributes();
+        }
+
+        @Override
+        public void setFileTimes(FileTime lastModifiedTime, FileTime lastAccessTime, FileTime createTime) throws IOException {
+            Entry entry = existingEntry();
+            if (entry.upperType == NONE) {
+                if (entry.isDirectory()) {
+                    synchronized (writeLock) {
+                        ensureUpperDirectory(this);
+                    }
+                } else {
+                    copyUp(this, false);
+                }
+            }
+            upperPath().setFileTimes(lastModifiedTime, lastAccessTime, createTime);
+        }
+
+        @Override
+        public boolean exists() {
+            return entryOrNull() != null;
+        }
+
+        @Override
+        public boolean isDir() {
+            Entry entry = entryOrNull();
+            return entry != null && entry.isDirectory();
+        }
+
+        @Override
+        public boolean isFile() {
+            Entry entry = entryOrNull();
+            return entry != null && !entry.isDirectory();
+        }
+
+        @Override
+        public DirectoryStream<LuaDirectoryEntry> newDirectoryStream() throws NotDirectoryException, IOException {
+            Entry entry = entry();
+            if (entry == null || !entry.isDirectory()) {
+                throw new NotDirectoryException(path);
+            }
+
+            final MergedDir dir = directory(entry, upperPath(), lowerPath());
+            final List<String> names = new ArrayList<>(dir.entries.keySet());
+            return new DirectoryStream<LuaDirectoryEntry>() {
+
+                private boolean iterated;
+
+                @Override
+                public Iterator<LuaDirectoryEntry> iterator() {
+                    if (iterated) {
+                        throw new IllegalStateException("iterator already obtained");
+                    }
+                    iterated = true;
+
+                    return new Iterator<LuaDirectoryEntry>() {
+                        private int index;
+
+                        @Override
+                        public boolean hasNext() {
+                            return index < names.size();
+                        }
+
+                        @Override
+                        public LuaDirectoryEntry next() {
+                            if (index >= names.size()) {
+                                throw new NoSuchElementException();
+                            }
+
+                            final String name = names.get(index++);
+                            final OverlayLuaPath childPath = child(name);
+                            return new LuaDirectoryEntry() {
+                                private BasicFileAttributes attributes;
+
+                                @Override
+                                public LuaPath path() {
+                                    return childPath;
+                                }
+
+                                @Override
+                                public BasicFileAttributes attributes() throws IOException {
+                                    if (attributes == null) {
+                                        Entry childEntry = dir.entries.get(name);
+                                        if (childEntry == null) {
+                                            throw new NoSuchFileException(childPath.path);
+                                        }
+                                        attributes = (childEntry.upperType != NONE ? dir.upper : dir.lower).child(name).attributes();
+                                    }
+                                    return attributes;
+                                }
+
+                                @Override
+                                public String toString() {
+                                    return childPath.toString();
+                                }
+                            };
+                        }
+
+                        @Override
+                        public void remove() {
+                            throw new UnsupportedOperationException();
+                        }
+                    };
+                }
+
+                @Override
+                public void close() {
+                    //NOOP
+                }
+            };
+        }
+
+        @Override
+        public void createNewFile() throws FileAlreadyExistsException, IOException, NotDirectoryException {
+            create(false);
+        }
+
+        @Override
+        public void mkdir() throws FileAlreadyExistsException, IOException, NotDirectoryException {
+            create(true);
+        }
+
+        private void create(boolean directory) throws IOException {
+            synchronized (writeLock) {
+                if (isRoot() || entry() != null) {
+                    throw new FileAlreadyExistsException(path);
+                }
+
+                MergedDir dir = parentDirectory(this);
+                ensureUpperDirectory(parent());
+                dir = parentDirectory(this);
+
+                modifying();
+                String name = name();
+                LuaPath target = dir.upper.child(name);
+                boolean whitedOut = dir.upper.child(WHITEOUT_PREFIX + name).exists();
+                if (directory) {
+                    target.mkdir();
+                    if (whitedOut || dir.lower.child(name).exists()) {
+                        //The directory of the lower layer was deleted and must stay hidden.
+                        target.child(OPAQUE_MARKER).createNewFile();
+                    }
+                } else {
+                    target.createNewFile();
+                }
+
+                if (whitedOut) {
+                    removeWhiteout(dir, name);
+                }
+
+                dir.entries.put(name, new Entry(directory ? DIR : FILE, NONE));
+            }
+        }
+
+        @Override
+        public void mkdirs() throws FileAlreadyExistsException, IOException, NotDirectoryException {
+            OverlayLuaPath current = new OverlayLuaPath(String.valueOf(SEPARATOR));
+            String[] segments = absolutePath().segments();
+            for (int i = 0; i < segments.length; i++) {
+                current = current.child(segments[i]);
+                Entry entry = current.entry();
+                if (entry == null) {
+                    try {
+                        current.mkdir();
+                    } catch (FileAlreadyExistsException e) {
+                        //Created concurrently
+                    }
+                    continue;
+                }
+
+                if (!entry.isDirectory()) {
+                    if (i == segments.length-1) {
+                        throw new FileAlreadyExistsException(path);
+                    }
+                    throw new NotDirectoryException(path);
+                }
+            }
+        }
+
+        @Override
+        public void link(LuaPath to) throws IOException {
+            throw new IOException("links are not supported by the overlay");
+        }
+
+        @Override
+        public void delete() throws IOException {
+            synchronized (writeLock) {
+                Entry entry = existingEntry();
+                if (isRoot()) {
+                    throw new IOException("cannot delete the root directory");
+                }
+
+                if (entry.isDirectory() && !directory(entry, upperPath(), lowerPath()).entries.isEmpty()) {
+                    throw new DirectoryNotEmptyException(path);
+                }
+
+                MergedDir dir = parentDirectory(this);
+                String name = name();
+                modifying();
+                if (entry.lowerType != NONE) {
+                    ensureUpperDirectory(parent());
+                    dir = parentDirectory(this);
+                }
+
+                if (entry.upperType != NONE) {
+                    LuaPath target = dir.upper.child(name);
+                    if (entry.upperType == DIR) {
+                        //Only markers are left in the directory
+                        for (LuaPath marker : target.list()) {
+                            marker.delete();
+                        }
+                    }
+                    target.delete();
+                }
+
+                if (entry.lowerType != NONE) {
+                    createWhiteout(dir, name);
+                }
+
+                dir.entries.remove(name);
+            }
+        }
+
+        @Override
+        public void move(LuaPath tar) throws IOException {
+            if (!(tar instanceof OverlayLuaPath) || ((OverlayLuaPath) tar).fileSystem() != OverlayLuaFileSystemHandler.this) {
+                if (isDir()) {
+                    throw new IOException("cannot move directory to another file system");
+                }
+                super.moveFile(tar);
+                return;
+            }
+
+            OverlayLuaPath target = ((OverlayLuaPath) tar).absolutePath();
+            synchronized (writeLock) {
+                Entry entry = existingEntry();
+                if (absolutePath().equals(target)) {
+                    return;
+                }
+
+                if (!entry.isDirectory()) {
+                    moveFile(target);
+                    return;
+                }
+
+                if (entry.lowerType != NONE) {
+                    throw new IOException("cannot move a directory of the lower layer");
+                }
+
+                if (target.path.startsWith(absolutePath().path + SEPARATOR)) {
+                    throw new IOException("cannot move a directory into itself");
+                }
+
+                Entry existing = target.entry();
+                if (existing != null) {
+                    if (!existing.isDirectory() || existing.lowerType != NONE || !directory(existing, target.upperPath(), target.lowerPath()).entries.isEmpty()) {
+                        throw new DirectoryNotEmptyException(target.path);
+                    }
+                }
+
+                MergedDir targetDir = target.mergedParent();
+                ensureUpperDirectory(target.parent());
+                targetDir = target.mergedParent();
+                MergedDir sourceDir = parentDirectory(this);
+
+                modifying();
+                upperPath().move(targetDir.upper.child(target.name()));
+                sourceDir.entries.remove(name());
+                if (targetDir.upper.child(WHITEOUT_PREFIX + target.name()).exists()) {
+                    removeWhiteout(targetDir, target.name());
+                    targetDir.upper.child(target.name()).child(OPAQUE_MARKER).createNewFile();
+                }
+
+                //The moved directory is loaded again from the upper layer when it is accessed
+                targetDir.entries.put(target.name(), new Entry(DIR, NONE));
+            }
+        }
+
+        private MergedDir mergedParent() throws IOException {
+            return OverlayLuaFileSystemHandler.this.parentDirectory(this);
+        }
+
+        @Override
+        public void moveFile(LuaPath tar) throws IOException {
+            if (!(tar instanceof OverlayLuaPath) || ((OverlayLuaPath) tar).fileSystem() != OverlayLuaFileSystemHandler.this) {
+                super.moveFile(tar);
+                return;
+            }
+
+            OverlayLuaPath target = ((OverlayLuaPath) tar).absolutePath();
+            synchronized (writeLock) {
+                Entry entry = existingEntry();
+                if (entry.isDirectory()) {
+                    throw new IOException("cannot move directory");
+                }
+
+                if (absolutePath().equals(target)) {
+                    return;
+                }
+
+                Entry existing = target.entry();
+                if (existing != null && existing.isDirectory()) {
+                    throw new IOException("target is a directory");
+                }
+
+                if (entry.upperType == NONE) {
+                    //Only the target is written, the source is hidden by a whiteout.
+                    target.mergedParent();
+                    ensureUpperDirectory(target.parent());
+                    MergedDir targetDir = target.mergedParent();
+                    modifying();
+                    FileTransfer.transfer(lowerPath(), targetDir.upper.child(target.name()));
+                    removeWhiteout(targetDir, target.name());
+                    targetDir.entries.put(target.name(), new Entry(FILE, existing == null ? NONE : existing.lowerType));
+                } else {
+                    target.mergedParent();
+                    ensureUpperDirectory(target.parent());
+                    MergedDir targetDir = target.mergedParent();
+                    modifying();
+                    upperPath().moveFile(targetDir.upper.child(target.name()));
+                    removeWhiteout(targetDir, target.name());
+                    targetDir.entries.put(target.name(), new Entry(FILE, existing == null ? NONE : existing.lowerType));
+                }
+
+                MergedDir sourceDir = parentDirectory(this);
+                if (entry.lowerType != NONE) {
+                    ensureUpperDirectory(parent());
+                    sourceDir = parentDirectory(this);
+                    createWhiteout(sourceDir, name());
+                }
+                sourceDir.entries.remove(name());
+            }
+        }
+
+        @Override
+        public LuaRandomAccessFile open(String mode) throws IOException {
+            boolean writable = !"r".equals(mode);
+            Entry entry = entry();
+            if (entry == null) {
+                if (!writable) {
+                    throw new FileNotFoundException(path + " (No such file or directory)");
+                }
+
+                try {
+                    createNewFile();
+                } catch (FileAlreadyExistsException e) {
+                    //Created concurrently
+                } catch (NotDirectoryException e) {
+                    throw new FileNotFoundException(path + " (No such file or directory)");
+                }
+                entry = existingEntry();
+            }
+
+            if (entry.isDirectory()) {
+                throw new FileNotFoundException(path + " (Is a directory)");
+            }
+
+            if (entry.upperType != NONE) {
+                return upperPath().open(mode);
+            }
+
+            LuaRandomAccessFile file = lowerPath().open("r");
+            return writable ? new CopyOnWriteLuaRandomAccessFile(this, file, mode) : file;
+        }
+
+        @Override
+        public InputStream openInput() throws FileNotFoundException, IOException {
+            Entry entry = entry();
+            if (entry == null) {
+                throw new FileNotFoundException(path + " (No such file or directory)");
+            }
+
+            if (entry.isDirectory()) {
+                throw new IOException("cannot open directory for reading");
+            }
+
+            return layerPath(entry).openInput();
+        }
+
+        @Override
+        public OutputStream openOutput(boolean append) throws IOException {
+            Entry entry = entry();
+            if (entry == null) {
+                OverlayLuaPath parent = absolutePath().parent();
+                if (parent != null) {
+                    parent.mkdirs();
+                }
+                try {
+                    createNewFile();
+                } catch (FileAlreadyExistsException e) {
+                    //Created concurrently
+                }
+                entry = existingEntry();
+            }
+
+            if (entry.isDirectory()) {
+                throw new IOException("cannot open directory for writing");
+            }
+
+            if (entry.upperType == NONE) {
+                copyUp(this, !append);
+            }
+
+            return upperPath().openOutput(append);
+        }
+
+        @Override
+        public long size() throws IOException {
+            return layerPath(existingEntry()).size();
+        }
+
+        @Override
+        public Path toSystemPath() {
+            Entry entry = entryOrNull();
+            return entry == null ? upperPath().toSystemPath() : layerPath(entry).toSystemPath();
+        }
+    }
+
+    /**
+     * Reads from the file of the lower layer until the first change. The file is copied to the upper layer
+     * before the first write, or only created empty if the first change truncates it to 0.
+     */
+    protected class CopyOnWriteLuaRandomAccessFile implements LuaRandomAccessFile, Flushable {
+
+        protected final OverlayLuaPath path;
+
+        protected final String mode;
+
+        protected LuaRandomAccessFile current;
+
+        protected boolean copied;
+
+        protected CopyOnWriteLuaRandomAccessFile(OverlayLuaPath path, LuaRandomAccessFile lowerFile, String mode) {
+            this.path = path;
+            this.current = lowerFile;
+            this.mode = mode;
+        }
+
+        private void copyUp(boolean truncate) throws IOException {
+            if (copied) {
+                return;
+            }
+
+            long position = current.getPosition();
+            current.close();
+            OverlayLuaFileSystemHandler.this.copyUp(path, truncate);
+            current = path.upperPath().open(mode);
+            current.setPosition(truncate ? 0 : position);
+            copied = true;
+        }
+
+        /**
+         * The file descriptor and channel of the lower layer are never returned to prevent writes to it.
+         */
+        @Override
+        public synchronized FileDescriptor getFileDescriptor() throws IOException {
+            return copied ? current.getFileDescriptor() : null;
+        }
+
+        @Override
+        public synchronized FileChannel getFileChannel() {
+            return copied ? current.getFileChannel() : null;
+        }
+
+        @Override
+        public LuaPath getPath() {
+            return path.absolutePath();
+        }
+
+        @Override
+        public synchronized void setPosition(long position) throws IOException {
+            current.setPosition(position);
+        }
+
+        @Override
+        public synchronized long getPosition() throws IOException {
+            return current.getPosition();
+        }
+
+        @Override
+        public synchronized long size() throws IOException {
+            return current.size();
+        }
+
+        @Override
+        public synchronized int read() throws IOException {
+            return current.read();
+        }
+
+        @Override
+        public synchronized int read(byte[] buf, int off, int len) throws IOException {
+            return current.read(buf, off, len);
+        }
+
+        @Override
+        public synchronized void write(int b) throws IOException {
+            copyUp(false);
+            current.write(b);
+        }
+
+        @Override
+        public synchronized void write(byte[] buf, int off, int len) throws IOException {
+            copyUp(false);
+            current.write(buf, off, len);
+        }
+
+        @Override
+        public synchronized void setSize(long size) throws IOException {
+            if (!copied && size == 0) {
+                copyUp(true);
+                //Another handle may already have copied the file up, in that case it still has content.
+                current.setSize(0);
+                return;
+            }
+
+            copyUp(false);
+            current.setSize(size);
+        }
+
+        @Override
+        public synchronized void flush() throws IOException {
+            BufferedLuaRandomAccessFile.flush(current);
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            current.close();
+        }
+    }
+}
@@ -0,0 +1,274 @@
+//
+// Copyright Alexander Schütz, 2022
+//
+// This file is part of LuajFSHook.
+//
+// LuajFSHook is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// LuajFSHook is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// A copy of the GNU Lesser General Public License should be provided
+// in the COPYING & COPYING.LESSER files in top level directory of LuajFSHook.
+// If not, see <https://www.gnu.org/licenses/>.
+//
+package io.github.alexanderschuetz97.luajfshook.impl;
+
+import io.github.alexanderschuetz97.luajfshook.api.LuaDirectoryEntry;
+import io.github.alexanderschuetz97.luajfshook.api.LuaPath;
+import io.github.alexanderschuetz97.luajfshook.api.LuaPath.LuaAttributeFileVisitor;
+import io.github.alexanderschuetz97.luajfshook.api.LuaPath.LuaFileVisitor;
+
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Parallel variant of {@link LuaPath#walkFileTree(int, boolean, LuaFileVisitor)} that works with any LuaPath.
+ * Every directory that is entered becomes a task of the pool. The entries of a directory are read by its task
+ * using {@link FileTreeWalker#newDirectoryStream(LuaPath)}, files are visited by that task and subdirectories are forked as new tasks.
+ */
+public final class ParallelFileTreeWalker {
+
+    private ParallelFileTreeWalker() {
+        //Util
+    }
+
+    /**
+     * walks the file tree and visits sibling subtrees concurrently using the given pool.
+     * The visitor must be thread safe.
+     *
+     * Guarantees: preVisitDirectory of a directory is called before any of its entries are visited and
+     * postVisitDirectory is called after all entries and subtrees of the directory have been visited.
+     * There is no guarantee on the order in which siblings or different subtrees are visited.
+     * TERMINATE stops the entire walk as soon as possible. SKIP_SIBLINGS returned by visitFile stops visiting
+     * the remaining entries of that directory but subtrees that are already being visited are completed.
+     * SKIP_SIBLINGS returned by preVisitDirectory behaves like SKIP_SUBTREE.
+     *
+     * If the visitor throws an IOException, the walk is stopped and the exception is rethrown.
+     */
+    public static void walk(LuaPath start, int depth, boolean followLinks, LuaFileVisitor visitor, ForkJoinPool pool) throws IOException {
+        if (depth < 0) {
+            throw new IllegalArgumentException("depth must not be negative");
+        }
+
+        Walk walk = new Walk(Objects.requireNonNull(visitor), followLinks);
+        BasicFileAttributes attributes;
+        try {
+            attributes = walk.readAttributes(start);
+        } catch (IOException e) {
+            //Same as Files.walkFileTree with a visitFileFailed that continues.
+            return;
+        }
+
+        if (!attributes.isDirectory() || depth == 0) {
+            walk.visitFile(start, attributes);
+            return;
+        }
+
+        pool.invoke(new DirectoryTask(walk, start, attributes, depth, null));
+        walk.rethrow();
+    }
+
+    private static class Walk {
+        private final LuaFileVisitor visitor;
+        private final LuaAttributeFileVisitor attributeVisitor;
+        private final boolean followLinks;
+        private final AtomicReference<IOException> error = new AtomicReference<>();
+        private volatile boolean terminated;
+
+        private Walk(LuaFileVisitor visitor, boolean followLinks) {
+            this.visitor = visitor;
+            this.attributeVisitor = visitor instanceof LuaAttributeFileVisitor ? (LuaAttributeFileVisitor) visitor : null;
+            this.followLinks = followLinks;
+        }
+
+        private BasicFileAttributes readAttributes(LuaPath path) throws IOException {
+            return followLinks ? path.attributes() : path.linkAttributes();
+        }
+
+        private BasicFileAttributes readAttributes(LuaDirectoryEntry entry) throws IOException {
+            return followLinks ? entry.attributes() : entry.path().linkAttributes();
+        }
+
+        private FileVisitResult preVisitDirectory(LuaPath dir, BasicFileAttributes attributes) throws IOException {
+            return check(attributeVisitor != null ? attributeVisitor.preVisitDirectory(dir, attributes) : visitor.preVisitDirectory(dir));
+        }
+
+        private FileVisitResult visitFile(LuaPath file, BasicFileAttributes attributes) throws IOException {
+            return check(attributeVisitor != null ? attributeVisitor.visitFile(file, attributes) : visitor.visitFile(file));
+        }
+
+        private FileVisitResult postVisitDirectory(LuaPath dir) throws IOException {
+            return check(visitor.postVisitDirectory(dir));
+        }
+
+        private FileVisitResult check(FileVisitResult result) {
+            if (result == FileVisitResult.TERMINATE) {
+                terminated = true;
+            }
+            return result == null ? FileVisitResult.CONTINUE : result;
+        }
+
+        private void fail(IOException exc) {
+            error.compareAndSet(null, exc);
+            terminated = true;
+        }
+
+        private void rethrow() throws IOException {
+            IOException exc = error.get();
+            if (exc != null) {
+                throw exc;
+            }
+        }
+    }
+
+    /**
+     * chain of the file keys of the directories above a directory. Used to detect cycles when following links.
+     */
+    private static class Ancestor {
+        private final Object fileKey;
+        private final Ancestor parent;
+
+        private Ancestor(Object fileKey, Ancestor parent) {
+            this.fileKey = fileKey;
+            this.parent = parent;
+        }
+
+        private boolean contains(Object key) {
+            for (Ancestor current = this; current != null; current = current.parent) {
+                if (key.equals(current.fileKey)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static class DirectoryTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Walk walk;
+        private final LuaPath dir;
+        private final BasicFileAttributes attributes;
+        private final int depth;
+        private final Ancestor ancestors;
+
+        private DirectoryTask(Walk walk, LuaPath dir, BasicFileAttributes attributes, int depth, Ancestor ancestors) {
+            this.walk = walk;
+            this.dir = dir;
+            this.attributes = attributes;
+            this.depth = depth;
+            this.ancestors = ancestors;
+        }
+
+        @Override
+        protected void compute() {
+            if (walk.terminated) {
+                return;
+            }
+
+            List<DirectoryTask> subtasks = new ArrayList<>();
+            try {
+                if (walk.preVisitDirectory(dir, attributes) != FileVisitResult.CONTINUE) {
+                    return;
+                }
+
+                visitEntries(subtasks);
+            } catch (IOException e) {
+                walk.fail(e);
+            }
+
+            for (int i = subtasks.size()-1; i >= 0; i--) {
+                subtasks.get(i).join();
+            }
+
+            if (walk.terminated) {
+                return;
+            }
+
+            try {
+                walk.postVisitDirectory(dir);
+            } catch (IOException e) {
+                walk.fail(e);
+            }
+        }
+
+        /**
+         * visits the files of the directory and forks a task for every subdirectory.
+         * Only exceptions thrown by the visitor are propagated.
+         */
+        private void visitEntries(List<DirectoryTask> subtasks) throws IOException {
+            Object fileKey = attributes.fileKey();
+            Ancestor childAncestors = fileKey == null ? ancestors : new Ancestor(fileKey, ancestors);
+
+            DirectoryStream<LuaDirectoryEntry> stream;
+            try {
+                stream = FileTreeWalker.newDirectoryStream(dir);
+            } catch (IOException e) {
+                //Same as Files.walkFileTree with a visitFileFailed that continues.
+                return;
+            }
+
+            try {
+                Iterator<LuaDirectoryEntry> iterator = stream.iterator();
+                while (!walk.terminated) {
+                    LuaDirectoryEntry entry;
+                    try {
+                        if (!iterator.hasNext()) {
+                            break;
+                        }
+                        entry = iterator.next();
+                    } catch (DirectoryIteratorException e) {
+                        break;
+                    }
+
+                    BasicFileAttributes entryAttributes;
+                    try {
+                        entryAttributes = walk.readAttributes(entry);
+                    } catch (IOException e) {
+                        continue;
+                    }
+
+                    if (entryAttributes.isDirectory() && depth > 1) {
+                        Object entryKey = entryAttributes.fileKey();
+                        if (walk.followLinks && entryKey != null && childAncestors != null && childAncestors.contains(entryKey)) {
+                            //Cycle
+                            continue;
+                        }
+
+                        DirectoryTask task = new DirectoryTask(walk, entry.path(), entryAttributes, depth-1, childAncestors);
+                        task.fork();
+                        subtasks.add(task);
+                        continue;
+                    }
+
+                    if (walk.visitFile(entry.path(), entryAttributes) == FileVisitResult.SKIP_SIBLINGS) {
+                        break;
+                    }
+                }
+            } finally {
+                try {
+                    stream.close();
+                } catch (IOException e) {
+                    //DC
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,332 @@
+//
+// Copyright Alexander Schütz, 2022
+//
+// This file is part of LuajFSHook.
+//
+// LuajFSHook is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// LuajFSHook is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// A copy of the GNU Lesser General Public License should be provided
+// in the COPYING & COPYING.LESSER files in top level directory of LuajFSHook.
+// If not, see <https://www.gnu.org/licenses/>.
+//
+package io.github.alexanderschuetz97.luajfshook.impl;
+
+import org.luaj.vm2.Globals;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the amount of processes that os.execute and io.popen run at the same time.
+ * Callers that exceed the limit wait in a fair fifo queue until a running process has exited.
+ * Optionally each {@link Globals} may be limited to fewer processes and processes that run longer than a timeout are destroyed.
+ *
+ * This class is thread safe and is intended to be shared by all Globals that should have a common limit.
+ */
+public class ProcessScheduler {
+
+    private static ScheduledExecutorService TIMEOUT_EXECUTOR;
+
+    private synchronized static ScheduledExecutorService timeoutExecutor() {
+        if (TIMEOUT_EXECUTOR == null) {
+            TIMEOUT_EXECUTOR = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "luajfshook-process-timeout");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+
+        return TIMEOUT_EXECUTOR;
+    }
+
+    private final int maxProcesses;
+
+    private final int maxProcessesPerGlobals;
+
+    private final long timeoutMillis;
+
+    private final Semaphore permits;
+
+    private final Map<Globals, Semaphore> quotas = Collections.synchronizedMap(new WeakHashMap<Globals, Semaphore>());
+
+    private final AtomicInteger waiting = new AtomicInteger();
+
+    private final AtomicLong started = new AtomicLong();
+
+    private final AtomicLong timedOut = new AtomicLong();
+
+    private final AtomicLong totalSpawnLatencyNanos = new AtomicLong();
+
+    private final AtomicLong maxSpawnLatencyNanos = new AtomicLong();
+
+    /**
+     * Scheduler without a per globals quota or timeout.
+     */
+    public ProcessScheduler(int maxProcesses) {
+        this(maxProcesses, 0, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param maxProcesses maximum amount of processes that run at the same time.
+     * @param maxProcessesPerGlobals maximum amount of processes started by the same globals that run at the same time. 0 -> no quota
+     * @param timeout processes that run longer are destroyed. 0 -> no timeout
+     */
+    public ProcessScheduler(int maxProcesses, int maxProcessesPerGlobals, long timeout, TimeUnit unit) {
+        if (maxProcesses <= 0) {
+            throw new IllegalArgumentException("maxProcesses must be positive");
+        }
+
+        if (maxProcessesPerGlobals < 0) {
+            throw new IllegalArgumentException("maxProcessesPerGlobals must not be negative");
+        }
+
+        if (timeout < 0) {
+            throw new IllegalArgumentException("timeout must not be negative");
+        }
+
+        this.maxProcesses = maxProcesses;
+        this.maxProcessesPerGlobals = maxProcessesPerGlobals;
+        this.timeoutMillis = unit.toMillis(timeout);
+        this.permits = new Semaphore(maxProcesses, true);
+    }
+
+    /**
+     * Waits until the process may be started and then starts it.
+     * The returned process holds its slot until {@link ScheduledProcess#waitFor()} or {@link ScheduledProcess#release()} is called.
+     */
+    public ScheduledProcess start(Globals globals, ProcessBuilder builder) throws IOException, InterruptedException {
+        long begin = System.nanoTime();
+        Semaphore quota = quota(globals);
+
+        waiting.incrementAndGet();
+        try {
+            //The own quota is acquired first so a globals that is over its quota does not hold a slot while it waits.
+            if (quota != null) {
+                quota.acquire();
+            }
+
+            try {
+                permits.acquire();
+            } catch (InterruptedException e) {
+                if (quota != null) {
+                    quota.release();
+                }
+                throw e;
+            }
+        } finally {
+            waiting.decrementAndGet();
+        }
+
+        Process process;
+        try {
+            process = builder.start();
+        } catch (IOException | RuntimeException e) {
+            permits.release();
+            if (quota != null) {
+                quota.release();
+            }
+            throw e;
+        }
+
+        long latency = System.nanoTime() - begin;
+        started.incrementAndGet();
+        totalSpawnLatencyNanos.addAndGet(latency);
+        long max;
+        while (latency > (max = maxSpawnLatencyNanos.get())) {
+            if (maxSpawnLatencyNanos.compareAndSet(max, latency)) {
+                break;
+            }
+        }
+
+        return new ScheduledProcess(process, quota);
+    }
+
+    private Semaphore quota(Globals globals) {
+        if (maxProcessesPerGlobals == 0 || globals == null) {
+            return null;
+        }
+
+        synchronized (quotas) {
+            Semaphore quota = quotas.get(globals);
+            if (quota == null) {
+                quota = new Semaphore(maxProcessesPerGlobals, true);
+                quotas.put(globals, quota);
+            }
+            return quota;
+        }
+    }
+
+    public int getMaxProcesses() {
+        return maxProcesses;
+    }
+
+    public int getMaxProcessesPerGlobals() {
+        return maxProcessesPerGlobals;
+    }
+
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    /**
+     * Amount of callers that currently wait to start a process.
+     */
+    public int getQueueDepth() {
+        return waiting.get();
+    }
+
+    /**
+     * Amount of processes that currently hold a slot.
+     */
+    public int getRunning() {
+        return maxProcesses - permits.availablePermits();
+    }
+
+    public long getStarted() {
+        return started.get();
+    }
+
+    /**
+     * Amount of processes that were destroyed because they exceeded the timeout.
+     */
+    public long getTimedOut() {
+        return timedOut.get();
+    }
+
+    /**
+     * Sum of the time between requesting and starting every process including the time spent waiting in the queue.
+     */
+    public long getTotalSpawnLatencyNanos() {
+        return totalSpawnLatencyNanos.get();
+    }
+
+    public long getMaxSpawnLatencyNanos() {
+        return maxSpawnLatencyNanos.get();
+    }
+
+    public long getAverageSpawnLatencyNanos() {
+        long count = started.get();
+        return count == 0 ? 0 : totalSpawnLatencyNanos.get() / count;
+    }
+
+    /**
+     * A process started by the scheduler.
+     */
+    public class ScheduledProcess {
+
+        private final Process process;
+
+        private final Semaphore quota;
+
+        private final ScheduledFuture<?> timeout;
+
+        private final AtomicInteger released = new AtomicInteger();
+
+        private volatile boolean destroyed;
+
+        private ScheduledProcess(final Process process, Semaphore quota) {
+            this.process = process;
+            this.quota = quota;
+            if (timeoutMillis == 0) {
+                timeout = null;
+                return;
+            }
+
+            timeout = timeoutExecutor().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (released.get() != 0) {
+                        return;
+                    }
+
+                    destroyed = true;
+                    timedOut.incrementAndGet();
+                    process.destroy();
+                }
+            }, timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+
+        public Process getProcess() {
+            return process;
+        }
+
+        /**
+         * True if the process was destroyed because it exceeded the timeout.
+         */
+        public boolean isTimedOut() {
+            return destroyed;
+        }
+
+        /**
+         * Waits for the process to exit and releases its slot.
+         */
+        public int waitFor() throws InterruptedException {
+            int exitValue = process.waitFor();
+            release();
+            return exitValue;
+        }
+
+        /**
+         * Releases the slot of the process once it has exited without blocking the calling thread.
+         * Used when the thread that waits for the process is interrupted, the slot must stay taken while the process runs.
+         */
+        public void releaseOnExit() {
+            Thread reaper = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while (true) {
+                        try {
+                            process.waitFor();
+                            break;
+                        } catch (InterruptedException e) {
+                            //DC
+                        }
+                    }
+
+                    release();
+                }
+            }, "luajfshook-process-reaper");
+            reaper.setDaemon(true);
+            reaper.start();
+        }
+
+        /**
+         * Releases the slot of the process. Only the first call has an effect.
+         */
+        public void release() {
+            if (!released.compareAndSet(0, 1)) {
+                return;
+            }
+
+            if (timeout != null) {
+                timeout.cancel(false);
+            }
+
+            permits.release();
+            if (quota != null) {
+                quota.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,123 @@
+//
+// Copyright Alexander Schütz, 2022
+//
+// This file is part of LuajFSHook.
+//
+// LuajFSHook is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// LuajFSHook is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// A copy of the GNU Lesser General Public License should be provided
+// in the COPYING & COPYING.LESSER files in top level directory of LuajFSHook.
+// If not, see <https://www.gnu.org/licenses/>.
+//
+package io.github.alexanderschuetz97.luajfshook.impl;
+
+import io.github.alexanderschuetz97.luajfshook.api.LuaPath;
+import io.github.alexanderschuetz97.luajfshook.api.LuaRandomAccessFile;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Path;
+
+/**
+ * PrintStream that knows which operating system file it writes to.
+ * When it is used as {@link org.luaj.vm2.Globals#STDOUT} or {@link org.luaj.vm2.Globals#STDERR} then processes
+ * started by os.execute write directly into that file and no thread has to copy their output.
+ * <p>
+ * {@link System#out} cannot be used for this since it may have been replaced by {@link System#setOut(PrintStream)}.
+ * Use {@link #stdout()} and {@link #stderr()} instead.
+ */
+public class RedirectablePrintStream extends PrintStream {
+
+    private final FileDescriptor descriptor;
+
+    private final LuaRandomAccessFile file;
+
+    private final ProcessBuilder.Redirect redirect;
+
+    protected RedirectablePrintStream(OutputStream out, FileDescriptor descriptor, LuaRandomAccessFile file, ProcessBuilder.Redirect redirect) {
+        super(out, true);
+        this.descriptor = descriptor;
+        this.file = file;
+        this.redirect = redirect;
+    }
+
+    /**
+     * PrintStream that writes to the stdout file descriptor of the jvm.
+     */
+    public static RedirectablePrintStream stdout() {
+        return new RedirectablePrintStream(new FileOutputStream(FileDescriptor.out), FileDescriptor.out, null, null);
+    }
+
+    /**
+     * PrintStream that writes to the stderr file descriptor of the jvm.
+     */
+    public static RedirectablePrintStream stderr() {
+        return new RedirectablePrintStream(new FileOutputStream(FileDescriptor.err), FileDescriptor.err, null, null);
+    }
+
+    /**
+     * PrintStream that appends to the file. Processes only write to the file directly if it is a file
+     * on the disk, otherwise their output is copied.
+     * @param append false to truncate the file.
+     */
+    public static RedirectablePrintStream open(LuaPath path, boolean append) throws IOException {
+        LuaRandomAccessFile file = path.open("rw");
+        try {
+            if (!append) {
+                file.setSize(0);
+            }
+            file.setPosition(file.size());
+
+            Path sysPath = path.toSystemPath();
+            ProcessBuilder.Redirect redirect = null;
+            if (sysPath != null && file.getFileDescriptor() != null) {
+                redirect = ProcessBuilder.Redirect.appendTo(sysPath.toFile());
+            }
+
+            return new RedirectablePrintStream(new LuaRandomAccessFileOutputStream(file), null, file, redirect);
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns how the output (or error output) of a process has to be redirected to write directly to this stream.
+     * Anything buffered by this stream is flushed first.
+     * @return null if the output has to be copied.
+     */
+    public ProcessBuilder.Redirect redirectFor(boolean errorStream) {
+        flush();
+        if (descriptor != null) {
+            return descriptor == (errorStream ? FileDescriptor.err : FileDescriptor.out) ? ProcessBuilder.Redirect.INHERIT : null;
+        }
+
+        return redirect;
+    }
+
+    /**
+     * Must be called after a process that was redirected with {@link #redirectFor(boolean)} has exited.
+     */
+    public void afterRedirect() {
+        if (file == null) {
+            return;
+        }
+
+        try {
+            file.setPosition(file.size());
+        } catch (IOException e) {
+            setError();
+        }
+    }
+}
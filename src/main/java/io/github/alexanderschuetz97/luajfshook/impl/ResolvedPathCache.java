@@ -0,0 +1,127 @@
+//
+// Copyright Alexander Schütz, 2022
+//
+// This file is part of LuajFSHook.
+//
+// LuajFSHook is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// LuajFSHook is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// A copy of the GNU Lesser General Public License should be provided
+// in the COPYING & COPYING.LESSER files in top level directory of LuajFSHook.
+// If not, see <https://www.gnu.org/licenses/>.
+//
+package io.github.alexanderschuetz97.luajfshook.impl;
+
+import io.github.alexanderschuetz97.luajfshook.api.LuaPath;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers the LuaPath that a path string was resolved to in a work directory.
+ * Used by {@link DefaultLuaFileSystemHandler#resolvePath(String)} so scripts that open the same relative paths
+ * over and over reuse the same path object instead of resolving the string every time.
+ *
+ * Entries belong to the work directory instance they were resolved in. When the work directory changes all entries are dropped.
+ * Since paths are immutable and do not depend on the state of the file system, entries never have to be invalidated otherwise.
+ */
+public class ResolvedPathCache {
+
+    public static final int DEFAULT_MAX_ENTRIES = 1024;
+
+    private final int maxEntries;
+
+    private volatile Generation generation = new Generation(null);
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private static final class Generation {
+        private final LuaPath workDirectory;
+        private final ConcurrentHashMap<String, LuaPath> paths = new ConcurrentHashMap<>();
+
+        private Generation(LuaPath workDirectory) {
+            this.workDirectory = workDirectory;
+        }
+    }
+
+    public ResolvedPathCache() {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    public ResolvedPathCache(int maxEntries) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("maxEntries must be positive");
+        }
+
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * returns the path the string was resolved to in the work directory or null.
+     */
+    public LuaPath get(LuaPath workDirectory, String path) {
+        Generation current = generation;
+        LuaPath resolved = current.workDirectory == workDirectory ? current.paths.get(path) : null;
+        if (resolved == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+
+        hits.incrementAndGet();
+        return resolved;
+    }
+
+    /**
+     * Remembers the path the string was resolved to in the work directory.
+     */
+    public void put(LuaPath workDirectory, String path, LuaPath resolved) {
+        Generation current = generation;
+        if (current.workDirectory != workDirectory) {
+            current = new Generation(workDirectory);
+            generation = current;
+        }
+
+        if (current.paths.size() >= maxEntries) {
+            current.paths.clear();
+        }
+
+        current.paths.put(path, resolved);
+    }
+
+    /**
+     * Forgets all paths.
+     */
+    public void invalidateAll() {
+        generation = new Generation(null);
+    }
+
+    /**
+     * returns the number of lookups that were answered from this cache.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * returns the number of lookups that had to resolve the path.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * returns the current number of entries.
+     */
+    public int size() {
+        return generation.paths.size();
+    }
+}
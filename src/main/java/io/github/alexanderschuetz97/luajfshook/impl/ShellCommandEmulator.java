@@ -0,0 +1,406 @@
+//
+// Copyright Alexander Schütz, 2022
+//
+// This file is part of LuajFSHook.
+//
+// LuajFSHook is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// LuajFSHook is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// A copy of the GNU Lesser General Public License should be provided
+// in the COPYING & COPYING.LESSER files in top level directory of LuajFSHook.
+// If not, see <https://www.gnu.org/licenses/>.
+//
+package io.github.alexanderschuetz97.luajfshook.impl;
+
+import io.github.alexanderschuetz97.luajfshook.api.LuaFileSystemHandler;
+import io.github.alexanderschuetz97.luajfshook.api.LuaPath;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.NotDirectoryException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Executes a few simple shell commands directly on a {@link LuaFileSystemHandler} instead of starting a process.
+ * This is much faster and also works with handlers that have no system paths (for example the in memory file system).
+ * <p>
+ * Supported are "pwd", "mkdir [-p]", "rm [-r] [-f]", "cp [-r] source... target" and "ls [-a] [-1] [path]".
+ * A command is only emulated if its name is enabled, all of its options are supported
+ * and it contains no characters that a shell would interpret. Everything else is left to a real process.
+ * Error messages and exit codes mimic those of GNU coreutils.
+ */
+public class ShellCommandEmulator {
+
+    public static final Set<String> ALL_COMMANDS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList("pwd", "mkdir", "rm", "cp", "ls")));
+
+    private static final String SHELL_CHARACTERS = "|&;<>()$`\\\"'*?[]{}~#";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final Set<String> enabled;
+
+    /**
+     * Emulates all supported commands.
+     */
+    public ShellCommandEmulator() {
+        this(ALL_COMMANDS);
+    }
+
+    /**
+     * @param enabled names of the commands to emulate, names that are not in {@link #ALL_COMMANDS} are ignored.
+     */
+    public ShellCommandEmulator(Set<String> enabled) {
+        this.enabled = Collections.unmodifiableSet(new HashSet<>(enabled));
+    }
+
+    public Set<String> getEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Executes the command if it can be emulated.
+     * @param out receives the output of the command
+     * @param err receives the error messages of the command
+     * @return the exit code or null if the command can not be emulated and a process has to be started.
+     */
+    public Integer execute(LuaFileSystemHandler handler, String command, OutputStream out, OutputStream err) throws IOException {
+        if (command == null) {
+            return null;
+        }
+
+        for (int i = 0; i < command.length(); i++) {
+            char c = command.charAt(i);
+            if (c == '\n' || c == '\r' || SHELL_CHARACTERS.indexOf(c) != -1) {
+                return null;
+            }
+        }
+
+        String[] tokens = FsAwareOs_execute.tokenize(command);
+        if (tokens.length == 0 || !enabled.contains(tokens[0])) {
+            return null;
+        }
+
+        Set<Character> flags = new HashSet<>();
+        List<String> operands = new ArrayList<>();
+        for (int i = 1; i < tokens.length; i++) {
+            String token = tokens[i];
+            if (token.length() > 1 && token.charAt(0) == '-' && operands.isEmpty()) {
+                if (token.charAt(1) == '-') {
+                    //Long options are not supported
+                    return null;
+                }
+                for (int j = 1; j < token.length(); j++) {
+                    flags.add(token.charAt(j));
+                }
+                continue;
+            }
+            operands.add(token);
+        }
+
+        Output output = new Output(out, err, tokens[0]);
+        switch (tokens[0]) {
+            case "pwd":
+                if (!flags.isEmpty() || !operands.isEmpty()) {
+                    return null;
+                }
+                output.out(handler.getWorkDirectory().absolutePath().toString());
+                return 0;
+            case "mkdir":
+                if (!supported(flags, 'p') || operands.isEmpty()) {
+                    return null;
+                }
+                return mkdir(handler, flags.contains('p'), operands, output);
+            case "rm":
+                if (!supported(flags, 'r', 'R', 'f') || operands.isEmpty()) {
+                    return null;
+                }
+                return rm(handler, flags.contains('r') || flags.contains('R'), flags.contains('f'), operands, output);
+            case "cp":
+                if (!supported(flags, 'r', 'R') || operands.size() < 2) {
+                    return null;
+                }
+                return cp(handler, flags.contains('r') || flags.contains('R'), operands, output);
+            case "ls":
+                if (!supported(flags, 'a', '1') || operands.size() > 1) {
+                    return null;
+                }
+                return ls(handler, flags.contains('a'), operands.isEmpty() ? "." : operands.get(0), output);
+            default:
+                return null;
+        }
+    }
+
+    private static boolean supported(Set<Character> flags, Character... supported) {
+        return Arrays.asList(supported).containsAll(flags);
+    }
+
+    protected int mkdir(LuaFileSystemHandler handler, boolean parents, List<String> operands, Output output) throws IOException {
+        int result = 0;
+        for (String operand : operands) {
+            LuaPath path = handler.resolvePath(operand);
+            if (parents && path.isDir()) {
+                continue;
+            }
+
+            if (path.exists() || path.isĹink()) {
+                result = output.err("cannot create directory '" + operand + "': File exists");
+                continue;
+            }
+
+            LuaPath parent = path.parent();
+            if (!parents && parent != null && !parent.isDir()) {
+                result = output.err("cannot create directory '" + operand + "': No such file or directory");
+                continue;
+            }
+
+            try {
+                if (parents) {
+                    path.mkdirs();
+                } else {
+                    path.mkdir();
+                }
+            } catch (IOException e) {
+                result = output.err("cannot create directory '" + operand + "': " + reason(e));
+            }
+        }
+
+        return result;
+    }
+
+    protected int rm(LuaFileSystemHandler handler, boolean recursive, boolean force, List<String> operands, Output output) throws IOException {
+        int result = 0;
+        for (String operand : operands) {
+            if (recursive && isDotOrDotDot(operand)) {
+                result = output.err("refusing to remove '.' or '..' directory: skipping '" + operand + "'");
+                continue;
+            }
+
+            LuaPath path = handler.resolvePath(operand);
+            if (recursive && path.absolutePath().parent() == null) {
+                output.err("it is dangerous to operate recursively on '" + operand + "'");
+                result = output.err("use --no-preserve-root to override this failsafe");
+                continue;
+            }
+
+            if (!path.exists() && !path.isĹink()) {
+                if (!force) {
+                    result = output.err("cannot remove '" + operand + "': No such file or directory");
+                }
+                continue;
+            }
+
+            if (!recursive && path.isDir() && !path.isĹink()) {
+                result = output.err("cannot remove '" + operand + "': Is a directory");
+                continue;
+            }
+
+            try {
+                delete(path);
+            } catch (IOException e) {
+                result = output.err("cannot remove '" + operand + "': " + reason(e));
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * returns true if the last name of the operand is "." or "..".
+     */
+    private static boolean isDotOrDotDot(String operand) {
+        int end = operand.length();
+        while (end > 1 && operand.charAt(end - 1) == '/') {
+            end--;
+        }
+
+        String name = operand.substring(operand.lastIndexOf('/', end - 1) + 1, end);
+        return name.equals(".") || name.equals("..");
+    }
+
+    /**
+     * Deletes the path and everything in it. Links are deleted, not followed.
+     */
+    protected void delete(LuaPath path) throws IOException {
+        if (path.isDir() && !path.isĹink()) {
+            for (LuaPath child : path.list()) {
+                delete(child);
+            }
+        }
+
+        path.delete();
+    }
+
+    protected int cp(LuaFileSystemHandler handler, boolean recursive, List<String> operands, Output output) throws IOException {
+        String targetOperand = operands.get(operands.size() - 1);
+        LuaPath target = handler.resolvePath(targetOperand);
+        boolean targetIsDir = target.isDir();
+        if (operands.size() > 2 && !targetIsDir) {
+            return output.err("target '" + targetOperand + "' is not a directory");
+        }
+
+        int result = 0;
+        for (String operand : operands.subList(0, operands.size() - 1)) {
+            LuaPath source = handler.resolvePath(operand);
+            if (!source.exists()) {
+                result = output.err("cannot stat '" + operand + "': No such file or directory");
+                continue;
+            }
+
+            if (source.isDir() && !recursive) {
+                result = output.err("-r not specified; omitting directory '" + operand + "'");
+                continue;
+            }
+
+            LuaPath dest = targetIsDir ? target.child(source.name()) : target;
+            if (source.isDir() && isInside(dest, source)) {
+                result = output.err("cannot copy a directory, '" + operand + "', into itself, '" + targetOperand + "'");
+                continue;
+            }
+
+            if (!source.isDir() && isSameFile(source, dest)) {
+                String destOperand = targetIsDir ? (targetOperand.endsWith("/") ? targetOperand : targetOperand + "/") + source.name() : targetOperand;
+                result = output.err("'" + operand + "' and '" + destOperand + "' are the same file");
+                continue;
+            }
+
+            try {
+                copy(source, dest);
+            } catch (IOException e) {
+                result = output.err("cannot copy '" + operand + "' to '" + targetOperand + "': " + reason(e));
+            }
+        }
+
+        return result;
+    }
+
+    private static boolean isInside(LuaPath path, LuaPath dir) {
+        String p = path.absolutePath().toString();
+        String d = dir.absolutePath().toString();
+        return p.equals(d) || p.startsWith(d.endsWith("/") ? d : d + "/");
+    }
+
+    private static boolean isSameFile(LuaPath source, LuaPath dest) {
+        if (!dest.exists()) {
+            return false;
+        }
+
+        try {
+            return source.absolutePath().canon().toString().equals(dest.absolutePath().canon().toString());
+        } catch (IOException e) {
+            return source.absolutePath().toString().equals(dest.absolutePath().toString());
+        }
+    }
+
+    /**
+     * Copies the file or directory with everything in it.
+     */
+    protected void copy(LuaPath source, LuaPath target) throws IOException {
+        if (!source.isDir()) {
+            FileTransfer.transferTo(source, target);
+            return;
+        }
+
+        if (!target.isDir()) {
+            target.mkdir();
+        }
+
+        for (LuaPath child : source.list()) {
+            copy(child, target.child(child.name()));
+        }
+    }
+
+    protected int ls(LuaFileSystemHandler handler, boolean all, String operand, Output output) throws IOException {
+        LuaPath path = handler.resolvePath(operand);
+        if (!path.exists()) {
+            output.err("cannot access '" + operand + "': No such file or directory");
+            return 2;
+        }
+
+        if (!path.isDir()) {
+            output.out(operand);
+            return 0;
+        }
+
+        List<String> names = new ArrayList<>();
+        if (all) {
+            names.add(".");
+            names.add("..");
+        }
+        for (LuaPath child : path.list()) {
+            String name = child.name();
+            if (all || !name.startsWith(".")) {
+                names.add(name);
+            }
+        }
+        Collections.sort(names);
+
+        for (String name : names) {
+            output.out(name);
+        }
+        return 0;
+    }
+
+    private static String reason(IOException e) {
+        if (e instanceof AccessDeniedException) {
+            return "Permission denied";
+        }
+        if (e instanceof FileAlreadyExistsException) {
+            return "File exists";
+        }
+        if (e instanceof NotDirectoryException) {
+            return "Not a directory";
+        }
+        if (e instanceof DirectoryNotEmptyException) {
+            return "Directory not empty";
+        }
+        return e.getMessage() == null ? e.getClass().getSimpleName() : e.getMessage();
+    }
+
+    /**
+     * Writes lines to the output streams of the command.
+     */
+    protected static class Output {
+        private final OutputStream out;
+        private final OutputStream err;
+        private final String command;
+
+        protected Output(OutputStream out, OutputStream err, String command) {
+            this.out = out;
+            this.err = err;
+            this.command = command;
+        }
+
+        public void out(String line) throws IOException {
+            if (out != null) {
+                out.write((line + "\n").getBytes(UTF_8));
+            }
+        }
+
+        /**
+         * Writes the message prefixed with the name of the command.
+         * @return 1 as the exit code
+         */
+        public int err(String message) throws IOException {
+            if (err != null) {
+                err.write((command + ": " + message + "\n").getBytes(UTF_8));
+            }
+            return 1;
+        }
+    }
+}
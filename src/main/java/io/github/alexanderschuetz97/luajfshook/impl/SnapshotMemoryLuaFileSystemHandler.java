@@ -0,0 +1,436 @@
+//
+// Copyright Alexander Schütz, 2022
+//
+// This file is part of LuajFSHook.
+//
+// LuajFSHook is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// LuajFSHook is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// A copy of the GNU Lesser General Public License should be provided
+// in the COPYING & COPYING.LESSER files in top level directory of LuajFSHook.
+// If not, see <https://www.gnu.org/licenses/>.
+//
+package io.github.alexanderschuetz97.luajfshook.impl;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * MemoryLuaFileSystemHandler whose state can be captured by {@link #snapshot()} and copied by {@link #fork()} in constant time,
+ * regardless of the size of the tree.
+ *
+ * Nodes and chunks of file content are shared between a handler, its snapshots and the forks of them.
+ * Every node and chunk belongs to the epoch it was created in and only nodes of the current epoch are changed in place.
+ * A snapshot starts a new epoch, everything that existed before is copied before it is changed:
+ * directories are copied shallowly together with their parents, file content is copied one chunk at a time when the chunk is written.
+ * Unchanged subtrees and chunks stay shared.
+ *
+ * {@link #getDivergedBytes()} returns how much file content a handler has written itself,
+ * for a fork that is how far it diverged from the snapshot it was created from.
+ *
+ * Hard links are not supported because a copied file can only replace one of its names.
+ * Reading a shared file updates its access time in every handler that shares it.
+ */
+public class SnapshotMemoryLuaFileSystemHandler extends MemoryLuaFileSystemHandler {
+
+    /**
+     * acquired shared by writes to file content and exclusively by {@link #snapshot()}.
+     */
+    private final ReadWriteLock epochLock = new ReentrantReadWriteLock();
+
+    private final Set<SnapshotLuaRandomAccessFile> openFiles = Collections.newSetFromMap(new ConcurrentHashMap<SnapshotLuaRandomAccessFile, Boolean>());
+
+    /**
+     * Nodes created by the constructor of the super class belong to no epoch and are copied on the first change.
+     */
+    private volatile Epoch epoch = new Epoch(this);
+
+    public SnapshotMemoryLuaFileSystemHandler() {
+        this(DEFAULT_CHUNK_SIZE);
+    }
+
+    public SnapshotMemoryLuaFileSystemHandler(int chunkSize) {
+        super(chunkSize);
+    }
+
+    protected SnapshotMemoryLuaFileSystemHandler(Snapshot origin) {
+        super(origin.chunkSize);
+        root = origin.root;
+        try {
+            setWorkDirectory(relativePath(origin.workDirectory));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Captures the current state. Files that are opened continue to write to this handler only.
+     */
+    public Snapshot snapshot() {
+        epochLock.writeLock().lock();
+        try {
+            synchronized (structureLock) {
+                Snapshot snapshot = new Snapshot(root, chunkSize, getWorkDirectory().path());
+                epoch = new Epoch(this);
+                return snapshot;
+            }
+        } finally {
+            epochLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * returns a new handler with the current state of this handler. Changes to either handler are not visible to the other.
+     */
+    public SnapshotMemoryLuaFileSystemHandler fork() {
+        return snapshot().fork();
+    }
+
+    /**
+     * returns the amount of bytes of file content that was written by this handler and is not shared with the snapshot it was forked from.
+     * Content is counted in whole chunks.
+     */
+    public long getDivergedBytes() {
+        return countChunks(true) * chunkSize;
+    }
+
+    /**
+     * returns the amount of bytes of file content that this handler still shares with the snapshot it was forked from.
+     * Content is counted in whole chunks.
+     */
+    public long getSharedBytes() {
+        return countChunks(false) * chunkSize;
+    }
+
+    private long countChunks(boolean diverged) {
+        long count = 0;
+        for (FileNode node : collectFiles(root, new IdentityHashMap<FileNode, Boolean>()).keySet()) {
+            if (!(node.content instanceof SnapshotFileContent)) {
+                continue;
+            }
+
+            SnapshotFileContent content = (SnapshotFileContent) node.content;
+            node.lock.readLock().lock();
+            try {
+                for (int i = 0; i < content.chunks.length; i++) {
+                    if (content.chunks[i] == null) {
+                        continue;
+                    }
+
+                    Epoch owner = i < content.owners.length ? content.owners[i] : null;
+                    if ((owner != null && owner.handler == this) == diverged) {
+                        count++;
+                    }
+                }
+            } finally {
+                node.lock.readLock().unlock();
+            }
+        }
+        return count;
+    }
+
+    private boolean owned(Node node) {
+        return node instanceof SnapshotNode && ((SnapshotNode) node).epoch() == epoch;
+    }
+
+    private static void copyTimes(Node from, Node to) {
+        to.creationTime = from.creationTime;
+        to.lastModifiedTime = from.lastModifiedTime;
+        to.lastAccessTime = from.lastAccessTime;
+    }
+
+    private SnapshotDirectoryNode copyDirectory(DirectoryNode dir) {
+        SnapshotDirectoryNode copy = new SnapshotDirectoryNode(epoch);
+        copy.children.putAll(dir.children);
+        copyTimes(dir, copy);
+        return copy;
+    }
+
+    private SnapshotFileNode copyFile(FileNode file) {
+        SnapshotFileNode copy;
+        file.lock.readLock().lock();
+        try {
+            copy = new SnapshotFileNode(((SnapshotFileContent) file.content).copy(epoch), epoch);
+        } finally {
+            file.lock.readLock().unlock();
+        }
+        copyTimes(file, copy);
+        return copy;
+    }
+
+    @Override
+    protected FileContent newFileContent() {
+        return new SnapshotFileContent(chunkSize, epoch);
+    }
+
+    @Override
+    protected DirectoryNode newDirectoryNode() {
+        return new SnapshotDirectoryNode(epoch);
+    }
+
+    @Override
+    protected FileNode newFileNode() {
+        return new SnapshotFileNode((SnapshotFileContent) newFileContent(), epoch);
+    }
+
+    @Override
+    protected MemoryLuaRandomAccessFile newRandomAccessFile(MemoryLuaPath path, FileNode node, boolean writable) {
+        return new SnapshotLuaRandomAccessFile(path, node, writable);
+    }
+
+    @Override
+    protected boolean supportsHardLinks() {
+        return false;
+    }
+
+    @Override
+    protected DirectoryNode writableRoot() {
+        DirectoryNode current = root;
+        if (owned(current)) {
+            return current;
+        }
+
+        SnapshotDirectoryNode copy = copyDirectory(current);
+        root = copy;
+        return copy;
+    }
+
+    @Override
+    protected DirectoryNode writableChild(DirectoryNode parent, String name, DirectoryNode child) {
+        if (owned(child)) {
+            return child;
+        }
+
+        SnapshotDirectoryNode copy = copyDirectory(child);
+        parent.children.put(name, copy);
+        return copy;
+    }
+
+    @Override
+    protected FileNode writableFile(DirectoryNode parent, String name, FileNode file) {
+        if (owned(file)) {
+            return file;
+        }
+
+        SnapshotFileNode copy = copyFile(file);
+        copy.link();
+        parent.children.put(name, copy);
+        for (SnapshotLuaRandomAccessFile openFile : openFiles) {
+            if (openFile.node == file) {
+                openFile.retarget(copy);
+            }
+        }
+        return copy;
+    }
+
+    @Override
+    protected void moved(MemoryLuaPath source, MemoryLuaPath target) {
+        String prefix = source.path + VirtualLuaPath.SEPARATOR;
+        for (SnapshotLuaRandomAccessFile openFile : openFiles) {
+            MemoryLuaPath path = openFile.path;
+            if (path.equals(source)) {
+                openFile.path = target;
+            } else if (path.path.startsWith(prefix)) {
+                openFile.path = new MemoryLuaPath(target.path + path.path.substring(source.path.length()));
+            }
+        }
+    }
+
+    /**
+     * State of a handler captured by {@link #snapshot()}. Immutable.
+     */
+    public static final class Snapshot {
+        private final DirectoryNode root;
+        private final int chunkSize;
+        private final String workDirectory;
+
+        private Snapshot(DirectoryNode root, int chunkSize, String workDirectory) {
+            this.root = root;
+            this.chunkSize = chunkSize;
+            this.workDirectory = workDirectory;
+        }
+
+        /**
+         * returns a new handler that starts with the state of this snapshot.
+         */
+        public SnapshotMemoryLuaFileSystemHandler fork() {
+            return new SnapshotMemoryLuaFileSystemHandler(this);
+        }
+    }
+
+    /**
+     * Nodes and chunks created between two snapshots of a handler.
+     */
+    protected static final class Epoch {
+        protected final Object handler;
+
+        protected Epoch(Object handler) {
+            this.handler = handler;
+        }
+    }
+
+    protected interface SnapshotNode {
+        Epoch epoch();
+    }
+
+    protected static class SnapshotDirectoryNode extends DirectoryNode implements SnapshotNode {
+        protected final Epoch epoch;
+
+        protected SnapshotDirectoryNode(Epoch epoch) {
+            this.epoch = epoch;
+        }
+
+        @Override
+        public Epoch epoch() {
+            return epoch;
+        }
+    }
+
+    protected static class SnapshotFileNode extends FileNode implements SnapshotNode {
+        protected final Epoch epoch;
+
+        protected SnapshotFileNode(SnapshotFileContent content, Epoch epoch) {
+            super(content);
+            this.epoch = epoch;
+        }
+
+        @Override
+        public Epoch epoch() {
+            return epoch;
+        }
+    }
+
+    /**
+     * HeapFileContent that remembers the epoch of every chunk and copies chunks of other epochs before they are written.
+     */
+    protected static class SnapshotFileContent extends HeapFileContent {
+
+        private static final Epoch[] NO_OWNERS = new Epoch[0];
+
+        protected final Epoch epoch;
+
+        protected Epoch[] owners = NO_OWNERS;
+
+        public SnapshotFileContent(int chunkSize, Epoch epoch) {
+            super(chunkSize);
+            this.epoch = epoch;
+        }
+
+        /**
+         * returns a copy for the epoch that shares all chunks with this content.
+         */
+        protected SnapshotFileContent copy(Epoch epoch) {
+            SnapshotFileContent copy = new SnapshotFileContent(chunkSize, epoch);
+            copy.chunks = chunks.clone();
+            copy.owners = owners.clone();
+            copy.size = size;
+            return copy;
+        }
+
+        @Override
+        protected byte[] writableChunk(int index) {
+            if (owners.length <= index) {
+                owners = Arrays.copyOf(owners, chunks.length);
+            }
+
+            if (owners[index] != epoch) {
+                if (chunks[index] != null) {
+                    chunks[index] = chunks[index].clone();
+                }
+                owners[index] = epoch;
+            }
+
+            return super.writableChunk(index);
+        }
+
+        /**
+         * Chunks may still be used by snapshots, they are left to the garbage collector.
+         */
+        @Override
+        public void release() {
+            //NOOP
+        }
+    }
+
+    protected class SnapshotLuaRandomAccessFile extends MemoryLuaRandomAccessFile {
+
+        protected SnapshotLuaRandomAccessFile(MemoryLuaPath path, FileNode node, boolean writable) {
+            super(path, node, writable);
+            openFiles.add(this);
+        }
+
+        /**
+         * called with the structure lock held when the node of this file was copied.
+         */
+        protected void retarget(FileNode copy) {
+            copy.openHandle();
+            FileNode old = node;
+            node = copy;
+            old.closeHandle();
+        }
+
+        /**
+         * makes sure the node of this file belongs to the current epoch before it is written.
+         */
+        private void prepareWrite() throws IOException {
+            if (!writable || owned(node)) {
+                return;
+            }
+
+            synchronized (structureLock) {
+                if (owned(node)) {
+                    return;
+                }
+
+                if (lookup(path) == node) {
+                    writableNode(path);
+                    return;
+                }
+
+                //The file was deleted while it is open, its copy is not part of the tree.
+                retarget(copyFile(node));
+            }
+        }
+
+        @Override
+        public synchronized void write(byte[] buf, int off, int len) throws IOException {
+            epochLock.readLock().lock();
+            try {
+                prepareWrite();
+                super.write(buf, off, len);
+            } finally {
+                epochLock.readLock().unlock();
+            }
+        }
+
+        @Override
+        public synchronized void setSize(long size) throws IOException {
+            epochLock.readLock().lock();
+            try {
+                prepareWrite();
+                super.setSize(size);
+            } finally {
+                epochLock.readLock().unlock();
+            }
+        }
+
+        @Override
+        public synchronized void close() {
+            super.close();
+            openFiles.remove(this);
+        }
+    }
+}
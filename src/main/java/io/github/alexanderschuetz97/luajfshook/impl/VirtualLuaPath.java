@@ -0,0 +1,394 @@
+//
+// Copyright Alexander Schütz, 2022
+//
+// This file is part of LuajFSHook.
+//
+// LuajFSHook is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// LuajFSHook is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// A copy of the GNU Lesser General Public License should be provided
+// in the COPYING & COPYING.LESSER files in top level directory of LuajFSHook.
+// If not, see <https://www.gnu.org/licenses/>.
+//
+package io.github.alexanderschuetz97.luajfshook.impl;
+
+import io.github.alexanderschuetz97.luajfshook.api.DirectoryStreamLuaPath;
+import io.github.alexanderschuetz97.luajfshook.api.LuaDirectoryEntry;
+import io.github.alexanderschuetz97.luajfshook.api.LuaPath;
+
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.InvalidPathException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Base class for LuaPath implementations of virtual file systems that are not backed by a {@link java.nio.file.FileSystem}.
+ *
+ * Paths use '/' as separator and are absolute if they start with '/'. The path string is normalized on construction:
+ * empty and "." elements are removed and ".." removes the previous element. Since virtual file systems
+ * do not support symbolic links this lexical normalization is also the canonical form of the path.
+ *
+ * Two paths are equal if they have the same class, belong to the same file system and have the same path string.
+ */
+public abstract class VirtualLuaPath implements DirectoryStreamLuaPath {
+
+    public static final char SEPARATOR = '/';
+
+    private static final String[] NO_SEGMENTS = new String[0];
+
+    protected final String path;
+
+    private String[] segments;
+
+    protected VirtualLuaPath(String path) {
+        this.path = normalize(path);
+    }
+
+    /**
+     * Creates a new path of the same file system. The path string is normalized by the constructor.
+     */
+    protected abstract VirtualLuaPath newPath(String path);
+
+    /**
+     * Returns the current work directory of the file system this path belongs to.
+     */
+    protected abstract VirtualLuaPath workDirectory();
+
+    /**
+     * Returns the object that identifies the file system this path belongs to.
+     */
+    protected abstract Object fileSystem();
+
+    /**
+     * Normalizes a virtual path string. See class doc.
+     * @throws InvalidPathException if the path contains a NUL character
+     */
+    public static String normalize(String path) throws InvalidPathException {
+        Objects.requireNonNull(path);
+        if (path.indexOf('\0') != -1) {
+            throw new InvalidPathException(path, "Nul character not allowed");
+        }
+
+        if (isNormalized(path)) {
+            return path;
+        }
+
+        boolean absolute = !path.isEmpty() && path.charAt(0) == SEPARATOR;
+        List<String> parts = new ArrayList<>();
+        int start = 0;
+        int len = path.length();
+        while (start <= len) {
+            int end = path.indexOf(SEPARATOR, start);
+            if (end == -1) {
+                end = len;
+            }
+
+            String part = path.substring(start, end);
+            start = end + 1;
+            if (part.isEmpty() || ".".equals(part)) {
+                continue;
+            }
+
+            if ("..".equals(part)) {
+                if (!parts.isEmpty() && !"..".equals(parts.get(parts.size()-1))) {
+                    parts.remove(parts.size()-1);
+                } else if (!absolute) {
+                    parts.add(part);
+                }
+                continue;
+            }
+
+            parts.add(part);
+        }
+
+        StringBuilder sb = new StringBuilder(len);
+        if (absolute) {
+            sb.append(SEPARATOR);
+        }
+
+        for (int i = 0; i < parts.size(); i++) {
+            if (i > 0) {
+                sb.append(SEPARATOR);
+            }
+            sb.append(parts.get(i));
+        }
+
+        return sb.toString();
+    }
+
+    private static boolean isNormalized(String path) {
+        int len = path.length();
+        if (len == 0 || "/".equals(path)) {
+            return true;
+        }
+
+        if (path.charAt(len-1) == SEPARATOR) {
+            return false;
+        }
+
+        int segmentStart = path.charAt(0) == SEPARATOR ? 1 : 0;
+        for (int i = segmentStart; i <= len; i++) {
+            if (i == len || path.charAt(i) == SEPARATOR) {
+                int segmentLength = i - segmentStart;
+                if (segmentLength == 0) {
+                    return false;
+                }
+
+                if (path.charAt(segmentStart) == '.' && (segmentLength == 1 || (segmentLength == 2 && path.charAt(segmentStart+1) == '.'))) {
+                    return false;
+                }
+
+                segmentStart = i+1;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * returns the elements of this path. The root path and the empty relative path have no elements.
+     */
+    protected String[] segments() {
+        String[] result = segments;
+        if (result != null) {
+            return result;
+        }
+
+        int start = isAbsolute() ? 1 : 0;
+        if (start >= path.length()) {
+            result = NO_SEGMENTS;
+        } else {
+            List<String> parts = new ArrayList<>();
+            while (true) {
+                int end = path.indexOf(SEPARATOR, start);
+                if (end == -1) {
+                    parts.add(path.substring(start));
+                    break;
+                }
+                parts.add(path.substring(start, end));
+                start = end + 1;
+            }
+            result = parts.toArray(new String[parts.size()]);
+        }
+
+        segments = result;
+        return result;
+    }
+
+    /**
+     * returns true if this is the root directory of the file system.
+     */
+    public boolean isRoot() {
+        return path.length() == 1 && path.charAt(0) == SEPARATOR;
+    }
+
+    @Override
+    public String name() {
+        if (isRoot()) {
+            return path;
+        }
+
+        return path.substring(path.lastIndexOf(SEPARATOR) + 1);
+    }
+
+    @Override
+    public boolean isAbsolute() {
+        return !path.isEmpty() && path.charAt(0) == SEPARATOR;
+    }
+
+    @Override
+    public VirtualLuaPath absolutePath() {
+        if (isAbsolute()) {
+            return this;
+        }
+
+        VirtualLuaPath wd = workDirectory();
+        if (path.isEmpty()) {
+            return wd;
+        }
+
+        return newPath(wd.isRoot() ? SEPARATOR + path : wd.path + SEPARATOR + path);
+    }
+
+    @Override
+    public LuaPath realPath() throws IOException {
+        return absolutePath();
+    }
+
+    @Override
+    public LuaPath canon() throws IOException {
+        return absolutePath();
+    }
+
+    @Override
+    public VirtualLuaPath child(String name) throws InvalidPathException {
+        Objects.requireNonNull(name);
+        if (!name.isEmpty() && name.charAt(0) == SEPARATOR) {
+            return newPath(name);
+        }
+
+        if (path.isEmpty()) {
+            return newPath(name);
+        }
+
+        return newPath(isRoot() ? SEPARATOR + name : path + SEPARATOR + name);
+    }
+
+    @Override
+    public LuaPath child(LuaPath other) {
+        if (other.isAbsolute()) {
+            return other;
+        }
+
+        return child(other.path());
+    }
+
+    @Override
+    public LuaPath relative(LuaPath other) {
+        String[] from = segments();
+        String[] to = newPath(other.path()).segments();
+        if (isAbsolute() != other.isAbsolute()) {
+            throw new IllegalArgumentException("'other' is different type of path");
+        }
+
+        int common = 0;
+        while (common < from.length && common < to.length && from[common].equals(to[common])) {
+            common++;
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = common; i < from.length; i++) {
+            if (sb.length() > 0) {
+                sb.append(SEPARATOR);
+            }
+            sb.append("..");
+        }
+
+        for (int i = common; i < to.length; i++) {
+            if (sb.length() > 0) {
+                sb.append(SEPARATOR);
+            }
+            sb.append(to[i]);
+        }
+
+        return newPath(sb.toString());
+    }
+
+    @Override
+    public String path() {
+        return path;
+    }
+
+    @Override
+    public VirtualLuaPath parent() {
+        int index = path.lastIndexOf(SEPARATOR);
+        if (index == -1 || isRoot()) {
+            return null;
+        }
+
+        if (index == 0) {
+            return newPath(String.valueOf(SEPARATOR));
+        }
+
+        return newPath(path.substring(0, index));
+    }
+
+    @Override
+    public BasicFileAttributes linkAttributes() throws IOException {
+        return attributes();
+    }
+
+    @Override
+    public boolean isĹink() {
+        return false;
+    }
+
+    @Override
+    public void symlink(LuaPath to) throws IOException {
+        throw new IOException("symbolic links are not supported");
+    }
+
+    @Override
+    public void copyFile(LuaPath target) throws IOException {
+        if (isDir()) {
+            throw new IOException("cannot copy directory");
+        }
+
+        FileTransfer.transfer(this, target);
+    }
+
+    @Override
+    public void moveFile(LuaPath target) throws IOException {
+        if (isDir()) {
+            throw new IOException("cannot move directory");
+        }
+
+        FileTransfer.transfer(this, target);
+        delete();
+    }
+
+    @Override
+    public List<LuaPath> list() throws NotDirectoryException, IOException {
+        List<LuaPath> children = new ArrayList<>();
+        try (DirectoryStream<LuaDirectoryEntry> stream = newDirectoryStream()) {
+            for (LuaDirectoryEntry entry : stream) {
+                children.add(entry.path());
+            }
+        } catch (DirectoryIteratorException e) {
+            throw e.getCause();
+        }
+
+        return children;
+    }
+
+    @Override
+    public void walkFileTree(int depth, boolean followLinks, LuaFileVisitor visitor) throws IOException {
+        FileTreeWalker.walk(this, depth, followLinks, visitor);
+    }
+
+    @Override
+    public Path toSystemPath() {
+        return null;
+    }
+
+    @Override
+    public void deleteOnExit() {
+        //Virtual file systems do not outlive the JVM.
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+
+        VirtualLuaPath that = (VirtualLuaPath) o;
+        return fileSystem() == that.fileSystem() && path.equals(that.path);
+    }
+
+    @Override
+    public int hashCode() {
+        return path.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return path;
+    }
+}
@@ -0,0 +1,1130 @@
+//
+// Copyright Alexander Schütz, 2022
+//
+// This file is part of LuajFSHook.
+//
+// LuajFSHook is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// LuajFSHook is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// A copy of the GNU Lesser General Public License should be provided
+// in the COPYING & COPYING.LESSER files in top level directory of LuajFSHook.
+// If not, see <https://www.gnu.org/licenses/>.
+//
+package io.github.alexanderschuetz97.luajfshook.impl;
+
+import io.github.alexanderschuetz97.luajfshook.api.LuaDirectoryEntry;
+import io.github.alexanderschuetz97.luajfshook.api.LuaFileSystemHandler;
+import io.github.alexanderschuetz97.luajfshook.api.LuaPath;
+import io.github.alexanderschuetz97.luajfshook.api.LuaRandomAccessFile;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.FileDescriptor;
+import java.io.FileNotFoundException;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Read only LuaFileSystemHandler that mounts a zip or jar file.
+ *
+ * The central directory of the archive is read once when the handler is created and turned into a hash index
+ * of all files and directories (including directories that have no entry of their own). exists, isDir, isFile,
+ * list and attributes are lookups in that index and never touch the archive.
+ *
+ * Content is read with positional reads from a single FileChannel of the archive. Stored entries are read
+ * directly without any decompression, this also makes them seekable at no cost. Deflated entries are inflated
+ * lazily while they are read, seeking backwards in a deflated entry is served from the last {@link #INFLATE_WINDOW_SIZE}
+ * inflated bytes, seeking back further restarts the inflation.
+ *
+ * A FileChannel is closed when a thread that reads from it is interrupted. The interrupted read fails, the channel is then
+ * reopened so reads of other threads are not affected.
+ *
+ * The root of the archive is "/" which is also the initial work directory. All modifications fail with an
+ * {@link AccessDeniedException}. {@link #close()} closes the archive.
+ */
+public class ZipLuaFileSystemHandler implements LuaFileSystemHandler, Closeable {
+
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int EOCD_SIZE = 22;
+    private static final int ZIP64_EOCD_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int ZIP64_EOCD_SIGNATURE = 0x06064b50;
+    private static final int CEN_SIGNATURE = 0x02014b50;
+    private static final int CEN_SIZE = 46;
+    private static final int LOC_SIGNATURE = 0x04034b50;
+    private static final int LOC_SIZE = 30;
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+
+    private static final int METHOD_STORED = 0;
+    private static final int METHOD_DEFLATED = 8;
+    private static final int FLAG_ENCRYPTED = 1;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int MAX_POOLED_INFLATERS = 16;
+
+    /**
+     * amount of the most recently inflated bytes that each random access file of a deflated entry keeps for seeking backwards.
+     */
+    public static final int INFLATE_WINDOW_SIZE = 32 * 1024;
+
+    private static final Queue<Inflater> INFLATERS = new ConcurrentLinkedQueue<>();
+
+    protected final Path archive;
+
+    protected volatile FileChannel channel;
+
+    private volatile boolean closed;
+
+    protected final long archiveModifiedTime;
+
+    /**
+     * absolute path -> node. Never modified after the constructor.
+     */
+    protected final Map<String, ZipNode> index;
+
+    private volatile ZipLuaPath workDirectory;
+
+    /**
+     * Mounts the archive. The central directory is read and indexed before this returns.
+     */
+    public ZipLuaFileSystemHandler(Path archive) throws IOException {
+        this.archive = Objects.requireNonNull(archive);
+        this.channel = FileChannel.open(archive, StandardOpenOption.READ);
+        try {
+            this.archiveModifiedTime = Files.getLastModifiedTime(archive).toMillis();
+            this.index = readIndex();
+        } catch (IOException | RuntimeException e) {
+            try {
+                channel.close();
+            } catch (IOException exc) {
+                //DC
+            }
+            throw e;
+        }
+
+        this.workDirectory = new ZipLuaPath(String.valueOf(VirtualLuaPath.SEPARATOR));
+    }
+
+    public Path getArchive() {
+        return archive;
+    }
+
+    /**
+     * returns the number of files and directories in the index.
+     */
+    public int size() {
+        return index.size();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        closed = true;
+        channel.close();
+    }
+
+    /**
+     * Positional read from the archive. Reopens the channel if it was closed because a reading thread was interrupted.
+     */
+    protected int readChannel(ByteBuffer buffer, long position) throws IOException {
+        while (true) {
+            FileChannel current = channel;
+            try {
+                return current.read(buffer, position);
+            } catch (ClosedByInterruptException e) {
+                reopen(current);
+                throw e;
+            } catch (ClosedChannelException e) {
+                reopen(current);
+            }
+        }
+    }
+
+    private synchronized void reopen(FileChannel closedChannel) throws IOException {
+        if (closed) {
+            throw new ClosedChannelException();
+        }
+
+        if (channel != closedChannel) {
+            return;
+        }
+
+        FileChannel reopened = FileChannel.open(archive, StandardOpenOption.READ);
+        if (Files.getLastModifiedTime(archive).toMillis() != archiveModifiedTime) {
+            reopened.close();
+            throw new IOException(archive + " was modified after it was mounted");
+        }
+
+        channel = reopened;
+    }
+
+    @Override
+    public LuaPath resolvePath(String path) throws InvalidPathException {
+        return workDirectory.child(path);
+    }
+
+    @Override
+    public LuaPath relativePath(String path) throws InvalidPathException {
+        return new ZipLuaPath(path);
+    }
+
+    /**
+     * System paths are always outside of this fs. Returns null.
+     */
+    @Override
+    public LuaPath resolveSysPath(Path path) {
+        Objects.requireNonNull(path);
+        return null;
+    }
+
+    @Override
+    public LuaPath getWorkDirectory() {
+        return workDirectory;
+    }
+
+    @Override
+    public LuaPath tmpFile(String prefix, String suffix) throws IOException {
+        throw new AccessDeniedException(archive.toString(), null, "read only file system");
+    }
+
+    @Override
+    public LuaPath tmpDir() throws IOException {
+        throw new AccessDeniedException(archive.toString(), null, "read only file system");
+    }
+
+    @Override
+    public void setWorkDirectory(LuaPath path) throws NotDirectoryException, IOException {
+        ZipLuaPath dir = new ZipLuaPath(Objects.requireNonNull(path).path()).absolutePath();
+        if (path instanceof ZipLuaPath && ((ZipLuaPath) path).fileSystem() == this) {
+            dir = ((ZipLuaPath) path).absolutePath();
+        }
+
+        if (!dir.isDir()) {
+            throw new NotDirectoryException(dir.toString());
+        }
+
+        workDirectory = dir;
+    }
+
+    @Override
+    public InputStream findResource(String filename) {
+        ZipNode node = ((ZipLuaPath) resolvePath(filename)).node();
+        if (node == null || node.directory) {
+            return null;
+        }
+
+        try {
+            return openInput(node);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    //----------------------------------------------------------------------------------------------------------------
+    // Index
+
+    private Map<String, ZipNode> readIndex() throws IOException {
+        long fileSize = channel.size();
+        ByteBuffer tail = read(Math.max(0, fileSize - EOCD_SIZE - 0xFFFF), (int) Math.min(fileSize, EOCD_SIZE + 0xFFFF));
+
+        int eocd = -1;
+        for (int i = tail.limit() - EOCD_SIZE; i >= 0; i--) {
+            if (tail.getInt(i) == EOCD_SIGNATURE && i + EOCD_SIZE + (tail.getShort(i + 20) & 0xFFFF) == tail.limit()) {
+                eocd = i;
+                break;
+            }
+        }
+
+        if (eocd == -1) {
+            throw new IOException(archive + " is not a zip file");
+        }
+
+        long entries = tail.getShort(eocd + 10) & 0xFFFF;
+        long cenSize = tail.getInt(eocd + 12) & ZIP64_MAGIC;
+        long cenOffset = tail.getInt(eocd + 16) & ZIP64_MAGIC;
+
+        long eocdPosition = fileSize - tail.limit() + eocd;
+        if ((entries == 0xFFFF || cenSize == ZIP64_MAGIC || cenOffset == ZIP64_MAGIC) && eocdPosition >= 20) {
+            ByteBuffer locator = read(eocdPosition - 20, 20);
+            if (locator.getInt(0) == ZIP64_EOCD_LOCATOR_SIGNATURE) {
+                ByteBuffer zip64 = read(locator.getLong(8), 56);
+                if (zip64.getInt(0) != ZIP64_EOCD_SIGNATURE) {
+                    throw new IOException(archive + " has an invalid zip64 end of central directory record");
+                }
+                entries = zip64.getLong(32);
+                cenSize = zip64.getLong(40);
+                cenOffset = zip64.getLong(48);
+            }
+        }
+
+        if (cenSize > Integer.MAX_VALUE || cenOffset + cenSize > fileSize) {
+            throw new IOException(archive + " has an invalid central directory");
+        }
+
+        ByteBuffer cen = read(cenOffset, (int) cenSize);
+        Map<String, ZipNode> result = new HashMap<>((int) Math.min(Integer.MAX_VALUE, (entries * 4) / 3 + 16));
+        List<ZipNode> directories = new ArrayList<>();
+        ZipNode root = new ZipNode(String.valueOf(VirtualLuaPath.SEPARATOR), true);
+        result.put(root.path, root);
+        directories.add(root);
+
+        int position = 0;
+        while (position + CEN_SIZE <= cen.limit()) {
+            if (cen.getInt(position) != CEN_SIGNATURE) {
+                throw new IOException(archive + " has an invalid central directory entry");
+            }
+
+            int flags = cen.getShort(position + 8) & 0xFFFF;
+            int method = cen.getShort(position + 10) & 0xFFFF;
+            int dosTime = cen.getInt(position + 12);
+            long compressedSize = cen.getInt(position + 20) & ZIP64_MAGIC;
+            long size = cen.getInt(position + 24) & ZIP64_MAGIC;
+            int nameLength = cen.getShort(position + 28) & 0xFFFF;
+            int extraLength = cen.getShort(position + 30) & 0xFFFF;
+            int commentLength = cen.getShort(position + 32) & 0xFFFF;
+            long localHeaderOffset = cen.getInt(position + 42) & ZIP64_MAGIC;
+
+            int nameStart = position + CEN_SIZE;
+            if (nameStart + nameLength + extraLength > cen.limit()) {
+                throw new IOException(archive + " has an invalid central directory entry");
+            }
+
+            String name = new String(cen.array(), cen.arrayOffset() + nameStart, nameLength, UTF8);
+
+            if (size == ZIP64_MAGIC || compressedSize == ZIP64_MAGIC || localHeaderOffset == ZIP64_MAGIC) {
+                int extra = nameStart + nameLength;
+                int extraEnd = extra + extraLength;
+                while (extra + 4 <= extraEnd) {
+                    int id = cen.getShort(extra) & 0xFFFF;
+                    int length = cen.getShort(extra + 2) & 0xFFFF;
+                    int data = extra + 4;
+                    if (id == ZIP64_EXTRA_ID) {
+                        if (size == ZIP64_MAGIC && data + 8 <= extraEnd) {
+                            size = cen.getLong(data);
+                            data += 8;
+                        }
+                        if (compressedSize == ZIP64_MAGIC && data + 8 <= extraEnd) {
+                            compressedSize = cen.getLong(data);
+                            data += 8;
+                        }
+                        if (localHeaderOffset == ZIP64_MAGIC && data + 8 <= extraEnd) {
+                            localHeaderOffset = cen.getLong(data);
+                        }
+                        break;
+                    }
+                    extra = data + length;
+                }
+            }
+
+            position = nameStart + nameLength + extraLength + commentLength;
+
+            boolean directory = name.endsWith("/");
+            String path = VirtualLuaPath.normalize(VirtualLuaPath.SEPARATOR + name);
+            if (result.containsKey(path)) {
+                continue;
+            }
+
+            ZipNode parent = parentDirectory(path, result, directories);
+            if (parent == null) {
+                continue;
+            }
+
+            ZipNode node = new ZipNode(path, directory);
+            if (!directory) {
+                node.flags = flags;
+                node.method = method;
+                node.compressedSize = compressedSize;
+                node.size = size;
+                node.localHeaderOffset = localHeaderOffset;
+            }
+            node.dosTime = dosTime;
+            result.put(path, node);
+            parent.addChild(node);
+            if (directory) {
+                directories.add(node);
+            }
+        }
+
+        for (ZipNode dir : directories) {
+            dir.finishChildren();
+        }
+
+        return result;
+    }
+
+    /**
+     * returns the directory node of the parent of the path, creating directories that have no entry of their own.
+     * Returns null if the parent is a file.
+     */
+    private ZipNode parentDirectory(String path, Map<String, ZipNode> result, List<ZipNode> directories) {
+        int index = path.lastIndexOf(VirtualLuaPath.SEPARATOR);
+        String parentPath = index <= 0 ? String.valueOf(VirtualLuaPath.SEPARATOR) : path.substring(0, index);
+        ZipNode parent = result.get(parentPath);
+        if (parent != null) {
+            return parent.directory ? parent : null;
+        }
+
+        ZipNode grandParent = parentDirectory(parentPath, result, directories);
+        if (grandParent == null) {
+            return null;
+        }
+
+        parent = new ZipNode(parentPath, true);
+        result.put(parentPath, parent);
+        grandParent.addChild(parent);
+        directories.add(parent);
+        return parent;
+    }
+
+    private ByteBuffer read(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (readChannel(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("unexpected end of " + archive);
+            }
+        }
+        ((Buffer) buffer).flip();
+        return buffer;
+    }
+
+    /**
+     * returns the offset of the data of a file in the archive. Reads the local header on the first call.
+     */
+    protected long dataOffset(ZipNode node) throws IOException {
+        long offset = node.dataOffset;
+        if (offset >= 0) {
+            return offset;
+        }
+
+        ByteBuffer header = read(node.localHeaderOffset, LOC_SIZE);
+        if (header.getInt(0) != LOC_SIGNATURE) {
+            throw new IOException(archive + " has an invalid local header for " + node.path);
+        }
+
+        offset = node.localHeaderOffset + LOC_SIZE + (header.getShort(26) & 0xFFFF) + (header.getShort(28) & 0xFFFF);
+        node.dataOffset = offset;
+        return offset;
+    }
+
+    private void checkReadable(ZipNode node) throws IOException {
+        if ((node.flags & FLAG_ENCRYPTED) != 0) {
+            throw new IOException("encrypted entry " + node.path + " is not supported");
+        }
+
+        if (node.method != METHOD_STORED && node.method != METHOD_DEFLATED) {
+            throw new IOException("compression method " + node.method + " of " + node.path + " is not supported");
+        }
+    }
+
+    protected InputStream openInput(ZipNode node) throws IOException {
+        checkReadable(node);
+        long offset = dataOffset(node);
+        if (node.method == METHOD_STORED) {
+            return new ChannelRangeInputStream(offset, node.size);
+        }
+
+        return new ZipInflaterInputStream(new ChannelRangeInputStream(offset, node.compressedSize), (int) Math.min(8192, node.compressedSize + 1));
+    }
+
+    private static long dosToJavaTime(int dosTime) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.clear();
+        calendar.set(((dosTime >> 25) & 0x7f) + 1980, ((dosTime >> 21) & 0x0f) - 1, (dosTime >> 16) & 0x1f,
+                (dosTime >> 11) & 0x1f, (dosTime >> 5) & 0x3f, (dosTime << 1) & 0x3e);
+        return calendar.getTimeInMillis();
+    }
+
+    protected static class ZipNode {
+        protected final String path;
+        protected final boolean directory;
+        protected int flags;
+        protected int method;
+        protected int dosTime;
+        protected long compressedSize;
+        protected long size;
+        protected long localHeaderOffset;
+        protected volatile long dataOffset = -1;
+        protected ZipNode[] children;
+
+        /**
+         * only used while the index is built.
+         */
+        private List<ZipNode> childList;
+
+        protected ZipNode(String path, boolean directory) {
+            this.path = path;
+            this.directory = directory;
+        }
+
+        private void addChild(ZipNode child) {
+            if (childList == null) {
+                childList = new ArrayList<>();
+            }
+            childList.add(child);
+        }
+
+        private void finishChildren() {
+            if (childList != null) {
+                children = childList.toArray(new ZipNode[childList.size()]);
+                childList = null;
+            }
+        }
+
+        protected String name() {
+            return path.substring(path.lastIndexOf(VirtualLuaPath.SEPARATOR) + 1);
+        }
+    }
+
+    protected class ZipFileAttributes implements BasicFileAttributes {
+
+        private final ZipNode node;
+
+        protected ZipFileAttributes(ZipNode node) {
+            this.node = node;
+        }
+
+        @Override
+        public FileTime lastModifiedTime() {
+            return FileTime.fromMillis(node.dosTime == 0 ? archiveModifiedTime : dosToJavaTime(node.dosTime));
+        }
+
+        @Override
+        public FileTime lastAccessTime() {
+            return lastModifiedTime();
+        }
+
+        @Override
+        public FileTime creationTime() {
+            return lastModifiedTime();
+        }
+
+        @Override
+        public boolean isRegularFile() {
+            return !node.directory;
+        }
+
+        @Override
+        public boolean isDirectory() {
+            return node.directory;
+        }
+
+        @Override
+        public boolean isSymbolicLink() {
+            return false;
+        }
+
+        @Override
+        public boolean isOther() {
+            return false;
+        }
+
+        @Override
+        public long size() {
+            return node.size;
+        }
+
+        @Override
+        public Object fileKey() {
+            return node;
+        }
+    }
+
+    //----------------------------------------------------------------------------------------------------------------
+    // Streams
+
+    /**
+     * reads a range of the archive with positional reads. Multiple streams can read the archive at the same time.
+     */
+    protected class ChannelRangeInputStream extends InputStream {
+
+        private long position;
+
+        private final long end;
+
+        private long mark;
+
+        protected ChannelRangeInputStream(long start, long length) {
+            this.position = start;
+            this.mark = start;
+            this.end = start + length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) <= 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+
+            if (position >= end) {
+                return -1;
+            }
+
+            int read = readChannel(ByteBuffer.wrap(b, off, (int) Math.min(len, end - position)), position);
+            if (read < 0) {
+                throw new EOFException("unexpected end of " + archive);
+            }
+            position += read;
+            return read;
+        }
+
+        @Override
+        public long skip(long n) {
+            long skipped = Math.max(0, Math.min(n, end - position));
+            position += skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, end - position);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public synchronized void mark(int readlimit) {
+            mark = position;
+        }
+
+        @Override
+        public synchronized void reset() {
+            position = mark;
+        }
+    }
+
+    private static Inflater acquireInflater() {
+        Inflater inflater = INFLATERS.poll();
+        return inflater == null ? new Inflater(true) : inflater;
+    }
+
+    private static void releaseInflater(Inflater inflater) {
+        if (INFLATERS.size() < MAX_POOLED_INFLATERS) {
+            inflater.reset();
+            INFLATERS.offer(inflater);
+            return;
+        }
+
+        inflater.end();
+    }
+
+    /**
+     * Inflates raw deflate data. The inflater is returned to a pool on close, inflaters the pool does not keep are ended right away.
+     */
+    protected static class ZipInflaterInputStream extends InflaterInputStream {
+
+        private boolean eof;
+
+        private boolean closed;
+
+        protected ZipInflaterInputStream(InputStream in, int bufferSize) {
+            super(in, acquireInflater(), Math.max(1, bufferSize));
+        }
+
+        @Override
+        protected void fill() throws IOException {
+            if (eof) {
+                throw new EOFException("Unexpected end of ZLIB input stream");
+            }
+
+            len = in.read(buf, 0, buf.length);
+            if (len == -1) {
+                //The inflater needs one extra byte when the header and trailer are omitted.
+                buf[0] = 0;
+                len = 1;
+                eof = true;
+            }
+            inf.setInput(buf, 0, len);
+        }
+
+        @Override
+        public int available() throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            return inf.finished() ? 0 : 1;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+
+            closed = true;
+            releaseInflater(inf);
+            in.close();
+        }
+    }
+
+    //----------------------------------------------------------------------------------------------------------------
+    // Path
+
+    protected class ZipLuaPath extends VirtualLuaPath {
+
+        public ZipLuaPath(String path) {
+            super(path);
+        }
+
+        @Override
+        protected ZipLuaPath newPath(String path) {
+            return new ZipLuaPath(path);
+        }
+
+        @Override
+        protected ZipLuaPath workDirectory() {
+            return workDirectory;
+        }
+
+        @Override
+        protected Object fileSystem() {
+            return ZipLuaFileSystemHandler.this;
+        }
+
+        @Override
+        public ZipLuaPath absolutePath() {
+            return (ZipLuaPath) super.absolutePath();
+        }
+
+        protected ZipNode node() {
+            return index.get(absolutePath().path);
+        }
+
+        protected ZipNode existingNode() throws NoSuchFileException {
+            ZipNode node = node();
+            if (node == null) {
+                throw new NoSuchFileException(path);
+            }
+            return node;
+        }
+
+        protected AccessDeniedException readOnly() {
+            return new AccessDeniedException(path, null, "read only file system");
+        }
+
+        @Override
+        public BasicFileAttributes attributes() throws IOException {
+            return new ZipFileAttributes(existingNode());
+        }
+
+        @Override
+        public void setFileTimes(FileTime lastModifiedTime, FileTime lastAccessTime, FileTime createTime) throws IOException {
+            throw readOnly();
+        }
+
+        @Override
+        public boolean exists() {
+            return node() != null;
+        }
+
+        @Override
+        public boolean isDir() {
+            ZipNode node = node();
+            return node != null && node.directory;
+        }
+
+        @Override
+        public boolean isFile() {
+            ZipNode node = node();
+            return node != null && !node.directory;
+        }
+
+        @Override
+        public DirectoryStream<LuaDirectoryEntry> newDirectoryStream() throws NotDirectoryException, IOException {
+            ZipNode node = node();
+            if (node == null || !node.directory) {
+                throw new NotDirectoryException(path);
+            }
+
+            final ZipNode[] children = node.children == null ? new ZipNode[0] : node.children;
+            return new DirectoryStream<LuaDirectoryEntry>() {
+
+                private boolean iterated;
+
+                @Override
+                public Iterator<LuaDirectoryEntry> iterator() {
+                    if (iterated) {
+                        throw new IllegalStateException("iterator already obtained");
+                    }
+                    iterated = true;
+
+                    return new Iterator<LuaDirectoryEntry>() {
+                        private int index;
+
+                        @Override
+                        public boolean hasNext() {
+                            return index < children.length;
+                        }
+
+                        @Override
+                        public LuaDirectoryEntry next() {
+                            if (index >= children.length) {
+                                throw new NoSuchElementException();
+                            }
+
+                            final ZipNode child = children[index++];
+                            final LuaPath childPath = child(child.name());
+                            return new LuaDirectoryEntry() {
+                                @Override
+                                public LuaPath path() {
+                                    return childPath;
+                                }
+
+                                @Override
+                                public BasicFileAttributes attributes() {
+                                    return new ZipFileAttributes(child);
+                                }
+
+                                @Override
+                                public String toString() {
+                                    return childPath.toString();
+                                }
+                            };
+                        }
+
+                        @Override
+                        public void remove() {
+                            throw new UnsupportedOperationException();
+                        }
+                    };
+                }
+
+                @Override
+                public void close() {
+                    //NOOP
+                }
+            };
+        }
+
+        @Override
+        public void createNewFile() throws FileAlreadyExistsException, IOException, NotDirectoryException {
+            if (exists()) {
+                throw new FileAlreadyExistsException(path);
+            }
+            throw readOnly();
+        }
+
+        @Override
+        public void mkdir() throws FileAlreadyExistsException, IOException, NotDirectoryException {
+            if (exists()) {
+                throw new FileAlreadyExistsException(path);
+            }
+            throw readOnly();
+        }
+
+        @Override
+        public void mkdirs() throws FileAlreadyExistsException, IOException, NotDirectoryException {
+            if (isDir()) {
+                return;
+            }
+            throw readOnly();
+        }
+
+        @Override
+        public void link(LuaPath to) throws IOException {
+            throw readOnly();
+        }
+
+        @Override
+        public void delete() throws IOException {
+            existingNode();
+            throw readOnly();
+        }
+
+        @Override
+        public void move(LuaPath tar) throws IOException {
+            existingNode();
+            throw readOnly();
+        }
+
+        @Override
+        public void moveFile(LuaPath target) throws IOException {
+            existingNode();
+            throw readOnly();
+        }
+
+        @Override
+        public LuaRandomAccessFile open(String mode) throws IOException {
+            ZipNode node = node();
+            if (!"r".equals(mode)) {
+                throw readOnly();
+            }
+
+            if (node == null) {
+                throw new FileNotFoundException(path + " (No such file or directory)");
+            }
+
+            if (node.directory) {
+                throw new FileNotFoundException(path + " (Is a directory)");
+            }
+
+            checkReadable(node);
+            return new ZipLuaRandomAccessFile(absolutePath(), node);
+        }
+
+        @Override
+        public InputStream openInput() throws FileNotFoundException, IOException {
+            ZipNode node = node();
+            if (node == null) {
+                throw new FileNotFoundException(path + " (No such file or directory)");
+            }
+
+            if (node.directory) {
+                throw new IOException("cannot open directory for reading");
+            }
+
+            return ZipLuaFileSystemHandler.this.openInput(node);
+        }
+
+        @Override
+        public OutputStream openOutput(boolean append) throws IOException {
+            throw readOnly();
+        }
+
+        @Override
+        public long size() throws IOException {
+            return existingNode().size;
+        }
+    }
+
+    //----------------------------------------------------------------------------------------------------------------
+    // Random access
+
+    /**
+     * Stored entries are read with positional reads of the archive.
+     * Deflated entries are inflated up to the position that is read. The last {@link #INFLATE_WINDOW_SIZE} inflated bytes are kept,
+     * seeking backwards within them does not touch the inflater. Seeking back further starts a new inflation.
+     */
+    protected class ZipLuaRandomAccessFile implements LuaRandomAccessFile, Flushable {
+
+        protected final ZipLuaPath path;
+
+        protected final ZipNode node;
+
+        private long position;
+
+        private InputStream inflater;
+
+        private long inflaterPosition;
+
+        /**
+         * ring buffer of the last windowLength inflated bytes, the byte at file offset x is stored at x % window.length.
+         */
+        private byte[] window;
+
+        private int windowLength;
+
+        private boolean closed;
+
+        protected ZipLuaRandomAccessFile(ZipLuaPath path, ZipNode node) {
+            this.path = path;
+            this.node = node;
+        }
+
+        private void ensureOpen() throws IOException {
+            if (closed) {
+                throw new IOException("Stream Closed");
+            }
+        }
+
+        @Override
+        public FileDescriptor getFileDescriptor() {
+            return null;
+        }
+
+        @Override
+        public FileChannel getFileChannel() {
+            return null;
+        }
+
+        @Override
+        public LuaPath getPath() {
+            return path;
+        }
+
+        @Override
+        public synchronized void setPosition(long position) throws IOException {
+            ensureOpen();
+            if (position < 0) {
+                throw new IOException("Negative seek offset");
+            }
+            this.position = position;
+        }
+
+        @Override
+        public synchronized long getPosition() throws IOException {
+            ensureOpen();
+            return position;
+        }
+
+        @Override
+        public long size() throws IOException {
+            ensureOpen();
+            return node.size;
+        }
+
+        @Override
+        public synchronized int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) <= 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public synchronized int read(byte[] buf, int off, int len) throws IOException {
+            ensureOpen();
+            if (len == 0) {
+                return 0;
+            }
+
+            if (position >= node.size) {
+                return -1;
+            }
+
+            len = (int) Math.min(len, node.size - position);
+            int read;
+            if (node.method == METHOD_STORED) {
+                read = readChannel(ByteBuffer.wrap(buf, off, len), dataOffset(node) + position);
+                if (read < 0) {
+                    throw new EOFException("unexpected end of " + archive);
+                }
+            } else if (inflater != null && position < inflaterPosition && position >= inflaterPosition - windowLength) {
+                read = (int) Math.min(len, inflaterPosition - position);
+                int start = (int) (position % window.length);
+                int first = Math.min(read, window.length - start);
+                System.arraycopy(window, start, buf, off, first);
+                System.arraycopy(window, 0, buf, off + first, read - first);
+            } else {
+                seekInflater();
+                read = inflater.read(buf, off, len);
+                if (read < 0) {
+                    throw new EOFException("unexpected end of " + node.path);
+                }
+                remember(buf, off, read);
+            }
+
+            position += read;
+            return read;
+        }
+
+        private void seekInflater() throws IOException {
+            if (inflater != null && inflaterPosition > position) {
+                inflater.close();
+                inflater = null;
+            }
+
+            if (inflater == null) {
+                inflater = openInput(node);
+                inflaterPosition = 0;
+                windowLength = 0;
+                if (window == null) {
+                    window = new byte[(int) Math.min(INFLATE_WINDOW_SIZE, Math.max(1, node.size))];
+                }
+            }
+
+            //Skipped bytes are inflated into the window so seeking back to them is cheap.
+            while (inflaterPosition < position) {
+                int start = (int) (inflaterPosition % window.length);
+                int skipped = inflater.read(window, start, (int) Math.min(window.length - start, position - inflaterPosition));
+                if (skipped <= 0) {
+                    throw new EOFException("unexpected end of " + node.path);
+                }
+                windowLength = Math.min(window.length, windowLength + skipped);
+                inflaterPosition += skipped;
+            }
+        }
+
+        /**
+         * Stores bytes that were just inflated to buf in the window and advances the inflater position.
+         */
+        private void remember(byte[] buf, int off, int len) {
+            int skip = Math.max(0, len - window.length);
+            int start = (int) ((inflaterPosition + skip) % window.length);
+            int count = len - skip;
+            int first = Math.min(count, window.length - start);
+            System.arraycopy(buf, off + skip, window, start, first);
+            System.arraycopy(buf, off + skip + first, window, 0, count - first);
+            windowLength = (int) Math.min(window.length, (long) windowLength + len);
+            inflaterPosition += len;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            throw new IOException("file is opened read only");
+        }
+
+        @Override
+        public void write(byte[] buf, int off, int len) throws IOException {
+            throw new IOException("file is opened read only");
+        }
+
+        @Override
+        public void setSize(long i) throws IOException {
+            throw new IOException("file is opened read only");
+        }
+
+        @Override
+        public void flush() {
+            //NOOP
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            if (closed) {
+                return;
+            }
+
+            closed = true;
+            if (inflater != null) {
+                inflater.close();
+                inflater = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,105 @@
+//
+// Copyright Alexander Schütz, 2022
+//
+// This file is part of LuajFSHook.
+//
+// LuajFSHook is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// LuajFSHook is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// A copy of the GNU Lesser General Public License should be provided
+// in the COPYING & COPYING.LESSER files in top level directory of LuajFSHook.
+// If not, see <https://www.gnu.org/licenses/>.
+//
+import io.github.alexanderschuetz97.luajfshook.api.LuaPath;
+import io.github.alexanderschuetz97.luajfshook.api.LuaRandomAccessFile;
+import io.github.alexanderschuetz97.luajfshook.api.LuajFSHook;
+import io.github.alexanderschuetz97.luajfshook.impl.DefaultLuaFileSystemHandler;
+import io.github.alexanderschuetz97.luajfshook.impl.DefaultLuaRandomAccessFile;
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.lib.jse.JsePlatform;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+
+/**
+ * Benchmark for line reads via io.lines with and without the BufferedLuaRandomAccessFile.
+ * Not a unit test. Run manually:
+ * java -cp ... BufferedReadBenchmark [sizeInBytes]
+ *
+ * The default size is 1 GB. The unbuffered run performs several syscalls per byte so expect it to take a while.
+ */
+public class BufferedReadBenchmark {
+
+    private static final String SCRIPT =
+            "local n = 0\n" +
+            "for l in io.lines(fname) do n = n + 1 end\n" +
+            "return n";
+
+    public static void main(String[] args) throws Exception {
+        long size = args.length > 0 ? Long.parseLong(args[0]) : 1024L * 1024L * 1024L;
+
+        File log = File.createTempFile("luajfshook", ".log");
+        log.deleteOnExit();
+        writeLog(log, size);
+
+        System.out.println("Log size: " + log.length() + " bytes");
+        run("buffered", new DefaultLuaFileSystemHandler(), log);
+        run("unbuffered", new UnbufferedHandler(), log);
+        log.delete();
+    }
+
+    private static void writeLog(File file, long size) throws IOException {
+        byte[] line = "2022-01-01 00:00:00 INFO  luajfshook benchmark line with some payload to read\n".getBytes("UTF-8");
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1 << 16)) {
+            for (long written = 0; written < size; written += line.length) {
+                out.write(line);
+            }
+        }
+    }
+
+    private static void run(String name, DefaultLuaFileSystemHandler handler, File log) {
+        Globals globals = JsePlatform.standardGlobals();
+        LuajFSHook.install(globals, handler);
+        globals.set("fname", log.getAbsolutePath());
+        LuaValue chunk = globals.load(SCRIPT);
+
+        long start = System.nanoTime();
+        int lines = chunk.call().toint();
+        long millis = (System.nanoTime() - start) / 1000000L;
+        System.out.println(name + ": " + lines + " lines in " + millis + " ms (" + (log.length() / 1024L / Math.max(1, millis)) + " KiB/ms)");
+    }
+
+    /**
+     * Handler that returns the unbuffered RandomAccessFile like LuajFSHook did before the BufferedLuaRandomAccessFile.
+     */
+    private static class UnbufferedHandler extends DefaultLuaFileSystemHandler {
+        @Override
+        public LuaPath resolvePath(String filename) {
+            return new UnbufferedPath(this, getWorkDirectory().toSystemPath().resolve(filename));
+        }
+
+        private static class UnbufferedPath extends DefaultLuaPath {
+            UnbufferedPath(DefaultLuaFileSystemHandler handler, Path delegate) {
+                super(handler, delegate);
+            }
+
+            @Override
+            public LuaRandomAccessFile open(String mode) throws IOException {
+                return new DefaultLuaRandomAccessFile(new RandomAccessFile(delegate.toAbsolutePath().toString(), mode), this);
+            }
+        }
+    }
+}
@@ -0,0 +1,329 @@
+//
+// Copyright Alexander Schütz, 2022
+//
+// This file is part of LuajFSHook.
+//
+// LuajFSHook is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// LuajFSHook is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// A copy of the GNU Lesser General Public License should be provided
+// in the COPYING & COPYING.LESSER files in top level directory of LuajFSHook.
+// If not, see <https://www.gnu.org/licenses/>.
+//
+import io.github.alexanderschuetz97.luajfshook.api.LuaFileSystemHandler;
+import io.github.alexanderschuetz97.luajfshook.api.LuaPath;
+import io.github.alexanderschuetz97.luajfshook.api.LuajFSHook;
+import io.github.alexanderschuetz97.luajfshook.impl.DefaultLuaFileSystemHandler;
+import io.github.alexanderschuetz97.luajfshook.impl.DirectChunkPool;
+import io.github.alexanderschuetz97.luajfshook.impl.JailedLuaFileSystemHandler;
+import io.github.alexanderschuetz97.luajfshook.impl.MemoryLuaFileSystemHandler;
+import io.github.alexanderschuetz97.luajfshook.impl.MountLuaFileSystemHandler;
+import io.github.alexanderschuetz97.luajfshook.impl.OffHeapLuaFileSystemHandler;
+import io.github.alexanderschuetz97.luajfshook.impl.OverlayLuaFileSystemHandler;
+import io.github.alexanderschuetz97.luajfshook.impl.SnapshotMemoryLuaFileSystemHandler;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.lib.jse.JsePlatform;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Behavior every LuaFileSystemHandler must have. Each test runs against every handler returned by {@link #handlers()}.
+ */
+@RunWith(Parameterized.class)
+public class LuaFileSystemHandlerBehaviorTest {
+
+    private interface HandlerFactory {
+        LuaFileSystemHandler create() throws IOException;
+    }
+
+    @Parameterized.Parameters(name = "{0}")
+    public static Collection<Object[]> handlers() {
+        return Arrays.asList(
+                new Object[]{"default", new HandlerFactory() {
+                    @Override
+                    public LuaFileSystemHandler create() throws IOException {
+                        DefaultLuaFileSystemHandler handler = new DefaultLuaFileSystemHandler();
+                        handler.setWorkDirectory(handler.resolveSysPath(Files.createTempDirectory("luajfshook")));
+                        return handler;
+                    }
+                }},
+                new Object[]{"memory", new HandlerFactory() {
+                    @Override
+                    public LuaFileSystemHandler create() {
+                        return new MemoryLuaFileSystemHandler();
+                    }
+                }},
+                new Object[]{"offheap", new HandlerFactory() {
+                    @Override
+                    public LuaFileSystemHandler create() {
+                        return new OffHeapLuaFileSystemHandler(new DirectChunkPool(64, 4096, 8), Paths.get(System.getProperty("java.io.tmpdir")));
+                    }
+                }},
+                new Object[]{"mount", new HandlerFactory() {
+                    @Override
+                    public LuaFileSystemHandler create() throws IOException {
+                        DefaultLuaFileSystemHandler disk = new DefaultLuaFileSystemHandler();
+                        MountLuaFileSystemHandler handler = new MountLuaFileSystemHandler();
+                        handler.mount("/", new MemoryLuaFileSystemHandler());
+                        handler.mount("/work", disk, disk.resolveSysPath(Files.createTempDirectory("luajfshook")));
+                        handler.setWorkDirectory(handler.resolvePath("/work"));
+                        return handler;
+                    }
+                }},
+                new Object[]{"overlay", new HandlerFactory() {
+                    @Override
+                    public LuaFileSystemHandler create() throws IOException {
+                        MemoryLuaFileSystemHandler lower = new MemoryLuaFileSystemHandler();
+                        lower.resolvePath("/tmp").mkdirs();
+                        DefaultLuaFileSystemHandler disk = new DefaultLuaFileSystemHandler();
+                        return new OverlayLuaFileSystemHandler(lower, lower.resolvePath("/"), disk, disk.resolveSysPath(Files.createTempDirectory("luajfshook")));
+                    }
+                }},
+                new Object[]{"snapshot", new HandlerFactory() {
+                    @Override
+                    public LuaFileSystemHandler create() throws IOException {
+                        SnapshotMemoryLuaFileSystemHandler origin = new SnapshotMemoryLuaFileSystemHandler(16);
+                        origin.resolvePath("/work").mkdirs();
+                        origin.setWorkDirectory(origin.resolvePath("/work"));
+                        return origin.fork();
+                    }
+                }},
+                new Object[]{"jail", new HandlerFactory() {
+                    @Override
+                    public LuaFileSystemHandler create() throws IOException {
+                        return new JailedLuaFileSystemHandler(Files.createTempDirectory("luajfshook"));
+                    }
+                }}
+        );
+    }
+
+    private final HandlerFactory factory;
+
+    private LuaFileSystemHandler handler;
+
+    private Globals globals;
+
+    public LuaFileSystemHandlerBehaviorTest(String name, HandlerFactory factory) {
+        this.factory = factory;
+    }
+
+    @Before
+    public void before() throws IOException {
+        handler = factory.create();
+        globals = newGlobals();
+    }
+
+    @After
+    public void after() throws IOException {
+        if (handler instanceof Closeable) {
+            ((Closeable) handler).close();
+        }
+
+        if (handler.getWorkDirectory().toSystemPath() == null) {
+            return;
+        }
+
+        LuaPath wd = new DefaultLuaFileSystemHandler().resolveSysPath(handler.getWorkDirectory().toSystemPath());
+
+        final List<LuaPath> dirs = new ArrayList<>();
+        wd.walkFileTree(Integer.MAX_VALUE, false, new LuaPath.LuaFileVisitor() {
+            @Override
+            public FileVisitResult preVisitDirectory(LuaPath dir) {
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(LuaPath file) throws IOException {
+                file.delete();
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(LuaPath dir) {
+                dirs.add(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+
+        for (LuaPath dir : dirs) {
+            dir.delete();
+        }
+    }
+
+    private Globals newGlobals() {
+        Globals gl = JsePlatform.standardGlobals();
+        Assert.assertTrue(LuajFSHook.install(gl, handler));
+        return gl;
+    }
+
+    private LuaValue run(String script) {
+        return globals.load(script).call();
+    }
+
+    @Test
+    public void testWriteReadSeek() {
+        run("local f = assert(io.open('a.txt', 'w')) f:write('hello\\nworld\\n', 42) f:close()");
+        Assert.assertEquals("hello\nworld\n42", run("local f = assert(io.open('a.txt', 'r')) local r = f:read('*a') f:close() return r").tojstring());
+        Assert.assertEquals("world", run("local f = io.open('a.txt', 'r') f:seek('set', 6) local r = f:read('*l') f:close() return r").tojstring());
+        Assert.assertEquals(14, run("local f = io.open('a.txt', 'r') local r = f:seek('end') f:close() return r").toint());
+        Assert.assertEquals("hello|world|42|", run("local r = '' for l in io.lines('a.txt') do r = r .. l .. '|' end return r").tojstring());
+
+        run("local f = io.open('a.txt', 'a') f:write('!') f:close()");
+        Assert.assertEquals("hello\nworld\n42!", run("local f = io.open('a.txt') local r = f:read('*a') f:close() return r").tojstring());
+
+        run("local f = io.open('a.txt', 'r+') f:write('J') f:close()");
+        Assert.assertEquals("Jello", run("local f = io.open('a.txt') local r = f:read(5) f:close() return r").tojstring());
+
+        run("local f = io.open('a.txt', 'w') f:close()");
+        Assert.assertEquals(0, run("local f = io.open('a.txt') local r = f:seek('end') f:close() return r").toint());
+    }
+
+    @Test
+    public void testOpenMissing() {
+        Assert.assertTrue(run("return io.open('missing.txt', 'r')").isnil());
+        Assert.assertTrue(run("return io.open('missingdir/file.txt', 'w')").isnil());
+    }
+
+    @Test
+    public void testRemoveRename() {
+        run("local f = io.open('b.txt', 'w') f:write('b') f:close()");
+        Assert.assertTrue(run("return os.rename('b.txt', 'c.txt')").toboolean());
+        Assert.assertTrue(run("return io.open('b.txt') == nil").toboolean());
+        Assert.assertEquals("b", run("local f = io.open('c.txt') local r = f:read('*a') f:close() return r").tojstring());
+        Assert.assertTrue(run("return os.remove('c.txt')").toboolean());
+        Assert.assertTrue(run("return io.open('c.txt') == nil").toboolean());
+        Assert.assertFalse(handler.resolvePath("c.txt").exists());
+    }
+
+    @Test
+    public void testTmpName() throws IOException {
+        String name = run("local n = os.tmpname() local f = assert(io.open(n, 'w')) f:write('tmp') f:close() return n").tojstring();
+        Assert.assertEquals(3, handler.resolvePath(name).size());
+        Assert.assertEquals("tmp", run("local f = io.tmpfile() f:write('tmp') f:seek('set', 0) return f:read('*a')").tojstring());
+        handler.resolvePath(name).delete();
+    }
+
+    @Test
+    public void testDofileAndRequire() {
+        run("local f = io.open('mod.lua', 'w') f:write('return {value = 7}') f:close()");
+        Assert.assertEquals(7, run("return dofile('mod.lua').value").toint());
+        Assert.assertEquals(7, run("package.path = './?.lua' return require('mod').value").toint());
+    }
+
+    @Test
+    public void testDirectories() throws IOException {
+        LuaPath dir = handler.resolvePath("x/y/z");
+        dir.mkdirs();
+        Assert.assertTrue(dir.isDir());
+        dir.mkdirs();
+
+        LuaPath file = dir.child("f.txt");
+        file.createNewFile();
+        Assert.assertTrue(file.isFile());
+        Assert.assertEquals(Collections.singletonList(file.name()), names(dir.list()));
+
+        try {
+            dir.delete();
+            Assert.fail();
+        } catch (DirectoryNotEmptyException e) {
+            //EXPECTED
+        }
+
+        file.copyFile(handler.resolvePath("x/copy.txt"));
+        Assert.assertTrue(handler.resolvePath("x/copy.txt").isFile());
+        Assert.assertTrue(file.exists());
+
+        handler.resolvePath("x/y").move(handler.resolvePath("x/w"));
+        Assert.assertFalse(handler.resolvePath("x/y").exists());
+        Assert.assertTrue(handler.resolvePath("x/w/z/f.txt").isFile());
+
+        final AtomicInteger files = new AtomicInteger();
+        handler.resolvePath("x").walkFileTree(Integer.MAX_VALUE, false, new LuaPath.LuaFileVisitor() {
+            @Override
+            public FileVisitResult preVisitDirectory(LuaPath dir) {
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(LuaPath file) {
+                files.incrementAndGet();
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(LuaPath dir) {
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        Assert.assertEquals(2, files.get());
+
+        handler.setWorkDirectory(handler.resolvePath("x/w"));
+        Assert.assertTrue(run("return io.open('z/f.txt') ~= nil").toboolean());
+    }
+
+    @Test
+    public void testConcurrentGlobals() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < 32; i++) {
+                final int id = i;
+                results.add(executor.submit(new java.util.concurrent.Callable<String>() {
+                    @Override
+                    public String call() {
+                        Globals gl = newGlobals();
+                        gl.load("local f = io.open('t" + id + ".txt', 'w') for i = 1, 100 do f:write(i, '\\n') end f:close()").call();
+                        gl.load("local f = io.open('shared.txt', 'a') f:write('x') f:close()").call();
+                        return gl.load("local n = 0 for l in io.lines('t" + id + ".txt') do n = n + tonumber(l) end return n").call().tojstring();
+                    }
+                }));
+            }
+
+            for (Future<String> result : results) {
+                Assert.assertEquals("5050", result.get());
+            }
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        }
+
+        Assert.assertTrue(handler.resolvePath("shared.txt").size() > 0);
+    }
+
+    private static List<String> names(List<LuaPath> paths) {
+        List<String> names = new ArrayList<>();
+        for (LuaPath path : paths) {
+            names.add(path.name());
+        }
+        return names;
+    }
+}
@@ -17,21 +17,82 @@
 // in the COPYING & COPYING.LESSER files in top level directory of LuajFSHook.
 // If not, see <https://www.gnu.org/licenses/>.
 //
+import io.github.alexanderschuetz97.luajfshook.api.DurabilityPolicy;
+import io.github.alexanderschuetz97.luajfshook.api.LuaDirectoryEntry;
+import io.github.alexanderschuetz97.luajfshook.api.LuaFileSystemHandler;
+import io.github.alexanderschuetz97.luajfshook.api.LuaPath;
+import io.github.alexanderschuetz97.luajfshook.api.LuaRandomAccessFile;
 import io.github.alexanderschuetz97.luajfshook.api.LuajFSHook;
+import io.github.alexanderschuetz97.luajfshook.impl.AttributeCache;
+import io.github.alexanderschuetz97.luajfshook.impl.BufferedLuaRandomAccessFile;
+import io.github.alexanderschuetz97.luajfshook.impl.ChunkCache;
+import io.github.alexanderschuetz97.luajfshook.impl.CoroutineIoScheduler;
 import io.github.alexanderschuetz97.luajfshook.impl.DefaultLuaFileSystemHandler;
+import io.github.alexanderschuetz97.luajfshook.impl.DirectChunkPool;
+import io.github.alexanderschuetz97.luajfshook.impl.FileTransfer;
+import io.github.alexanderschuetz97.luajfshook.impl.FileTreeWalker;
+import io.github.alexanderschuetz97.luajfshook.impl.GroupCommitSyncer;
+import io.github.alexanderschuetz97.luajfshook.impl.JailedLuaFileSystemHandler;
+import io.github.alexanderschuetz97.luajfshook.impl.MappedBuffers;
+import io.github.alexanderschuetz97.luajfshook.impl.MappedLuaRandomAccessFile;
+import io.github.alexanderschuetz97.luajfshook.impl.MemoryLuaFileSystemHandler;
+import io.github.alexanderschuetz97.luajfshook.impl.MountLuaFileSystemHandler;
+import io.github.alexanderschuetz97.luajfshook.impl.NegativeLookupCache;
+import io.github.alexanderschuetz97.luajfshook.impl.OffHeapLuaFileSystemHandler;
+import io.github.alexanderschuetz97.luajfshook.impl.OverlayLuaFileSystemHandler;
+import io.github.alexanderschuetz97.luajfshook.impl.ParallelFileTreeWalker;
+import io.github.alexanderschuetz97.luajfshook.impl.ProcessScheduler;
+import io.github.alexanderschuetz97.luajfshook.impl.ProcessScheduler.ScheduledProcess;
+import io.github.alexanderschuetz97.luajfshook.impl.RedirectablePrintStream;
+import io.github.alexanderschuetz97.luajfshook.impl.ResolvedPathCache;
+import io.github.alexanderschuetz97.luajfshook.impl.ShellCommandEmulator;
+import io.github.alexanderschuetz97.luajfshook.impl.SnapshotMemoryLuaFileSystemHandler;
+import io.github.alexanderschuetz97.luajfshook.impl.ZipLuaFileSystemHandler;
 import org.junit.Assert;
 import org.junit.Test;
 import org.luaj.vm2.Globals;
 import org.luaj.vm2.LuaError;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Varargs;
 import org.luaj.vm2.lib.jse.JsePlatform;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileDescriptor;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 public class LuajFSHookTest {
 
@@ -69,6 +130,1067 @@ public class LuajFSHookTest {
         Assert.assertEquals("/tmp\n", baos.toString());
     }
 
+    @Test
+    public void testExecuteDrainsOutput() throws IOException {
+        DefaultLuaFileSystemHandler th = new DefaultLuaFileSystemHandler();
+        th.setWorkDirectory(th.resolvePath("/tmp"));
+        Globals gl = JsePlatform.standardGlobals();
+        Assert.assertNotNull(LuajFSHook.getVirtualThreadExecutor());
+        Assert.assertTrue(LuajFSHook.install(gl, th, LuajFSHook.getVirtualThreadExecutor()));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        gl.STDOUT = new PrintStream(out);
+        gl.STDERR = new PrintStream(err);
+        Assert.assertTrue(gl.load("return os.execute('seq 1 100000')").call().toboolean());
+        Assert.assertTrue(out.toString().endsWith("\n99999\n100000\n"));
+        Assert.assertEquals(588895, out.size());
+        gl.load("os.execute('ls /does/not/exist')").call();
+        Assert.assertTrue(err.size() > 0);
+    }
+
+    @Test
+    public void testExecuteRedirectsToFile() throws IOException {
+        DefaultLuaFileSystemHandler th = new DefaultLuaFileSystemHandler();
+        th.setWorkDirectory(th.resolvePath("/tmp"));
+        Globals gl = JsePlatform.standardGlobals();
+        Assert.assertTrue(LuajFSHook.install(gl, th, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                Assert.fail("output should not be copied");
+            }
+        }));
+
+        LuaPath out = th.tmpFile("redirect", ".txt");
+        MemoryLuaFileSystemHandler memory = new MemoryLuaFileSystemHandler();
+        LuaPath memoryOut = memory.resolvePath("/out.txt");
+        try {
+            RedirectablePrintStream stream = RedirectablePrintStream.open(out, false);
+            gl.STDOUT = stream;
+            gl.STDERR = stream;
+            gl.load("io.write('before\\n') os.execute('pwd') os.execute('ls /does/not/exist') io.write('after\\n')").call();
+            stream.close();
+            String content = new String(readAll(out), "UTF-8");
+            Assert.assertTrue(content, content.startsWith("before\n/tmp\n"));
+            Assert.assertTrue(content, content.endsWith("after\n"));
+            Assert.assertTrue(content.length() > "before\n/tmp\nafter\n".length());
+
+            Assert.assertNull(RedirectablePrintStream.open(memoryOut, false).redirectFor(false));
+            Assert.assertEquals(ProcessBuilder.Redirect.INHERIT, RedirectablePrintStream.stdout().redirectFor(false));
+            Assert.assertNull(RedirectablePrintStream.stdout().redirectFor(true));
+            Assert.assertEquals(ProcessBuilder.Redirect.INHERIT, RedirectablePrintStream.stderr().redirectFor(true));
+        } finally {
+            out.delete();
+        }
+    }
+
+    @Test
+    public void testPopen() throws Exception {
+        DefaultLuaFileSystemHandler th = new DefaultLuaFileSystemHandler();
+        th.setWorkDirectory(th.resolvePath("/tmp"));
+        Globals gl = JsePlatform.standardGlobals();
+        Assert.assertTrue(LuajFSHook.install(gl, th));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        gl.STDOUT = new PrintStream(out, true);
+        gl.STDERR = new PrintStream(err, true);
+
+        LuaValue result = gl.load("local f = io.popen('seq 1 3') local n = f:read('*n') local rest = f:read('*a') f:close() return n, rest").call();
+        Assert.assertEquals(1, result.toint());
+        result = gl.load("local f = io.popen('seq 1 3') local n, l = f:read('*n', '*l') local rest = f:read('*a') f:close() return rest").call();
+        Assert.assertEquals("2\n3\n", result.tojstring());
+        Assert.assertEquals(4000, gl.load("local f = io.popen('seq 1000 9999') local r = f:read(4000) f:close() return #r").call().toint());
+        Assert.assertEquals("", gl.load("local f = io.popen('ls /does/not/exist') local r = f:read('*a') f:close() return r or ''").call().tojstring());
+
+        gl.load("local f = io.popen('cat', 'w') f:setvbuf('line') f:write('hello') f:write(' world\\n') f:write('bye') f:close()").call();
+        long deadline = System.currentTimeMillis() + 5000;
+        while ((out.size() < 16 || err.size() == 0) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals("hello world\nbye", out.toString());
+        Assert.assertTrue(err.size() > 0);
+    }
+
+    @Test
+    public void testProcessScheduler() throws Exception {
+        final ProcessScheduler scheduler = new ProcessScheduler(2);
+        ScheduledProcess first = scheduler.start(null, new ProcessBuilder("cat"));
+        ScheduledProcess second = scheduler.start(null, new ProcessBuilder("cat"));
+        Assert.assertEquals(2, scheduler.getRunning());
+
+        ExecutorService ex = Executors.newSingleThreadExecutor();
+        Future<Boolean> queued = ex.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                Globals gl = JsePlatform.standardGlobals();
+                LuajFSHook.install(gl, null, null, null, scheduler);
+                return gl.load("return os.execute('true')").call().toboolean();
+            }
+        });
+        ex.shutdown();
+
+        //Both slots are taken so os.execute has to wait until one of the cat processes exits.
+        awaitQueueDepth(scheduler, 1);
+        Assert.assertEquals(2, scheduler.getStarted());
+        first.getProcess().getOutputStream().close();
+        Assert.assertEquals(0, first.waitFor());
+        Assert.assertTrue(queued.get(10, TimeUnit.SECONDS));
+        Assert.assertEquals(3, scheduler.getStarted());
+        Assert.assertEquals(1, scheduler.getRunning());
+        Assert.assertEquals(0, scheduler.getQueueDepth());
+        second.getProcess().getOutputStream().close();
+        Assert.assertEquals(0, second.waitFor());
+        Assert.assertEquals(0, scheduler.getRunning());
+
+        final ProcessScheduler quota = new ProcessScheduler(4, 1, 300, TimeUnit.MILLISECONDS);
+        final Globals gl = JsePlatform.standardGlobals();
+        Assert.assertTrue(LuajFSHook.install(gl, null, null, null, quota));
+        Assert.assertTrue(gl.load("return os.execute('sleep 5')").call().isnil());
+        Assert.assertEquals(1, quota.getTimedOut());
+        Assert.assertEquals(0, quota.getRunning());
+
+        //The quota of the globals is 1 so the second process has to wait even though the scheduler has free slots.
+        ScheduledProcess blocking = quota.start(gl, new ProcessBuilder("cat"));
+        ex = Executors.newSingleThreadExecutor();
+        Future<ScheduledProcess> waiting = ex.submit(new Callable<ScheduledProcess>() {
+            @Override
+            public ScheduledProcess call() throws Exception {
+                return quota.start(gl, new ProcessBuilder("true"));
+            }
+        });
+        ex.shutdown();
+        awaitQueueDepth(quota, 1);
+        Assert.assertEquals(1, quota.getRunning());
+        blocking.getProcess().getOutputStream().close();
+        Assert.assertEquals(0, blocking.waitFor());
+        Assert.assertEquals(0, waiting.get(10, TimeUnit.SECONDS).waitFor());
+        Assert.assertEquals(0, quota.getQueueDepth());
+
+        Assert.assertEquals("", gl.load("local p = io.popen('true') local r = p:read('*a') or '' p:close() return r").call().tojstring());
+        awaitRunning(quota, 0);
+        Assert.assertEquals(4, quota.getStarted());
+        Assert.assertEquals(1, quota.getTimedOut());
+
+        //Interrupting os.execute destroys the process, its slot is released once it has exited.
+        final ProcessScheduler interrupted = new ProcessScheduler(1);
+        Thread executing = new Thread() {
+            @Override
+            public void run() {
+                Globals gl = JsePlatform.standardGlobals();
+                LuajFSHook.install(gl, null, null, null, interrupted);
+                gl.load("os.execute('sleep 37')").call();
+            }
+        };
+        executing.start();
+        awaitRunning(interrupted, 1);
+        executing.interrupt();
+        executing.join(10000);
+        Assert.assertFalse(executing.isAlive());
+        awaitRunning(interrupted, 0);
+        Assert.assertNotEquals(0, new ProcessBuilder("pgrep", "-f", "sleep 37").start().waitFor());
+    }
+
+    private static void awaitQueueDepth(ProcessScheduler scheduler, int depth) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (scheduler.getQueueDepth() != depth && System.nanoTime() - deadline < 0) {
+            Thread.sleep(5);
+        }
+        Assert.assertEquals(depth, scheduler.getQueueDepth());
+    }
+
+    private static void awaitRunning(ProcessScheduler scheduler, int running) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (scheduler.getRunning() != running && System.nanoTime() - deadline < 0) {
+            Thread.sleep(5);
+        }
+        Assert.assertEquals(running, scheduler.getRunning());
+    }
+
+    @Test
+    public void testShellCommandEmulator() throws IOException {
+        MemoryLuaFileSystemHandler handler = new MemoryLuaFileSystemHandler();
+        Globals gl = JsePlatform.standardGlobals();
+        Assert.assertTrue(LuajFSHook.install(gl, handler, null, null, null, new ShellCommandEmulator()));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        gl.STDOUT = new PrintStream(out, true);
+        gl.STDERR = new PrintStream(err, true);
+
+        Assert.assertTrue(gl.load("return os.execute('mkdir -p /work/a/b')").call().toboolean());
+        Assert.assertTrue(handler.resolvePath("/work/a/b").isDir());
+        gl.load("local f = io.open('/work/a/b/x.txt', 'w') f:write('data') f:close()").call();
+        handler.setWorkDirectory(handler.resolvePath("/work"));
+
+        Assert.assertTrue(gl.load("return os.execute('pwd')").call().toboolean());
+        Assert.assertEquals("/work\n", out.toString());
+        Assert.assertTrue(gl.load("return os.execute('cp -r a c')").call().toboolean());
+        Assert.assertEquals("data", new String(readAll(handler.resolvePath("/work/c/b/x.txt")), "UTF-8"));
+        Assert.assertTrue(gl.load("return os.execute('cp a/b/x.txt y.txt')").call().toboolean());
+        Assert.assertTrue(gl.load("return os.execute('mkdir .hidden')").call().toboolean());
+        Assert.assertEquals("a\nc\ny.txt\n", gl.load("local f = io.popen('ls') local r = f:read('*a') f:close() return r").call().tojstring());
+        Assert.assertEquals(".\n..\n.hidden\na\nc\ny.txt\n", gl.load("local f = io.popen('ls -a .') local r = f:read('*a') f:close() return r").call().tojstring());
+
+        Assert.assertEquals(0, err.size());
+        Assert.assertTrue(gl.load("return os.execute('rm c')").call().isnil());
+        Assert.assertEquals("rm: cannot remove 'c': Is a directory\n", err.toString());
+        Assert.assertTrue(gl.load("return os.execute('mkdir a')").call().isnil());
+        Assert.assertTrue(gl.load("return os.execute('cp -r a a/b')").call().isnil());
+        err.reset();
+        Assert.assertTrue(gl.load("return os.execute('cp y.txt y.txt')").call().isnil());
+        Assert.assertEquals("cp: 'y.txt' and 'y.txt' are the same file\n", err.toString());
+        Assert.assertEquals("data", new String(readAll(handler.resolvePath("/work/y.txt")), "UTF-8"));
+        err.reset();
+        Assert.assertTrue(gl.load("return os.execute('cp y.txt .')").call().isnil());
+        Assert.assertEquals("cp: 'y.txt' and './y.txt' are the same file\n", err.toString());
+        Assert.assertEquals("data", new String(readAll(handler.resolvePath("/work/y.txt")), "UTF-8"));
+
+        err.reset();
+        Assert.assertTrue(gl.load("return os.execute('rm -rf .')").call().isnil());
+        Assert.assertEquals("rm: refusing to remove '.' or '..' directory: skipping '.'\n", err.toString());
+        err.reset();
+        Assert.assertTrue(gl.load("return os.execute('rm -rf a/..')").call().isnil());
+        Assert.assertEquals("rm: refusing to remove '.' or '..' directory: skipping 'a/..'\n", err.toString());
+        err.reset();
+        Assert.assertTrue(gl.load("return os.execute('rm -rf /')").call().isnil());
+        Assert.assertEquals("rm: it is dangerous to operate recursively on '/'\nrm: use --no-preserve-root to override this failsafe\n", err.toString());
+        Assert.assertTrue(handler.resolvePath("/work/a/b/x.txt").isFile());
+
+        Assert.assertTrue(gl.load("return os.execute('rm -rf c y.txt missing')").call().toboolean());
+        Assert.assertFalse(handler.resolvePath("/work/c").exists());
+        Assert.assertFalse(handler.resolvePath("/work/y.txt").exists());
+        Assert.assertEquals(2, gl.load("local _, _, code = os.execute('ls missing') return code").call().toint());
+
+        ShellCommandEmulator onlyPwd = new ShellCommandEmulator(Collections.singleton("pwd"));
+        Assert.assertNull(onlyPwd.execute(handler, "mkdir x", out, err));
+        Assert.assertNull(onlyPwd.execute(handler, "pwd | cat", out, err));
+        Assert.assertNull(new ShellCommandEmulator().execute(handler, "ls -l", out, err));
+        Assert.assertNull(new ShellCommandEmulator().execute(handler, "rm -rf *", out, err));
+    }
+
+    @Test
+    public void testSetvbuf() throws IOException {
+        DefaultLuaFileSystemHandler th = new DefaultLuaFileSystemHandler();
+        Globals gl = JsePlatform.standardGlobals();
+        Assert.assertTrue(LuajFSHook.install(gl, th));
+        LuaPath path = th.tmpFile("setvbuf", ".txt");
+        try {
+            gl.set("fname", path.toString());
+            LuaValue file = gl.load("return io.open(fname, 'w+')").call();
+
+            file.method("write", LuaValue.valueOf("abc"));
+            Assert.assertEquals(0, path.size());
+
+            file.method("setvbuf", LuaValue.valueOf("no"));
+            Assert.assertEquals(3, path.size());
+            file.method("write", LuaValue.valueOf("d"));
+            Assert.assertEquals(4, path.size());
+
+            file.method("setvbuf", LuaValue.valueOf("line"), LuaValue.valueOf(16));
+            file.method("write", LuaValue.valueOf("e"));
+            Assert.assertEquals(4, path.size());
+            file.method("write", LuaValue.valueOf("f\n"));
+            Assert.assertEquals(7, path.size());
+
+            file.method("setvbuf", LuaValue.valueOf("full"), LuaValue.valueOf(4));
+            file.method("write", LuaValue.valueOf("g"));
+            Assert.assertEquals(7, path.size());
+            Assert.assertEquals(8, file.method("seek", LuaValue.valueOf("cur")).toint());
+            file.method("seek", LuaValue.valueOf("set"), LuaValue.valueOf(2));
+            Assert.assertEquals("cdef\ng", file.method("read", LuaValue.valueOf("*a")).tojstring());
+            file.method("close");
+            Assert.assertEquals("abcdef\ng", new String(readAll(path), "UTF-8"));
+        } finally {
+            path.delete();
+        }
+
+        MemoryLuaFileSystemHandler memory = new MemoryLuaFileSystemHandler();
+        Globals memoryGl = JsePlatform.standardGlobals();
+        Assert.assertTrue(LuajFSHook.install(memoryGl, memory));
+        Assert.assertEquals("0123XY6789", memoryGl.load("local f = io.open('/x.txt', 'w+') f:setvbuf('full', 4) "
+                + "f:write('0123456789') f:seek('set', 4) f:write('XY') f:seek('set', 0) "
+                + "local r = f:read('*a') f:close() return r").call().tojstring());
+        Assert.assertEquals("0123XY6789", new String(readAll(memory.resolvePath("/x.txt")), "UTF-8"));
+    }
+
+    @Test
+    public void testDurabilityPolicy() throws IOException {
+        final AtomicLong syncs = new AtomicLong();
+        final AtomicBoolean fail = new AtomicBoolean();
+        GroupCommitSyncer syncer = new GroupCommitSyncer(TimeUnit.HOURS.toMillis(1)) {
+            @Override
+            protected void sync(FileDescriptor fd) throws IOException {
+                if (fail.get()) {
+                    throw new IOException("sync failed");
+                }
+
+                syncs.incrementAndGet();
+                super.sync(fd);
+            }
+        };
+
+        DefaultLuaFileSystemHandler th = new DefaultLuaFileSystemHandler();
+        LuaPath path = th.tmpFile("durability", ".txt");
+        try {
+            for (DurabilityPolicy policy : DurabilityPolicy.values()) {
+                Globals gl = JsePlatform.standardGlobals();
+                Assert.assertTrue(LuajFSHook.install(gl, th, null, policy, syncer, null, null));
+                gl.set("fname", path.toString());
+                Assert.assertTrue(gl.load("local f = io.open(fname, 'w') f:write('abc') f:flush() f:write('d') return f:close()").call().toboolean());
+                Assert.assertEquals("abcd", new String(readAll(path), "UTF-8"));
+            }
+
+            //The sync requested by flush is performed by close because the background task only runs once per hour.
+            Assert.assertEquals(1, syncs.get());
+
+            Globals gl = JsePlatform.standardGlobals();
+            Assert.assertTrue(LuajFSHook.install(gl, th, null, DurabilityPolicy.GROUP_COMMIT, syncer, null, null));
+            gl.set("fname", path.toString());
+            LuaValue file = gl.load("return io.open(fname, 'w')").call();
+            file.method("write", LuaValue.valueOf("a"));
+            Assert.assertTrue(file.method("flush").toboolean());
+            syncer.syncPending();
+            Assert.assertEquals(2, syncs.get());
+
+            fail.set(true);
+            Assert.assertTrue(file.method("flush").toboolean());
+            syncer.syncPending();
+            Varargs result = file.invokemethod("flush");
+            Assert.assertTrue(result.arg1().isnil());
+            Assert.assertTrue(result.arg(2).tojstring().contains("background sync failed"));
+
+            Assert.assertTrue(file.method("flush").toboolean());
+            syncer.syncPending();
+            result = file.invokemethod("close");
+            Assert.assertTrue(result.arg1().isnil());
+            Assert.assertTrue(result.arg(2).tojstring().contains("background sync failed"));
+
+            file = gl.load("return io.open(fname, 'w')").call();
+            file.method("write", LuaValue.valueOf("b"));
+            Assert.assertTrue(file.method("flush").toboolean());
+            result = file.invokemethod("close");
+            Assert.assertTrue(result.arg1().isnil());
+            Assert.assertTrue(result.arg(2).tojstring().contains("sync failed"));
+            Assert.assertEquals(2, syncs.get());
+        } finally {
+            syncer.shutdown();
+            path.delete();
+        }
+    }
+
+    @Test
+    public void testBulkReads() throws Exception {
+        StringBuilder longLine = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            longLine.append(i % 10);
+        }
+
+        DefaultLuaFileSystemHandler disk = new DefaultLuaFileSystemHandler();
+        LuaPath diskFile = disk.tmpFile("bulk", ".txt");
+        try {
+            for (LuaFileSystemHandler handler : Arrays.<LuaFileSystemHandler>asList(new MemoryLuaFileSystemHandler(), disk)) {
+                Globals gl = JsePlatform.standardGlobals();
+                Assert.assertTrue(LuajFSHook.install(gl, handler));
+                String name = handler == disk ? diskFile.toString() : "/bulk.txt";
+                gl.set("fname", name);
+                gl.set("long", longLine.toString());
+                gl.load("local f = io.open(fname, 'wb') f:write('first\\r\\n\\n', long, '\\n12 a\\0b\\nlast') f:close()").call();
+
+                //Unbuffered files are read byte by byte instead of seeking back after each line.
+                for (String mode : new String[]{"full", "no"}) {
+                    gl.set("mode", mode);
+                    Varargs r = gl.load("local f = io.open(fname) f:setvbuf(mode) "
+                            + "local a, b, c = f:read('*l', '*l', '*l') local pos = f:seek('cur') "
+                            + "local n, rest = f:read('*n', '*l') local d = f:read() local e = f:read('*l') local all = f:read('*a') f:close() "
+                            + "return a, b, c, pos, n, rest, d, e, all").invoke();
+                    Assert.assertEquals("first", r.arg(1).tojstring());
+                    Assert.assertEquals("", r.arg(2).tojstring());
+                    Assert.assertEquals(longLine.toString(), r.arg(3).tojstring());
+                    Assert.assertEquals(1009, r.arg(4).toint());
+                    Assert.assertEquals(12, r.arg(5).toint());
+                    Assert.assertEquals(" a\0b", r.arg(6).tojstring());
+                    Assert.assertEquals("last", r.arg(7).tojstring());
+                    Assert.assertTrue(r.arg(8).isnil());
+                    Assert.assertEquals("", r.arg(9).tojstring());
+                }
+
+                //Line reads of a coroutine spawned by a scheduler are performed on the io executor.
+                final AtomicLong operations = new AtomicLong();
+                CoroutineIoScheduler scheduler = new CoroutineIoScheduler(new Executor() {
+                    @Override
+                    public void execute(Runnable command) {
+                        operations.incrementAndGet();
+                        new Thread(command).start();
+                    }
+                });
+                CoroutineIoScheduler.Task task = scheduler.spawn(gl, gl.load("local f = io.open(fname) local c = 0 "
+                        + "for l in f:lines() do c = c + 1 end f:close() return c"), LuaValue.NONE);
+                scheduler.run();
+                Assert.assertNull(task.getError());
+                Assert.assertEquals(5, task.getResult().arg1().toint());
+                Assert.assertTrue(operations.get() >= 6);
+
+                Assert.assertEquals(5, gl.load("local c = 0 for l in io.lines(fname) do c = c + 1 end return c").call().toint());
+                Assert.assertEquals(1020, gl.load("local f = io.open(fname) local r = f:read('*a') f:close() return #r").call().toint());
+            }
+        } finally {
+            diskFile.delete();
+        }
+
+        Globals gl = JsePlatform.standardGlobals();
+        Assert.assertTrue(LuajFSHook.install(gl, new DefaultLuaFileSystemHandler()));
+        Varargs r = gl.load("local f = io.popen('seq 1 1000') local a, b = f:read('*l', '*l') local rest = f:read('*a') f:close() return a, b, #rest").invoke();
+        Assert.assertEquals("1", r.arg(1).tojstring());
+        Assert.assertEquals("2", r.arg(2).tojstring());
+        Assert.assertEquals(3889, r.arg(3).toint());
+    }
+
+    @Test
+    public void testBufferedReadWriteSeek() throws IOException {
+        DefaultLuaFileSystemHandler th = new DefaultLuaFileSystemHandler();
+        th.setWorkDirectory(th.tmpDir());
+        Globals gl = JsePlatform.standardGlobals();
+        Assert.assertTrue(LuajFSHook.install(gl, th));
+
+        String name = th.tmpFile("buffered", ".txt").toString();
+        try {
+            gl.set("fname", name);
+            LuaValue result = gl.load(
+                    "local f = io.open(fname, 'w+')\n" +
+                    "f:write('line1\\nline2\\n')\n" +
+                    "f:seek('set', 2)\n" +
+                    "f:write('X')\n" +
+                    "local size = f:seek('end')\n" +
+                    "f:seek('set', 0)\n" +
+                    "local a = f:read('*l')\n" +
+                    "local b = f:read('*l')\n" +
+                    "f:close()\n" +
+                    "return a .. '|' .. b .. '|' .. size").call();
+            Assert.assertEquals("liXe1|line2|12", result.tojstring());
+        } finally {
+            th.resolvePath(name).delete();
+        }
+
+        //A failed flush keeps the data buffered so a retry still writes it.
+        LuaPath memory = new MemoryLuaFileSystemHandler().resolvePath("/failing.txt");
+        final LuaRandomAccessFile delegate = memory.open("rw");
+        final AtomicBoolean fail = new AtomicBoolean(true);
+        LuaRandomAccessFile failing = (LuaRandomAccessFile) Proxy.newProxyInstance(LuaRandomAccessFile.class.getClassLoader(), new Class<?>[]{LuaRandomAccessFile.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (method.getName().equals("write") && fail.get()) {
+                    throw new IOException("disk full");
+                }
+
+                try {
+                    return method.invoke(delegate, args);
+                } catch (InvocationTargetException e) {
+                    throw e.getCause();
+                }
+            }
+        });
+
+        BufferedLuaRandomAccessFile buffered = new BufferedLuaRandomAccessFile(failing);
+        buffered.write("abc".getBytes("UTF-8"), 0, 3);
+        try {
+            buffered.flush();
+            Assert.fail();
+        } catch (IOException e) {
+            Assert.assertEquals("disk full", e.getMessage());
+        }
+
+        fail.set(false);
+        buffered.close();
+        Assert.assertEquals("abc", new String(readAll(memory), "UTF-8"));
+    }
+
+    @Test
+    public void testMappedRead() throws IOException {
+        DefaultLuaFileSystemHandler th = new DefaultLuaFileSystemHandler();
+        th.setMappedReadThreshold(0);
+        Globals gl = JsePlatform.standardGlobals();
+        Assert.assertTrue(LuajFSHook.install(gl, th));
+
+        LuaPath path = th.tmpFile("mapped", ".txt");
+        try {
+            try (OutputStream out = path.openOutput(false)) {
+                out.write("hello\nworld\n".getBytes("UTF-8"));
+            }
+
+            Assert.assertTrue(MappedBuffers.isSupported());
+            long failedReleases = MappedBuffers.getFailedReleases();
+            LuaRandomAccessFile raf = path.open("r");
+            Assert.assertTrue(raf instanceof MappedLuaRandomAccessFile);
+            raf.close();
+            Assert.assertEquals(failedReleases, MappedBuffers.getFailedReleases());
+
+            gl.set("fname", path.toString());
+            LuaValue result = gl.load(
+                    "local f = io.open(fname, 'r')\n" +
+                    "local a = f:read('*l')\n" +
+                    "f:seek('set', 8)\n" +
+                    "local b = f:read(3)\n" +
+                    "local c = f:read('*a')\n" +
+                    "f:close()\n" +
+                    "return a .. '|' .. b .. '|' .. c").call();
+            Assert.assertEquals("hello|rld|\n", result.tojstring());
+        } finally {
+            path.delete();
+        }
+    }
+
+    @Test
+    public void testFileTransfer() throws IOException {
+        DefaultLuaFileSystemHandler th = new DefaultLuaFileSystemHandler();
+        LuaPath source = th.tmpFile("transfer", ".src");
+        LuaPath target = th.tmpFile("transfer", ".dst");
+        try {
+            byte[] data = new byte[200000];
+            for (int i = 0; i < data.length; i++) {
+                data[i] = (byte) i;
+            }
+
+            Assert.assertEquals(data.length, FileTransfer.copyFrom(new ByteArrayInputStream(data), source));
+            Assert.assertEquals(data.length, FileTransfer.transfer(source, target));
+            Assert.assertEquals(data.length, target.size());
+
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            try (InputStream in = target.openInput()) {
+                FileTransfer.copy(in, baos);
+            }
+            Assert.assertArrayEquals(data, baos.toByteArray());
+
+            //Memory paths do not implement TransferableLuaPath and use the generic copy.
+            LuaPath memory = new MemoryLuaFileSystemHandler().resolvePath("/copy.bin");
+            Assert.assertEquals(data.length, FileTransfer.transferTo(source, memory));
+            Assert.assertArrayEquals(data, readAll(memory));
+            Assert.assertEquals(3, FileTransfer.copyFrom(new ByteArrayInputStream(new byte[]{1, 2, 3}), memory));
+            Assert.assertEquals(3, FileTransfer.transferTo(memory, target));
+            Assert.assertEquals(3, target.size());
+
+            //Copying a file onto itself must not truncate it.
+            memory.copyFile(memory);
+            Assert.assertArrayEquals(new byte[]{1, 2, 3}, readAll(memory));
+            Assert.assertEquals(3, FileTransfer.transfer(memory, memory.parent().child("copy.bin")));
+            Assert.assertArrayEquals(new byte[]{1, 2, 3}, readAll(memory));
+            Assert.assertEquals(data.length, FileTransfer.transfer(source, source));
+            Assert.assertEquals(data.length, source.size());
+
+            LuaPath hardLink = source.parent().child(source.name() + ".link");
+            hardLink.link(source);
+            try {
+                Assert.assertEquals(data.length, FileTransfer.transfer(hardLink, source));
+                Assert.assertEquals(data.length, source.size());
+            } finally {
+                hardLink.delete();
+            }
+        } finally {
+            source.delete();
+            target.delete();
+        }
+    }
+
+    @Test
+    public void testChunkCache() throws IOException {
+        ChunkCache cache = new ChunkCache();
+        DefaultLuaFileSystemHandler th = new DefaultLuaFileSystemHandler();
+        th.setChunkCache(cache);
+        LuaPath module = th.tmpFile("chunk", ".lua");
+        try {
+            try (OutputStream out = module.openOutput(false)) {
+                out.write("counter = (counter or 0) + 1 return counter".getBytes("UTF-8"));
+            }
+
+            for (int i = 0; i < 3; i++) {
+                Globals gl = JsePlatform.standardGlobals();
+                DefaultLuaFileSystemHandler handler = new DefaultLuaFileSystemHandler();
+                handler.setChunkCache(cache);
+                Assert.assertTrue(LuajFSHook.install(gl, handler));
+                gl.set("fname", module.toString());
+                Assert.assertEquals(2, gl.load("dofile(fname) return dofile(fname)").call().toint());
+            }
+
+            Assert.assertEquals(1, cache.getMisses());
+            Assert.assertEquals(5, cache.getHits());
+
+            Globals gl = JsePlatform.standardGlobals();
+            DefaultLuaFileSystemHandler handler = new DefaultLuaFileSystemHandler();
+            handler.setChunkCache(cache);
+            Assert.assertTrue(LuajFSHook.install(gl, handler));
+            gl.set("fname", module.toString());
+            Assert.assertTrue(gl.load("return loadfile(fname, 'b')").call().isnil());
+            Assert.assertEquals(1, gl.load("return loadfile(fname, 't')()").call().toint());
+
+            //Same size and same last modified time, only the content check notices the change.
+            FileTime lastModified = Files.getLastModifiedTime(module.toSystemPath());
+            Files.write(module.toSystemPath(), "counter = (counter or 0) + 7 return counter".getBytes("UTF-8"));
+            Files.setLastModifiedTime(module.toSystemPath(), lastModified);
+            Assert.assertEquals(8, gl.load("return dofile(fname)").call().toint());
+        } finally {
+            module.delete();
+        }
+    }
+
+    @Test
+    public void testNegativeLookupCache() throws IOException {
+        DefaultLuaFileSystemHandler th = new DefaultLuaFileSystemHandler();
+        NegativeLookupCache cache = new NegativeLookupCache();
+        th.setNegativeLookupCache(cache);
+        Globals gl = JsePlatform.standardGlobals();
+        Assert.assertTrue(LuajFSHook.install(gl, th));
+
+        LuaPath dir = th.tmpFile("negative", "dir");
+        dir.delete();
+        dir.mkdir();
+        String module = dir.name() + "_mod";
+        try {
+            //A work directory of another handler must still use the caches of this handler.
+            th.setWorkDirectory(new DefaultLuaFileSystemHandler().resolvePath(dir.toString()));
+            gl.set("modname", module);
+            gl.load("package.path = './?.lua;./?/init.lua'").call();
+            Assert.assertFalse(gl.load("return pcall(require, modname)").call().toboolean());
+            Assert.assertEquals(0, cache.getHits());
+            Assert.assertFalse(gl.load("return pcall(require, modname)").call().toboolean());
+            Assert.assertEquals(2, cache.getHits());
+
+            //Creating the file through the handler must invalidate the cache
+            gl.load("local f = io.open(modname .. '.lua', 'w') f:write('return 42') f:close()").call();
+            Assert.assertEquals(42, gl.load("return require(modname)").call().toint());
+
+            //Moving a directory must invalidate everything inside of the target
+            th.resolvePath("a").mkdir();
+            th.resolvePath(module + ".lua").moveFile(th.resolvePath("a/x.lua"));
+            Assert.assertNull(th.findResource("b/x.lua"));
+            Assert.assertTrue(cache.isMissing(th.resolvePath("b/x.lua").absolutePath()));
+            th.resolvePath("a").move(th.resolvePath("b"));
+            InputStream in = th.findResource("b/x.lua");
+            Assert.assertNotNull(in);
+            in.close();
+            Assert.assertNull(th.findResource("a/x.lua"));
+
+            //Creating parents must invalidate them
+            Assert.assertNull(th.findResource("c"));
+            Assert.assertNull(th.findResource("c/d"));
+            th.resolvePath("c/d/e").mkdirs();
+            Assert.assertFalse(cache.isMissing(th.resolvePath("c").absolutePath()));
+            Assert.assertFalse(cache.isMissing(th.resolvePath("c/d").absolutePath()));
+        } finally {
+            th.resolvePath("c/d/e").delete();
+            th.resolvePath("c/d").delete();
+            th.resolvePath("c").delete();
+            th.resolvePath("b/x.lua").delete();
+            th.resolvePath("b").delete();
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void testAttributeCache() throws IOException {
+        DefaultLuaFileSystemHandler th = new DefaultLuaFileSystemHandler();
+        AttributeCache cache = new AttributeCache(1, TimeUnit.HOURS, 100);
+        th.setAttributeCache(cache);
+
+        LuaPath path = th.tmpFile("attributes", ".txt");
+        Assert.assertTrue(path.exists());
+        Assert.assertTrue(path.isFile());
+        Assert.assertFalse(path.isDir());
+        Assert.assertEquals(0, path.size());
+        Assert.assertEquals(1, cache.getMisses());
+        Assert.assertEquals(3, cache.getHits());
+
+        try (OutputStream out = path.openOutput(false)) {
+            out.write(new byte[10]);
+        }
+        Assert.assertEquals(10, path.size());
+
+        LuaRandomAccessFile raf = path.open("rw");
+        try {
+            raf.setPosition(10);
+            raf.write(new byte[5], 0, 5);
+            BufferedLuaRandomAccessFile.flush(raf);
+            Assert.assertEquals(15, path.size());
+        } finally {
+            raf.close();
+        }
+
+        path.delete();
+        Assert.assertFalse(path.exists());
+        Assert.assertFalse(path.isFile());
+
+        LuaPath dir = th.tmpFile("attributes", "dir");
+        dir.delete();
+        LuaPath moved = dir.parent().child(dir.name() + "moved");
+        LuaPath created = dir.parent().child(dir.name() + "created");
+        try {
+            dir.mkdir();
+            dir.child("x.lua").createNewFile();
+            Assert.assertTrue(dir.child("x.lua").isFile());
+            Assert.assertFalse(moved.child("x.lua").exists());
+
+            dir.move(moved);
+            Assert.assertFalse(dir.child("x.lua").exists());
+            Assert.assertTrue(moved.child("x.lua").isFile());
+
+            Assert.assertFalse(created.child("d").exists());
+            created.child("d").child("e").mkdirs();
+            Assert.assertTrue(created.isDir());
+            Assert.assertTrue(created.child("d").isDir());
+
+            moved.child("x.lua").delete();
+            moved.delete();
+            Assert.assertFalse(moved.exists());
+        } finally {
+            for (LuaPath cleanup : new LuaPath[]{created.child("d").child("e"), created.child("d"), created, moved.child("x.lua"), moved, dir.child("x.lua"), dir}) {
+                if (cleanup.exists()) {
+                    cleanup.delete();
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testDirectoryStream() throws IOException {
+        DefaultLuaFileSystemHandler th = new DefaultLuaFileSystemHandler();
+        LuaPath dir = th.tmpFile("list", "dir");
+        dir.delete();
+        dir.mkdir();
+        try {
+            dir.child("a.txt").createNewFile();
+            dir.child("sub").mkdir();
+
+            Assert.assertEquals(2, dir.list().size());
+
+            //The proxy only implements LuaPath so the stream falls back to list().
+            final LuaPath delegate = dir;
+            LuaPath listOnly = (LuaPath) Proxy.newProxyInstance(LuaPath.class.getClassLoader(), new Class<?>[]{LuaPath.class}, new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    try {
+                        return method.invoke(delegate, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                }
+            });
+
+            for (LuaPath path : new LuaPath[]{dir, listOnly}) {
+                int files = 0;
+                int dirs = 0;
+                try (DirectoryStream<LuaDirectoryEntry> stream = FileTreeWalker.newDirectoryStream(path)) {
+                    for (LuaDirectoryEntry entry : stream) {
+                        if (entry.attributes().isDirectory()) {
+                            Assert.assertEquals("sub", entry.path().name());
+                            dirs++;
+                        } else {
+                            Assert.assertEquals("a.txt", entry.path().name());
+                            files++;
+                        }
+                    }
+                }
+
+                Assert.assertEquals(1, files);
+                Assert.assertEquals(1, dirs);
+            }
+
+            try {
+                dir.child("a.txt").list();
+                Assert.fail();
+            } catch (NotDirectoryException e) {
+                //EXPECTED
+            }
+        } finally {
+            dir.child("a.txt").delete();
+            dir.child("sub").delete();
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void testMemoryHandler() throws IOException {
+        MemoryLuaFileSystemHandler handler = new MemoryLuaFileSystemHandler(16);
+        Globals gl = JsePlatform.standardGlobals();
+        Assert.assertTrue(LuajFSHook.install(gl, handler));
+
+        String name = gl.load("local n = os.tmpname() local f = io.open(n, 'w') f:write(string.rep('x', 100)) f:close() return n").call().tojstring();
+        Assert.assertTrue(name.startsWith(MemoryLuaFileSystemHandler.TMP_DIR));
+        Assert.assertFalse(new File(name).exists());
+        Assert.assertEquals(100, handler.getUsedBytes());
+
+        LuaValue handle = gl.load("local f = io.open('" + name + "') os.remove('" + name + "') return f").call();
+        Assert.assertFalse(handler.resolvePath(name).exists());
+        Assert.assertEquals(100, handle.method("read", LuaValue.valueOf("*a")).checkjstring().length());
+        handle.method("close");
+
+        LuaRandomAccessFile file = handler.resolvePath("sparse").open("rw");
+        file.setPosition(40);
+        file.write(1);
+        file.setSize(20);
+        file.setSize(40);
+        file.setPosition(0);
+        byte[] data = new byte[40];
+        Assert.assertEquals(40, file.read(data, 0, 40));
+        Assert.assertArrayEquals(new byte[40], data);
+        file.close();
+
+        //Single bytes across chunk boundaries and into a hole.
+        file = handler.resolvePath("bytes").open("rw");
+        file.setPosition(4);
+        for (int i = 0; i < 40; i++) {
+            file.write(i + 200);
+        }
+        Assert.assertEquals(44, file.size());
+        file.setPosition(0);
+        for (int i = 0; i < 4; i++) {
+            Assert.assertEquals(0, file.read());
+        }
+        for (int i = 0; i < 40; i++) {
+            Assert.assertEquals((i + 200) & 0xff, file.read());
+        }
+        Assert.assertEquals(-1, file.read());
+        Assert.assertEquals(44, file.getPosition());
+        file.close();
+    }
+
+    @Test
+    public void testOffHeapHandler() throws IOException {
+        Path backing = Files.createTempDirectory("luajfshook");
+        DirectChunkPool pool = new DirectChunkPool(1024, 4096, 2);
+        OffHeapLuaFileSystemHandler handler = new OffHeapLuaFileSystemHandler(pool, backing);
+        Globals gl = JsePlatform.standardGlobals();
+        Assert.assertTrue(LuajFSHook.install(gl, handler));
+
+        gl.load("local f = io.open('small', 'w') f:write(string.rep('s', 3000)) f:close()").call();
+        Assert.assertEquals(3072, pool.getAllocatedBytes());
+        Assert.assertEquals(0, backing.toFile().list().length);
+
+        gl.load("local f = io.open('large', 'w') f:write(string.rep('l', 5000)) f:close()").call();
+        Assert.assertEquals(1, backing.toFile().list().length);
+        Assert.assertEquals(5000, gl.load("local f = io.open('large') local r = f:read('*a') f:close() return r").call().tojstring().length());
+        Assert.assertEquals(3000, gl.load("local f = io.open('small') local r = f:read('*a') f:close() return r").call().tojstring().length());
+
+        gl.load("os.remove('large') os.remove('small')").call();
+        Assert.assertEquals(0, backing.toFile().list().length);
+        Assert.assertEquals(2048, pool.getAllocatedBytes());
+        Assert.assertEquals(2048, pool.getPooledBytes());
+
+        handler.close();
+        pool.close();
+        Assert.assertEquals(0, pool.getAllocatedBytes());
+        Files.delete(backing);
+    }
+
+    @Test
+    public void testZipHandler() throws IOException {
+        Path zip = Files.createTempFile("luajfshook", ".zip");
+        byte[] data = new byte[100000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i % 251);
+        }
+
+        try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(zip))) {
+            out.putNextEntry(new ZipEntry("scripts/mod.lua"));
+            out.write("return {value = 5}".getBytes("UTF-8"));
+            out.putNextEntry(new ZipEntry("empty/"));
+            out.putNextEntry(new ZipEntry("deflated.bin"));
+            out.write(data);
+
+            ZipEntry stored = new ZipEntry("stored.bin");
+            stored.setMethod(ZipEntry.STORED);
+            stored.setSize(data.length);
+            CRC32 crc = new CRC32();
+            crc.update(data);
+            stored.setCrc(crc.getValue());
+            out.putNextEntry(stored);
+            out.write(data);
+        }
+
+        try (ZipLuaFileSystemHandler handler = new ZipLuaFileSystemHandler(zip)) {
+            Assert.assertEquals(6, handler.size());
+            Assert.assertTrue(handler.resolvePath("scripts").isDir());
+            Assert.assertTrue(handler.resolvePath("empty").isDir());
+            Assert.assertTrue(handler.resolvePath("/scripts/mod.lua").isFile());
+            Assert.assertFalse(handler.resolvePath("missing.lua").exists());
+            Assert.assertEquals(4, handler.resolvePath("/").list().size());
+            Assert.assertEquals(data.length, handler.resolvePath("stored.bin").attributes().size());
+
+            Globals gl = JsePlatform.standardGlobals();
+            Assert.assertTrue(LuajFSHook.install(gl, handler));
+            Assert.assertEquals(5, gl.load("package.path = '/scripts/?.lua' return require('mod').value").call().toint());
+            Assert.assertTrue(gl.load("return io.open('new.txt', 'w') == nil").call().toboolean());
+
+            for (String name : new String[]{"stored.bin", "deflated.bin"}) {
+                LuaRandomAccessFile file = handler.resolvePath(name).open("r");
+                byte[] buf = new byte[100];
+                file.setPosition(90000);
+                Assert.assertEquals(100, file.read(buf, 0, 100));
+                Assert.assertArrayEquals(Arrays.copyOfRange(data, 90000, 90100), buf);
+                file.setPosition(90099);
+                Assert.assertEquals(data[90099] & 0xff, file.read());
+                byte[] window = new byte[1000];
+                file.setPosition(65036);
+                Assert.assertEquals(1000, file.read(window, 0, 1000));
+                Assert.assertArrayEquals(Arrays.copyOfRange(data, 65036, 66036), window);
+                file.setPosition(10);
+                Assert.assertEquals(100, file.read(buf, 0, 100));
+                Assert.assertArrayEquals(Arrays.copyOfRange(data, 10, 110), buf);
+                file.close();
+
+                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                try (InputStream in = handler.findResource(name)) {
+                    FileTransfer.copy(in, baos);
+                }
+                Assert.assertArrayEquals(data, baos.toByteArray());
+            }
+
+            //An interrupted read closes the channel, the handler must reopen it for everyone else.
+            LuaRandomAccessFile file = handler.resolvePath("stored.bin").open("r");
+            Thread.currentThread().interrupt();
+            try {
+                file.read(new byte[100], 0, 100);
+                Assert.fail();
+            } catch (IOException e) {
+                //Expected
+            } finally {
+                Thread.interrupted();
+            }
+
+            byte[] buf = new byte[100];
+            file.setPosition(500);
+            Assert.assertEquals(100, file.read(buf, 0, 100));
+            Assert.assertArrayEquals(Arrays.copyOfRange(data, 500, 600), buf);
+            file.close();
+            Assert.assertEquals(5, gl.load("package.loaded.mod = nil return require('mod').value").call().toint());
+        } finally {
+            Files.delete(zip);
+        }
+    }
+
+    @Test
+    public void testMountHandler() throws IOException {
+        Path zip = Files.createTempFile("luajfshook", ".zip");
+        try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(zip))) {
+            out.putNextEntry(new ZipEntry("mod.lua"));
+            out.write("return {value = 3}".getBytes("UTF-8"));
+        }
+
+        Path data = Files.createTempDirectory("luajfshook");
+        DefaultLuaFileSystemHandler disk = new DefaultLuaFileSystemHandler();
+        MemoryLuaFileSystemHandler memory = new MemoryLuaFileSystemHandler();
+        try (ZipLuaFileSystemHandler scripts = new ZipLuaFileSystemHandler(zip)) {
+            MountLuaFileSystemHandler handler = new MountLuaFileSystemHandler();
+            handler.mount("/scripts", scripts);
+            handler.mount("/tmp", memory, memory.resolvePath("/tmp"));
+            handler.mount("/data", disk, disk.resolveSysPath(data));
+
+            Assert.assertTrue(handler.resolvePath("/").isDir());
+            Assert.assertEquals(3, handler.resolvePath("/").list().size());
+            Assert.assertTrue(handler.resolvePath("/scripts/mod.lua").isFile());
+            Assert.assertEquals(data.resolve("x"), handler.resolvePath("/data/x").toSystemPath());
+            Assert.assertEquals("/data/x", handler.resolveSysPath(data.resolve("x")).path());
+
+            Globals gl = JsePlatform.standardGlobals();
+            Assert.assertTrue(LuajFSHook.install(gl, handler));
+            Assert.assertEquals(3, gl.load("package.path = '/scripts/?.lua' return require('mod').value").call().toint());
+
+            gl.load("local n = os.tmpname() local f = io.open(n, 'w') f:write('moved') f:close() assert(os.rename(n, '/data/moved.txt'))").call();
+            Assert.assertEquals(0, memory.getUsedBytes());
+            Assert.assertEquals("moved", new String(Files.readAllBytes(data.resolve("moved.txt")), "UTF-8"));
+
+            handler.resolvePath("/data/moved.txt").copyFile(handler.resolvePath("/tmp/copy.txt"));
+            Assert.assertEquals(5, memory.resolvePath("/tmp/copy.txt").size());
+            Assert.assertTrue(gl.load("return io.open('/scripts/new.lua', 'w') == nil").call().toboolean());
+
+            try {
+                handler.resolvePath("/data").delete();
+                Assert.fail();
+            } catch (AccessDeniedException e) {
+                //EXPECTED
+            }
+
+            Assert.assertTrue(handler.unmount("/data"));
+            Assert.assertFalse(handler.resolvePath("/data/moved.txt").exists());
+            Assert.assertEquals(2, handler.resolvePath("/").list().size());
+        } finally {
+            Files.delete(data.resolve("moved.txt"));
+            Files.delete(data);
+            Files.delete(zip);
+        }
+    }
+
+    @Test
+    public void testParallelWalkFileTree() throws IOException {
+        DefaultLuaFileSystemHandler th = new DefaultLuaFileSystemHandler();
+        LuaPath root = th.tmpFile("walk", "dir");
+        root.delete();
+        root.mkdir();
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            for (int i = 0; i < 5; i++) {
+                LuaPath sub = root.child("d" + i);
+                sub.mkdir();
+                for (int j = 0; j < 10; j++) {
+                    try (OutputStream out = sub.child("f" + j).openOutput(false)) {
+                        out.write(new byte[j]);
+                    }
+                }
+            }
+
+            final AtomicLong files = new AtomicLong();
+            final AtomicLong bytes = new AtomicLong();
+            final AtomicLong dirs = new AtomicLong();
+            LuaPath.LuaAttributeFileVisitor visitor = new LuaPath.LuaAttributeFileVisitor() {
+                @Override
+                public FileVisitResult preVisitDirectory(LuaPath dir, BasicFileAttributes attributes) {
+                    Assert.assertTrue(attributes.isDirectory());
+                    dirs.incrementAndGet();
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(LuaPath file, BasicFileAttributes attributes) {
+                    files.incrementAndGet();
+                    bytes.addAndGet(attributes.size());
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult preVisitDirectory(LuaPath dir) {
+                    throw new AssertionError();
+                }
+
+                @Override
+                public FileVisitResult visitFile(LuaPath dir) {
+                    throw new AssertionError();
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(LuaPath dir) {
+                    return FileVisitResult.CONTINUE;
+                }
+            };
+
+            root.walkFileTree(Integer.MAX_VALUE, false, visitor);
+            Assert.assertEquals(6, dirs.get());
+            Assert.assertEquals(50, files.get());
+            Assert.assertEquals(225, bytes.get());
+
+            dirs.set(0);
+            files.set(0);
+            bytes.set(0);
+            ParallelFileTreeWalker.walk(root, Integer.MAX_VALUE, false, visitor, pool);
+            Assert.assertEquals(6, dirs.get());
+            Assert.assertEquals(50, files.get());
+            Assert.assertEquals(225, bytes.get());
+        } finally {
+            pool.shutdown();
+            for (int i = 0; i < 5; i++) {
+                for (int j = 0; j < 10; j++) {
+                    root.child("d" + i).child("f" + j).delete();
+                }
+                root.child("d" + i).delete();
+            }
+            root.delete();
+        }
+    }
 
     class TestHandler extends DefaultLuaFileSystemHandler {
 
@@ -80,4 +1202,299 @@ public class LuajFSHookTest {
             return null;
         }
     }
+
+    @Test
+    public void testOverlayHandler() throws IOException {
+        MemoryLuaFileSystemHandler base = new MemoryLuaFileSystemHandler();
+        base.resolvePath("/lib").mkdirs();
+        base.resolvePath("/data").mkdirs();
+        try (OutputStream out = base.resolvePath("/lib/mod.lua").openOutput(false)) {
+            out.write("return {value = 4}".getBytes("UTF-8"));
+        }
+        try (OutputStream out = base.resolvePath("/data/config.txt").openOutput(false)) {
+            out.write("base".getBytes("UTF-8"));
+        }
+
+        MemoryLuaFileSystemHandler upper = new MemoryLuaFileSystemHandler();
+        OverlayLuaFileSystemHandler handler = new OverlayLuaFileSystemHandler(base, upper);
+        Globals gl = JsePlatform.standardGlobals();
+        Assert.assertTrue(LuajFSHook.install(gl, handler));
+
+        Assert.assertEquals(4, gl.load("package.path = '/lib/?.lua' return require('mod').value").call().toint());
+        Assert.assertEquals("base", gl.load("local f = io.open('/data/config.txt', 'r+') local r = f:read('*a') f:close() return r").call().tojstring());
+        Assert.assertEquals(0, upper.getUsedBytes());
+
+        gl.load("local f = io.open('/data/config.txt', 'a') f:write('-tenant') f:close()").call();
+        Assert.assertEquals("base-tenant", gl.load("local f = io.open('/data/config.txt') local r = f:read('*a') f:close() return r").call().tojstring());
+        Assert.assertEquals(4, base.resolvePath("/data/config.txt").size());
+
+        gl.load("local f = io.open('/lib/mod.lua', 'w') f:write('x') f:close()").call();
+        Assert.assertEquals(1, upper.resolvePath("/lib/mod.lua").size());
+
+        Assert.assertTrue(gl.load("return os.remove('/lib/mod.lua')").call().toboolean());
+        Assert.assertFalse(handler.resolvePath("/lib/mod.lua").exists());
+        Assert.assertTrue(base.resolvePath("/lib/mod.lua").exists());
+        Assert.assertTrue(upper.resolvePath("/lib/.wh.mod.lua").exists());
+        Assert.assertEquals(0, handler.resolvePath("/lib").list().size());
+
+        handler.resolvePath("/lib").delete();
+        handler.resolvePath("/lib").mkdir();
+        Assert.assertEquals(0, handler.resolvePath("/lib").list().size());
+
+        OverlayLuaFileSystemHandler reopened = new OverlayLuaFileSystemHandler(base, upper);
+        Assert.assertFalse(reopened.resolvePath("/lib/mod.lua").exists());
+        Assert.assertTrue(reopened.resolvePath("/lib").isDir());
+        Assert.assertEquals(base.resolvePath("/").list().size(), reopened.resolvePath("/").list().size());
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        try (InputStream in = reopened.resolvePath("/data/config.txt").openInput()) {
+            FileTransfer.copy(in, content);
+        }
+        Assert.assertEquals("base-tenant", content.toString("UTF-8"));
+
+        //The first handle copies the file up, the second one has to truncate the copy.
+        try (OutputStream out = base.resolvePath("/data/lower.txt").openOutput(false)) {
+            out.write("lower".getBytes("UTF-8"));
+        }
+        OverlayLuaFileSystemHandler shared = new OverlayLuaFileSystemHandler(base, upper);
+        LuaRandomAccessFile writer = shared.resolvePath("/data/lower.txt").open("rw");
+        LuaRandomAccessFile truncater = shared.resolvePath("/data/lower.txt").open("rw");
+        writer.write('L');
+        writer.close();
+        truncater.setSize(0);
+        truncater.close();
+        Assert.assertEquals(0, shared.resolvePath("/data/lower.txt").size());
+        Assert.assertEquals(5, base.resolvePath("/data/lower.txt").size());
+    }
+
+    @Test
+    public void testSnapshotHandler() throws IOException {
+        SnapshotMemoryLuaFileSystemHandler handler = new SnapshotMemoryLuaFileSystemHandler(4);
+        Globals gl = JsePlatform.standardGlobals();
+        Assert.assertTrue(LuajFSHook.install(gl, handler));
+        gl.load("local f = io.open('/data.txt', 'w') f:write('0123456789abcdef') f:close()").call();
+        LuaValue file = gl.load("local f = io.open('/data.txt', 'r+') return f").call();
+
+        SnapshotMemoryLuaFileSystemHandler.Snapshot snapshot = handler.snapshot();
+        SnapshotMemoryLuaFileSystemHandler fork = snapshot.fork();
+        Assert.assertEquals(0, fork.getDivergedBytes());
+        Assert.assertEquals(16, fork.getSharedBytes());
+
+        file.method("seek", LuaValue.valueOf("set"), LuaValue.valueOf(5));
+        file.method("write", LuaValue.valueOf("X"));
+        file.method("close");
+        Assert.assertEquals("01234X6789abcdef", gl.load("local f = io.open('/data.txt') local r = f:read('*a') f:close() return r").call().tojstring());
+
+        Globals forkGl = JsePlatform.standardGlobals();
+        Assert.assertTrue(LuajFSHook.install(forkGl, fork));
+        Assert.assertEquals("0123456789abcdef", forkGl.load("local f = io.open('/data.txt') local r = f:read('*a') f:close() return r").call().tojstring());
+
+        forkGl.load("local f = io.open('/data.txt', 'a') f:write('!') f:close() os.remove('/tmp') io.open('/new.txt', 'w'):close()").call();
+        Assert.assertEquals(4, fork.getDivergedBytes());
+        Assert.assertEquals(16, fork.getSharedBytes());
+        Assert.assertEquals(17, fork.resolvePath("/data.txt").size());
+        Assert.assertEquals(16, handler.resolvePath("/data.txt").size());
+        Assert.assertFalse(handler.resolvePath("/new.txt").exists());
+        Assert.assertFalse(fork.resolvePath("/tmp").exists());
+        Assert.assertTrue(snapshot.fork().resolvePath("/tmp").exists());
+
+        fork.resolvePath("/data.txt").move(fork.resolvePath("/moved.txt"));
+        Assert.assertTrue(handler.resolvePath("/data.txt").exists());
+        Assert.assertEquals("0123456789abcdef", new String(readAll(snapshot.fork().resolvePath("/data.txt")), "UTF-8"));
+    }
+
+    private static byte[] readAll(LuaPath path) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = path.openInput()) {
+            FileTransfer.copy(in, out);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testJailedHandler() throws IOException {
+        Path outside = Files.createTempDirectory("luajfshook");
+        Path root = Files.createTempDirectory("luajfshook");
+        try {
+            Files.write(outside.resolve("secret.txt"), "secret".getBytes("UTF-8"));
+            Files.createDirectories(root.resolve("data/real"));
+            Files.write(root.resolve("data/real/x.txt"), "x".getBytes("UTF-8"));
+            Files.createSymbolicLink(root.resolve("escape"), outside);
+            Files.createSymbolicLink(root.resolve("data/inside"), root.resolve("data/real"));
+            Files.createSymbolicLink(root.resolve("dangling"), outside.resolve("created.txt"));
+
+            JailedLuaFileSystemHandler handler = new JailedLuaFileSystemHandler(root);
+            Globals gl = JsePlatform.standardGlobals();
+            Assert.assertTrue(LuajFSHook.install(gl, handler));
+
+            Assert.assertEquals("x", gl.load("local f = io.open('data/real/x.txt') local r = f:read('*a') f:close() return r").call().tojstring());
+            Assert.assertEquals("x", gl.load("local f = io.open('/data/inside/x.txt') local r = f:read('*a') f:close() return r").call().tojstring());
+            Assert.assertEquals("x", gl.load("local f = io.open('../../../data/real/../real/x.txt') local r = f:read('*a') f:close() return r").call().tojstring());
+
+            Assert.assertTrue(gl.load("return io.open('/escape/secret.txt') == nil").call().toboolean());
+            Assert.assertTrue(gl.load("return io.open('/dangling', 'w') == nil").call().toboolean());
+            Assert.assertFalse(Files.exists(outside.resolve("created.txt")));
+            Assert.assertFalse(handler.resolvePath("/escape/secret.txt").exists());
+            Assert.assertNull(handler.resolvePath("/escape/secret.txt").toSystemPath());
+
+            try {
+                handler.resolvePath("/link").symlink(handler.resolvePath("/data"));
+                Assert.fail();
+            } catch (AccessDeniedException e) {
+                //EXPECTED
+            }
+
+            handler.resolvePath("/escape").delete();
+            Assert.assertTrue(Files.exists(outside.resolve("secret.txt")));
+            Assert.assertEquals("/data/real/x.txt", handler.resolveSysPath(root.resolve("data/real/x.txt")).path());
+            Assert.assertNull(handler.resolveSysPath(outside));
+        } finally {
+            Files.deleteIfExists(root.resolve("dangling"));
+            Files.deleteIfExists(root.resolve("escape"));
+            Files.delete(root.resolve("data/inside"));
+            Files.delete(root.resolve("data/real/x.txt"));
+            Files.delete(root.resolve("data/real"));
+            Files.delete(root.resolve("data"));
+            Files.delete(root);
+            Files.delete(outside.resolve("secret.txt"));
+            Files.delete(outside);
+        }
+    }
+
+    @Test
+    public void testResolvedPathCache() throws IOException {
+        Path first = Files.createTempDirectory("luajfshook");
+        Path second = Files.createTempDirectory("luajfshook");
+        try {
+            DefaultLuaFileSystemHandler handler = new DefaultLuaFileSystemHandler();
+            handler.setWorkDirectory(handler.resolveSysPath(first));
+            ResolvedPathCache cache = handler.getResolvedPathCache();
+            Assert.assertNotNull(cache);
+
+            LuaPath path = handler.resolvePath("data/x.txt");
+            Assert.assertSame(path, handler.resolvePath("data/x.txt"));
+            Assert.assertEquals(1, cache.getHits());
+            Assert.assertEquals(first.toRealPath().resolve("data/x.txt"), path.toSystemPath());
+
+            handler.setWorkDirectory(handler.resolveSysPath(second));
+            Assert.assertEquals(0, cache.size());
+            Assert.assertEquals(second.toRealPath().resolve("data/x.txt"), handler.resolvePath("data/x.txt").toSystemPath());
+
+            handler.setResolvedPathCache(null);
+            Assert.assertNotSame(handler.resolvePath("data/x.txt"), handler.resolvePath("data/x.txt"));
+        } finally {
+            Files.delete(first);
+            Files.delete(second);
+        }
+    }
+
+    @Test
+    public void testCoroutineIoScheduler() throws Exception {
+        MemoryLuaFileSystemHandler handler = new MemoryLuaFileSystemHandler();
+        Globals gl = JsePlatform.standardGlobals();
+        Assert.assertTrue(LuajFSHook.install(gl, handler));
+
+        //The first operation only completes once the second one was issued, this only works if the first coroutine yielded.
+        final CountDownLatch latch = new CountDownLatch(2);
+        CoroutineIoScheduler scheduler = new CoroutineIoScheduler(new Executor() {
+            @Override
+            public void execute(final Runnable command) {
+                new Thread() {
+                    @Override
+                    public void run() {
+                        latch.countDown();
+                        try {
+                            latch.await();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        command.run();
+                    }
+                }.start();
+            }
+        });
+
+        LuaValue worker = gl.load("log = {} return function(name) "
+                + "local f = io.open('/' .. name .. '.txt', 'w') "
+                + "log[#log+1] = name .. '1' "
+                + "f:write(string.rep(name, 100000)) "
+                + "log[#log+1] = name .. '2' "
+                + "f:close() "
+                + "f = io.open('/' .. name .. '.txt', 'r') "
+                + "local r = f:read('*a') "
+                + "f:close() "
+                + "return #r, r:sub(1, 3) end").call();
+
+        CoroutineIoScheduler.Task a = scheduler.spawn(gl, worker, LuaValue.valueOf("a"));
+        CoroutineIoScheduler.Task b = scheduler.spawn(gl, worker, LuaValue.valueOf("b"));
+        CoroutineIoScheduler.Task failing = scheduler.spawn(gl, gl.load("local f = io.open('/a.txt', 'r') f:close() f:read('*a')"), LuaValue.NONE);
+        scheduler.run();
+
+        Assert.assertTrue(a.isDone());
+        Assert.assertTrue(b.isDone());
+        Assert.assertEquals(100000, a.getResult().arg1().toint());
+        Assert.assertEquals("aaa", a.getResult().arg(2).tojstring());
+        Assert.assertEquals("bbb", b.getResult().arg(2).tojstring());
+        Assert.assertNull(a.getError());
+        Assert.assertNotNull(failing.getError());
+
+        LuaValue log = gl.get("log");
+        Assert.assertEquals("a1", log.get(1).tojstring());
+        Assert.assertEquals("b1", log.get(2).tojstring());
+
+        //Outside of the scheduler everything is synchronous.
+        Assert.assertNull(CoroutineIoScheduler.current(gl));
+        Assert.assertEquals(100000, gl.load("local f = io.open('/b.txt') local r = f:read('*a') f:close() return #r").call().toint());
+    }
+
+    @Test
+    public void testCoroutineIoSchedulerSharedFile() throws Exception {
+        DefaultLuaFileSystemHandler handler = new DefaultLuaFileSystemHandler();
+        Globals gl = JsePlatform.standardGlobals();
+        Assert.assertTrue(LuajFSHook.install(gl, handler));
+        LuaPath path = handler.tmpFile("shared", ".txt");
+        try {
+            gl.set("fname", path.toString());
+            gl.load("shared = io.open(fname, 'w')").call();
+            LuaValue worker = gl.load("return function(name) "
+                    + "for i = 1, 200 do shared:write(name .. '-' .. i .. '\\n') end "
+                    + "shared:flush() end").call();
+
+            //Every coroutine writes to the same buffered handle. The executor starts the pending write of all 8 coroutines at the same time.
+            final CyclicBarrier barrier = new CyclicBarrier(8);
+            CoroutineIoScheduler scheduler = new CoroutineIoScheduler(new Executor() {
+                @Override
+                public void execute(final Runnable command) {
+                    new Thread() {
+                        @Override
+                        public void run() {
+                            try {
+                                barrier.await();
+                            } catch (InterruptedException | BrokenBarrierException e) {
+                                return;
+                            }
+                            command.run();
+                        }
+                    }.start();
+                }
+            });
+            for (int i = 0; i < 8; i++) {
+                scheduler.spawn(gl, worker, LuaValue.valueOf("task" + i));
+            }
+            scheduler.run();
+            gl.load("shared:close()").call();
+
+            String content = new String(readAll(path), "UTF-8");
+            Assert.assertEquals(-1, content.indexOf('\0'));
+            String[] lines = content.split("\n");
+            Assert.assertEquals(1600, lines.length);
+            Arrays.sort(lines);
+            for (int i = 0; i < 8; i++) {
+                for (int j = 1; j <= 200; j++) {
+                    Assert.assertTrue("task" + i + "-" + j, Arrays.binarySearch(lines, "task" + i + "-" + j) >= 0);
+                }
+            }
+        } finally {
+            path.delete();
+        }
+    }
 }
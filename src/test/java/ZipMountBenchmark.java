@@ -0,0 +1,136 @@
+//
+// Copyright Alexander Schütz, 2022
+//
+// This file is part of LuajFSHook.
+//
+// LuajFSHook is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// LuajFSHook is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// A copy of the GNU Lesser General Public License should be provided
+// in the COPYING & COPYING.LESSER files in top level directory of LuajFSHook.
+// If not, see <https://www.gnu.org/licenses/>.
+//
+import io.github.alexanderschuetz97.luajfshook.impl.ZipLuaFileSystemHandler;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Benchmark for mounting a zip archive with the ZipLuaFileSystemHandler compared to opening it with java.util.zip.ZipFile.
+ * Measures the time to mount, the heap retained by the mounted archive and the time to look up and read every file.
+ * Not a unit test. Run manually:
+ * java -cp ... ZipMountBenchmark [entries]
+ *
+ * The default is 50000 entries spread over 500 directories.
+ */
+public class ZipMountBenchmark {
+
+    private static final int ROUNDS = 10;
+
+    public static void main(String[] args) throws Exception {
+        int entries = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+
+        Path zip = Files.createTempFile("luajfshook", ".zip");
+        try {
+            writeArchive(zip, entries);
+            System.out.println("Archive: " + entries + " entries, " + Files.size(zip) + " bytes");
+
+            for (int i = 0; i < 20; i++) {
+                //warmup
+                new ZipLuaFileSystemHandler(zip).close();
+                new ZipFile(zip.toFile()).close();
+            }
+
+            long start = System.nanoTime();
+            for (int i = 0; i < ROUNDS; i++) {
+                new ZipLuaFileSystemHandler(zip).close();
+            }
+            System.out.println("ZipLuaFileSystemHandler mount: " + (System.nanoTime() - start) / ROUNDS / 1000L + " us");
+
+            start = System.nanoTime();
+            for (int i = 0; i < ROUNDS; i++) {
+                new ZipFile(zip.toFile()).close();
+            }
+            System.out.println("ZipFile open: " + (System.nanoTime() - start) / ROUNDS / 1000L + " us");
+
+            long before = usedHeap();
+            ZipLuaFileSystemHandler handler = new ZipLuaFileSystemHandler(zip);
+            long after = usedHeap();
+            System.out.println("ZipLuaFileSystemHandler retained heap: " + (after - before) / 1024L + " KiB");
+
+            before = usedHeap();
+            ZipFile zipFile = new ZipFile(zip.toFile());
+            after = usedHeap();
+            System.out.println("ZipFile retained heap: " + (after - before) / 1024L + " KiB");
+
+            byte[] buf = new byte[8192];
+            start = System.nanoTime();
+            long bytes = 0;
+            for (int i = 0; i < entries; i++) {
+                try (InputStream in = handler.findResource(name(i))) {
+                    bytes += drain(in, buf);
+                }
+            }
+            System.out.println("ZipLuaFileSystemHandler read all: " + (System.nanoTime() - start) / 1000000L + " ms (" + bytes + " bytes)");
+
+            start = System.nanoTime();
+            bytes = 0;
+            for (int i = 0; i < entries; i++) {
+                try (InputStream in = zipFile.getInputStream(zipFile.getEntry(name(i)))) {
+                    bytes += drain(in, buf);
+                }
+            }
+            System.out.println("ZipFile read all: " + (System.nanoTime() - start) / 1000000L + " ms (" + bytes + " bytes)");
+
+            handler.close();
+            zipFile.close();
+        } finally {
+            Files.delete(zip);
+        }
+    }
+
+    private static String name(int i) {
+        return "dir" + (i % 500) + "/module" + i + ".lua";
+    }
+
+    private static void writeArchive(Path zip, int entries) throws IOException {
+        byte[] content = "local M = {}\nfunction M.value() return 42 end\nreturn M\n".getBytes("UTF-8");
+        try (ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(Files.newOutputStream(zip), 1 << 16))) {
+            for (int i = 0; i < entries; i++) {
+                out.putNextEntry(new ZipEntry(name(i)));
+                out.write(content);
+            }
+        }
+    }
+
+    private static long drain(InputStream in, byte[] buf) throws IOException {
+        long total = 0;
+        int read;
+        while ((read = in.read(buf)) != -1) {
+            total += read;
+        }
+        return total;
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}